@@ -1,20 +1,17 @@
 package com.example.ronda.samplebluetoothchat;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-
-import com.socks.library.KLog;
-
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
@@ -28,56 +25,506 @@ import java.util.UUID;
  * 3. 本类中的状态变化依次是：STATE_NONE(调用构造器或stop()方法或连接动作出错或读写数据中断时) --> STATE_LISTEN(调用start()方法时) --> STATE_CONNECTING(调用 connect() 方法时) --> STATE_CONNECTED(调用connected()方法时)
  * -- 其实连接操作 mmSocket.connect(); 是在 ConnectThread 中执行的。
  * 4. 本类虽然是 BluetoothChatService ，但是和 android 系统组件 Service 是没有任何关系的。 BluetoothChatService 就是一个普通的类，这个类中 包含了 三个线程。
+ * 5. 本类不直接使用 BluetoothSocket / BluetoothServerSocket，而是通过 {@link TransportProvider} 创建 {@link Transport}。
+ * -- MainActivity 传入的是 {@link RfcommTransportProvider}，测试和性能测试时可以换成 {@link MemoryTransport}
+ * 6. 可以同时连接多个设备（最多 {@link ConnectionRegistry#DEFAULT_MAX_PEERS} 个）：每个设备一个 ConnectedThread，保存在 {@link ConnectionRegistry} 里，
+ * -- AcceptThread 在连接成功后继续监听。mState 是所有连接汇总后的状态：有一个连接就是 STATE_CONNECTED
+ * -- mState 是一个 {@link ConnectionStateMachine}：读状态不加锁，状态只能按规定的路径 CAS 切换，每次切换通知 UI 一次
+ * 7. 通过 connect() 主动连接的设备，连接失败或断线后按 {@link ReconnectPolicy} 自动重连（指数退避 + 随机抖动 + 次数上限），
+ * -- 重连期间没发出去的消息和新写的消息都先存着，连上后先发。断线到恢复的耗时见 {@link #getLastRecoveryMillis()}
+ * 8. 设置了 {@link ConnectionEngine}（{@link #setConnectionEngine(ConnectionEngine)}）以后，上面这些“线程”都不再自己开线程：
+ * -- AcceptThread、ConnectThread 在引擎的阻塞线程池里跑（重连的退避等待是定时任务，不占线程），ConnectedThread 的读、写、心跳是引擎上的任务。
+ * -- 连接再多，线程数也不变，连接、断开也不再创建线程
+ * 9. 结果（状态变化、收到和发出的帧、错误）不再是发给 Handler 的 Message，而是放进一个无锁队列（{@link EventQueue}），
+ * -- 由调用方在自己选的线程上调用 {@link #dispatchEvents()} 交给 {@link Listener}。本类不依赖 Android，在普通 JVM 上也能跑
  */
 public class BluetoothChatService {
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
+    // Member fields
+    private final TransportProvider mTransportProvider;
+    private final Listener          mListener; // 由 UI Activity 通过构造器传过来的
+    private final EventQueue        mEvents    = new EventQueue(); // 发给 mListener 的事件，在 dispatchEvents() 里取出
+    private final FramePool         mFramePool = new FramePool(); // 收到的数据拷贝到池化的缓冲区里交给 UI，UI 用完后 recycle()
+
+    private final ChatMetrics mMetrics = new ChatMetrics(); // 热路径上只有原子操作，不加锁也不分配内存
+    private final Tracer      mTracer  = new Tracer();      // 所有连接共用，断线时由 Listener 决定要不要输出
+
+    // Written by the thread calling dispatchEvents() only
+    private volatile long mDispatchedEvents;
+    private volatile long mDispatchNanos;
+
+    private volatile MessageLogStore     mMessageLog;    // 每个远程设备一份持久化的收发记录，可以为 null
+    private volatile FileTransferManager mFileTransfers; // 文件传输，可以为 null（不收发文件）
+
+    private AcceptThread                     mSecureAcceptThread; // 监听连接请求的线程。（因为此时还不知道谁作为客户端，谁作为服务端，所以此线程是最先启动的）连接成功后也不会关闭，其他设备还可以连进来
+    private final Map<String, ConnectThread> mConnectThreads = new HashMap<>(); // 连接操作的线程（因为连接操作是阻塞式的），按设备地址索引。连接成功或失败后，会自动从这里移除
+    private final ConnectionRegistry         mConnections    = new ConnectionRegistry(); // 读写数据的线程，每个已连接的设备一个
+    private ConnectRace                      mConnectRace;   // connectAny() 正在进行的抢连，连上或全部失败后置空
+    private List<ConnectRace.Attempt>        mLastRaceAttempts = new ArrayList<>();
+    private final ConnectionStateMachine     mState;         // 记录本类中的状态变化（所有连接汇总后的状态），读取不需要加锁
+
+    // Compression offered to the next connection (the peer has to agree, see FrameCompressor)
+    private boolean mCompressionEnabled = true;
+    private byte[]  mCompressionDictionary;
+
+    // Outbound queue settings, applied to the next connection
+    private int                         mOutboundCapacity = FrameWriter.DEFAULT_QUEUE_CAPACITY;
+    private FrameWriter.OverflowPolicy  mOverflowPolicy   = FrameWriter.OverflowPolicy.DROP;
+
+    // Heartbeat of the next connection, 0: none (the link is then only lost when read() fails)
+    private long mHeartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    private int  mHeartbeatMaxMissed      = Heartbeat.DEFAULT_MAX_MISSED;
+
+    // Messages a peer may send before the UI took them out of dispatchEvents(), 0: no flow control
+    private int mCreditWindow = ConnectedThread.DEFAULT_CREDIT_WINDOW;
+
+    // How the next connection shares the link between chat (interactive) and file chunks (bulk)
+    private int mInteractiveWeight = FrameWriter.DEFAULT_INTERACTIVE_WEIGHT;
+    private int mBulkWeight        = FrameWriter.DEFAULT_BULK_WEIGHT;
+
+    // One Session per device address, kept across connections (and start()) so a reconnect resends only what was lost.
+    // Least recently connected first; beyond MAX_SESSIONS devices the oldest that is not connected is forgotten
+    static final int                   MAX_SESSIONS   = 4 * ConnectionRegistry.DEFAULT_MAX_PEERS;
+    private boolean                    mResumeEnabled = true;
+    private final Map<String, Session> mSessions      = new LinkedHashMap<>();
+
+    // Threads of the next connections, null: each connection, connect and accept gets its own thread(s)
+    private ConnectionEngine mEngine;
+
+    // Reconnect: only peers we connected to ourselves (the other side of an accepted connection reconnects itself)
+    private volatile ReconnectPolicy        mReconnectPolicy  = new ReconnectPolicy(); // null: never retry
+    private final Set<String>               mReconnectTargets = new HashSet<>();
+    private final Map<String, List<byte[]>> mPendingFrames    = new ConcurrentHashMap<>(); // 重连期间要发给该设备的帧（按顺序），连上后先发。列表由 this 锁保护
+
+    // Time to recover, from losing a link to being connected again
+    private int  mRecoveries;
+    private int  mRecoveryFailures;
+    private long mLastRecoveryMillis = -1;
+    private long mTotalRecoveryMillis;
+
+    // Constants that indicate the current connection state
+    public static final int STATE_NONE       = ConnectionStateMachine.STATE_NONE;       // we're doing nothing
+    public static final int STATE_LISTEN     = ConnectionStateMachine.STATE_LISTEN;     // now listening for incoming connections
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING; // now initiating an outgoing connection
+    public static final int STATE_CONNECTED  = ConnectionStateMachine.STATE_CONNECTED;  // now connected to a remote device
 
-    // Unique UUID for this application
-    private static final UUID MY_UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // What went wrong, see Listener#onError()
+    public static final int ERROR_CONNECT_FAILED  = 1; // connect() gave up, or no device of connectAny() answered
+    public static final int ERROR_CONNECTION_LOST = 2; // a connected peer is gone, getTracer() has what happened before
+    public static final int ERROR_TOO_MANY_PEERS  = 3; // a connection was refused, ConnectionRegistry#getMaxPeers() are connected
+    public static final int ERROR_MESSAGE_DROPPED = 4; // write() queued a message for the other peers, this one's queue was full
 
-    // Member fields
-    private final BluetoothAdapter mBtAdapter;
-    private final Handler          mHandler;  // 由 UI Activity 通过构造器传过来的
+    /**
+     * Receives the results of the service. Except for {@link #onEventsPending()}, every method is
+     * called from {@link #dispatchEvents()}, so on the thread of the caller's choice, one event
+     * after the other in the order they happened.
+     */
+    public interface Listener {
+        /**
+         * Events are waiting: arrange for {@link #dispatchEvents()} to be called (post it to a
+         * Handler, wake a thread...). Called on the thread that produced the event, once per
+         * {@link #dispatchEvents()} at most; must not block.
+         */
+        void onEventsPending();
+
+        /**
+         * @param connectedCount number of connected peers, 0 unless {@code state} is STATE_CONNECTED
+         * @param deviceName     for STATE_CONNECTED: the peer that just connected, otherwise null
+         */
+        void onStateChanged(int state, int connectedCount, String deviceName);
+
+        /**
+         * A {@link FrameCodec#TYPE_TEXT} or {@link FrameCodec#TYPE_MESSAGE} frame from a peer.
+         * {@link PooledFrame#recycle()} it when done.
+         */
+        void onFrameReceived(PooledFrame frame);
+
+        /**
+         * A text or message frame was written to a peer ({@link PooledFrame#isOutgoing()}).
+         * {@link PooledFrame#recycle()} it when done.
+         */
+        void onFrameSent(PooledFrame frame);
+
+        /**
+         * A lost link to {@code address} came back after {@code millis}.
+         */
+        void onReconnected(String address, long millis);
+
+        /**
+         * @param error   one of the {@code ERROR_*} constants
+         * @param address the peer, if there is a single one concerned; may be null
+         * @param message what to tell the user
+         */
+        void onError(int error, String address, String message);
+    }
 
-    private AcceptThread    mSecureAcceptThread; // 监听连接请求的线程。（因为此时还不知道谁作为客户端，谁作为服务端，所以此线程是最先启动的）
-    private ConnectThread   mConnectThread;      // 连接操作的线程（因为连接操作是阻塞式的）。此线程是当在设备列表中选择一个远程的蓝牙设备进行连接时启动的。并且当内部的连接操作成功后，会自动置空此线程
-    private ConnectedThread mConnectedThread;    // 读写数据的线程。此线程是在 ConnectThread 中连接操作成功后启动的，并且此时会关闭并置空其他两个线程。 注意：这时可以关闭 ConnectThread 中创建的 Socket 吗
-    private int             mState;              // 记录本类中的状态变化
+    private static final class StateEvent extends EventQueue.Node {
+        final int    mmState;
+        final int    mmConnectedCount;
+        final String mmDeviceName;
 
-    // Constants that indicate the current connection state
-    public static final int STATE_NONE       = 0; // we're doing nothing
-    public static final int STATE_LISTEN     = 1; // now listening for incoming connections
-    public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED  = 3; // now connected to a remote device
+        StateEvent(int state, int connectedCount, String deviceName) {
+            mmState = state;
+            mmConnectedCount = connectedCount;
+            mmDeviceName = deviceName;
+        }
+    }
+
+    private static final class ReconnectedEvent extends EventQueue.Node {
+        final String mmAddress;
+        final long   mmMillis;
+
+        ReconnectedEvent(String address, long millis) {
+            mmAddress = address;
+            mmMillis = millis;
+        }
+    }
+
+    private static final class ErrorEvent extends EventQueue.Node {
+        final int    mmError;
+        final String mmAddress;
+        final String mmMessage;
+
+        ErrorEvent(int error, String address, String message) {
+            mmError = error;
+            mmAddress = address;
+            mmMessage = message;
+        }
+    }
+
+
+    /**
+     * @param listener          gets the results, see {@link #dispatchEvents()}
+     * @param transportProvider opens the sockets, e.g. an {@link RfcommTransportProvider}
+     */
+    public BluetoothChatService(Listener listener, TransportProvider transportProvider) {
+        mTransportProvider = transportProvider;
+        mListener = listener;
+        mState = new ConnectionStateMachine(STATE_NONE, new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                mMetrics.onStateChanged(from, to);
+                mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_STATE, from, to);
+                // Give the new state to the listener so the UI Activity can update
+                // STATE_CONNECTED 由 setConnected() 自己发，因为要带上设备名和连接数，而且每连上一个设备都要发
+                if (to != STATE_CONNECTED) {
+                    post(new StateEvent(to, 0, null));
+                }
+            }
+        });
+    }
+
+    private void setState(int state) {
+        mState.moveTo(state);
+    }
+
+    /**
+     * A peer connected: STATE_CONNECTED with the number of connected peers.
+     */
+    private synchronized void setConnected(String deviceName) {
+        mState.moveTo(STATE_CONNECTED);
+
+        // Give the new state to the listener so the UI Activity can update
+        post(new StateEvent(STATE_CONNECTED, mConnections.connectedCount(), deviceName));
+    }
+
+    /**
+     * Queue an event for {@link #dispatchEvents()}. Any thread, never blocks.
+     */
+    private void post(EventQueue.Node event) {
+        if (mEvents.offer(event)) {
+            mListener.onEventsPending();
+        }
+    }
+
+    /**
+     * Work out the overall state from the peers and tell the UI if it changed.
+     */
+    private synchronized void updateState() {
+        int state;
+        if (mConnections.connectedCount() > 0) {
+            state = STATE_CONNECTED;
+        } else if (!mConnectThreads.isEmpty() || mConnectRace != null) {
+            state = STATE_CONNECTING;
+        } else if (mSecureAcceptThread != null) {
+            state = STATE_LISTEN;
+        } else {
+            state = STATE_NONE;
+        }
+        setState(state); // 状态没变时什么也不做
+    }
+
+    /**
+     * Return the current connection state. Never blocks.
+     */
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Configure the outbound queue of the next connection.
+     *
+     * @param capacity maximum number of messages waiting to be sent
+     * @param policy   what {@link #write(byte[])} does when the queue is full
+     */
+    public synchronized void setOutboundQueue(int capacity, FrameWriter.OverflowPolicy policy) {
+        mOutboundCapacity = capacity;
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * Configure the heartbeat of the next connection: a ping every {@code intervalMillis}, and the
+     * link counts as lost after {@code maxMissed} beats without hearing from the peer. Pass 0 as
+     * the interval to send no pings.
+     */
+    public synchronized void setHeartbeat(long intervalMillis, int maxMissed) {
+        mHeartbeatIntervalMillis = intervalMillis;
+        mHeartbeatMaxMissed = maxMissed;
+    }
+
+    /**
+     * Limit how many messages each peer of the next connection may send ahead of the UI: the
+     * peer gets credit for more as {@link #dispatchEvents()} hands them to the listener. Pass 0 to
+     * let peers send freely.
+     */
+    public synchronized void setFlowControl(int window) {
+        mCreditWindow = window;
+    }
+
+    /**
+     * Set how the next connection shares the link when chat messages and file chunks are both
+     * waiting: in the ratio {@code interactive : bulk}, by bytes. Control frames always go first.
+     */
+    public synchronized void setChannelWeights(int interactive, int bulk) {
+        if (interactive < 1 || bulk < 1) {
+            throw new IllegalArgumentException("Bad weights: " + interactive + ", " + bulk);
+        }
+        mInteractiveWeight = interactive;
+        mBulkWeight = bulk;
+    }
+
+    /**
+     * Run connections, connects and the listening socket on {@code engine}'s fixed threads from the
+     * next {@link #start()} / {@link #connect(String)} / connection on, instead of on threads of
+     * their own. Pass null to go back to threads. The engine is not shut down by {@link #stop()}.
+     */
+    public synchronized void setConnectionEngine(ConnectionEngine engine) {
+        mEngine = engine;
+    }
 
+    /**
+     * Resume the text messages of a peer that comes back where its last connection stopped
+     * (see {@link Session}), from the next connection on. On by default.
+     */
+    public synchronized void setResumeEnabled(boolean enabled) {
+        mResumeEnabled = enabled;
+    }
 
-    public BluetoothChatService(Handler handler) {
-        mBtAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
+    /**
+     * What was sent to and received from {@code address} across its connections, or null if it
+     * never connected with resuming enabled, or if {@link #MAX_SESSIONS} other devices connected since.
+     */
+    public synchronized Session getSession(String address) {
+        return mSessions.get(address);
     }
 
-    private synchronized void setState(int state) {
-        mState = state;
+    /**
+     * Round-trip times to the connected device {@code address}, or null if it is not connected
+     * or the connection has no heartbeat. RTTs of all peers together are in {@link #getMetrics()}.
+     */
+    public RttEstimator getRtt(String address) {
+        ConnectedThread connection = mConnections.get(address);
+        return connection != null ? connection.getRtt() : null;
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    /**
+     * Set how peers connected with {@link #connect(String)} are retried after a failed connect or a
+     * lost link. Pass null to never retry.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
     }
 
-    private synchronized void setState(int state, String deviceName) {
-        mState = state;
+    /**
+     * Number of lost links that came back through a reconnect.
+     */
+    public synchronized int getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    /**
+     * Number of lost links given up on after {@link ReconnectPolicy#getMaxAttempts()} retries.
+     */
+    public synchronized int getRecoveryFailures() {
+        return mRecoveryFailures;
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1, deviceName).sendToTarget();
+    /**
+     * Time from the last lost link to being connected again, or -1 if no link came back yet.
+     */
+    public synchronized long getLastRecoveryMillis() {
+        return mLastRecoveryMillis;
+    }
+
+    /**
+     * Average time to recover over all reconnects, or -1 if no link came back yet.
+     */
+    public synchronized long getAverageRecoveryMillis() {
+        return mRecoveries > 0 ? mTotalRecoveryMillis / mRecoveries : -1;
     }
 
     /**
-     * Return the current connection state.
+     * Configure compression for the next connection. It is only used if the peer offers it too.
+     *
+     * @param dictionary preset dictionary, only used if the peer has the same one; may be null
      */
-    public synchronized int getState() {
-        return mState;
+    public synchronized void setCompression(boolean enabled, byte[] dictionary) {
+        mCompressionEnabled = enabled;
+        mCompressionDictionary = dictionary;
+    }
+
+    /**
+     * Compression state and statistics of the connection to {@code address}, or null if there is
+     * none (or compression is disabled).
+     */
+    public FrameCompressor getCompressor(String address) {
+        ConnectedThread connection = mConnections.get(address);
+        return connection != null ? connection.getCompressor() : null;
+    }
+
+    /**
+     * The connected and connecting peers, each with its own state.
+     */
+    public ConnectionRegistry getConnections() {
+        return mConnections;
+    }
+
+    /**
+     * Name of the connected device {@code address}, or the address itself if it is not connected.
+     */
+    public String getRemoteName(String address) {
+        ConnectedThread connection = mConnections.get(address);
+        String name = connection != null ? connection.getTransport().getRemoteName() : null;
+        return name != null ? name : address;
+    }
+
+    /**
+     * Record every sent and received frame in {@code store}, per remote address. Pass null to stop
+     * recording. The store is not closed by this class.
+     */
+    public void setMessageLog(MessageLogStore store) {
+        mMessageLog = store;
+    }
+
+    /**
+     * Handle file transfers with {@code manager}. Pass null to ignore file transfer frames.
+     */
+    public void setFileTransfers(FileTransferManager manager) {
+        mFileTransfers = manager;
+    }
+
+    /**
+     * Send {@code file} to the peer {@code address} in chunks. If the peer is not connected (or
+     * the connection drops), the transfer continues when it connects again.
+     *
+     * @return the transfer id
+     * @throws IllegalStateException if no {@link FileTransferManager} was set
+     */
+    public long sendFile(String address, File file) {
+        FileTransferManager files = mFileTransfers;
+        if (files == null) {
+            throw new IllegalStateException("No FileTransferManager set");
+        }
+        return files.sendFile(address, file, mConnections.get(address));
+    }
+
+    /**
+     * Hand every event queued so far to the {@link Listener}, in order, on the calling thread.
+     * Call it when {@link Listener#onEventsPending()} asks for it, always from the same thread
+     * (or at least never from two threads at the same time). Received text frames count as
+     * consumed once the listener has them: their peers get credit to send more.
+     *
+     * @return the number of events dispatched
+     */
+    public int dispatchEvents() {
+        long start = System.nanoTime();
+        int count = 0;
+        String address = null; // 连续来自同一个设备的消息一起确认
+        int consumed = 0;
+        EventQueue.Node event;
+        while ((event = mEvents.poll()) != null) {
+            count++;
+            if (event instanceof PooledFrame) {
+                PooledFrame frame = (PooledFrame) event;
+                mMetrics.onDelivered(start - frame.getCreatedNanos());
+                if (frame.isOutgoing()) {
+                    mListener.onFrameSent(frame);
+                    continue;
+                }
+                if (frame.getType() == FrameCodec.TYPE_TEXT) {
+                    if (consumed > 0 && !frame.getRemoteAddress().equals(address)) {
+                        reportConsumed(address, consumed);
+                        consumed = 0;
+                    }
+                    address = frame.getRemoteAddress();
+                    consumed++;
+                }
+                mListener.onFrameReceived(frame); // 之后 frame 可能已经被 recycle()，不能再碰
+            } else if (event instanceof StateEvent) {
+                StateEvent state = (StateEvent) event;
+                mListener.onStateChanged(state.mmState, state.mmConnectedCount, state.mmDeviceName);
+            } else if (event instanceof ReconnectedEvent) {
+                ReconnectedEvent reconnected = (ReconnectedEvent) event;
+                mListener.onReconnected(reconnected.mmAddress, reconnected.mmMillis);
+            } else {
+                ErrorEvent error = (ErrorEvent) event;
+                mListener.onError(error.mmError, error.mmAddress, error.mmMessage);
+            }
+        }
+        if (consumed > 0) {
+            reportConsumed(address, consumed);
+        }
+        if (count > 0) {
+            mDispatchedEvents += count;
+            mDispatchNanos += System.nanoTime() - start;
+        }
+        return count;
+    }
+
+    private void reportConsumed(String address, int frames) {
+        ConnectedThread connection = mConnections.get(address);
+        if (connection != null) {
+            connection.onConsumed(frames);
+        }
+    }
+
+    /**
+     * The trace of all connections; raise its level with {@link Tracer#setLevel(int)} to record
+     * every frame. Its {@link Tracer#dump()} after an {@link #ERROR_CONNECTION_LOST} tells what led to it.
+     */
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Traffic, latencies, connect timings, reconnects and time per state since this service was
+     * created. {@link ChatMetrics.Snapshot#toString()} gives a compact text dump.
+     */
+    public ChatMetrics.Snapshot getMetrics() {
+        int outbound = 0;
+        for (ConnectedThread connection : mConnections.connections()) {
+            outbound += connection.getOutboundQueueDepth();
+        }
+        return mMetrics.snapshot(outbound, mEvents.size());
+    }
+
+    /**
+     * Average time per event in {@link #dispatchEvents()}, the listener included: what the UI
+     * thread pays per message when it is the one dispatching.
+     */
+    public long getUiNanosPerMessage() {
+        long events = mDispatchedEvents;
+        return events == 0 ? 0 : mDispatchNanos / events;
     }
 
     /**
@@ -86,29 +533,18 @@ public class BluetoothChatService {
      * <p>
      * start() 方法作用：先取消并置空连接线程(ConnectThread)、通讯线程(ConnectedThread)，然后启动服务端监听线程(AcceptThread)
      */
-    public void start() {
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+    public synchronized void start() {
+        // Cancel any thread attempting to make a connection, and any connection
+        cancelConnectThreads();
+        cancelConnections();
+        mReconnectTargets.clear();
+        mPendingFrames.clear();
 
         setState(STATE_LISTEN);
 
-        KLog.d("start --> 建立监听线程1");
-
         // Start the thread to listen on a BluetoothServerSocket
         if (mSecureAcceptThread == null) {
-            KLog.d("start --> 建立监听线程2");
-
-            mSecureAcceptThread = new AcceptThread();
-            mSecureAcceptThread.start();
+            startAcceptThread();
         }
     }
 
@@ -117,22 +553,14 @@ public class BluetoothChatService {
      * <p>
      * 取消并置空本类中所有的线程（共3个）
      */
-    public void stop() {
+    public synchronized void stop() {
 
         setState(STATE_NONE);
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        KLog.d("mConnectThread != null --> " + (mConnectThread != null));
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-
-            KLog.d("stop --> mConnectThread = null");
-        }
+        cancelConnectThreads();
+        cancelConnections();
+        mReconnectTargets.clear();
+        mPendingFrames.clear();
 
         if (mSecureAcceptThread != null) {
             mSecureAcceptThread.cancel();
@@ -142,77 +570,307 @@ public class BluetoothChatService {
 //        setState(STATE_NONE);
     }
 
+    private void cancelConnectThreads() {
+        for (ConnectThread thread : mConnectThreads.values()) {
+            thread.cancel();
+        }
+        mConnectThreads.clear();
+        if (mConnectRace != null) {
+            mConnectRace.cancel();
+            mConnectRace = null;
+            mConnections.release();
+        }
+    }
+
+    private void cancelConnections() {
+        FileTransferManager files = mFileTransfers;
+        for (ConnectedThread connection : mConnections.clear()) {
+            connection.cancel();
+            if (files != null) {
+                files.onDisconnected(connection);
+            }
+        }
+    }
+
     /**
-     * Start the ConnectThread to initiate a connection to a remote device.
+     * Start a ConnectThread to initiate a connection to a remote device. Connections to other
+     * devices are kept; an existing connection to the same device is replaced once the new one is up.
+     *
+     * @param address MAC address of the remote device
      */
-    public synchronized void connect(BluetoothDevice device) {
-        // Cancel any thread attempting to make a connection
-        //if (mState == STATE_CONNECTING) {
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    public synchronized void connect(String address) {
+        // Cancel any thread attempting to connect to the same device
+        ConnectThread previous = mConnectThreads.remove(address);
+        if (previous != null) {
+            previous.cancel();
         }
-        //}
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel(); //注意如果执行到这里，ConnectedThread 中的 connect() 会产生异常, 并且会 setState(STATE_NONE), 这个和下面的 setState(STATE_CONNECTING); 无法判断谁先谁后执行，因为是不同的线程
-            mConnectedThread = null;
+        if (!mConnections.hasRoomFor(address)) {
+            sendTooManyPeers(address);
+            return;
         }
 
         // Start the thread to connect with the given device
         // ConnectThread 连接操作的线程是在这个 connect() 方法的末尾才启动的，所以可以在这里设置 STATE_CONNECTING 状态
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        mReconnectTargets.add(address);
+        startConnectThread(address, 0);
+        updateState();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Connect to whichever of {@code addresses} answers first, trying up to {@code fanOut} of them at
+     * the same time (see {@link ConnectRace}). The other sockets are closed as soon as one connects.
+     * A race still running is cancelled. Once it is over, {@link #getLastRaceAttempts()} tells how
+     * long each attempt took and why it failed.
+     *
+     * @param addresses MAC addresses of interchangeable devices, best first
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    public synchronized void connectAny(List<String> addresses, int fanOut) {
+        if (mConnectRace != null) {
+            mConnectRace.cancel();
+            mConnectRace = null;
+            mConnections.release();
+        }
+        if (!mConnections.reserve()) { // 抢连也占一个位置，连上之前还不知道是哪个设备
+            sendTooManyPeers(null);
+            updateState();
+            return;
+        }
+        mConnectRace = new ConnectRace(mTransportProvider, addresses, fanOut, mRaceListener);
+        if (mEngine != null) {
+            mConnectRace.setExecutor(mEngine.getBlockingExecutor());
+        }
+        mConnectRace.start();
+        updateState();
+    }
 
-        // 注意：下面的3个线程若不为null,则在 cancel() 是都会产生异常，都会调用 setState(),因此和本方法中的 setState() 相比，无法判断谁先谁后执行
+    /**
+     * The attempts of the last {@link #connectAny(List, int)} that finished, with their durations
+     * and errors.
+     */
+    public synchronized List<ConnectRace.Attempt> getLastRaceAttempts() {
+        return mLastRaceAttempts;
+    }
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            //mConnectThread.cancel();  // 连接成功后，不应该关闭新的 BluetoothSocket，否则 读写数据的 Stream 也会关闭
-            mConnectThread = null;
+    private final ConnectRace.Listener mRaceListener = new ConnectRace.Listener() {
+        @Override
+        public void onConnected(ConnectRace race, Transport transport) {
+            openMessageLog(transport.getRemoteAddress()); // 读盘恢复日志，放在锁外面
+            synchronized (BluetoothChatService.this) {
+                if (mConnectRace != race) {
+                    try {
+                        transport.close(); // 这次抢连已经被取消了
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                finishRace(race);
+                mReconnectTargets.add(transport.getRemoteAddress()); // 断线后只重连赢了的那个设备
+                connected(transport);
+            }
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel(); // 连接成功后，关闭旧的 BluetoothSocket。释放资源
-            mConnectedThread = null;
+        @Override
+        public void onFailed(ConnectRace race) {
+            synchronized (BluetoothChatService.this) {
+                if (mConnectRace != race) {
+                    return;
+                }
+                finishRace(race);
+                updateState();
+            }
+            sendConnectionFailed(null);
+        }
+    };
+
+    // Must hold the lock
+    private void finishRace(ConnectRace race) {
+        mConnectRace = null;
+        mConnections.release(); // the winner takes a slot of its own in connected()
+        mLastRaceAttempts = race.getAttempts();
+        for (ConnectRace.Attempt attempt : mLastRaceAttempts) {
+            if (attempt.getOutcome() == ConnectRace.Attempt.CONNECTED || attempt.getOutcome() == ConnectRace.Attempt.FAILED) {
+                mMetrics.onConnectAttempt(attempt.getDurationMillis() * 1000000, attempt.getOutcome() == ConnectRace.Attempt.CONNECTED);
+            }
         }
+    }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * @param lostAtMillis when the link to {@code address} was lost, 0 for a first connect
+     */
+    private void startConnectThread(String address, long lostAtMillis) {
+        ConnectThread thread = new ConnectThread(address, lostAtMillis, mReconnectPolicy, mEngine);
+        mConnectThreads.put(address, thread);
+        mConnections.setConnecting(address);
+        thread.launch();
+    }
+
+    // Must hold the lock
+    private void startAcceptThread() {
+        mSecureAcceptThread = new AcceptThread(mEngine);
+        mSecureAcceptThread.launch();
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a Bluetooth connection
+     */
+    public synchronized void connected(Transport transport) {
+        String address = transport.getRemoteAddress();
+
+        // A ConnectThread that completed the connection removed itself before calling this
+        // 连接成功后，不应该关闭新的 BluetoothSocket，否则 读写数据的 Stream 也会关闭
+        ConnectThread connectThread = mConnectThreads.remove(address);
+        if (connectThread != null) {
+            connectThread.cancel(); // 对方自己连进来了，不用再重连
         }
 
-        // 先设置状态，因为 ConnectedThread (读取数据线程)有用到状态判断
-        setState(STATE_CONNECTED, device.getName()); // 所属的 connected() 方法本来就是在连接成功后由 ConnectThread 调用的。
+        if (mState.get() == STATE_NONE || !mConnections.hasRoomFor(address)) {
+            // 已经 stop() 了，或者已经连满了，拒绝这个连接
+            try {
+                transport.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mConnections.connectFailed(address);
+            if (mState.get() != STATE_NONE) {
+                sendTooManyPeers(address);
+            }
+            updateState();
+            return;
+        }
 
         // Start the thread to manage the conncetion and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+        openMessageLog(address); // normally open already: the connecting thread did it outside the lock
+        ConnectedThread connection = new ConnectedThread(transport, mConnectionCallback, mOutboundCapacity, mOverflowPolicy);
+        if (mResumeEnabled) {
+            Session session = mSessions.remove(address); // put back at the end: the most recently connected
+            if (session == null) {
+                session = new Session(mOutboundCapacity);
+            }
+            mSessions.put(address, session);
+            trimSessions(address);
+            connection.setSession(session); // 先于其他所有帧：上次没确认的消息排在最前面
+        }
+        connection.setMetrics(mMetrics);
+        connection.setTracer(mTracer);
+        if (mHeartbeatIntervalMillis > 0) {
+            connection.setHeartbeat(mHeartbeatIntervalMillis, mHeartbeatMaxMissed);
+        }
+        if (mCreditWindow > 0) {
+            connection.setFlowControl(mCreditWindow);
+        }
+        connection.setChannelWeights(mInteractiveWeight, mBulkWeight);
+        if (mCompressionEnabled) {
+            connection.setCompressor(new FrameCompressor(mCompressionDictionary, Deflater.DEFAULT_COMPRESSION));
+        }
+        ConnectedThread previous = mConnections.put(connection);
+        if (previous != null) {
+            previous.cancel(); // 同一个设备重新连上来了，关闭旧的 BluetoothSocket。释放资源
+        }
+
+        // Messages kept while reconnecting go out first, in order (the writer is not running yet, so this can't block)
+        List<byte[]> pending = mPendingFrames.remove(address);
+        if (pending != null) {
+            for (byte[] frame : pending) {
+                if (!connection.writeFrame(frame)) {
+                    break;
+                }
+            }
+        }
+
+        // 先设置状态，再启动读写线程
+        setConnected(transport.getRemoteName());
+        if (mEngine != null) {
+            connection.start(mEngine);
+        } else {
+            connection.start();
+        }
+
+        FileTransferManager files = mFileTransfers;
+        if (files != null) {
+            files.onConnected(connection); // 断线前没传完的文件，从对方已有的位置继续
+        }
+    }
+
+
+    /**
+     * Remember the text frames {@code connection} did not get to send, and anything written from
+     * now on, until the peer is back. Must hold the lock. With a {@link Session} the unsent text
+     * frames are already kept there, and only what is written from now on goes through here.
+     *
+     * @param resuming true if the lost connection's Session took its text frames: they are replayed
+     *                 from there, carrying them here too would send them twice
+     */
+    private void keepPending(String address, List<byte[]> unsent, boolean resuming) {
+        List<byte[]> pending = new ArrayList<>();
+        for (byte[] frame : unsent) {
+            // HELLO and file frames are not carried over: every connection says HELLO itself and the file transfer resumes from the acked offset
+            if (!resuming && FrameCodec.readType(frame, 0) == FrameCodec.TYPE_TEXT && pending.size() < mOutboundCapacity) {
+                pending.add(frame);
+            }
+        }
+        mPendingFrames.put(address, pending);
+    }
+
+    /**
+     * Open (and recover) the message log of {@code address} on the connecting thread, so the
+     * first frame in or out of the connection doesn't do it on a read or write thread.
+     */
+    private void openMessageLog(String address) {
+        MessageLogStore log = mMessageLog;
+        if (log != null) {
+            try {
+                log.get(address);
+            } catch (IOException e) {
+                e.printStackTrace(); // append() reports it again, the connection goes on without a log
+            }
+        }
     }
 
+    /**
+     * Under the lock: forget the Sessions of the devices that connected longest ago, down to
+     * {@link #MAX_SESSIONS}. Connected devices keep theirs, they are in use.
+     */
+    private void trimSessions(String connecting) {
+        Iterator<Map.Entry<String, Session>> it = mSessions.entrySet().iterator();
+        while (mSessions.size() > MAX_SESSIONS && it.hasNext()) {
+            String address = it.next().getKey();
+            if (!address.equals(connecting) && mConnections.get(address) == null) {
+                it.remove(); // 很久没连过的设备，断点续传的记录不要了
+            }
+        }
+    }
+
+    /**
+     * Queue {@code frame} for a peer that is being reconnected.
+     *
+     * @return false if the peer is not being reconnected or too many messages are waiting for it
+     */
+    private synchronized boolean writePending(String address, byte[] frame) {
+        List<byte[]> pending = mPendingFrames.get(address);
+        if (pending == null || pending.size() >= mOutboundCapacity) {
+            return false;
+        }
+        pending.add(frame);
+        return true;
+    }
+
+    private synchronized void recordRecovery(String address, long millis, int attempts) {
+        mMetrics.onRecovered(millis);
+        mRecoveries++;
+        mLastRecoveryMillis = millis;
+        mTotalRecoveryMillis += millis;
+        mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_RECONNECTED, millis, attempts);
+        post(new ReconnectedEvent(address, millis));
+    }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void sendConnectionFailed() {
+    private void sendConnectionFailed(String address) {
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        KLog.d("sendConnectionFailed");
+        post(new ErrorEvent(ERROR_CONNECT_FAILED, address, "Unable to connect device"));
 
 //        // Start the service over to restart listening mode
 //        BluetoothChatService.this.start();
@@ -221,93 +879,177 @@ public class BluetoothChatService {
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void sendConnectionLost() {
+    private void sendConnectionLost(String address) {
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        post(new ErrorEvent(ERROR_CONNECTION_LOST, address, "Device connection was lost"));
 
 //        // Start the service over to restart listeninng mode
 //        BluetoothChatService.this.start();
     }
 
+    private void sendTooManyPeers(String address) {
+        post(new ErrorEvent(ERROR_TOO_MANY_PEERS, address, "Too many devices connected (at most " + mConnections.getMaxPeers() + ")"));
+    }
+
+    private void sendMessageDropped(String address) {
+        post(new ErrorEvent(ERROR_MESSAGE_DROPPED, address, "Message not sent to " + address + ": too many messages waiting"));
+    }
+
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a message for every connected peer. The socket writes themselves happen on the
+     * connections' writer threads, so this never blocks on I/O (it only waits for queue space
+     * with {@link FrameWriter.OverflowPolicy#BLOCK}).
+     * <p>
+     * Peers whose queue is full don't get the message; each of them is reported with
+     * {@link #ERROR_MESSAGE_DROPPED}. The others keep it, so sending it again would duplicate it there.
+     *
+     * @return true if the message was queued for at least one peer, false if no peer is connected
+     * or every queue was full
+     * @throws IllegalStateException if every queue is full and the policy is {@link FrameWriter.OverflowPolicy#FAIL}
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronized a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    public boolean write(byte[] out) {
+        // The snapshot never changes, so the writes happen unsynchronized
+        ConnectedThread[] connections = mConnections.connections();
+        if (connections.length == 0 && mPendingFrames.isEmpty()) {
+            return false;
+        }
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, out); // 所有连接共用同一个帧
+        List<String> dropped = new ArrayList<>();
+        IllegalStateException full = null;
+        int queued = 0;
+        for (ConnectedThread connection : connections) {
+            boolean ok;
+            try {
+                ok = connection.writeFrame(frame);
+            } catch (IllegalStateException e) {
+                ok = false; // OverflowPolicy.FAIL: the other peers still get it
+                full = e;
+            }
+            if (ok) {
+                queued++;
+            } else {
+                dropped.add(connection.getRemoteAddress());
+            }
         }
+        if (!mPendingFrames.isEmpty()) {
+            // Peers being reconnected get it once they are back
+            for (String address : mPendingFrames.keySet()) {
+                if (writePending(address, frame)) {
+                    queued++;
+                } else {
+                    dropped.add(address);
+                }
+            }
+        }
+        if (queued == 0) {
+            if (full != null) {
+                throw full;
+            }
+            return false; // 谁都没收到，调用方可以整条重发
+        }
+        for (String address : dropped) {
+            sendMessageDropped(address);
+        }
+        return true;
+    }
 
-        // Perform the write unsynchronized
-        r.write(out);
+    /**
+     * Queue a message for the peer {@code address} only. While the peer is being reconnected the
+     * message waits for the new connection.
+     *
+     * @return true if the message was queued, false if the peer is not connected or its queue was full
+     */
+    public boolean write(String address, byte[] out) {
+        ConnectedThread connection = mConnections.get(address);
+        if (connection != null) {
+            return connection.write(out);
+        }
+        return mPendingFrames.containsKey(address) && writePending(address, FrameCodec.encode(FrameCodec.TYPE_TEXT, out));
     }
 
 
     /**
      * This thread runs while listening for incoming connections. It behaves
      * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * (or until cancelled). With a {@link ConnectionEngine} it runs on the engine's blocking pool
+     * instead of being started.
      */
     private class AcceptThread extends Thread {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final TransportServer  mmServerSocket;
+        private final ConnectionEngine mmEngine;         // null: runs as its own thread
+        private volatile boolean       mmRunning = true; // until run() returns; launched right after construction
 
-        private AcceptThread() {
-            BluetoothServerSocket tmp = null;
+        private AcceptThread(ConnectionEngine engine) {
+            mmEngine = engine;
+            TransportServer tmp = null;
 
             // Create a new listening server socket
             try {
-                tmp = mBtAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+                tmp = mTransportProvider.listen();
             } catch (IOException e) {
                 e.printStackTrace();
             }
             mmServerSocket = tmp;
         }
 
+        void launch() {
+            if (mmEngine != null) {
+                mmEngine.executeBlocking(this);
+            } else {
+                start();
+            }
+        }
+
+        boolean isRunning() {
+            return mmRunning;
+        }
+
         @Override
         public void run() {
+            try {
+                accept();
+            } finally {
+                mmRunning = false;
+            }
+        }
 
-            BluetoothSocket socket = null;
+        private void accept() {
+            if (mmServerSocket == null) {
+                return;
+            }
+
+            Transport socket = null;
 
-            //Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Keep listening while connected: more devices may connect, until cancel() closes the server socket
+            while (true) {
+                long waitStart = System.nanoTime();
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception.(aborted 、timeout)
                     socket = mmServerSocket.accept();//调用close() 时，这里会产生中断异常,并且会释放所有相关的的资源，但是不会关闭接收到的 BluetoothSocket
                 } catch (IOException e) {
                     e.printStackTrace();
-                    KLog.d("mmServerSocket.accept() --> exception");
                     break;
                 }
 
                 // if a connection was accepted
                 // 此时需要判断 socket 和当前的状态是否相匹配，否则会出现状态紊乱
                 if (socket != null) {
+                    mMetrics.onAccepted(System.nanoTime() - waitStart);
+                    mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_ACCEPTED, 0, 0);
+                    openMessageLog(socket.getRemoteAddress()); // 读盘恢复日志，放在锁外面
                     synchronized (BluetoothChatService.this) {
-                        KLog.d("mState:" + mState);
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING: // 刚开始不能理解这个状态为什么也是属于正常状态。后来仔细想明白了：若当前设备A正在发起请求连接B设备，但是此时还正处于尝试连接中，这时C设备正在连接A设备并且先连接成功，这时A设备就处于这个状态，B设备也会连接失败（因为socket.close()）
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice()); //这里会调用mmServerSocket.close();
-                                break; // 跳出循环
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.要么没有准备好，要么已经连接。终止新套接字。
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                break; // 跳出循环
+                        if (mState.get() == STATE_NONE) {
+                            // Not ready (stopped). Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+                        } else {
+                            // Situation normal. Start the connected thread (connected() refuses it if all slots are taken)
+                            connected(socket);
                         }
                     }
                 }
@@ -315,6 +1057,9 @@ public class BluetoothChatService {
         }
 
         public void cancel() {
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -327,166 +1072,249 @@ public class BluetoothChatService {
     /**
      * This thread runs while attempting to make an outgoing connection
      * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds or fails after the retries allowed by the {@link ReconnectPolicy}.
+     * <p>
+     * With a {@link ConnectionEngine} each attempt runs on the engine's blocking pool, and the
+     * backoff between two attempts is a scheduled task instead of a sleep.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothDevice mmDevice;
-        private final BluetoothSocket mmSocket;
-
-
-        private ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        private final String           mmAddress;
+        private final long             mmLostAtMillis; // 0: first connect, otherwise when the link was lost
+        private final ReconnectPolicy  mmPolicy;       // null: no retries
+        private final ConnectionEngine mmEngine;       // null: runs as its own thread
+        private int                    mmAttempt;      // the next attempt, 0 is the first connect
+        private volatile Transport     mmSocket;
+        private volatile boolean       mmCancelled;
+
+
+        private ConnectThread(String address, long lostAtMillis, ReconnectPolicy policy, ConnectionEngine engine) {
+            mmAddress = address;
+            mmLostAtMillis = lostAtMillis;
+            mmPolicy = policy;
+            mmEngine = engine;
+            // After a lost link even the first try waits: the peer usually needs a moment to listen again
+            mmAttempt = lostAtMillis != 0 ? 1 : 0;
+        }
 
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
-            } catch (IOException e) {
-                e.printStackTrace();
+        void launch() {
+            if (mmEngine == null) {
+                start();
+            } else if (mmAttempt > 0) {
+                retryLater();
+            } else {
+                mmEngine.executeBlocking(this);
             }
-            mmSocket = tmp;
         }
 
         @Override
         public void run() {
+            if (mmEngine != null) {
+                if (connectOnce()) {
+                    retryLater();
+                }
+                return;
+            }
+            while (true) {
+                if (mmAttempt > 0) {
+                    try {
+                        Thread.sleep(mmPolicy.getDelayMillis(mmAttempt));
+                    } catch (InterruptedException e) {
+                        return; // cancel()
+                    }
+                }
+                if (!connectOnce()) {
+                    return;
+                }
+            }
+        }
 
-            // Always cancel discovery because it will slow down a connection
-            mBtAdapter.cancelDiscovery();
+        // Engine: the next attempt after the backoff, without holding a thread meanwhile
+        private void retryLater() {
+            mmEngine.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mmCancelled) {
+                        mmEngine.executeBlocking(ConnectThread.this);
+                    }
+                }
+            }, mmPolicy.getDelayMillis(mmAttempt));
+        }
+
+        /**
+         * Make one attempt.
+         *
+         * @return true if it failed and there is another attempt to make (mmAttempt is the next one)
+         */
+        private boolean connectOnce() {
+            int maxAttempts = mmPolicy != null ? mmPolicy.getMaxAttempts() : 0;
+            int attempt = mmAttempt;
+            if (mmCancelled) {
+                return false;
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the BluetoothSocket (RfcommTransport cancels discovery first, because it will slow down a connection)
+            // 每次尝试都要新建 socket，连接失败的 BluetoothSocket 不能再用
+            long attemptStart = System.nanoTime();
             try {
+                mmSocket = mTransportProvider.open(mmAddress);
+                if (mmCancelled) {
+                    closeQuietly();
+                    return false;
+                }
                 // This is a blocking call and will only return on a successful connection or an exception
                 mmSocket.connect(); // 注意：BluetoothSocket#close()方法会关闭Stream 和 释放所有相关的系统资源.所以在底部调用的connected()方法中不应该调用 mConnectThread.cancel(); 来关闭这个BluetoothSocket
             } catch (IOException e) {
                 e.printStackTrace();
+                if (!mmCancelled) {
+                    mMetrics.onConnectAttempt(System.nanoTime() - attemptStart, false);
+                    mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECT_ATTEMPT, attempt, 0);
+                }
                 // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
+                closeQuietly();
+                if (attempt < maxAttempts && !mmCancelled) {
+                    mmAttempt++;
+                    return true; // 按退避时间重试
                 }
-                sendConnectionFailed(); // 一旦connect() 出现了异常，就表示连接失败。而这个线程也就运行结束。若想要再次连接，必须要调用 start() 方法，重新创建此线程
-
-                setState(STATE_NONE);
+                synchronized (BluetoothChatService.this) {
+                    if (mConnectThreads.get(mmAddress) != this) {
+                        return false; // cancel() 了，或者已经被新的连接尝试替换掉了
+                    }
+                    mConnectThreads.remove(mmAddress);
+                    mConnections.connectFailed(mmAddress);
+                    mReconnectTargets.remove(mmAddress);
+                    mPendingFrames.remove(mmAddress); // 放弃了，存着的消息也发不出去了
+                    if (mmLostAtMillis != 0) {
+                        mRecoveryFailures++;
+                        mMetrics.onRecoveryFailed();
+                    }
+                }
+                sendConnectionFailed(mmAddress); // 重试次数用完，连接失败。若想要再次连接，必须要再调用 connect()
 
-                // Start the service over to restart listening mode
-                // BluetoothChatService.this.start(); // 当未连接蓝牙时，要保证这个类中的所有的线程都重新创建并启动
-                return;
+                updateState();
+                return false;
             }
 
-            // Reset the connectionThread because we're done
+            mMetrics.onConnectAttempt(System.nanoTime() - attemptStart, true);
+            mTracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECT_ATTEMPT, attempt, 1);
+
+            // Start the connectedThread
             // 注意：不能关闭 socket， 否则就无法通讯了
+            openMessageLog(mmAddress);
             synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+                if (mConnectThreads.get(mmAddress) != this) {
+                    closeQuietly(); // cancel() 了
+                    return false;
+                }
+                mConnectThreads.remove(mmAddress); // 先移除自己，connected() 会 cancel() 还在表里的连接尝试
+                connected(mmSocket);
+                if (mmLostAtMillis != 0) {
+                    recordRecovery(mmAddress, System.currentTimeMillis() - mmLostAtMillis, attempt);
+                }
             }
-
-            // Start the connectedThread
-            connected(mmSocket, mmDevice);
+            return false;
         }
 
         public void cancel() {
+            mmCancelled = true;
+            interrupt(); // 正在退避等待时直接结束
+            Transport socket = mmSocket;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            Transport socket = mmSocket;
+            if (socket == null) {
+                return;
+            }
             try {
-                mmSocket.close();
+                socket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                // ignore
             }
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Receives everything that happens on the current {@link ConnectedThread}.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream     mmInputStream;
-        private final OutputStream    mmOutputStream;
-
-
-        private ConnectedThread(BluetoothSocket socket) {
-            this.mmSocket = socket;
-
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+    private final ConnectedThread.Callback mConnectionCallback = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            FileTransferManager files = mFileTransfers;
+            if (files != null && files.onFrame(connection, type, payload)) {
+                return;
+            }
+            if (type != FrameCodec.TYPE_TEXT && type != FrameCodec.TYPE_MESSAGE) {
+                return; // unknown frame type from a newer peer, skip it
+            }
 
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                e.printStackTrace();
+            MessageLogStore log = mMessageLog;
+            if (log != null && type == FrameCodec.TYPE_TEXT) {
+                log.append(connection.getRemoteAddress(), false, type, payload); // 只是拷贝到内存，由刷盘线程批量写文件
             }
 
-            mmInputStream = tmpIn;
-            mmOutputStream = tmpOut;
+            // Send the obtained frame to the UI Activity, which decodes it and recycles it
+            PooledFrame frame = mFramePool.obtain(type, payload);
+            frame.setRemoteAddress(connection.getRemoteAddress());
+            post(frame);
         }
 
         @Override
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int len;
-
-            KLog.d("[ConnectedThread]before while, STATE_CONNECTED --> " + (mState == STATE_CONNECTED) + ", mState" + mState);
-
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                KLog.d("[ConnectedThread]in while, mState == STATE_CONNECTED --> " + (mState == STATE_CONNECTED));
-                try {
-                    //Read from the InputStream
-                    len = mmInputStream.read(buffer);
-
-                    KLog.d("read:" + new String(buffer, 0, len).toString());
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, -1, -1, new String(buffer, 0, len)).sendToTarget(); //byte[] realData = Arrays.copyOf(buffer, len);
-                } catch (IOException e) {// 一旦 read() 出现了异常，就表示连接已中断。而这个线程也就break掉，即运行结束。若想要读写数据，必须要重新连接
-                    e.printStackTrace(); // 这里无法判断是程序退出而调用 stop() 方法产生的异常还是蓝牙关闭而产生的异常。若是调用 stop() 方法则不需要再次创建和开启 AcceptThread 线程了
-
-                    // Close the socket
-                    try {
-                        mmSocket.close();
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
-
-                    synchronized (BluetoothChatService.this) {
-                        mConnectedThread = null;
-                    }
-
-                    KLog.d("ConnectedThread --> IOException : " + e.toString() + " mState : " + mState);
-
-                    if (mState != STATE_NONE) { // 若是调用 stop() 方法产生的异常，在 stop() 中会先设置 mState 为 STATE_NONE, 若是数据传输过程中不小心蓝牙突然断开，则此时 mState 仍然为STATE_CONNECTED
-                        // Start the service over to restart listening mode
-                        BluetoothChatService.this.start();// 当未连接蓝牙时，要监听线程（默认要作为服务端开启）
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+            MessageLogStore log = mMessageLog;
+            for (int i = 0; i < frames.size(); i++) {
+                byte[] frame = frames.get(i);
+                int type = FrameCodec.readType(frame, 0);
+                if (type == FrameCodec.TYPE_TEXT || type == FrameCodec.TYPE_MESSAGE) {
+                    if (log != null && type == FrameCodec.TYPE_TEXT) {
+                        log.append(connection.getRemoteAddress(), true, FrameCodec.TYPE_TEXT, frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
                     }
-
-                    sendConnectionLost();
-
-                    setState(STATE_NONE);
-
-
-                    break; // 跳出循环
+                    // Share the sent message back to the UI Activity
+                    PooledFrame sent = mFramePool.obtain(type, frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+                    sent.setOutgoing(true);
+                    sent.setRemoteAddress(connection.getRemoteAddress());
+                    post(sent);
                 }
             }
         }
 
-        public void write(byte[] buffer) {
-            try {
-                mmOutputStream.write(buffer);
-                KLog.d("[ConnectedThread]write, STATE_CONNECTED --> " + (mState == STATE_CONNECTED) + ", mState:" + mState);
-                KLog.d("write:" + new String(buffer).toString());
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            e.printStackTrace(); // 蓝牙关闭或者对方断开。调用 cancel()（例如 stop()）产生的异常不会走到这里
+            long lostAt = System.currentTimeMillis();
+            List<byte[]> unsent = connection.takeUnsentFrames(); // 等写线程结束，在锁外面做
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, new String(buffer)).sendToTarget();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+            synchronized (BluetoothChatService.this) {
+                if (!mConnections.remove(connection)) {
+                    return; // 已经被新的连接替换掉了
+                }
+                FileTransferManager files = mFileTransfers;
+                if (files != null) {
+                    files.onDisconnected(connection);
+                }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                // A peer we connected to ourselves: retry with backoff, keeping what it did not get
+                String address = connection.getRemoteAddress();
+                sendConnectionLost(address);
+
+                if (mReconnectPolicy != null && mState.get() != STATE_NONE && mReconnectTargets.contains(address)
+                        && !mConnectThreads.containsKey(address)) {
+                    keepPending(address, unsent, connection.isResuming());
+                    startConnectThread(address, lostAt);
+                }
+
+                // Only this peer is gone; make sure we are still listening (the accept thread stops if the server socket failed)
+                if (mState.get() != STATE_NONE && (mSecureAcceptThread == null || !mSecureAcceptThread.isRunning())) {
+                    startAcceptThread();
+                }
+                updateState();
             }
         }
-    }
+    };
 }
@@ -0,0 +1,87 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.nio.charset.Charset;
+
+/**
+ * Read-only view of a range of bytes owned by someone else, typically the reassembly buffer of
+ * a {@link FrameDecoder}. The same instance is re-pointed at every frame, so a slice is only
+ * valid inside the callback that received it: copy the bytes (or use a {@link FramePool}) to
+ * keep them.
+ * <p>
+ * Nothing is decoded up front; {@link #toString(Charset)} builds a String only when a consumer
+ * actually asks for text.
+ */
+public final class ByteSlice {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mArray;
+    private int    mOffset;
+    private int    mLength;
+
+    ByteSlice() {
+    }
+
+    /**
+     * Point this slice at a new range. Only the owner of the underlying buffer calls this.
+     */
+    ByteSlice set(byte[] array, int offset, int length) {
+        mArray = array;
+        mOffset = offset;
+        mLength = length;
+        return this;
+    }
+
+    // Direct access for code in this package that hands the bytes to an API taking (array, offset, length)
+    byte[] array() {
+        return mArray;
+    }
+
+    int offset() {
+        return mOffset;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte get(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mArray[mOffset + index];
+    }
+
+    /**
+     * Copy the whole slice into {@code dst} starting at {@code dstOffset}.
+     */
+    public void copyTo(byte[] dst, int dstOffset) {
+        System.arraycopy(mArray, mOffset, dst, dstOffset, mLength);
+    }
+
+    /**
+     * Copy {@code length} bytes starting at {@code index} into {@code dst}.
+     */
+    public void copyTo(int index, byte[] dst, int dstOffset, int length) {
+        if (index < 0 || length < 0 || index + length > mLength) {
+            throw new IndexOutOfBoundsException("range " + index + "+" + length + ", length " + mLength);
+        }
+        System.arraycopy(mArray, mOffset + index, dst, dstOffset, length);
+    }
+
+    /**
+     * Decode the slice. This is the only place where a String is created (see
+     * {@link Utf8Decoder#decode(ByteSlice)} to decode without one).
+     */
+    public String toString(Charset charset) {
+        return new String(mArray, mOffset, mLength, charset);
+    }
+
+    /**
+     * The slice decoded as UTF-8, the charset of chat text.
+     */
+    @Override
+    public String toString() {
+        return toString(UTF_8);
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Conversation history with a bounded memory footprint.
+ * <p>
+ * The most recent messages are kept in memory, up to {@code maxEntries} messages and
+ * {@code maxBytes} (estimated) bytes. Older messages are appended to a spill file and read back a
+ * page at a time when the list scrolls up to them; a few recently used pages are cached.
+ * Positions are stable: position 0 is always the first message of the session, whether it lives
+ * in memory or on disk.
+ * <p>
+ * Meant to be used from one thread (the UI thread).
+ */
+public class ChatHistory {
+
+    public static final int  DEFAULT_MAX_ENTRIES       = 500;
+    public static final long DEFAULT_MAX_BYTES         = 256 * 1024;
+    public static final int  DEFAULT_MAX_CACHED_PAGES  = 4;
+
+    // Messages per page; the spill file index has one offset per page
+    static final int PAGE_SIZE = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One line of the conversation.
+     */
+    public static final class Entry {
+        // Rough per-object overhead of an Entry plus its String, used for the footprint estimate
+        private static final int OVERHEAD = 64;
+
+        public final boolean outgoing;
+        public final String  sender; // sender of a received message, recipient of a sent one (or null if obvious)
+        public final String  text;
+
+        public Entry(boolean outgoing, String sender, String text) {
+            this.outgoing = outgoing;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        long estimatedSize() {
+            return OVERHEAD + 2L * text.length();
+        }
+    }
+
+    private final File mSpillFile;
+    private final int  mMaxEntries;
+    private final long mMaxBytes;
+    private final int  mMaxCachedPages;
+
+    private final Entry[] mRecent;     // ring buffer of the messages kept in memory
+    private int           mRecentHead; // index of the oldest one
+    private int           mRecentCount;
+    private long          mRecentBytes;
+
+    private int              mSpilledCount;            // messages in the spill file, they come before mRecent
+    private long[]           mPageOffsets = new long[16]; // file offset of the first message of each page
+    private long             mSpillLength;
+    private DataOutputStream mSpillOut;
+
+    private final LinkedHashMap<Integer, Entry[]> mPageCache;
+    private long                                  mCachedBytes;
+
+    public ChatHistory(File spillFile) {
+        this(spillFile, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_MAX_CACHED_PAGES);
+    }
+
+    /**
+     * @param spillFile      where messages evicted from memory go; deleted by {@link #clear()} and {@link #close()}
+     * @param maxEntries     maximum number of recent messages kept in memory
+     * @param maxBytes       maximum estimated size of the recent messages kept in memory
+     * @param maxCachedPages how many pages read back from disk are kept
+     */
+    public ChatHistory(File spillFile, int maxEntries, long maxBytes, int maxCachedPages) {
+        mSpillFile = spillFile;
+        mMaxEntries = Math.max(1, maxEntries);
+        mMaxBytes = maxBytes;
+        mMaxCachedPages = maxCachedPages;
+        mRecent = new Entry[mMaxEntries];
+        // Inside the subclass "Entry" would be the inherited Map.Entry: qualify it everywhere
+        mPageCache = new LinkedHashMap<Integer, ChatHistory.Entry[]>(maxCachedPages + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ChatHistory.Entry[]> eldest) {
+                if (size() > mMaxCachedPages) {
+                    mCachedBytes -= pageSize(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        mSpillFile.delete(); // 上一次的会话不要
+    }
+
+    /**
+     * Total number of messages, in memory and on disk.
+     */
+    public int size() {
+        return mSpilledCount + mRecentCount;
+    }
+
+    /**
+     * Number of messages that currently live in the spill file.
+     */
+    public int spilledCount() {
+        return mSpilledCount;
+    }
+
+    /**
+     * Estimated number of bytes held in memory: recent messages, cached pages and the page index.
+     */
+    public long getMemoryFootprint() {
+        return mRecentBytes + mCachedBytes + 8L * mPageOffsets.length + 4L * mRecent.length;
+    }
+
+    public void add(Entry entry) {
+        if (mRecentCount == mRecent.length) {
+            spillOldest();
+        }
+        mRecent[(mRecentHead + mRecentCount) % mRecent.length] = entry;
+        mRecentCount++;
+        mRecentBytes += entry.estimatedSize();
+
+        // 超出内存限制的旧消息写到文件里（至少保留最新的一条在内存中）
+        while (mRecentCount > 1 && mRecentBytes > mMaxBytes) {
+            spillOldest();
+        }
+    }
+
+    /**
+     * Message at {@code position}, read back from disk if needed.
+     */
+    public Entry get(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+        }
+        if (position >= mSpilledCount) {
+            return getRecent(position - mSpilledCount);
+        }
+
+        int page = position / PAGE_SIZE;
+        Entry[] entries = mPageCache.get(page);
+        if (entries == null) {
+            try {
+                entries = readPage(page);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new Entry(false, null, "");
+            }
+            mPageCache.put(page, entries);
+            mCachedBytes += pageSize(entries);
+        }
+        return entries[position % PAGE_SIZE];
+    }
+
+    /**
+     * Drop everything, in memory and on disk.
+     */
+    public void clear() {
+        Arrays.fill(mRecent, null);
+        mRecentHead = 0;
+        mRecentCount = 0;
+        mRecentBytes = 0;
+        mPageCache.clear();
+        mCachedBytes = 0;
+        mSpilledCount = 0;
+        mSpillLength = 0;
+        mPageOffsets = new long[16];
+        closeSpillFile();
+        mSpillFile.delete();
+    }
+
+    /**
+     * Release the spill file. The history is empty afterwards.
+     */
+    public void close() {
+        clear();
+    }
+
+    private Entry getRecent(int index) {
+        return mRecent[(mRecentHead + index) % mRecent.length];
+    }
+
+    private void spillOldest() {
+        Entry oldest = mRecent[mRecentHead];
+        mRecent[mRecentHead] = null;
+        mRecentHead = (mRecentHead + 1) % mRecent.length;
+        mRecentCount--;
+        mRecentBytes -= oldest.estimatedSize();
+        spill(oldest);
+    }
+
+    private void spill(Entry entry) {
+        try {
+            if (mSpillOut == null) {
+                mSpillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mSpillFile, true)));
+            }
+            if (mSpilledCount % PAGE_SIZE == 0) {
+                int page = mSpilledCount / PAGE_SIZE;
+                if (page == mPageOffsets.length) {
+                    mPageOffsets = Arrays.copyOf(mPageOffsets, page * 2);
+                }
+                mPageOffsets[page] = mSpillLength;
+            } else {
+                // The page being filled may have been read back short: it gets this entry now
+                Entry[] cached = mPageCache.remove(mSpilledCount / PAGE_SIZE);
+                if (cached != null) {
+                    mCachedBytes -= pageSize(cached);
+                }
+            }
+
+            byte[] sender = entry.sender == null ? new byte[0] : entry.sender.getBytes(UTF_8);
+            byte[] text = entry.text.getBytes(UTF_8);
+            mSpillOut.writeBoolean(entry.outgoing);
+            mSpillOut.writeInt(sender.length);
+            mSpillOut.write(sender);
+            mSpillOut.writeInt(text.length);
+            mSpillOut.write(text);
+            mSpillLength += 1 + 4 + sender.length + 4 + text.length;
+            mSpilledCount++;
+        } catch (IOException e) {
+            // 写文件失败就只能丢掉这条旧消息了，不能让内存无限增长
+            e.printStackTrace();
+        }
+    }
+
+    private Entry[] readPage(int page) throws IOException {
+        if (mSpillOut != null) {
+            mSpillOut.flush();
+        }
+        int first = page * PAGE_SIZE;
+        int count = Math.min(PAGE_SIZE, mSpilledCount - first);
+        Entry[] entries = new Entry[count];
+
+        InputStream file = new FileInputStream(mSpillFile);
+        try {
+            skipFully(file, mPageOffsets[page]);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+            for (int i = 0; i < count; i++) {
+                boolean outgoing = in.readBoolean();
+                byte[] sender = new byte[in.readInt()];
+                in.readFully(sender);
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                entries[i] = new Entry(outgoing, sender.length == 0 ? null : new String(sender, UTF_8), new String(text, UTF_8));
+            }
+        } finally {
+            file.close();
+        }
+        return entries;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new IOException("Spill file truncated");
+            }
+            n -= skipped;
+        }
+    }
+
+    private static long pageSize(Entry[] entries) {
+        long size = 0;
+        for (Entry entry : entries) {
+            size += entry.estimatedSize();
+        }
+        return size;
+    }
+
+    private void closeSpillFile() {
+        if (mSpillOut != null) {
+            try {
+                mSpillOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSpillOut = null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.ronda.samplebluetoothchat;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows a {@link ChatHistory} in the conversation ListView. Lines are formatted when they are
+ * bound to a view, so the history itself never holds the "Me:   " / "name:   " strings.
+ */
+public class ChatHistoryAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+    private final ChatHistory    mHistory;
+
+    public ChatHistoryAdapter(Context context, ChatHistory history) {
+        mInflater = LayoutInflater.from(context);
+        mHistory = history;
+    }
+
+    @Override
+    public int getCount() {
+        return mHistory.size();
+    }
+
+    @Override
+    public ChatHistory.Entry getItem(int position) {
+        return mHistory.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+        }
+
+        ChatHistory.Entry entry = getItem(position);
+        if (entry.outgoing && entry.sender == null) {
+            view.setText("Me:   " + entry.text);
+        } else if (entry.outgoing) {
+            view.setText("Me -> " + entry.sender + ":   " + entry.text); // 连了多个设备时
+        } else {
+            view.setText(entry.sender + ":   " + entry.text);
+        }
+        return view;
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime figures of a {@link BluetoothChatService}: traffic, latencies, connect timings,
+ * reconnects and how long the service spent in each state.
+ * <p>
+ * Everything that is recorded on a hot path (per frame or per write) is an atomic add or a
+ * {@link LatencyHistogram#record(long)}: no lock and no allocation. Reading goes through
+ * {@link #snapshot(int, int)}, which copies everything into a {@link Snapshot} that can be
+ * inspected or dumped as text with {@link Snapshot#toString()}.
+ */
+public class ChatMetrics {
+
+    private final AtomicLong mBytesIn   = new AtomicLong();
+    private final AtomicLong mBytesOut  = new AtomicLong();
+    private final AtomicLong mFramesIn  = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final AtomicLong mWrites    = new AtomicLong(); // socket writes, one per batch
+
+    private final LatencyHistogram mDeliverLatency = new LatencyHistogram(); // frame read / written -> handed to the UI
+    private final LatencyHistogram mWriteLatency   = new LatencyHistogram(); // one socket write() + flush()
+    private final LatencyHistogram mConnectTime    = new LatencyHistogram(); // outgoing connect attempts
+    private final LatencyHistogram mAcceptWait     = new LatencyHistogram(); // time blocked in accept()
+    private final LatencyHistogram mRtt            = new LatencyHistogram(); // heartbeat round trips, all peers
+
+    // Frame queued -> written to the socket, per FrameWriter channel
+    private final LatencyHistogram[] mChannelLatency = new LatencyHistogram[FrameWriter.CHANNEL_COUNT];
+
+    {
+        for (int i = 0; i < mChannelLatency.length; i++) {
+            mChannelLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    private final AtomicLong mConnectsOk     = new AtomicLong();
+    private final AtomicLong mConnectsFailed = new AtomicLong();
+    private final AtomicLong mAccepted       = new AtomicLong();
+    private final AtomicLong mRecoveries     = new AtomicLong();
+    private final AtomicLong mRecoveryFailed = new AtomicLong();
+    private final LatencyHistogram mRecoveryTime = new LatencyHistogram(); // lost link -> connected again
+
+    // Time in each state (ConnectionStateMachine values), plus the state entered last and when
+    private final AtomicLongArray mStateNanos = new AtomicLongArray(4);
+    private volatile int          mState;
+    private volatile long         mStateSinceNanos = System.nanoTime();
+
+    /**
+     * Frame sizes are counted uncompressed, header included, in both directions.
+     */
+    public void onFrameIn(int bytes) {
+        mFramesIn.incrementAndGet();
+        mBytesIn.addAndGet(bytes);
+    }
+
+    public void onFrameOut(int bytes) {
+        mFramesOut.incrementAndGet();
+        mBytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * A batch went out in one socket write that took {@code nanos}.
+     */
+    public void onWrite(long nanos) {
+        mWrites.incrementAndGet();
+        mWriteLatency.record(nanos);
+    }
+
+    /**
+     * A frame queued on {@code channel} (see {@link FrameWriter#channelOf(byte[])}) was written
+     * {@code nanos} after it was queued.
+     */
+    public void onChannelLatency(int channel, long nanos) {
+        mChannelLatency[channel].record(nanos);
+    }
+
+    /**
+     * A frame reached the UI {@code nanos} after it was read from (or written to) the socket.
+     */
+    public void onDelivered(long nanos) {
+        mDeliverLatency.record(nanos);
+    }
+
+    /**
+     * A heartbeat came back after {@code nanos}.
+     */
+    public void onRtt(long nanos) {
+        mRtt.record(nanos);
+    }
+
+    public void onConnectAttempt(long nanos, boolean connected) {
+        mConnectTime.record(nanos);
+        (connected ? mConnectsOk : mConnectsFailed).incrementAndGet();
+    }
+
+    public void onAccepted(long waitNanos) {
+        mAccepted.incrementAndGet();
+        mAcceptWait.record(waitNanos);
+    }
+
+    public void onRecovered(long millis) {
+        mRecoveries.incrementAndGet();
+        mRecoveryTime.record(millis * 1000000);
+    }
+
+    public void onRecoveryFailed() {
+        mRecoveryFailed.incrementAndGet();
+    }
+
+    /**
+     * Feed from the {@link ConnectionStateMachine.Listener}.
+     */
+    public synchronized void onStateChanged(int from, int to) {
+        long now = System.nanoTime();
+        mStateNanos.addAndGet(from, now - mStateSinceNanos);
+        mState = to;
+        mStateSinceNanos = now;
+    }
+
+    /**
+     * Copy all figures. The queue depths are gauges the caller reads at the same time.
+     */
+    public synchronized Snapshot snapshot(int outboundQueueDepth, int deliveryQueueDepth) {
+        long[] stateMillis = new long[mStateNanos.length()];
+        for (int i = 0; i < stateMillis.length; i++) {
+            stateMillis[i] = mStateNanos.get(i) / 1000000;
+        }
+        stateMillis[mState] += (System.nanoTime() - mStateSinceNanos) / 1000000; // 当前状态还没结束，算到现在
+        return new Snapshot(this, outboundQueueDepth, deliveryQueueDepth, stateMillis);
+    }
+
+    /**
+     * The figures at one point in time.
+     */
+    public static final class Snapshot {
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long framesIn;
+        public final long framesOut;
+        public final long writes;
+        public final int  outboundQueueDepth;
+        public final int  deliveryQueueDepth;
+
+        public final LatencyHistogram.Snapshot deliverLatency;
+        public final LatencyHistogram.Snapshot writeLatency;
+        public final LatencyHistogram.Snapshot connectTime;
+        public final LatencyHistogram.Snapshot acceptWait;
+        public final LatencyHistogram.Snapshot rtt;
+
+        /**
+         * Queued to written, indexed by {@link FrameWriter#CHANNEL_CONTROL} etc.
+         */
+        public final LatencyHistogram.Snapshot[] channelLatency;
+        public final LatencyHistogram.Snapshot recoveryTime;
+
+        public final long connectsOk;
+        public final long connectsFailed;
+        public final long accepted;
+        public final long recoveries;
+        public final long recoveryFailures;
+
+        /**
+         * Milliseconds spent in each state, indexed by {@link ConnectionStateMachine#STATE_NONE} etc.
+         */
+        public final long[] stateMillis;
+
+        Snapshot(ChatMetrics m, int outboundQueueDepth, int deliveryQueueDepth, long[] stateMillis) {
+            bytesIn = m.mBytesIn.get();
+            bytesOut = m.mBytesOut.get();
+            framesIn = m.mFramesIn.get();
+            framesOut = m.mFramesOut.get();
+            writes = m.mWrites.get();
+            this.outboundQueueDepth = outboundQueueDepth;
+            this.deliveryQueueDepth = deliveryQueueDepth;
+            deliverLatency = m.mDeliverLatency.snapshot();
+            writeLatency = m.mWriteLatency.snapshot();
+            connectTime = m.mConnectTime.snapshot();
+            acceptWait = m.mAcceptWait.snapshot();
+            rtt = m.mRtt.snapshot();
+            channelLatency = new LatencyHistogram.Snapshot[m.mChannelLatency.length];
+            for (int i = 0; i < channelLatency.length; i++) {
+                channelLatency[i] = m.mChannelLatency[i].snapshot();
+            }
+            recoveryTime = m.mRecoveryTime.snapshot();
+            connectsOk = m.mConnectsOk.get();
+            connectsFailed = m.mConnectsFailed.get();
+            accepted = m.mAccepted.get();
+            recoveries = m.mRecoveries.get();
+            recoveryFailures = m.mRecoveryFailed.get();
+            this.stateMillis = stateMillis;
+        }
+
+        /**
+         * Compact text dump, one group per line.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("in frames=").append(framesIn).append(" bytes=").append(bytesIn).append('\n');
+            sb.append("out frames=").append(framesOut).append(" bytes=").append(bytesOut).append(" writes=").append(writes).append('\n');
+            sb.append("queue outbound=").append(outboundQueueDepth).append(" delivery=").append(deliveryQueueDepth).append('\n');
+            sb.append("deliver_us ").append(deliverLatency.format(1)).append('\n');
+            sb.append("write_us ").append(writeLatency.format(1)).append('\n');
+            sb.append("rtt_us ").append(rtt.format(1)).append('\n');
+            String[] channels = {"control", "interactive", "bulk"};
+            for (int i = 0; i < channelLatency.length; i++) {
+                sb.append("queue_").append(channels[i]).append("_us ").append(channelLatency[i].format(1)).append('\n');
+            }
+            sb.append("connect_ms ok=").append(connectsOk).append(" failed=").append(connectsFailed)
+                    .append(' ').append(connectTime.format(1000)).append('\n');
+            sb.append("accept_wait_ms ").append(acceptWait.format(1000)).append('\n');
+            sb.append("reconnect ok=").append(recoveries).append(" failed=").append(recoveryFailures)
+                    .append(" recover_ms ").append(recoveryTime.format(1000)).append('\n');
+            sb.append("state_ms");
+            for (int i = 0; i < stateMillis.length; i++) {
+                sb.append(' ').append(ConnectionStateMachine.name(i).toLowerCase(Locale.US)).append('=').append(stateMillis[i]);
+            }
+            return sb.toString();
+        }
+    }
+}
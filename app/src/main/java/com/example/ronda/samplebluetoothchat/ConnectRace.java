@@ -0,0 +1,292 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Connects to the first of several candidate devices that answers.
+ * <p>
+ * Up to {@code fanOut} candidates are tried at the same time; when one fails the next candidate in
+ * the list takes its place. The first {@link Transport#connect()} that succeeds wins, every other
+ * attempt still running is closed right away (which aborts its blocking connect()). A dead device
+ * costs the full RFCOMM timeout (about 12 s), so with several redundant base stations this is
+ * roughly one timeout in total instead of one per dead candidate.
+ * <p>
+ * Every attempt is recorded as an {@link Attempt} with its duration and, if it failed, the reason.
+ * 和 ConnectThread 一样，每个尝试一个线程，因为 connect() 是阻塞的；{@link #setExecutor(Executor)} 以后在线程池里跑
+ */
+public class ConnectRace {
+
+    public static final int DEFAULT_FAN_OUT = 3;
+
+    /**
+     * Called on one of the attempt threads, exactly once per race: either {@link #onConnected}
+     * or {@link #onFailed}, and neither after {@link #cancel()}.
+     */
+    public interface Listener {
+        /**
+         * {@code transport} is connected and now belongs to the listener.
+         */
+        void onConnected(ConnectRace race, Transport transport);
+
+        /**
+         * Every candidate failed, see {@link #getAttempts()} for why.
+         */
+        void onFailed(ConnectRace race);
+    }
+
+    /**
+     * One connect attempt. The fields only change while the race holds its lock; read them through
+     * {@link #getAttempts()}, which returns copies.
+     */
+    public static final class Attempt {
+        public static final int PENDING   = 0; // still connecting
+        public static final int CONNECTED = 1; // won the race
+        public static final int FAILED    = 2; // connect() failed on its own, see getError()
+        public static final int CANCELLED = 3; // closed because another attempt won or the race was cancelled
+
+        private final String mAddress;
+        private final long   mStartNanos;
+        private long         mDurationMillis = -1;
+        private int          mOutcome = PENDING;
+        private IOException  mError;
+
+        private Attempt(String address, long startNanos) {
+            mAddress = address;
+            mStartNanos = startNanos;
+        }
+
+        private Attempt(Attempt other) {
+            mAddress = other.mAddress;
+            mStartNanos = other.mStartNanos;
+            mDurationMillis = other.mDurationMillis;
+            mOutcome = other.mOutcome;
+            mError = other.mError;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * How long the attempt took until it connected, failed or was closed; -1 while pending.
+         */
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        public int getOutcome() {
+            return mOutcome;
+        }
+
+        /**
+         * Why the attempt failed, or null.
+         */
+        public IOException getError() {
+            return mError;
+        }
+
+        private void finish(int outcome, IOException error) {
+            mOutcome = outcome;
+            mError = error;
+            mDurationMillis = (System.nanoTime() - mStartNanos) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            String[] outcomes = {"pending", "connected", "failed", "cancelled"};
+            return mAddress + " " + outcomes[mOutcome] + " after " + mDurationMillis + " ms"
+                    + (mError != null ? ": " + mError.getMessage() : "");
+        }
+    }
+
+    private final TransportProvider mProvider;
+    private final List<String>      mCandidates;
+    private final int               mFanOut;
+    private final Listener          mListener;
+    private Executor                mExecutor; // null: a new thread per attempt
+
+    // Guarded by this
+    private final List<Attempt>       mAttempts = new ArrayList<>();
+    private final List<AttemptThread> mRunning  = new ArrayList<>();
+    private int                       mNext;     // index of the next candidate to try
+    private boolean                   mDone;     // a winner was found, all failed, or cancel()
+    private Transport                 mWinner;
+
+    public ConnectRace(TransportProvider provider, List<String> candidates, int fanOut, Listener listener) {
+        if (candidates.isEmpty() || fanOut < 1) {
+            throw new IllegalArgumentException("Need at least one candidate and a fan-out of at least 1");
+        }
+        mProvider = provider;
+        mCandidates = new ArrayList<>(candidates);
+        mFanOut = fanOut;
+        mListener = listener;
+    }
+
+    /**
+     * Run the attempts on {@code executor} (e.g. {@link ConnectionEngine#getBlockingExecutor()})
+     * instead of on a new thread each. Call before {@link #start()}.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public synchronized void start() {
+        while (mRunning.size() < mFanOut && mNext < mCandidates.size()) {
+            startNext();
+        }
+    }
+
+    /**
+     * Stop all attempts. The listener is not called any more.
+     */
+    public void cancel() {
+        List<AttemptThread> running;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            running = new ArrayList<>(mRunning);
+        }
+        for (AttemptThread thread : running) {
+            thread.abort();
+        }
+    }
+
+    /**
+     * The attempts made so far, in the order they started.
+     */
+    public synchronized List<Attempt> getAttempts() {
+        List<Attempt> copy = new ArrayList<>(mAttempts.size());
+        for (Attempt attempt : mAttempts) {
+            copy.add(new Attempt(attempt));
+        }
+        return copy;
+    }
+
+    /**
+     * The transport that won, or null.
+     */
+    public synchronized Transport getWinner() {
+        return mWinner;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    // Must hold the lock
+    private void startNext() {
+        String address = mCandidates.get(mNext++);
+        Attempt attempt = new Attempt(address, System.nanoTime());
+        mAttempts.add(attempt);
+        AttemptThread thread = new AttemptThread(attempt);
+        mRunning.add(thread);
+        if (mExecutor != null) {
+            mExecutor.execute(thread); // only its run(), the Thread itself is never started
+        } else {
+            thread.start();
+        }
+    }
+
+    private void onSuccess(AttemptThread winner, Transport transport) {
+        List<AttemptThread> losers;
+        synchronized (this) {
+            mRunning.remove(winner);
+            if (mDone) {
+                winner.mmAttempt.finish(Attempt.CANCELLED, null); // 晚了一步，别人已经赢了（或者 cancel() 了）
+                winner.closeQuietly();
+                return;
+            }
+            mDone = true;
+            mWinner = transport;
+            winner.mmAttempt.finish(Attempt.CONNECTED, null);
+            losers = new ArrayList<>(mRunning);
+        }
+        for (AttemptThread thread : losers) {
+            thread.abort(); // 其余的马上关掉，不等它们超时
+        }
+        mListener.onConnected(this, transport);
+    }
+
+    private void onFailure(AttemptThread thread, IOException e) {
+        synchronized (this) {
+            mRunning.remove(thread);
+            if (thread.mmAttempt.mOutcome == Attempt.PENDING) {
+                thread.mmAttempt.finish(mDone ? Attempt.CANCELLED : Attempt.FAILED, mDone ? null : e);
+            }
+            if (mDone) {
+                return;
+            }
+            if (mNext < mCandidates.size()) {
+                startNext();
+                return;
+            }
+            if (!mRunning.isEmpty()) {
+                return; // 还有别的尝试在进行
+            }
+            mDone = true;
+        }
+        mListener.onFailed(this);
+    }
+
+    /**
+     * Connects one candidate.
+     */
+    private class AttemptThread extends Thread {
+        private final Attempt      mmAttempt;
+        private volatile Transport mmSocket;
+        private volatile boolean   mmAborted;
+
+        private AttemptThread(Attempt attempt) {
+            super("ConnectRace-" + attempt.getAddress());
+            mmAttempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mmSocket = mProvider.open(mmAttempt.getAddress());
+                if (mmAborted) {
+                    closeQuietly(); // abort() ran before the socket existed
+                    throw new IOException("Cancelled");
+                }
+                // This is a blocking call and will only return on a successful connection or an exception (abort() closes the socket)
+                mmSocket.connect();
+            } catch (IOException e) {
+                closeQuietly();
+                onFailure(this, e);
+                return;
+            }
+            onSuccess(this, mmSocket);
+        }
+
+        /**
+         * Close the socket, which makes a blocking connect() fail. Called with the race already done.
+         */
+        private void abort() {
+            synchronized (ConnectRace.this) {
+                if (mmAttempt.mOutcome == Attempt.PENDING) {
+                    mmAttempt.finish(Attempt.CANCELLED, null);
+                }
+            }
+            mmAborted = true;
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            Transport socket = mmSocket;
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,766 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This thread runs during a connection with a remote device.
+ * It handles all incoming and outgoing transmissions: it reads and reassembles frames from the
+ * {@link Transport} itself and owns a {@link FrameWriter} for the outgoing side.
+ * <p>
+ * It has no Android dependencies on purpose, so exactly the same code can be driven by a
+ * {@link MemoryTransport} in unit tests and benchmarks.
+ * <p>
+ * Flow control ({@link #setFlowControl(int)}) works with credits: this side tells the peer how
+ * many {@link FrameCodec#TYPE_TEXT} frames it may send in total ({@link FrameCodec#TYPE_CREDIT},
+ * consumed + window), and raises the limit as the application reports them consumed with
+ * {@link #onConsumed(int)}. A fast sender then waits in its {@link FrameWriter} (whose queue is
+ * bounded) instead of filling up the receiver's memory. A peer that never sends credits is not
+ * flow controlled, so older peers keep working.
+ * <p>
+ * With a {@link Session} ({@link #setSession(Session)}) the connection picks up where the last one
+ * to the same peer stopped: both sides open with {@link FrameCodec#TYPE_RESUME}, text frames wait
+ * until the peer's RESUME says which of the buffered ones it still needs, and received text frames
+ * are acknowledged. If the peer's first frame is anything else (an older peer), or its RESUME takes
+ * longer than {@link #RESUME_TIMEOUT_MILLIS}, the connection carries on without a session.
+ * <p>
+ * {@link #start(ConnectionEngine)} runs the connection without any thread of its own: reading,
+ * writing and the heartbeat become tasks on the engine's shared threads. The engine only reads
+ * bytes that are already there, so a peer that closes the link cleanly is noticed by the next
+ * write (a heartbeat ping at the latest) rather than by read() returning -1.
+ */
+public class ConnectedThread extends Thread implements FrameDecoder.Listener, FrameWriter.Callback {
+
+    /**
+     * Called on the reading thread ({@link #onFrameReceived}, {@link #onConnectionLost})
+     * or on the writer thread ({@link #onFramesWritten}). On a {@link ConnectionEngine} those are
+     * the engine's threads, still one at a time for reading and one at a time for writing;
+     * onConnectionLost then comes on its blocking pool, after the last onFrameReceived.
+     */
+    public interface Callback {
+        /**
+         * A complete frame arrived. The payload is only valid during the call.
+         */
+        void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload);
+
+        /**
+         * A batch of frames went out in one write. The list is reused, don't keep it.
+         */
+        void onFramesWritten(ConnectedThread connection, List<byte[]> frames);
+
+        /**
+         * The connection broke. Not called after {@link #cancel()}.
+         */
+        void onConnectionLost(ConnectedThread connection, IOException e);
+    }
+
+    private final Transport    mTransport;
+    private final Callback     mCallback;
+    private final InputStream  mInputStream;
+    private final FrameDecoder mFrameDecoder = new FrameDecoder(); // 把 RFCOMM 的字节流重新拼成完整的帧
+    private final FrameWriter  mFrameWriter;                       // 所有的写操作都在这个线程里完成
+
+    private volatile FrameCompressor  mCompressor;    // null: this side never compresses
+    private volatile ChatMetrics      mMetrics;       // null: not measured
+    private volatile Tracer           mTracer;        // null: not traced
+    private volatile Heartbeat        mHeartbeat;     // null: no pings sent (pings from the peer are still answered)
+    private IOException               mProtocolError; // set in onFrame(), thrown by the read loop
+    private volatile IOException      mHeartbeatTimeout; // set by the heartbeat thread, reported instead of the read() failure
+    private volatile EngineReader     mReader;        // null: reads on this thread, see start(ConnectionEngine)
+    private volatile ConnectionEngine mEngine;        // null: runs on its own threads
+
+    // Set exactly once, by cancel() or by the read loop when the link breaks: whoever wins decides
+    // whether the loss is reported, so cancel() and a broken link can never both be acted on
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    public static final int DEFAULT_CREDIT_WINDOW = 256; // about one RFCOMM round trip of short messages, and as many as FrameWriter queues by default
+
+    // Receiving side of flow control
+    private volatile int     mCreditWindow;                     // 0: no credits handed out, the peer sends freely
+    private final AtomicLong mConsumed     = new AtomicLong(); // TEXT frames the application is done with
+    private final AtomicLong mGranted      = new AtomicLong(); // limit last sent to the peer
+    private volatile long    mDataReceived;                    // TEXT frames received, only written by the reading thread
+
+    // Resumable session, see setSession()
+    public static final long RESUME_TIMEOUT_MILLIS = 3000;
+
+    private static final int RESUME_OFF     = 0; // no session
+    private static final int RESUME_WAITING = 1; // RESUME sent, text frames held until the peer's arrives
+    private static final int RESUME_DONE    = 2; // text frames are numbered and acknowledged
+    private static final int RESUME_LEGACY  = 3; // the peer does not resume, carry on without
+
+    private volatile Session     mSession;
+    private volatile int         mResumeState = RESUME_OFF;
+    private byte[]               mResumeFrame;    // queued first by run()
+    private int                  mReplayQueued;   // frames of the session queued by setSession()
+    private final List<byte[]>   mFresh = new ArrayList<>(); // writer thread: the frames of a batch that are not replays
+
+    // How long takeUnsentFrames() waits for a writer stuck in write()
+    private static final long WRITER_STOP_TIMEOUT_MILLIS = 1000;
+
+    public ConnectedThread(Transport transport, Callback callback) {
+        this(transport, callback, FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.OverflowPolicy.DROP);
+    }
+
+    public ConnectedThread(Transport transport, Callback callback, int outboundCapacity, FrameWriter.OverflowPolicy policy) {
+        super("ConnectedThread");
+        mTransport = transport;
+        mCallback = callback;
+
+        InputStream tmpIn = null;
+        OutputStream tmpOut = null;
+
+        try {
+            tmpIn = transport.getInputStream();
+            tmpOut = transport.getOutputStream();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mInputStream = tmpIn;
+        mFrameWriter = new FrameWriter(tmpOut, this, outboundCapacity, policy,
+                FrameWriter.DEFAULT_MAX_BATCH_BYTES, FrameWriter.DEFAULT_LINGER_MILLIS);
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    public String getRemoteAddress() {
+        return mTransport.getRemoteAddress();
+    }
+
+    /**
+     * Offer compression to the peer. Call before {@link #start()}; compression only starts once the
+     * peer answered with its own HELLO.
+     */
+    public void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    public FrameCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    /**
+     * Record what happens on this connection in {@code tracer}. Call before {@link #start()}.
+     */
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Ping the peer every {@code intervalMillis} and treat the link as lost after {@code maxMissed}
+     * beats without any frame from it. Call before {@link #start()}.
+     */
+    public void setHeartbeat(long intervalMillis, int maxMissed) {
+        mHeartbeat = new Heartbeat(this, intervalMillis, maxMissed);
+    }
+
+    /**
+     * Share of the link for the interactive and bulk channels while both are busy, see
+     * {@link FrameWriter#setWeight(int, int)}. Call before {@link #start()}.
+     */
+    public void setChannelWeights(int interactive, int bulk) {
+        mFrameWriter.setWeight(FrameWriter.CHANNEL_INTERACTIVE, interactive);
+        mFrameWriter.setWeight(FrameWriter.CHANNEL_BULK, bulk);
+    }
+
+    /**
+     * Let the peer send at most {@code window} text frames that were not yet reported through
+     * {@link #onConsumed(int)}. Call before {@link #start()}.
+     */
+    public void setFlowControl(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Bad credit window: " + window);
+        }
+        mCreditWindow = window;
+    }
+
+    /**
+     * The application is done with {@code frames} text frames received on this connection; the
+     * peer gets new credit once half a window was consumed. Any thread.
+     */
+    public void onConsumed(int frames) {
+        int window = mCreditWindow;
+        if (window > 0 && frames > 0) {
+            grant(mConsumed.addAndGet(frames) + window, Math.max(1, window / 2));
+        }
+    }
+
+    /**
+     * Text frames received but not yet reported consumed; at most the credit window if the peer
+     * does flow control.
+     */
+    public long getUnconsumedFrames() {
+        return mDataReceived - mConsumed.get();
+    }
+
+    /**
+     * The limit the peer gave us, or {@link FrameWriter#NO_CREDIT_LIMIT} if it does not do flow control.
+     */
+    public long getCreditLimit() {
+        return mFrameWriter.getCreditLimit();
+    }
+
+    /**
+     * True if outgoing text frames are waiting for credit from the peer.
+     */
+    public boolean isBlockedOnCredit() {
+        return mFrameWriter.isBlockedOnCredit();
+    }
+
+    // Send a new limit if it is at least minStep above the last one (0: resend the current limit anyway)
+    private void grant(long limit, int minStep) {
+        while (true) {
+            long granted = mGranted.get();
+            if (limit - granted < minStep) {
+                return;
+            }
+            if (mGranted.compareAndSet(granted, limit)) {
+                // If the control queue is full the next grant (or the resend on the next ping) makes up for it
+                mFrameWriter.offer(FrameCodec.encodeLong(FrameCodec.TYPE_CREDIT, limit));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Resume {@code session}, the one kept for this peer: the frames it still buffers are queued
+     * (ahead of anything else), and text frames are numbered and acknowledged from now on. Call
+     * before {@link #start()} and before writing anything.
+     */
+    public void setSession(Session session) {
+        mSession = session;
+        List<byte[]> replay = session.attach(this);
+        mResumeFrame = FrameCodec.encodeLongs(FrameCodec.TYPE_RESUME, session.getReceived(), session.getDropped());
+        mFrameWriter.hold(RESUME_TIMEOUT_MILLIS);
+        mResumeState = RESUME_WAITING;
+        for (byte[] frame : replay) {
+            if (!mFrameWriter.offer(frame)) {
+                break; // the session is never bigger than the queue, unless it was made so
+            }
+            mReplayQueued++;
+        }
+    }
+
+    public Session getSession() {
+        return mSession;
+    }
+
+    /**
+     * True if this connection has a {@link Session} and the peer resumes too: its TEXT frames are
+     * then kept by the session, {@link #takeUnsentFrames()} hands them over there.
+     */
+    public boolean isResuming() {
+        return mSession != null && mResumeState != RESUME_LEGACY;
+    }
+
+    /**
+     * Round-trip times measured by the heartbeat, or null if there is none.
+     */
+    public RttEstimator getRtt() {
+        Heartbeat heartbeat = mHeartbeat;
+        return heartbeat != null ? heartbeat.getRtt() : null;
+    }
+
+    /**
+     * Count traffic and socket write times in {@code metrics}. Call before {@link #start()}.
+     */
+    public void setMetrics(ChatMetrics metrics) {
+        mMetrics = metrics;
+        mFrameWriter.setMetrics(metrics);
+    }
+
+    /**
+     * Frames that were queued but never written, oldest first, so they can be sent again once the
+     * peer is back. Only meaningful after the connection was lost or cancelled; waits (briefly)
+     * for the writer thread to stop.
+     */
+    public List<byte[]> takeUnsentFrames() {
+        mFrameWriter.close();
+        boolean stopped = false;
+        try {
+            stopped = mFrameWriter.awaitStopped(WRITER_STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<byte[]> unsent = new ArrayList<>();
+        if (stopped) {
+            List<byte[]> failed = new ArrayList<>();
+            mFrameWriter.drainFailedBatch(failed);
+            mFrameWriter.drainUnsent(unsent);
+            Session session = mSession;
+            if (session != null && mResumeState != RESUME_LEGACY) {
+                // Text frames stay with the session, even those of the failed write: the peer's RESUME tells whether they arrived
+                session.retainUnsent(this, failed, unsent);
+            }
+        }
+        return unsent;
+    }
+
+    /**
+     * Number of frames waiting in the outbound queue.
+     */
+    public int getOutboundQueueDepth() {
+        return mFrameWriter.queueDepth();
+    }
+
+    /**
+     * Number of frames waiting on one channel of the outbound queue ({@link FrameWriter#CHANNEL_CONTROL} etc.).
+     */
+    public int getOutboundQueueDepth(int channel) {
+        return mFrameWriter.queueDepth(channel);
+    }
+
+    /**
+     * Run the connection on {@code engine} instead of on this thread (and the writer and heartbeat
+     * threads). Call instead of {@link #start()}.
+     * <p>
+     * Without a heartbeat the reads are not polled but block on a thread of the engine's blocking
+     * pool: at the end of the stream available() only ever says 0, so a poll would never notice a
+     * peer that closed the connection cleanly; only a read() returning -1 (or failing) does.
+     */
+    public void start(ConnectionEngine engine) {
+        mEngine = engine;
+        if (mHeartbeat == null) {
+            begin(engine);
+            engine.executeBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    readLoop();
+                }
+            });
+            return;
+        }
+        EngineReader reader = new EngineReader(engine);
+        mReader = reader;
+        begin(engine);
+        engine.register(reader);
+    }
+
+    @Override
+    public void run() {
+        begin(null);
+        readLoop();
+    }
+
+    private void readLoop() {
+        // Keep listening to the InputStream while connected
+        // 注意：这个循环里不要拼接日志字符串，也不要 new String()，否则高速收数据时会不停地 GC。要调试就用 Tracer
+        while (!mClosed.get()) {
+            try {
+                // Read from the InputStream, every complete frame is delivered to onFrame()
+                int read = mFrameDecoder.readFrom(mInputStream, this);
+                if (read < 0) {
+                    throw new IOException("End of stream");
+                }
+                onRead(read);
+            } catch (IOException e) {// 一旦 read() 出现了异常，就表示连接已中断。而这个线程也就运行结束。若想要读写数据，必须要重新连接
+                onReadFailed(e);
+                break; // 跳出循环
+            }
+        }
+    }
+
+    // Queue the opening frames and start writing, on its own threads or on the engine
+    private void begin(ConnectionEngine engine) {
+        if (mResumeFrame != null) {
+            mFrameWriter.enqueue(mResumeFrame); // 最先发，对方靠第一帧判断我们支不支持续传
+        }
+        FrameCompressor compressor = mCompressor;
+        if (compressor != null) {
+            mFrameWriter.enqueue(compressor.helloFrame()); // 第一帧：告诉对方我们支持压缩
+        }
+        int window = mCreditWindow;
+        if (window > 0) {
+            grant(window, 0); // 初始额度，和 HELLO 一样走控制通道
+        }
+        Heartbeat heartbeat = mHeartbeat;
+        if (engine != null) {
+            mFrameWriter.start(engine);
+            // The heartbeat is polled with the reads, see EngineReader
+        } else {
+            mFrameWriter.start();
+            if (heartbeat != null) {
+                heartbeat.start();
+            }
+        }
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECTED, 0, 0);
+        }
+    }
+
+    private void onRead(int read) throws IOException {
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_VERBOSE, Tracer.EVENT_READ, read, 0);
+        }
+        if (mProtocolError != null) {
+            throw mProtocolError;
+        }
+    }
+
+    // The read failed: the link is lost, unless cancel() got there first (the caller knows about that)
+    private void onReadFailed(IOException e) {
+        if (mClosed.compareAndSet(false, true)) {
+            mFrameWriter.close();
+            Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.close();
+            }
+            stopReader();
+            closeTransport();
+            Tracer tracer = mTracer;
+            if (tracer != null) {
+                tracer.trace(Tracer.LEVEL_ERROR, Tracer.EVENT_CONNECTION_LOST, 0, 0);
+            }
+            IOException timeout = mHeartbeatTimeout;
+            final IOException cause = timeout != null ? timeout : e;
+            ConnectionEngine engine = mEngine;
+            if (engine == null) {
+                mCallback.onConnectionLost(this, cause);
+            } else {
+                // Not on the loop thread: the callback waits for the writer to stop (takeUnsentFrames()), the other links can't wait with it
+                engine.executeBlocking(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onConnectionLost(ConnectedThread.this, cause);
+                    }
+                });
+            }
+        }
+    }
+
+    private void stopReader() {
+        EngineReader reader = mReader;
+        if (reader != null) {
+            reader.mmEngine.unregister(reader);
+            reader.cancel();
+        }
+    }
+
+    /**
+     * The reading side on a {@link ConnectionEngine}: each sweep checks for bytes (and beats the
+     * heartbeat), and the task reads what is there. Never blocks.
+     */
+    private class EngineReader extends ConnectionEngine.Task implements ConnectionEngine.Link {
+        // A link that just had data is looked at every millisecond for a few more times before it waits for the sweep again
+        private static final int HOT_POLLS = 8;
+
+        private final ConnectionEngine mmEngine;
+        private int                    mmQuiet; // steps in a row that found nothing
+
+        private EngineReader(ConnectionEngine engine) {
+            super(engine);
+            mmEngine = engine;
+        }
+
+        @Override
+        public void poll(long nowNanos) {
+            Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.poll(nowNanos);
+            }
+            if (!isIdle()) {
+                return; // already reading
+            }
+            try {
+                if (mInputStream.available() <= 0) {
+                    return;
+                }
+            } catch (IOException e) {
+                // closed: the step reports it
+            }
+            schedule();
+        }
+
+        @Override
+        protected long step() {
+            if (mClosed.get()) {
+                return IDLE;
+            }
+            try {
+                int read = mFrameDecoder.readAvailable(mInputStream, ConnectedThread.this);
+                if (read == 0) {
+                    return ++mmQuiet <= HOT_POLLS ? 1 : IDLE; // 之后等下一次轮询
+                }
+                mmQuiet = 0;
+                onRead(read);
+            } catch (IOException e) {
+                onReadFailed(e);
+                return IDLE;
+            }
+            return 0; // more may have arrived meanwhile: read again after the other links had their turn
+        }
+    }
+
+    @Override
+    public void onFrame(int type, ByteSlice payload) {
+        if (mProtocolError != null) {
+            return; // the stream is broken, the read loop closes the connection
+        }
+        FrameCompressor compressor = mCompressor;
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_FRAME_IN, type, payload.length());
+        }
+        if (mResumeState == RESUME_WAITING && type != FrameCodec.TYPE_RESUME) {
+            endResume(); // 对方第一帧不是 RESUME：老版本，不续传
+        }
+        if (type == FrameCodec.TYPE_HELLO) {
+            if (compressor != null) {
+                compressor.onHello(payload);
+                if (compressor.isActive()) {
+                    mFrameWriter.setTransformer(compressor);
+                }
+            }
+            if (tracer != null) {
+                tracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_HELLO, compressor != null && compressor.isActive() ? 1 : 0,
+                        compressor != null && compressor.isUsingDictionary() ? 1 : 0);
+            }
+            return;
+        }
+        if ((type & FrameCodec.FLAG_COMPRESSED) != 0) {
+            if (compressor == null) {
+                mProtocolError = new IOException("Compressed frame without negotiation");
+                traceProtocolError(type, payload);
+                return;
+            }
+            try {
+                payload = compressor.inflate(payload);
+            } catch (IOException e) {
+                mProtocolError = e;
+                traceProtocolError(type, payload);
+                return;
+            }
+            type &= FrameCodec.TYPE_MASK;
+        }
+        ChatMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onFrameIn(FrameCodec.HEADER_SIZE + payload.length());
+        }
+        Heartbeat heartbeat = mHeartbeat;
+        if (heartbeat != null) {
+            heartbeat.onHeard();
+        }
+        if (type == FrameCodec.TYPE_PING) {
+            sendControlFrame(Heartbeat.pong(payload)); // 不管自己有没有开心跳都要回
+            if (mCreditWindow > 0) {
+                grant(mGranted.get(), 0); // 万一之前的额度帧没发出去，借心跳再发一次
+            }
+            if (mResumeState == RESUME_DONE) {
+                sendControlFrame(FrameCodec.encodeLong(FrameCodec.TYPE_ACK, mSession.getReceived())); // 确认也一样
+            }
+            return;
+        }
+        if (type == FrameCodec.TYPE_CREDIT) {
+            if (payload.length() != 8) {
+                mProtocolError = new IOException("Bad credit frame");
+                traceProtocolError(type, payload);
+                return;
+            }
+            long limit = FrameCodec.readLong(payload);
+            mFrameWriter.setCreditLimit(limit);
+            if (tracer != null) {
+                tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_CREDIT, limit, mFrameWriter.getDataFramesSent());
+            }
+            return;
+        }
+        if (type == FrameCodec.TYPE_RESUME || type == FrameCodec.TYPE_ACK) {
+            if (payload.length() != (type == FrameCodec.TYPE_RESUME ? 16 : 8)) {
+                mProtocolError = new IOException("Bad session frame");
+                traceProtocolError(type, payload);
+                return;
+            }
+            if (type == FrameCodec.TYPE_RESUME) {
+                onResume(FrameCodec.readLong(payload, 0), FrameCodec.readLong(payload, 8));
+            } else if (mResumeState == RESUME_DONE) {
+                mSession.onAck(FrameCodec.readLong(payload));
+            }
+            return;
+        }
+        if (type == FrameCodec.TYPE_TEXT) {
+            mDataReceived++;
+            if (mResumeState == RESUME_DONE) {
+                long ack = mSession.onReceived();
+                if (ack >= 0) {
+                    sendControlFrame(FrameCodec.encodeLong(FrameCodec.TYPE_ACK, ack));
+                }
+            }
+        }
+        if (type == FrameCodec.TYPE_PONG) {
+            long rtt = heartbeat != null ? heartbeat.onPong(payload) : -1;
+            if (rtt >= 0) {
+                if (metrics != null) {
+                    metrics.onRtt(rtt);
+                }
+                if (tracer != null) {
+                    tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_RTT, rtt / 1000, heartbeat.getRtt().getSmoothedMicros());
+                }
+            }
+            return;
+        }
+        mCallback.onFrameReceived(this, type, payload);
+    }
+
+    // The peer's RESUME: drop the buffered frames it already has, then let text frames go
+    private void onResume(long peerReceived, long peerDropped) {
+        if (mResumeState != RESUME_WAITING) {
+            return; // no session on this side, or a second RESUME
+        }
+        Session session = mSession;
+        int skip = session.resume(this, peerReceived, peerDropped, mReplayQueued);
+        if (skip < 0) {
+            endResume(); // replaced by a newer connection
+            return;
+        }
+        // Before the hold ends: the writer may send the first text frame right away, and it must be numbered
+        mResumeState = RESUME_DONE;
+        if (!mFrameWriter.releaseHold(skip)) {
+            endResume(); // the hold timed out and frames already went out unnumbered
+            return;
+        }
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_RESUME, skip, mReplayQueued - skip);
+        }
+    }
+
+    private void endResume() {
+        mResumeState = RESUME_LEGACY;
+        mSession.detach(this);
+        mFrameWriter.releaseHold(0);
+    }
+
+    /**
+     * Queue a heartbeat frame if there is room; never blocks, whatever the overflow policy.
+     */
+    void sendControlFrame(byte[] frame) {
+        mFrameWriter.offer(frame);
+    }
+
+    /**
+     * Called by the {@link Heartbeat} thread: the peer has been silent for {@code missed} beats.
+     * Closing the transport makes the read loop fail and report the loss as usual.
+     */
+    void onHeartbeatTimeout(int missed) {
+        mHeartbeatTimeout = new IOException("No answer from the peer for " + missed + " heartbeats");
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_ERROR, Tracer.EVENT_HEARTBEAT_LOST, missed, 0);
+        }
+        closeTransport();
+    }
+
+    private void traceProtocolError(int type, ByteSlice payload) {
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_ERROR, Tracer.EVENT_PROTOCOL_ERROR, type, payload.length());
+        }
+    }
+
+    /**
+     * Queue a text message. Never blocks on I/O.
+     *
+     * @return true if the message was queued
+     */
+    public boolean write(byte[] buffer) {
+        return writeFrame(FrameCodec.encode(FrameCodec.TYPE_TEXT, buffer));
+    }
+
+    /**
+     * Queue the message {@code encoder} just finished ({@link MessageEncoder#end()}) as a
+     * {@link FrameCodec#TYPE_MESSAGE} frame. Never blocks on I/O.
+     *
+     * @return true if the message was queued
+     */
+    public boolean write(MessageEncoder encoder) {
+        return writeFrame(encoder.toFrame());
+    }
+
+    /**
+     * Queue an already encoded frame.
+     */
+    public boolean writeFrame(byte[] frame) {
+        if (mFrameWriter.enqueue(frame)) {
+            return true;
+        }
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_QUEUE_FULL, mFrameWriter.queueDepth(), 0);
+        }
+        return false;
+    }
+
+    @Override
+    public void onFramesWritten(List<byte[]> frames) {
+        ChatMetrics metrics = mMetrics;
+        Tracer tracer = mTracer;
+        if (metrics != null || tracer != null) {
+            int bytes = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                int length = frames.get(i).length;
+                bytes += length;
+                if (metrics != null) {
+                    metrics.onFrameOut(length);
+                }
+            }
+            if (tracer != null) {
+                tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_FRAMES_OUT, frames.size(), bytes);
+            }
+        }
+        Session session = mSession;
+        if (session != null && mResumeState == RESUME_DONE) {
+            // Number the text frames; replays were shown when they went out the first time
+            mFresh.clear();
+            session.onWritten(this, frames, mFresh);
+            frames = mFresh;
+        }
+        mCallback.onFramesWritten(this, frames);
+    }
+
+    @Override
+    public void onWriteFailed(IOException e) {
+        e.printStackTrace();
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.trace(Tracer.LEVEL_ERROR, Tracer.EVENT_WRITE_FAILED, 0, 0);
+        }
+        // 关闭连接，让 run() 里的 read() 抛出异常，按连接中断统一处理
+        closeTransport();
+    }
+
+    /**
+     * Close the connection without reporting it as lost.
+     */
+    public void cancel() {
+        if (mClosed.compareAndSet(false, true)) {
+            mFrameWriter.close();
+            Heartbeat heartbeat = mHeartbeat;
+            if (heartbeat != null) {
+                heartbeat.close();
+            }
+            stopReader();
+            closeTransport();
+            Tracer tracer = mTracer;
+            if (tracer != null) {
+                tracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CANCELLED, 0, 0);
+            }
+        }
+    }
+
+    private void closeTransport() {
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
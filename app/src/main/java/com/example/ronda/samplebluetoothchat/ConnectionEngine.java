@@ -0,0 +1,382 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small fixed set of threads that drives every connection, instead of a reading thread, a
+ * {@link FrameWriter} thread and a {@link Heartbeat} thread per link.
+ * <p>
+ * RFCOMM sockets only have blocking streams (no selector), so the engine works by readiness
+ * polling: every {@link #getPollMillis()} one sweep asks each registered {@link Link} whether it
+ * has bytes to read ({@code InputStream.available()}) and whether a heartbeat is due, and a link
+ * with data gets its read {@link Task} scheduled, which only reads what is already there. All of
+ * that runs on {@code threads} loop threads, so the number of threads, and the number of wake-ups
+ * while links are idle, stays the same however many links there are; with no link registered
+ * (nothing connected, the app in the background) there are no sweeps at all. The price is
+ * latency: a message arriving on an idle link waits for the next sweep (half a poll interval on
+ * average); a busy link is read again right away, and every millisecond for a few more after it
+ * went quiet.
+ * <p>
+ * Socket writes block while the peer's receive buffer is full, so the write tasks (scheduled when
+ * a frame is queued) run on a separate fixed pool of {@code writerThreads}, which runs nothing
+ * else. A slow peer therefore holds up at most one writer and never the reads of the other links;
+ * give the engine a writer per link that may stall at the same time, writes beyond that wait their
+ * turn. Everything else that blocks, {@link TransportServer#accept()}, {@link Transport#connect()},
+ * handling a lost link and the reads of links without a heartbeat, goes to
+ * {@link #executeBlocking(Runnable)}: threads made on demand and dropped after a minute idle, so
+ * a listening socket or a hanging connect() never takes a thread from the writers or from each other.
+ * <p>
+ * The loop and writer threads are created once, when the engine is, and only wait while there is
+ * nothing to do. All threads are daemons. {@link #shutdown()} stops them; an engine is meant to
+ * live as long as the app and can be shared by several services.
+ * 一个连接原来要 3 个线程（读、写、心跳），连接一多线程数和上下文切换跟着涨；现在所有连接共用几个线程
+ */
+public class ConnectionEngine {
+
+    public static final int  DEFAULT_THREADS          = 2;
+    public static final int  DEFAULT_WRITER_THREADS   = ConnectionRegistry.DEFAULT_MAX_PEERS; // one stalled write per peer
+    public static final long DEFAULT_POLL_MILLIS      = 8; // half a display frame
+
+    /**
+     * A connection that wants to be polled.
+     */
+    public interface Link {
+        /**
+         * Called on a loop thread once per sweep. Must not block: check for readable bytes and
+         * schedule work, don't do it here.
+         */
+        void poll(long nowNanos);
+    }
+
+    /**
+     * A piece of work of one connection that runs again and again on the engine's threads, but
+     * never on two of them at the same time. {@link #schedule()} runs it as soon as a thread is free
+     * (or once more right after, if it is running); what {@link #step()} returns says when it wants
+     * to run next.
+     */
+    public abstract static class Task implements Runnable {
+
+        /**
+         * Returned by {@link #step()}: don't run again until {@link #schedule()}.
+         */
+        public static final long IDLE = -1;
+
+        private static final int STATE_IDLE    = 0;
+        private static final int STATE_QUEUED  = 1;
+        private static final int STATE_RUNNING = 2;
+        private static final int STATE_AGAIN   = 3; // schedule() while running: run once more
+
+        private final ConnectionEngine mEngine;
+        private final Executor         mExecutor; // loop or writer pool
+        private final AtomicInteger    mState = new AtomicInteger(STATE_IDLE);
+        private volatile boolean       mCancelled;
+        private volatile boolean       mInStep; // see awaitStopped()
+
+        private final Runnable mWake = new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        };
+
+        /**
+         * A task that never blocks, run on the loop threads.
+         */
+        protected Task(ConnectionEngine engine) {
+            this(engine, false);
+        }
+
+        /**
+         * @param blocking run on the writer pool, because {@link #step()} may block (a socket write)
+         */
+        protected Task(ConnectionEngine engine, boolean blocking) {
+            mEngine = engine;
+            mExecutor = blocking ? engine.mWriters : engine.mLoop;
+        }
+
+        /**
+         * Do the work there is, without blocking for long.
+         *
+         * @return milliseconds until the next step, 0 to run again once the other tasks waiting
+         * had their turn, or {@link #IDLE}
+         */
+        protected abstract long step();
+
+        /**
+         * Run the task as soon as possible. Any thread; cheap if it is already scheduled.
+         */
+        public void schedule() {
+            while (!mCancelled) {
+                int state = mState.get();
+                if (state == STATE_QUEUED || state == STATE_AGAIN) {
+                    return;
+                }
+                int next = state == STATE_IDLE ? STATE_QUEUED : STATE_AGAIN;
+                if (mState.compareAndSet(state, next)) {
+                    if (next == STATE_QUEUED) {
+                        mExecutor.execute(this);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Run the task in {@code millis} (or earlier, if something else schedules it).
+         */
+        public void scheduleIn(long millis) {
+            if (millis <= 0) {
+                schedule();
+            } else if (!mCancelled) {
+                mEngine.mLoop.schedule(mWake, millis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * True while the task is neither queued nor running.
+         */
+        public boolean isIdle() {
+            return mState.get() == STATE_IDLE;
+        }
+
+        /**
+         * Never run the task again. A step already running finishes, see {@link #awaitStopped(long)}.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * After {@link #cancel()}: wait up to {@code timeoutMillis} for a step that is running to finish.
+         *
+         * @return true if no step is running (and none ever will again)
+         */
+        public boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            synchronized (this) {
+                while (mInStep) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public final void run() {
+            mState.set(STATE_RUNNING);
+            long next = IDLE;
+            // mInStep before looking at mCancelled, cancel() the other way round: awaitStopped() can't miss a step
+            mInStep = true;
+            if (!mCancelled) {
+                try {
+                    next = step();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // 不让一个连接的 bug 卡住线程池，这个任务等下一次 schedule()
+                } finally {
+                    mInStep = false;
+                }
+            } else {
+                mInStep = false;
+            }
+            if (mCancelled) {
+                synchronized (this) {
+                    notifyAll();
+                }
+                return;
+            }
+            mEngine.mSteps.incrementAndGet();
+            if (mState.compareAndSet(STATE_RUNNING, STATE_IDLE)) {
+                if (next == 0) {
+                    schedule();
+                } else if (next > 0) {
+                    scheduleIn(next);
+                }
+            } else {
+                // schedule() was called while running: there may be new work
+                mState.set(STATE_QUEUED);
+                mExecutor.execute(this);
+            }
+        }
+    }
+
+    private final ScheduledThreadPoolExecutor mLoop;
+    private final ThreadPoolExecutor          mWriters;
+    private final ThreadPoolExecutor          mBlocking; // on demand
+    private final long                        mPollMillis;
+    private final List<Link>                  mLinks   = new CopyOnWriteArrayList<>(); // 只在连上、断开时改
+    private final AtomicInteger               mThreads = new AtomicInteger();
+    private final AtomicLong                  mSteps   = new AtomicLong();
+    private final AtomicLong                  mSweeps  = new AtomicLong();
+    private ScheduledFuture<?>                mSweep;  // while mLinks is not empty, guarded by mLinks
+
+    private final Runnable mSweepTask = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    public ConnectionEngine() {
+        this(DEFAULT_THREADS, DEFAULT_WRITER_THREADS, DEFAULT_POLL_MILLIS);
+    }
+
+    /**
+     * @param threads       loop threads, for reading and heartbeats of all links
+     * @param writerThreads threads for socket writes
+     * @param pollMillis    time between two sweeps over the idle links
+     */
+    public ConnectionEngine(int threads, int writerThreads, long pollMillis) {
+        if (threads < 1 || writerThreads < 1 || pollMillis < 1) {
+            throw new IllegalArgumentException("Bad engine: " + threads + " threads, " + writerThreads
+                    + " writer threads, poll every " + pollMillis + " ms");
+        }
+        mPollMillis = pollMillis;
+        mLoop = new ScheduledThreadPoolExecutor(threads, new EngineThreadFactory("ConnectionEngine-"));
+        mWriters = new ThreadPoolExecutor(writerThreads, writerThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new EngineThreadFactory("ConnectionEngine-writer-"));
+        // 不排队：accept() 会一直占着一个线程，排在它后面的 connect() 就永远轮不到了
+        mBlocking = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new EngineThreadFactory("ConnectionEngine-blocking-"));
+        mLoop.prestartAllCoreThreads();
+        mWriters.prestartAllCoreThreads();
+    }
+
+    private class EngineThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+
+        EngineThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + mThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        for (Link link : mLinks) {
+            try {
+                link.poll(now);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // 一个连接出错不能让整个轮询停下来
+            }
+        }
+        mSweeps.incrementAndGet();
+    }
+
+    /**
+     * Poll {@code link} from the next sweep on. The first link starts the sweeps.
+     */
+    public void register(Link link) {
+        synchronized (mLinks) {
+            mLinks.add(link);
+            if (mSweep == null && !mLoop.isShutdown()) {
+                mSweep = mLoop.scheduleWithFixedDelay(mSweepTask, mPollMillis, mPollMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stop polling {@code link}. With the last one gone the sweeps stop until the next {@link #register(Link)}.
+     */
+    public void unregister(Link link) {
+        synchronized (mLinks) {
+            mLinks.remove(link);
+            if (mLinks.isEmpty() && mSweep != null) {
+                mSweep.cancel(false); // 没有连接就不要每 8ms 唤醒一次 CPU
+                mSweep = null;
+            }
+        }
+    }
+
+    /**
+     * Run {@code task} on a loop thread. It must not block.
+     */
+    public void execute(Runnable task) {
+        mLoop.execute(task);
+    }
+
+    /**
+     * Run {@code task} on a loop thread in {@code millis}.
+     */
+    public void schedule(Runnable task, long millis) {
+        mLoop.schedule(task, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run {@code task}, which may block for long (accept(), connect()), on a thread of its own:
+     * one is made if none is idle.
+     */
+    public void executeBlocking(Runnable task) {
+        mBlocking.execute(task);
+    }
+
+    /**
+     * {@link #executeBlocking(Runnable)} as an {@link Executor}, e.g. for {@link ConnectRace}.
+     */
+    public Executor getBlockingExecutor() {
+        return mBlocking;
+    }
+
+    /**
+     * Stop all threads. Connections still on the engine are not closed, but nothing drives them any more.
+     */
+    public void shutdown() {
+        mLoop.shutdownNow();
+        mWriters.shutdownNow();
+        mBlocking.shutdownNow();
+    }
+
+    public long getPollMillis() {
+        return mPollMillis;
+    }
+
+    /**
+     * Number of threads the engine ever created: the loop and writer threads, plus one for every
+     * time a blocking task found no idle thread.
+     */
+    public int getThreadCount() {
+        return mThreads.get();
+    }
+
+    /**
+     * Number of links currently polled.
+     */
+    public int getLinkCount() {
+        return mLinks.size();
+    }
+
+    /**
+     * Number of {@link Task#step()}s run so far, all links.
+     */
+    public long getSteps() {
+        return mSteps.get();
+    }
+
+    public long getSweeps() {
+        return mSweeps.get();
+    }
+}
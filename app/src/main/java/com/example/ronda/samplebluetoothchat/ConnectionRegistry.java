@@ -0,0 +1,221 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The peers of a {@link BluetoothChatService}, keyed by remote address, each with its own state
+ * ({@link #STATE_CONNECTING} or {@link #STATE_CONNECTED}, same values as the service's states).
+ * <p>
+ * At most {@code maxPeers} connections are kept; a Bluetooth piconet has one master and up to
+ * seven active slaves, so that is the default. Changes are synchronized, while
+ * {@link #connections()} returns an immutable snapshot so sending to every peer takes no lock.
+ */
+public class ConnectionRegistry {
+
+    public static final int DEFAULT_MAX_PEERS = 7; // 一个 piconet 最多 7 个活动的从设备
+
+    // Per-peer states, same values as BluetoothChatService.STATE_*
+    public static final int STATE_NONE       = 0;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED  = 3;
+
+    /**
+     * One remote device we are connecting or connected to.
+     */
+    public static final class Peer {
+        private final String    mAddress;
+        private int             mState;
+        private ConnectedThread mConnection;
+        private long            mConnectedAtMillis;
+
+        Peer(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * The connection, or null while connecting.
+         */
+        public ConnectedThread getConnection() {
+            return mConnection;
+        }
+
+        public long getConnectedAtMillis() {
+            return mConnectedAtMillis;
+        }
+    }
+
+    private static final ConnectedThread[] NO_CONNECTIONS = new ConnectedThread[0];
+
+    private final int               mMaxPeers;
+    private final Map<String, Peer> mPeers = new LinkedHashMap<>();
+    private int                     mReserved; // slots of connection attempts whose peer is not known yet, see reserve()
+
+    private volatile ConnectedThread[] mConnections = NO_CONNECTIONS; // rebuilt on every change
+
+    public ConnectionRegistry() {
+        this(DEFAULT_MAX_PEERS);
+    }
+
+    public ConnectionRegistry(int maxPeers) {
+        mMaxPeers = maxPeers;
+    }
+
+    public int getMaxPeers() {
+        return mMaxPeers;
+    }
+
+    /**
+     * True if a connection to {@code address} could be added: the address already has a slot
+     * (connecting, or connected and the new connection replaces the old), or there is a free one.
+     * Connects in flight hold their slots, so several of them can't push past {@link #getMaxPeers()}.
+     */
+    public synchronized boolean hasRoomFor(String address) {
+        return mPeers.containsKey(address) || mPeers.size() + mReserved < mMaxPeers;
+    }
+
+    /**
+     * Hold a slot for a connection attempt that does not know its peer yet (connectAny()). Give it
+     * back with {@link #release()} before the connection is added, or when the attempt failed.
+     *
+     * @return false if there is no free slot
+     */
+    public synchronized boolean reserve() {
+        if (mPeers.size() + mReserved >= mMaxPeers) {
+            return false;
+        }
+        mReserved++;
+        return true;
+    }
+
+    public synchronized void release() {
+        if (mReserved > 0) {
+            mReserved--;
+        }
+    }
+
+    /**
+     * Note that we are connecting to {@code address}. Does nothing if it is already connected.
+     */
+    public synchronized void setConnecting(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            mPeers.put(address, peer);
+        }
+        if (peer.mConnection == null) {
+            peer.mState = STATE_CONNECTING;
+        }
+    }
+
+    /**
+     * A connection attempt ended without a connection.
+     */
+    public synchronized void connectFailed(String address) {
+        Peer peer = mPeers.get(address);
+        if (peer != null && peer.mConnection == null) {
+            mPeers.remove(address);
+        }
+    }
+
+    /**
+     * Register a new connection under its remote address.
+     *
+     * @return the connection it replaces (the caller cancels it), or null
+     */
+    public synchronized ConnectedThread put(ConnectedThread connection) {
+        String address = connection.getRemoteAddress();
+        Peer peer = mPeers.get(address);
+        if (peer == null) {
+            peer = new Peer(address);
+            mPeers.put(address, peer);
+        }
+        ConnectedThread previous = peer.mConnection;
+        peer.mConnection = connection;
+        peer.mState = STATE_CONNECTED;
+        peer.mConnectedAtMillis = System.currentTimeMillis();
+        rebuildSnapshot();
+        return previous;
+    }
+
+    /**
+     * Remove {@code connection} if it is still the one registered for its address.
+     *
+     * @return false if it had already been replaced or removed
+     */
+    public synchronized boolean remove(ConnectedThread connection) {
+        Peer peer = mPeers.get(connection.getRemoteAddress());
+        if (peer == null || peer.mConnection != connection) {
+            return false;
+        }
+        mPeers.remove(peer.mAddress);
+        rebuildSnapshot();
+        return true;
+    }
+
+    /**
+     * Remove everything and return the connections that were registered (the caller cancels them).
+     */
+    public synchronized ConnectedThread[] clear() {
+        ConnectedThread[] connections = mConnections;
+        mPeers.clear();
+        mConnections = NO_CONNECTIONS;
+        return connections;
+    }
+
+    public synchronized ConnectedThread get(String address) {
+        Peer peer = mPeers.get(address);
+        return peer != null ? peer.mConnection : null;
+    }
+
+    /**
+     * State of {@code address}: {@link #STATE_CONNECTING},
+     * {@link #STATE_CONNECTED} or {@link #STATE_NONE}.
+     */
+    public synchronized int getState(String address) {
+        Peer peer = mPeers.get(address);
+        return peer != null ? peer.mState : STATE_NONE;
+    }
+
+    /**
+     * All peers, connecting or connected, in the order they were first seen.
+     */
+    public synchronized List<Peer> getPeers() {
+        return new ArrayList<>(mPeers.values());
+    }
+
+    /**
+     * The current connections. The array is never modified, so it can be iterated without locking.
+     */
+    public ConnectedThread[] connections() {
+        return mConnections;
+    }
+
+    public int connectedCount() {
+        return mConnections.length;
+    }
+
+    public synchronized int connectingCount() {
+        return mPeers.size() - mConnections.length + mReserved;
+    }
+
+    private void rebuildSnapshot() {
+        List<ConnectedThread> connections = new ArrayList<>(mPeers.size());
+        for (Peer peer : mPeers.values()) {
+            if (peer.mConnection != null) {
+                connections.add(peer.mConnection);
+            }
+        }
+        mConnections = connections.toArray(new ConnectedThread[connections.size()]);
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The overall connection state of {@link BluetoothChatService}, changed with compare-and-set.
+ * <p>
+ * Reading the state is a single volatile read, so the accept loop, the connection threads and the
+ * UI can check it as often as they like without taking a lock. Every change goes through
+ * {@link #moveTo(int)} or {@link #compareAndSet(int, int)}, which only allow the transitions listed
+ * below and call the {@link Listener} exactly once for every transition that actually happened.
+ * <pre>
+ * NONE       -> LISTEN, CONNECTING
+ * LISTEN     -> NONE, CONNECTING, CONNECTED
+ * CONNECTING -> NONE, LISTEN, CONNECTED
+ * CONNECTED  -> NONE, LISTEN, CONNECTING
+ * </pre>
+ * NONE -> CONNECTED is not allowed: a stopped service does not take connections.
+ * 状态值和 {@link BluetoothChatService#STATE_NONE} 等常量一样
+ */
+public final class ConnectionStateMachine {
+
+    public static final int STATE_NONE       = 0;
+    public static final int STATE_LISTEN     = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED  = 3;
+
+    // LEGAL[from][to]
+    private static final boolean[][] LEGAL = {
+            /* NONE       */ {false, true, true, false},
+            /* LISTEN     */ {true, false, true, true},
+            /* CONNECTING */ {true, true, false, true},
+            /* CONNECTED  */ {true, true, true, false},
+    };
+
+    /**
+     * Called on the thread that made the transition, after the new state is visible. Transitions
+     * made by different threads may be reported in a different order than they happened, so
+     * listeners should act on {@code to} rather than keep their own copy of the state.
+     */
+    public interface Listener {
+        void onStateChanged(int from, int to);
+    }
+
+    private final AtomicInteger mState;
+    private final Listener      mListener;
+
+    public ConnectionStateMachine(int initialState, Listener listener) {
+        checkState(initialState);
+        mState = new AtomicInteger(initialState);
+        mListener = listener;
+    }
+
+    /**
+     * The current state. Never blocks.
+     */
+    public int get() {
+        return mState.get();
+    }
+
+    public static boolean isLegal(int from, int to) {
+        return LEGAL[from][to];
+    }
+
+    /**
+     * Move to {@code expect -> update} only if the state still is {@code expect}.
+     *
+     * @return false if the state was something else, nothing changed
+     * @throws IllegalStateException if the transition is not allowed
+     */
+    public boolean compareAndSet(int expect, int update) {
+        checkState(expect);
+        checkState(update);
+        if (!LEGAL[expect][update]) {
+            throw new IllegalStateException("Illegal transition " + name(expect) + " -> " + name(update));
+        }
+        if (!mState.compareAndSet(expect, update)) {
+            return false;
+        }
+        if (mListener != null) {
+            mListener.onStateChanged(expect, update);
+        }
+        return true;
+    }
+
+    /**
+     * Move to {@code update} from whatever the state is. Nothing happens (and no listener is
+     * called) if the state already is {@code update}.
+     *
+     * @return the previous state
+     * @throws IllegalStateException if the transition from the current state is not allowed
+     */
+    public int moveTo(int update) {
+        checkState(update);
+        while (true) {
+            int current = mState.get();
+            if (current == update) {
+                return current;
+            }
+            if (compareAndSet(current, update)) {
+                return current;
+            }
+            // 被别的线程抢先改了，按新的状态重来
+        }
+    }
+
+    /**
+     * Same as {@link #moveTo(int)}, but an illegal transition leaves the state alone instead of throwing.
+     *
+     * @return true if the state is {@code update} afterwards
+     */
+    public boolean tryMoveTo(int update) {
+        checkState(update);
+        while (true) {
+            int current = mState.get();
+            if (current == update) {
+                return true;
+            }
+            if (!LEGAL[current][update]) {
+                return false;
+            }
+            if (compareAndSet(current, update)) {
+                return true;
+            }
+        }
+    }
+
+    public static String name(int state) {
+        switch (state) {
+            case STATE_NONE:
+                return "NONE";
+            case STATE_LISTEN:
+                return "LISTEN";
+            case STATE_CONNECTING:
+                return "CONNECTING";
+            case STATE_CONNECTED:
+                return "CONNECTED";
+            default:
+                return String.valueOf(state);
+        }
+    }
+
+    private static void checkState(int state) {
+        if (state < STATE_NONE || state > STATE_CONNECTED) {
+            throw new IllegalArgumentException("Unknown state " + state);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The devices seen by discovery, one entry per MAC address, kept on disk between runs.
+ * <p>
+ * {@link DeviceListActivity} shows the cached devices as soon as it opens and merges discovery
+ * results into them as they come in, instead of waiting ~12 s for a full scan and listing every
+ * repeated {@code ACTION_FOUND} again. Entries not seen (or connected) for {@code ttlMillis} are
+ * evicted, and so are the oldest ones beyond {@link #MAX_ENTRIES}.
+ * <p>
+ * Hits and misses count the devices found by discovery that were (or were not) already cached,
+ * i.e. how much of the scan result the cache had shown up front. Repeated sightings of the same
+ * device only count once.
+ * <p>
+ * Meant to be used from one thread (the UI thread).
+ */
+public class DeviceCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int  MAX_ENTRIES        = 256;
+
+    // Received signal strength not known
+    public static final int NO_RSSI = Short.MIN_VALUE;
+
+    private static final int FILE_MAGIC   = 0x44564331; // "DVC1"
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * One device.
+     */
+    public static final class Entry {
+        public final String address;
+        String              name;
+        long                lastSeenMillis;
+        int                 rssi = NO_RSSI;
+        int                 connectCount;
+        long                lastConnectMillis;
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLastSeenMillis() {
+            return lastSeenMillis;
+        }
+
+        /**
+         * Signal strength of the last sighting in dBm, or {@link #NO_RSSI}.
+         */
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * How many times the user picked this device to connect to.
+         */
+        public int getConnectCount() {
+            return connectCount;
+        }
+
+        public long getLastConnectMillis() {
+            return lastConnectMillis;
+        }
+
+        long lastUsedMillis() {
+            return Math.max(lastSeenMillis, lastConnectMillis);
+        }
+    }
+
+    // Devices connected to most recently first, then the most recently seen
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.lastConnectMillis != b.lastConnectMillis) {
+                return a.lastConnectMillis > b.lastConnectMillis ? -1 : 1;
+            }
+            if (a.lastSeenMillis != b.lastSeenMillis) {
+                return a.lastSeenMillis > b.lastSeenMillis ? -1 : 1;
+            }
+            return a.address.compareTo(b.address);
+        }
+    };
+
+    private final File                mFile;
+    private final long                mTtlMillis;
+    private final Map<String, Entry>  mEntries = new HashMap<>();
+
+    private final Set<String> mCounted = new HashSet<>(); // addresses already counted as hit or miss
+    private int               mHits;
+    private int               mMisses;
+
+    public DeviceCache(File file) {
+        this(file, DEFAULT_TTL_MILLIS);
+    }
+
+    public DeviceCache(File file, long ttlMillis) {
+        mFile = file;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Read the cache file, dropping expired entries. A missing file is an empty cache.
+     *
+     * @return the number of devices loaded
+     * @throws IOException if the file can't be read or is not a cache file
+     */
+    public int load(long nowMillis) throws IOException {
+        mEntries.clear();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return 0; // 第一次运行
+        }
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Not a device cache: " + mFile);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF());
+                entry.name = in.readBoolean() ? in.readUTF() : null;
+                entry.lastSeenMillis = in.readLong();
+                entry.rssi = in.readShort();
+                entry.connectCount = in.readInt();
+                entry.lastConnectMillis = in.readLong();
+                mEntries.put(entry.address, entry);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated device cache: " + mFile, e);
+        } finally {
+            in.close();
+        }
+        evictExpired(nowMillis);
+        return mEntries.size();
+    }
+
+    /**
+     * Write the cache to its file. The old file is only replaced once the new one is complete.
+     */
+    public void save(long nowMillis) throws IOException {
+        evictExpired(nowMillis);
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                out.writeUTF(entry.address);
+                out.writeBoolean(entry.name != null);
+                if (entry.name != null) {
+                    out.writeUTF(entry.name);
+                }
+                out.writeLong(entry.lastSeenMillis);
+                out.writeShort(entry.rssi);
+                out.writeInt(entry.connectCount);
+                out.writeLong(entry.lastConnectMillis);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Can't replace " + mFile);
+        }
+    }
+
+    /**
+     * Merge a discovery result. A repeated sighting updates the entry (a null name keeps the known one).
+     *
+     * @return true if the device was not cached yet
+     */
+    public boolean onSeen(String address, String name, int rssi, long nowMillis) {
+        Entry entry = mEntries.get(address);
+        boolean added = entry == null;
+        if (added) {
+            entry = new Entry(address);
+            mEntries.put(address, entry);
+        }
+        if (mCounted.add(address)) {
+            if (added) {
+                mMisses++;
+            } else {
+                mHits++;
+            }
+        }
+        if (name != null) {
+            entry.name = name;
+        }
+        if (rssi != NO_RSSI) {
+            entry.rssi = rssi;
+        }
+        entry.lastSeenMillis = nowMillis;
+        if (added && mEntries.size() > MAX_ENTRIES) {
+            evictOldest();
+        }
+        return added;
+    }
+
+    /**
+     * The user picked {@code address} to connect to.
+     */
+    public void onConnect(String address, long nowMillis) {
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            mEntries.put(address, entry);
+        }
+        entry.connectCount++;
+        entry.lastConnectMillis = nowMillis;
+    }
+
+    public Entry get(String address) {
+        return mEntries.get(address);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * All cached devices, the ones connected to most recently first, then by last sighting.
+     */
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, ORDER);
+        return entries;
+    }
+
+    /**
+     * Drop the devices neither seen nor connected to within the TTL.
+     *
+     * @return the number of devices dropped
+     */
+    public int evictExpired(long nowMillis) {
+        int evicted = 0;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            if (nowMillis - it.next().lastUsedMillis() > mTtlMillis) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private void evictOldest() {
+        Entry oldest = null;
+        for (Entry entry : mEntries.values()) {
+            if (oldest == null || entry.lastUsedMillis() < oldest.lastUsedMillis()) {
+                oldest = entry;
+            }
+        }
+        mEntries.remove(oldest.address);
+    }
+
+    /**
+     * Discovery results that were already cached.
+     */
+    public int getHits() {
+        return mHits;
+    }
+
+    /**
+     * Discovery results that were new.
+     */
+    public int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Share of the discovery results that were already cached, 0 to 1 (0 before the first result).
+     */
+    public float getHitRate() {
+        int total = mHits + mMisses;
+        return total > 0 ? (float) mHits / total : 0;
+    }
+}
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.Window;
 import android.widget.AdapterView;
@@ -17,15 +18,23 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import com.socks.library.KLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
  * 1. 这里继承的是 Activity，而非AppCompatActivity.原因就是： AppCompatActivity 中弃用了 setProgressBarIndeterminateVisibility() 和 setSupportProgressBarIndeterminateVisibility()
  * 2. 在 Manifest 中，这个类的主题是：android:theme="@android:style/Theme.Holo.Light.Dialog"，表示一个对话框
  * 3. 本类(DeviceListActivity) 和 MainActivity 的通信是通过 startActivityForResult() 完成的。在 ListView 的点击事件中把蓝牙的Mac地址封装进Intent中，通过 setResult() 发送给 MainActivity.
- * -- 而 MainActivity 和 BluetoothChatService 的通信是通过 Handler 完成的 （在 MainActivity 中创建 handler， 然后通过构造器传给 BluetoothChatService）
+ * -- 而 MainActivity 和 BluetoothChatService 的通信是通过 BluetoothChatService.Listener 完成的（通过构造器传给 BluetoothChatService）
  * 4. 本类的 UI 界面中是有两个 ListView 的，上面的用于显示已匹配过的设备，下面的用于显示新发现的设备。
  * -- 这里是有一个小bug的，若没有已匹配过设备，或者没有发现新设备的话，也会给 ListView 添加一个提示的 ItemView，但是这个 ItemView 是不能点击的，否则会闪退。因为不能提取 Mac 地址
+ * 5. 下面的列表先显示 {@link DeviceCache} 里缓存的设备（打开就有，不用等 12 秒的搜索），搜索到的结果按 Mac 地址合并进去，同一个设备不会重复出现
  */
 public class DeviceListActivity extends Activity {
 
@@ -35,10 +44,19 @@ public class DeviceListActivity extends Activity {
 
     private ArrayAdapter<String> pairedDevicesArrayAdapter;
     private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private final List<String>   mNewDeviceAddresses = new ArrayList<>(); // 和 mNewDevicesArrayAdapter 一一对应，用来去重
+    private final Set<String>    mPairedAddresses    = new HashSet<>();
+
+    private DeviceCache mDeviceCache;
+    private long        mOpenedAtMillis;      // elapsedRealtime() when the screen opened
+    private long        mScanStartedAtMillis; // elapsedRealtime() when the scan started, 0 if not scanning
+    private boolean     mFirstResultReported;
+    private boolean     mFirstFoundReported;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mOpenedAtMillis = SystemClock.elapsedRealtime();
 
         // Setup the window
         requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS); // 必须要在 setContentView() 之前这样设置，才可以在ActionBar 右上角显示环形的进度条
@@ -51,6 +69,9 @@ public class DeviceListActivity extends Activity {
 
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
+        findPairedDevices();
+        showCachedDevices();
+
         registerBluetoothReceiver();
     }
 
@@ -76,8 +97,6 @@ public class DeviceListActivity extends Activity {
         mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
         newDevicesListView.setAdapter(mNewDevicesArrayAdapter);
         newDevicesListView.setOnItemClickListener(mDeviceClickListener);
-
-        findPairedDevices();
     }
 
     /**
@@ -89,6 +108,7 @@ public class DeviceListActivity extends Activity {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
             for (BluetoothDevice device : pairedDevices) {
                 pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                mPairedAddresses.add(device.getAddress());
             }
         } else {
             pairedDevicesArrayAdapter.add("No devices have been paired"); // 注意这一项若添加进去，则是不能点击的，否则会闪退。这里只是只是为了说明问题而已
@@ -96,6 +116,63 @@ public class DeviceListActivity extends Activity {
     }
 
 
+    /**
+     * 显示上次搜索到的设备（缓存在文件里），不用等这次搜索
+     */
+    private void showCachedDevices() {
+        mDeviceCache = new DeviceCache(new File(getFilesDir(), "devices.cache"));
+        try {
+            mDeviceCache.load(System.currentTimeMillis());
+        } catch (IOException e) {
+            e.printStackTrace(); // 缓存坏了就当没有缓存
+        }
+        List<DeviceCache.Entry> entries = mDeviceCache.getEntries();
+        for (DeviceCache.Entry entry : entries) {
+            showDevice(entry);
+        }
+        if (!mNewDeviceAddresses.isEmpty()) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Add the device to the list, or update its line if it is already there.
+     */
+    private void showDevice(DeviceCache.Entry entry) {
+        if (mPairedAddresses.contains(entry.address)) {
+            return; // If it's already paired, skip it, because it's been listed already
+        }
+        String name = entry.getName() != null ? entry.getName() : "Unknown";
+        if (entry.getRssi() != DeviceCache.NO_RSSI) {
+            name += "  " + entry.getRssi() + " dBm";
+        }
+        String line = name + "\n" + entry.address; // 地址必须在最后 17 个字符，点击时要取出来
+
+        int position = mNewDeviceAddresses.indexOf(entry.address);
+        if (position < 0) {
+            removeNoDevicesHint();
+            mNewDeviceAddresses.add(entry.address);
+            mNewDevicesArrayAdapter.add(line);
+            reportFirstResult();
+        } else if (!line.equals(mNewDevicesArrayAdapter.getItem(position))) {
+            mNewDevicesArrayAdapter.remove(mNewDevicesArrayAdapter.getItem(position));
+            mNewDevicesArrayAdapter.insert(line, position);
+        }
+    }
+
+    private void removeNoDevicesHint() {
+        if (mNewDeviceAddresses.isEmpty() && mNewDevicesArrayAdapter.getCount() > 0) {
+            mNewDevicesArrayAdapter.clear(); // "No devices found"
+        }
+    }
+
+    private void reportFirstResult() {
+        if (!mFirstResultReported) {
+            mFirstResultReported = true;
+            KLog.d("device list: first result after " + (SystemClock.elapsedRealtime() - mOpenedAtMillis) + " ms");
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -105,6 +182,12 @@ public class DeviceListActivity extends Activity {
         }
         // 注销广播接收器
         unregisterBluetoothReceiver();
+
+        try {
+            mDeviceCache.save(System.currentTimeMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -124,6 +207,8 @@ public class DeviceListActivity extends Activity {
         }
 
         // Request discover from BluetoothAdapter
+        mScanStartedAtMillis = SystemClock.elapsedRealtime();
+        mFirstFoundReported = false;
         mBtAdapter.startDiscovery();
     }
 
@@ -138,6 +223,7 @@ public class DeviceListActivity extends Activity {
             // Get the device MAC address, which is the last 17 chars in the View
             String info = ((TextView) view).getText().toString();
             String address = info.substring(info.length() - 17);
+            mDeviceCache.onConnect(address, System.currentTimeMillis()); // 常连的设备排在前面
 
             // Create the result Intent and include the MAC address
             Intent intent = new Intent();
@@ -176,13 +262,20 @@ public class DeviceListActivity extends Activity {
             // When discovery finds a device
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                if (!mFirstFoundReported && mScanStartedAtMillis != 0) {
+                    mFirstFoundReported = true;
+                    KLog.d("device list: first discovery result after " + (SystemClock.elapsedRealtime() - mScanStartedAtMillis) + " ms");
                 }
+                // 同一个设备可能收到好几次 ACTION_FOUND，按地址合并
+                mDeviceCache.onSeen(device.getAddress(), device.getName(), rssi, System.currentTimeMillis());
+                showDevice(mDeviceCache.get(device.getAddress()));
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle("select a device to connect");
+                mScanStartedAtMillis = 0;
+                KLog.d("device list: cache hit rate " + Math.round(mDeviceCache.getHitRate() * 100) + "% ("
+                        + mDeviceCache.getHits() + " of " + (mDeviceCache.getHits() + mDeviceCache.getMisses()) + " devices were cached)");
 
                 if (mNewDevicesArrayAdapter.getCount() == 0) {
                     mNewDevicesArrayAdapter.add("No devices found");// 注意这一项若添加进去，则是不能点击的，否则会闪退。这里只是只是为了说明问题而已
@@ -0,0 +1,123 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free queue that takes events from any number of threads (connections, the accept and
+ * connect threads) to one consumer, on whatever thread the consumer chooses.
+ * <p>
+ * The events are the nodes ({@link Node}): the queue links them together instead of wrapping
+ * them, and a {@link PooledFrame} is a node itself, so queueing a frame allocates nothing. A
+ * producer adds a node with one atomic swap of the tail and never waits for the consumer or for
+ * another producer (D. Vyukov's intrusive MPSC queue).
+ * <p>
+ * {@link #offer(Node)} returns true only for the first node after the consumer found the queue
+ * empty. That is when the producer has to wake the consumer (post to a Handler, unpark a
+ * thread...); everything offered until the consumer gets there rides along, so there is at most
+ * one wake-up per drain however fast events come in.
+ * <p>
+ * One consumer only: {@link #poll()} must not be called from two threads at the same time.
+ * 以前每个事件都是一个 Handler Message（状态、Toast 还要带 Bundle），而且只能交给主线程
+ */
+public final class EventQueue {
+
+    /**
+     * Something that can be queued. A node is in at most one queue at a time, and only once.
+     */
+    public abstract static class Node {
+        volatile Node mNext; // set by the producer that queued the node after this one
+    }
+
+    private static final class Stub extends Node {
+    }
+
+    // Clearing Node#mNext needs no barrier (nobody else looks at a node being queued or handed out)
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "mNext");
+
+    private final Node                  mStub = new Stub(); // keeps the queue from ever being empty of nodes
+    private final AtomicReference<Node> mTail = new AtomicReference<>(mStub); // producers
+    private Node                        mHead = mStub;                        // consumer only
+    private final AtomicLong            mOffered = new AtomicLong(); // producers
+    private final AtomicLong            mTaken   = new AtomicLong(); // consumer only, so the two never share a counter
+    private final AtomicBoolean         mSignalled = new AtomicBoolean();
+
+    /**
+     * Add {@code node}. Any thread, never blocks.
+     *
+     * @return true if the caller has to wake the consumer
+     */
+    public boolean offer(Node node) {
+        mOffered.incrementAndGet();
+        append(node);
+        return !mSignalled.get() && mSignalled.compareAndSet(false, true);
+    }
+
+    private void append(Node node) {
+        NEXT.lazySet(node, null);
+        Node previous = mTail.getAndSet(node);
+        // 在这一步之前 consumer 看不到这个节点（poll() 返回 null），但 offer() 接下来会叫醒它。
+        // A volatile store, not lazySet(): offer() reads mSignalled next, and poll() clears it and
+        // then reads the link. Either the consumer sees the link or this producer sees the flag
+        // cleared; with a release-only store both could miss, and the event would wait for the next offer()
+        previous.mNext = node;
+    }
+
+    /**
+     * Take the oldest node. Consumer thread only.
+     *
+     * @return null if the queue is empty; from then on the next {@link #offer(Node)} returns true
+     */
+    public Node poll() {
+        Node node = take();
+        if (node == null) {
+            mSignalled.set(false);
+            node = take(); // offered after take() looked, but before the flag was cleared: that producer did not wake us
+        }
+        if (node != null) {
+            mTaken.lazySet(mTaken.get() + 1);
+        }
+        return node;
+    }
+
+    private Node take() {
+        Node head = mHead;
+        Node next = head.mNext;
+        if (head == mStub) {
+            if (next == null) {
+                return null;
+            }
+            mHead = next;
+            head = next;
+            next = next.mNext;
+        }
+        if (next != null) {
+            mHead = next;
+            NEXT.lazySet(head, null);
+            return head;
+        }
+        if (head != mTail.get()) {
+            return null; // a producer is between getAndSet() and linking its node
+        }
+        // head is the last node: put the stub behind it so head can be handed out
+        append(mStub);
+        next = head.mNext;
+        if (next != null) {
+            mHead = next;
+            NEXT.lazySet(head, null);
+            return head;
+        }
+        return null;
+    }
+
+    /**
+     * Number of nodes offered and not yet taken.
+     */
+    public int size() {
+        long taken = mTaken.get(); // first: a node is counted as offered before it can be taken
+        return (int) Math.max(0, mOffered.get() - taken);
+    }
+}
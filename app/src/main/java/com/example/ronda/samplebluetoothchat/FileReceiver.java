@@ -0,0 +1,150 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Receives one file offered by a {@link FileSender}, on the connection's reading thread.
+ * <p>
+ * Chunks are written in order into a part file with positional FileChannel writes, so the
+ * length of the part file is always the number of bytes received and checked. That length is
+ * the resume offset after a disconnect, even after the app was restarted. The part file is renamed
+ * once the last chunk arrived.
+ */
+public class FileReceiver {
+
+    private final long        mId;
+    private final File        mTarget;
+    private final File        mPartFile;
+    private final long        mSize;
+    private final CRC32       mCrc = new CRC32();
+    private RandomAccessFile  mFile;
+    private FileChannel       mChannel;
+    private long              mExpected;    // next offset we need
+    private long              mResendAsked = -1; // offset of the last resend request, so we ask only once per gap
+    private boolean           mComplete;
+
+    /**
+     * Open (or reopen) {@code partFile}; it becomes {@code target} when complete.
+     */
+    public FileReceiver(long id, File target, File partFile, long size) throws IOException {
+        mId = id;
+        mTarget = target;
+        mPartFile = partFile;
+        mSize = size;
+        mFile = new RandomAccessFile(mPartFile, "rw");
+        mChannel = mFile.getChannel();
+        mExpected = Math.min(mChannel.size(), size);
+        mChannel.truncate(mExpected);
+        if (mExpected == size) {
+            finish();
+        }
+    }
+
+    public long getTransferId() {
+        return mId;
+    }
+
+    public File getTarget() {
+        return mTarget;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Bytes received and checked so far; where the sender has to continue.
+     */
+    public long getOffset() {
+        return mExpected;
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Answer to the sender's offer: where to start.
+     */
+    public byte[] acceptFrame() {
+        return control(FrameCodec.TYPE_FILE_ACCEPT, mExpected, false);
+    }
+
+    /**
+     * Handle a chunk frame (payload as described in {@link FileSender}).
+     *
+     * @return the frame to send back (an acknowledgement or a resend request), or null
+     */
+    public byte[] onChunk(ByteSlice payload) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(payload.array(), payload.offset(), FileSender.CHUNK_HEADER_SIZE);
+        header.getLong(); // id, already used to find this receiver
+        long offset = header.getLong();
+        int crc = header.getInt();
+        int dataOffset = payload.offset() + FileSender.CHUNK_HEADER_SIZE;
+        int length = payload.length() - FileSender.CHUNK_HEADER_SIZE;
+
+        if (mComplete || offset < mExpected) {
+            return control(FrameCodec.TYPE_FILE_ACK, mExpected, false); // 重复的块，告诉对方我们已经有了
+        }
+        mCrc.reset();
+        mCrc.update(payload.array(), dataOffset, length);
+        if (offset > mExpected || (int) mCrc.getValue() != crc || offset + length > mSize) {
+            // 中间丢了块，或者校验失败：让对方从 mExpected 开始重发，同一个缺口只要求一次
+            if (mResendAsked == mExpected) {
+                return null;
+            }
+            mResendAsked = mExpected;
+            return control(FrameCodec.TYPE_FILE_ACK, mExpected, true);
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(payload.array(), dataOffset, length);
+        while (data.hasRemaining()) {
+            mChannel.write(data, offset + data.position() - dataOffset);
+        }
+        mExpected += length;
+        mResendAsked = -1;
+        if (mExpected == mSize) {
+            finish();
+        }
+        return control(FrameCodec.TYPE_FILE_ACK, mExpected, false);
+    }
+
+    /**
+     * Close the part file without finishing; a later offer of the same file resumes from it.
+     */
+    public void close() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mFile = null;
+            mChannel = null;
+        }
+    }
+
+    private void finish() throws IOException {
+        mChannel.force(false);
+        close();
+        if (mTarget.exists() && !mTarget.delete()) {
+            throw new IOException("Cannot replace " + mTarget);
+        }
+        if (!mPartFile.renameTo(mTarget)) {
+            throw new IOException("Cannot rename " + mPartFile);
+        }
+        mComplete = true;
+    }
+
+    private byte[] control(int type, long offset, boolean resend) {
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + 17];
+        FrameCodec.writeHeader(frame, 0, type, 17);
+        ByteBuffer.wrap(frame, FrameCodec.HEADER_SIZE, 17).putLong(mId).putLong(offset).put((byte) (resend ? 1 : 0));
+        return frame;
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Sends one file in fixed-size chunks, read straight from a FileChannel into the frame.
+ * <p>
+ * At most {@code window} chunks are in flight (sent but not acknowledged). Acknowledgements are
+ * cumulative; the receiver asks for a resend from its offset when a chunk fails its CRC or is out
+ * of order, and a resend also starts when nothing was acknowledged for {@link #ACK_TIMEOUT_MILLIS}.
+ * Chunks are never kept for retransmission: the file itself is the retransmit buffer, so memory
+ * use does not depend on the file size.
+ * <p>
+ * After a disconnect the sender waits; {@link #attach(ConnectedThread)} on the new connection
+ * offers the file again and the receiver answers with the offset it already has.
+ */
+public class FileSender extends Thread {
+
+    // A chat message on the same link waits for at most one chunk (~40 ms at 100 KB/s), see FrameWriter
+    public static final int  DEFAULT_CHUNK_SIZE  = 4 * 1024;
+    public static final int  DEFAULT_WINDOW      = 32;
+    public static final long ACK_TIMEOUT_MILLIS  = 5000;
+
+    // id, offset, crc
+    static final int CHUNK_HEADER_SIZE = 8 + 8 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Called on the sender thread (or the reading thread, for acknowledgements).
+     */
+    public interface Listener {
+        void onProgress(FileSender sender, long acknowledged, long total);
+
+        void onComplete(FileSender sender);
+
+        void onFailed(FileSender sender, IOException e);
+    }
+
+    private final File     mFile;
+    private final long     mId;
+    private final long     mSize;
+    private final int      mChunkSize;
+    private final int      mWindow;
+    private final Listener mListener;
+    private final CRC32    mCrc = new CRC32();
+
+    // Guarded by "this"
+    private ConnectedThread mConnection; // null while disconnected
+    private boolean         mAccepted;   // the receiver answered the offer on mConnection
+    private long            mAcked;      // the receiver has everything before this offset
+    private long            mNext;       // next offset to send
+    private long            mLastProgressNanos;
+    private boolean         mCancelled;
+
+    private volatile long mBytesSent;
+    private volatile long mStartNanos;
+    private volatile long mEndNanos;
+
+    public FileSender(File file, long id, Listener listener) {
+        this(file, id, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW, listener);
+    }
+
+    public FileSender(File file, long id, int chunkSize, int window, Listener listener) {
+        super("FileSender");
+        mFile = file;
+        mId = id;
+        mSize = file.length();
+        mChunkSize = chunkSize;
+        mWindow = window;
+        mListener = listener;
+    }
+
+    public long getTransferId() {
+        return mId;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getAcknowledged() {
+        return mAcked;
+    }
+
+    /**
+     * Bytes put on the wire, including resends. Compare with {@link #getSize()}.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Acknowledged bytes per second from the first offer until completion (or now).
+     */
+    public long getBytesPerSecond() {
+        long start = mStartNanos;
+        long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+        long acked = getAcknowledged();
+        return start == 0 || end == start ? 0 : acked * TimeUnit.SECONDS.toNanos(1) / (end - start);
+    }
+
+    /**
+     * Send over {@code connection} from now on: the file is offered and sending resumes once the
+     * receiver says where to continue.
+     */
+    public synchronized void attach(ConnectedThread connection) {
+        mConnection = connection;
+        mAccepted = false;
+        if (mStartNanos == 0) {
+            mStartNanos = System.nanoTime();
+        }
+        connection.writeFrame(offerFrame());
+        notifyAll();
+    }
+
+    /**
+     * The connection is gone. Sending stops until the next {@link #attach(ConnectedThread)}.
+     */
+    public synchronized void detach(ConnectedThread connection) {
+        if (mConnection == connection) {
+            mConnection = null;
+            mAccepted = false;
+        }
+    }
+
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    synchronized void onAccept(long offset) {
+        mAcked = Math.min(offset, mSize);
+        mNext = mAcked;
+        mAccepted = true;
+        mLastProgressNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    void onAck(long offset, boolean resend) {
+        boolean progress;
+        synchronized (this) {
+            progress = offset > mAcked;
+            if (progress) {
+                mAcked = Math.min(offset, mSize);
+                mLastProgressNanos = System.nanoTime();
+            }
+            if (resend) {
+                mNext = mAcked; // go back and send again from what the receiver has
+            }
+            notifyAll();
+        }
+        if (progress) {
+            mListener.onProgress(this, offset, mSize);
+        }
+    }
+
+    private byte[] offerFrame() {
+        byte[] name = mFile.getName().getBytes(UTF_8);
+        byte[] payload = new byte[8 + 8 + 4 + 2 + name.length];
+        ByteBuffer.wrap(payload).putLong(mId).putLong(mSize).putInt(mChunkSize).putShort((short) name.length).put(name);
+        return FrameCodec.encode(FrameCodec.TYPE_FILE_OFFER, payload);
+    }
+
+    @Override
+    public void run() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            while (true) {
+                long offset;
+                ConnectedThread connection;
+                synchronized (this) {
+                    while (!mCancelled && mAcked < mSize && !canSend()) {
+                        waitForAck();
+                    }
+                    if (mCancelled) {
+                        throw new IOException("Transfer cancelled");
+                    }
+                    if (mAcked >= mSize) {
+                        break;
+                    }
+                    offset = mNext;
+                    connection = mConnection;
+                }
+
+                int length = (int) Math.min(mChunkSize, mSize - offset);
+                byte[] frame = readChunk(channel, offset, length);
+                if (!connection.writeFrame(frame)) {
+                    // 发送队列满了（DROP 策略），稍后再试，不要跳过这一块
+                    Thread.sleep(10);
+                    continue;
+                }
+                mBytesSent += length;
+                synchronized (this) {
+                    if (mNext == offset) { // a resend may have moved it back meanwhile
+                        mNext = offset + length;
+                    }
+                }
+            }
+            mEndNanos = System.nanoTime();
+            mListener.onComplete(this);
+        } catch (IOException e) {
+            mListener.onFailed(this, e);
+        } catch (InterruptedException e) {
+            mListener.onFailed(this, new IOException("Interrupted"));
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private boolean canSend() {
+        return mConnection != null && mAccepted && mNext < mSize && mNext - mAcked < (long) mWindow * mChunkSize;
+    }
+
+    /**
+     * Wait for an acknowledgement; start over from the acknowledged offset if none comes in time.
+     */
+    private void waitForAck() throws InterruptedException {
+        wait(ACK_TIMEOUT_MILLIS);
+        if (mAccepted && mNext > mAcked
+                && System.nanoTime() - mLastProgressNanos > TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS)) {
+            mNext = mAcked;
+            mLastProgressNanos = System.nanoTime();
+        }
+    }
+
+    private byte[] readChunk(FileChannel channel, long offset, int length) throws IOException {
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + CHUNK_HEADER_SIZE + length];
+        FrameCodec.writeHeader(frame, 0, FrameCodec.TYPE_FILE_CHUNK, CHUNK_HEADER_SIZE + length);
+        int dataOffset = FrameCodec.HEADER_SIZE + CHUNK_HEADER_SIZE;
+        ByteBuffer data = ByteBuffer.wrap(frame, dataOffset, length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, offset + data.position() - dataOffset) < 0) {
+                throw new IOException("File shrank while sending: " + mFile);
+            }
+        }
+        mCrc.reset();
+        mCrc.update(frame, dataOffset, length);
+        ByteBuffer.wrap(frame, FrameCodec.HEADER_SIZE, CHUNK_HEADER_SIZE).putLong(mId).putLong(offset).putInt((int) mCrc.getValue());
+        return frame;
+    }
+}
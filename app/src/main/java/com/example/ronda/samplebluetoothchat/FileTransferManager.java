@@ -0,0 +1,268 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Routes the file transfer frames ({@link FrameCodec#TYPE_FILE_OFFER} ... {@link FrameCodec#TYPE_FILE_ACK})
+ * of all connections to the right {@link FileSender} or {@link FileReceiver}, and re-offers
+ * unfinished outgoing files when a peer connects again.
+ * <p>
+ * Protocol: the sender offers the file (id, size, chunk size, name); the receiver accepts with
+ * the offset it already has (0 for a new file); the sender streams chunks from there and the
+ * receiver acknowledges cumulatively. A transfer is identified by its id on both sides, so an
+ * offer after a reconnect continues where the previous connection stopped.
+ */
+public class FileTransferManager {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Called on connection and sender threads.
+     */
+    public interface Listener {
+        void onProgress(long id, String address, String name, long done, long total, boolean incoming);
+
+        void onComplete(long id, String address, File file, boolean incoming);
+
+        void onFailed(long id, String address, String name, IOException e, boolean incoming);
+    }
+
+    private final File     mIncomingDir;
+    private final Listener mListener;
+    private final Random   mRandom = new Random();
+
+    // Guarded by "this"
+    private final Map<Long, FileSender>   mSenders   = new HashMap<>();
+    private final Map<Long, String>       mSenderAddresses = new HashMap<>();
+    private final Map<Long, FileReceiver> mReceivers = new HashMap<>();
+
+    /**
+     * @param incomingDir where received files are stored; null to refuse incoming files
+     */
+    public FileTransferManager(File incomingDir, Listener listener) {
+        mIncomingDir = incomingDir;
+        mListener = listener;
+    }
+
+    /**
+     * Start sending {@code file} to {@code address}. If the peer is not connected, the transfer
+     * starts when {@link #onConnected(ConnectedThread)} is called for it.
+     *
+     * @param connection the current connection to the peer, or null
+     * @return the transfer id
+     */
+    public long sendFile(final String address, File file, ConnectedThread connection) {
+        long id;
+        FileSender sender;
+        synchronized (this) {
+            do {
+                id = mRandom.nextLong();
+            } while (id == 0 || mSenders.containsKey(id));
+            sender = new FileSender(file, id, new FileSender.Listener() {
+                @Override
+                public void onProgress(FileSender sender, long acknowledged, long total) {
+                    mListener.onProgress(sender.getTransferId(), address, sender.getFile().getName(), acknowledged, total, false);
+                }
+
+                @Override
+                public void onComplete(FileSender sender) {
+                    removeSender(sender);
+                    mListener.onComplete(sender.getTransferId(), address, sender.getFile(), false);
+                }
+
+                @Override
+                public void onFailed(FileSender sender, IOException e) {
+                    removeSender(sender);
+                    mListener.onFailed(sender.getTransferId(), address, sender.getFile().getName(), e, false);
+                }
+            });
+            mSenders.put(id, sender);
+            mSenderAddresses.put(id, address);
+        }
+        sender.start();
+        if (connection != null) {
+            sender.attach(connection);
+        }
+        return id;
+    }
+
+    /**
+     * Outgoing transfers that are not finished yet.
+     */
+    public synchronized List<FileSender> getSenders() {
+        return new ArrayList<>(mSenders.values());
+    }
+
+    public void cancel(long id) {
+        FileSender sender;
+        synchronized (this) {
+            sender = mSenders.get(id);
+        }
+        if (sender != null) {
+            sender.cancel();
+        }
+    }
+
+    private synchronized void removeSender(FileSender sender) {
+        mSenders.remove(sender.getTransferId());
+        mSenderAddresses.remove(sender.getTransferId());
+    }
+
+    /**
+     * A connection came up: offer the unfinished files for that peer again.
+     */
+    public void onConnected(ConnectedThread connection) {
+        for (FileSender sender : sendersFor(connection.getRemoteAddress())) {
+            sender.attach(connection);
+        }
+    }
+
+    /**
+     * A connection went away: its senders pause, its receivers keep their part files.
+     */
+    public void onDisconnected(ConnectedThread connection) {
+        for (FileSender sender : sendersFor(connection.getRemoteAddress())) {
+            sender.detach(connection);
+        }
+    }
+
+    private synchronized List<FileSender> sendersFor(String address) {
+        List<FileSender> senders = new ArrayList<>();
+        for (Map.Entry<Long, String> entry : mSenderAddresses.entrySet()) {
+            if (entry.getValue().equals(address)) {
+                senders.add(mSenders.get(entry.getKey()));
+            }
+        }
+        return senders;
+    }
+
+    /**
+     * Handle a frame received on {@code connection}, on its reading thread.
+     *
+     * @return false if it is not a file transfer frame
+     */
+    public boolean onFrame(ConnectedThread connection, int type, ByteSlice payload) {
+        switch (type) {
+            case FrameCodec.TYPE_FILE_OFFER:
+                onOffer(connection, payload);
+                return true;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                onChunk(connection, payload);
+                return true;
+            case FrameCodec.TYPE_FILE_ACCEPT:
+            case FrameCodec.TYPE_FILE_ACK: {
+                ByteBuffer buffer = ByteBuffer.wrap(payload.array(), payload.offset(), payload.length());
+                long id = buffer.getLong();
+                long offset = buffer.getLong();
+                boolean resend = buffer.get() != 0;
+                FileSender sender;
+                synchronized (this) {
+                    sender = mSenders.get(id);
+                }
+                if (sender != null) {
+                    if (type == FrameCodec.TYPE_FILE_ACCEPT) {
+                        sender.onAccept(offset);
+                    } else {
+                        sender.onAck(offset, resend);
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void onOffer(ConnectedThread connection, ByteSlice payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload.array(), payload.offset(), payload.length());
+        long id = buffer.getLong();
+        long size = buffer.getLong();
+        buffer.getInt(); // chunk size, the receiver takes whatever comes
+        byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(nameBytes);
+        String name = new File(new String(nameBytes, UTF_8)).getName(); // 去掉路径，只能写到 mIncomingDir 里
+        String address = connection.getRemoteAddress();
+
+        if (mIncomingDir == null) {
+            return; // not accepting files; the sender waits until it is cancelled
+        }
+        try {
+            FileReceiver receiver;
+            synchronized (this) {
+                receiver = mReceivers.get(id);
+                if (receiver == null) {
+                    if (!mIncomingDir.isDirectory() && !mIncomingDir.mkdirs()) {
+                        throw new IOException("Cannot create " + mIncomingDir);
+                    }
+                    // .part 文件按 id 命名，同一个传输重连以后（哪怕 App 重启过）能找回自己的 .part 文件
+                    File partFile = new File(mIncomingDir, Long.toHexString(id) + ".part");
+                    receiver = new FileReceiver(id, new File(mIncomingDir, name), partFile, size);
+                    mReceivers.put(id, receiver);
+                }
+            }
+            connection.writeFrame(receiver.acceptFrame());
+            if (receiver.isComplete()) {
+                mListener.onComplete(id, address, receiver.getTarget(), true);
+            }
+        } catch (IOException e) {
+            mListener.onFailed(id, address, name, e, true);
+        }
+    }
+
+    private void onChunk(ConnectedThread connection, ByteSlice payload) {
+        long id = ByteBuffer.wrap(payload.array(), payload.offset(), 8).getLong();
+        FileReceiver receiver;
+        synchronized (this) {
+            receiver = mReceivers.get(id);
+        }
+        if (receiver == null) {
+            return; // never offered (or refused)
+        }
+        String address = connection.getRemoteAddress();
+        try {
+            boolean wasComplete = receiver.isComplete();
+            long before = receiver.getOffset();
+            byte[] reply = receiver.onChunk(payload);
+            if (reply != null) {
+                connection.writeFrame(reply);
+            }
+            if (receiver.getOffset() != before) {
+                mListener.onProgress(id, address, receiver.getTarget().getName(), receiver.getOffset(), receiver.getSize(), true);
+            }
+            if (!wasComplete && receiver.isComplete()) {
+                mListener.onComplete(id, address, receiver.getTarget(), true);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mReceivers.remove(id);
+            }
+            receiver.close();
+            mListener.onFailed(id, address, receiver.getTarget().getName(), e, true);
+        }
+    }
+
+    /**
+     * Close all part files and stop all senders.
+     */
+    public void close() {
+        List<FileSender> senders;
+        synchronized (this) {
+            senders = new ArrayList<>(mSenders.values());
+            for (FileReceiver receiver : mReceivers.values()) {
+                receiver.close();
+            }
+            mReceivers.clear();
+        }
+        for (FileSender sender : senders) {
+            sender.cancel();
+        }
+    }
+}
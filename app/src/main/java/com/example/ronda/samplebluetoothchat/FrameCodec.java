@@ -0,0 +1,149 @@
+package com.example.ronda.samplebluetoothchat;
+
+/**
+ * Wire format of the frames exchanged by {@link BluetoothChatService}.
+ * <p>
+ * Every frame is a 5 byte header followed by the payload:
+ * <pre>
+ * +----------------------+----------+-------------------+
+ * | length (int32, BE)   | type (1) | payload (length)  |
+ * +----------------------+----------+-------------------+
+ * </pre>
+ * The length only counts the payload, so an empty frame is exactly {@link #HEADER_SIZE} bytes.
+ * If the type has {@link #FLAG_COMPRESSED} set, the payload is zlib data and the length is the
+ * compressed length.
+ * <p>
+ * RFCOMM 是流式的，一次 read() 可能只读到半个消息，也可能读到好几个消息粘在一起，所以必须自己分帧
+ */
+public final class FrameCodec {
+
+    // Size of the frame header: 4 bytes of payload length plus 1 byte of frame type
+    public static final int HEADER_SIZE = 5;
+
+    // Upper bound for a single payload. A bigger length on the wire means the stream is corrupt
+    public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    // Frame types
+    public static final int TYPE_TEXT  = 1; // chat text, payload is the encoded message
+    public static final int TYPE_HELLO = 2; // sent once by each side after connecting, see FrameCompressor
+
+    // File transfer, see FileTransferManager
+    public static final int TYPE_FILE_OFFER  = 3; // sender -> receiver: id, size, chunk size, name
+    public static final int TYPE_FILE_ACCEPT = 4; // receiver -> sender: id, offset to start (resume) from
+    public static final int TYPE_FILE_CHUNK  = 5; // sender -> receiver: id, offset, CRC32, data
+    public static final int TYPE_FILE_ACK    = 6; // receiver -> sender: id, bytes received so far, resend flag
+
+    // Heartbeat, see Heartbeat
+    public static final int TYPE_PING = 7; // sender's nanoTime (int64)
+    public static final int TYPE_PONG = 8; // the payload of the ping, echoed back
+
+    // Flow control, see ConnectedThread#setFlowControl(int)
+    public static final int TYPE_CREDIT = 9; // receiver -> sender: TEXT frames the sender may send in total (int64)
+
+    // Resumable sessions, see Session. TEXT frames are numbered implicitly, by counting them on the wire
+    public static final int TYPE_RESUME = 10; // first frame of each side: TEXT frames received from the peer so far, TEXT frames dropped from the retransmit buffer (int64, int64)
+    public static final int TYPE_ACK    = 11; // receiver -> sender: TEXT frames received so far (int64)
+
+    // Typed binary messages written by MessageEncoder, one or more per frame
+    public static final int TYPE_MESSAGE = 12;
+
+    // High bit of the type byte: the payload is deflated (only after both sides said HELLO)
+    public static final int FLAG_COMPRESSED = 0x80;
+    public static final int TYPE_MASK       = 0x7F;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Write a frame header into {@code dst} at {@code offset}.
+     */
+    public static void writeHeader(byte[] dst, int offset, int type, int payloadLength) {
+        dst[offset] = (byte) (payloadLength >>> 24);
+        dst[offset + 1] = (byte) (payloadLength >>> 16);
+        dst[offset + 2] = (byte) (payloadLength >>> 8);
+        dst[offset + 3] = (byte) payloadLength;
+        dst[offset + 4] = (byte) type;
+    }
+
+    /**
+     * Read the payload length of the frame header starting at {@code offset}.
+     */
+    public static int readLength(byte[] src, int offset) {
+        return ((src[offset] & 0xFF) << 24)
+                | ((src[offset + 1] & 0xFF) << 16)
+                | ((src[offset + 2] & 0xFF) << 8)
+                | (src[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Read the frame type of the frame header starting at {@code offset}.
+     */
+    public static int readType(byte[] src, int offset) {
+        return src[offset + 4] & 0xFF;
+    }
+
+    /**
+     * Build a complete frame (header + payload) ready to be written to the socket.
+     */
+    public static byte[] encode(int type, byte[] payload, int offset, int length) {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload length out of range: " + length);
+        }
+        byte[] frame = new byte[HEADER_SIZE + length];
+        writeHeader(frame, 0, type, length);
+        System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    public static byte[] encode(int type, byte[] payload) {
+        return encode(type, payload, 0, payload.length);
+    }
+
+    /**
+     * A frame whose payload is one big-endian int64 (pings, credits).
+     */
+    public static byte[] encodeLong(int type, long value) {
+        byte[] frame = new byte[HEADER_SIZE + 8];
+        writeHeader(frame, 0, type, 8);
+        for (int i = 0; i < 8; i++) {
+            frame[HEADER_SIZE + i] = (byte) (value >>> (56 - 8 * i));
+        }
+        return frame;
+    }
+
+    /**
+     * A frame whose payload is two big-endian int64s.
+     */
+    public static byte[] encodeLongs(int type, long first, long second) {
+        byte[] frame = new byte[HEADER_SIZE + 16];
+        writeHeader(frame, 0, type, 16);
+        for (int i = 0; i < 8; i++) {
+            frame[HEADER_SIZE + i] = (byte) (first >>> (56 - 8 * i));
+            frame[HEADER_SIZE + 8 + i] = (byte) (second >>> (56 - 8 * i));
+        }
+        return frame;
+    }
+
+    /**
+     * The big-endian int64 at {@code index} in {@code payload}.
+     */
+    public static long readLong(ByteSlice payload, int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload.get(index + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * The int64 payload of a frame made by {@link #encodeLong(int, long)}.
+     *
+     * @throws IllegalArgumentException if the payload is not 8 bytes long
+     */
+    public static long readLong(ByteSlice payload) {
+        if (payload.length() != 8) {
+            throw new IllegalArgumentException("Expected an 8 byte payload, got " + payload.length());
+        }
+        return readLong(payload, 0);
+    }
+}
@@ -0,0 +1,232 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection payload compression, negotiated with a {@link FrameCodec#TYPE_HELLO} frame.
+ * <p>
+ * Both sides send a HELLO right after connecting: version, capabilities and the Adler-32 id of
+ * their preset dictionary (0 for none). A side only starts compressing after the peer's HELLO said
+ * it can inflate, so an older peer that ignores HELLO simply keeps getting plain frames. The
+ * dictionary is only used when both sides have the same one.
+ * <p>
+ * Every frame is compressed on its own (zlib format, so the receiver can see whether a dictionary
+ * was used) and only sent compressed when that makes it smaller; short or random payloads go out
+ * as they are. The Deflater lives on the writer thread, the Inflater on the reading thread, and
+ * both are reset and reused for every frame.
+ * <p>
+ * 压缩率和每帧的 CPU 开销见 {@link #getCompressionRatio()}、{@link #getDeflateNanosPerFrame()}、{@link #getInflateNanosPerFrame()}
+ */
+public class FrameCompressor implements FrameWriter.FrameTransformer {
+
+    public static final int VERSION = 1;
+
+    // Capability bits of the HELLO frame
+    public static final int CAP_DEFLATE = 1;
+
+    // Payloads shorter than this are never worth compressing
+    public static final int MIN_COMPRESS_LENGTH = 32;
+
+    private static final int HELLO_LENGTH = 6; // version, capabilities, dictionary id
+
+    private final byte[]   mDictionary;
+    private final int      mDictionaryId;
+    private final Deflater mDeflater;
+    private final Inflater mInflater = new Inflater();
+
+    private volatile boolean mActive;        // the peer can inflate
+    private volatile boolean mUseDictionary; // ...and has the same dictionary
+
+    private byte[]          mInflateBuffer = new byte[4096];
+    private final ByteSlice mInflated      = new ByteSlice();
+
+    // Written by the writer thread
+    private volatile long mFramesCompressed;
+    private volatile long mFramesStored;
+    private volatile long mPayloadBytes;
+    private volatile long mWireBytes;
+    private volatile long mDeflateNanos;
+
+    // Written by the reading thread
+    private volatile long mFramesInflated;
+    private volatile long mInflateNanos;
+
+    public FrameCompressor() {
+        this(null, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param dictionary preset dictionary shared with the peer (typical keys and phrases), or null
+     * @param level      Deflater level, 1 (fast) to 9 (small)
+     */
+    public FrameCompressor(byte[] dictionary, int level) {
+        mDictionary = dictionary;
+        if (dictionary != null) {
+            Adler32 adler = new Adler32();
+            adler.update(dictionary, 0, dictionary.length);
+            mDictionaryId = (int) adler.getValue();
+        } else {
+            mDictionaryId = 0;
+        }
+        mDeflater = new Deflater(level);
+    }
+
+    /**
+     * The HELLO frame announcing what this side supports.
+     */
+    public byte[] helloFrame() {
+        byte[] payload = new byte[HELLO_LENGTH];
+        payload[0] = VERSION;
+        payload[1] = CAP_DEFLATE;
+        payload[2] = (byte) (mDictionaryId >>> 24);
+        payload[3] = (byte) (mDictionaryId >>> 16);
+        payload[4] = (byte) (mDictionaryId >>> 8);
+        payload[5] = (byte) mDictionaryId;
+        return FrameCodec.encode(FrameCodec.TYPE_HELLO, payload);
+    }
+
+    /**
+     * Handle the peer's HELLO. Compression of outgoing frames starts if the peer can inflate.
+     */
+    public void onHello(ByteSlice payload) {
+        if (payload.length() < HELLO_LENGTH) {
+            return; // not something we understand, stay uncompressed
+        }
+        int peerDictionaryId = ((payload.get(2) & 0xFF) << 24) | ((payload.get(3) & 0xFF) << 16)
+                | ((payload.get(4) & 0xFF) << 8) | (payload.get(5) & 0xFF);
+        mUseDictionary = mDictionary != null && peerDictionaryId == mDictionaryId;
+        mActive = (payload.get(1) & CAP_DEFLATE) != 0;
+    }
+
+    /**
+     * True once the peer agreed to receive compressed frames.
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    public boolean isUsingDictionary() {
+        return mActive && mUseDictionary;
+    }
+
+    /**
+     * Compress one frame into {@code dst}, or copy it as it is if that would not make it smaller.
+     * Writer thread only.
+     */
+    @Override
+    public int transform(byte[] frame, byte[] dst, int offset) {
+        int type = FrameCodec.readType(frame, 0);
+        int length = frame.length - FrameCodec.HEADER_SIZE;
+        if (!mActive || type == FrameCodec.TYPE_HELLO || length < MIN_COMPRESS_LENGTH) {
+            System.arraycopy(frame, 0, dst, offset, frame.length);
+            return frame.length;
+        }
+
+        long start = System.nanoTime();
+        mDeflater.reset();
+        if (mUseDictionary) {
+            mDeflater.setDictionary(mDictionary);
+        }
+        mDeflater.setInput(frame, FrameCodec.HEADER_SIZE, length);
+        mDeflater.finish();
+        // 输出空间只给到比原始数据少一个字节，写满了还没压完就说明不划算，直接发原始数据
+        int limit = length - 1;
+        int compressed = 0;
+        int out = offset + FrameCodec.HEADER_SIZE;
+        while (!mDeflater.finished() && compressed < limit) {
+            compressed += mDeflater.deflate(dst, out + compressed, limit - compressed);
+        }
+        boolean shrunk = mDeflater.finished();
+        mDeflateNanos += System.nanoTime() - start;
+        mPayloadBytes += length;
+
+        if (!shrunk) {
+            mFramesStored++;
+            mWireBytes += length;
+            System.arraycopy(frame, 0, dst, offset, frame.length);
+            return frame.length;
+        }
+        mFramesCompressed++;
+        mWireBytes += compressed;
+        FrameCodec.writeHeader(dst, offset, type | FrameCodec.FLAG_COMPRESSED, compressed);
+        return FrameCodec.HEADER_SIZE + compressed;
+    }
+
+    /**
+     * Inflate the payload of a compressed frame. Reading thread only.
+     *
+     * @return the original payload, valid until the next call
+     * @throws IOException if the data is corrupt or needs a dictionary we don't have
+     */
+    public ByteSlice inflate(ByteSlice payload) throws IOException {
+        long start = System.nanoTime();
+        mInflater.reset();
+        mInflater.setInput(payload.array(), payload.offset(), payload.length());
+        int length = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (length == mInflateBuffer.length) {
+                    if (length >= FrameCodec.MAX_PAYLOAD_LENGTH) {
+                        throw new IOException("Compressed payload too large");
+                    }
+                    byte[] bigger = new byte[Math.min(length * 2, FrameCodec.MAX_PAYLOAD_LENGTH)];
+                    System.arraycopy(mInflateBuffer, 0, bigger, 0, length);
+                    mInflateBuffer = bigger;
+                }
+                int n = mInflater.inflate(mInflateBuffer, length, mInflateBuffer.length - length);
+                if (n == 0) {
+                    if (mInflater.needsDictionary()) {
+                        if (mDictionary == null) {
+                            throw new IOException("Peer compressed with a dictionary we don't have");
+                        }
+                        mInflater.setDictionary(mDictionary);
+                    } else if (mInflater.needsInput()) {
+                        throw new IOException("Truncated compressed payload");
+                    }
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload", e);
+        }
+        mInflateNanos += System.nanoTime() - start;
+        mFramesInflated++;
+        return mInflated.set(mInflateBuffer, 0, length);
+    }
+
+    /**
+     * Frames that went out compressed.
+     */
+    public long getFramesCompressed() {
+        return mFramesCompressed;
+    }
+
+    /**
+     * Frames that were tried but did not shrink, and went out as they were.
+     */
+    public long getFramesStored() {
+        return mFramesStored;
+    }
+
+    /**
+     * Wire bytes / original bytes over all frames that were tried (lower is better), 1 if none were.
+     */
+    public double getCompressionRatio() {
+        long payload = mPayloadBytes;
+        return payload == 0 ? 1 : (double) mWireBytes / payload;
+    }
+
+    public long getDeflateNanosPerFrame() {
+        long frames = mFramesCompressed + mFramesStored;
+        return frames == 0 ? 0 : mDeflateNanos / frames;
+    }
+
+    public long getInflateNanosPerFrame() {
+        long frames = mFramesInflated;
+        return frames == 0 ? 0 : mInflateNanos / frames;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reassembles {@link FrameCodec} frames from a byte stream.
+ * <p>
+ * Bytes are collected in a single reassembly buffer. Complete frames are handed to the
+ * {@link Listener} straight out of that buffer, and a trailing partial frame stays there until the
+ * rest of it arrives. The buffer is compacted instead of reallocated whenever possible and only
+ * grows when a frame does not fit, so in steady state no memory is allocated.
+ * <p>
+ * Not thread safe: one decoder belongs to one reading thread.
+ */
+public class FrameDecoder {
+
+    // Default initial size of the reassembly buffer. RFCOMM rarely delivers more than this per read()
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    // Minimum free space we want before calling InputStream.read()
+    private static final int MIN_READ_SIZE = 1024;
+
+    /**
+     * Receives every complete frame. The payload slice is only valid for the duration of the call,
+     * both the slice and the buffer behind it are reused afterwards.
+     */
+    public interface Listener {
+        void onFrame(int type, ByteSlice payload);
+    }
+
+    private final ByteSlice mPayload = new ByteSlice();
+
+    private byte[] mBuffer;
+    private int    mStart; // first unconsumed byte
+    private int    mEnd;   // one past the last valid byte
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int initialCapacity) {
+        mBuffer = new byte[Math.max(initialCapacity, FrameCodec.HEADER_SIZE)];
+    }
+
+    /**
+     * Read whatever is available from {@code in} directly into the reassembly buffer and dispatch
+     * all frames completed by it.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream in, Listener listener) throws IOException {
+        ensureWritable(MIN_READ_SIZE);
+        int len = in.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (len > 0) {
+            mEnd += len;
+            dispatch(listener);
+        }
+        return len;
+    }
+
+    /**
+     * Like {@link #readFrom(InputStream, Listener)}, but only reads what {@code in} already has
+     * ({@link InputStream#available()}), so it never blocks. For a {@link ConnectionEngine}.
+     *
+     * @return the number of bytes read, 0 if there were none
+     */
+    public int readAvailable(InputStream in, Listener listener) throws IOException {
+        int available = in.available();
+        if (available <= 0) {
+            return 0;
+        }
+        ensureWritable(Math.min(available, MIN_READ_SIZE));
+        int len = in.read(mBuffer, mEnd, Math.min(available, mBuffer.length - mEnd));
+        if (len > 0) {
+            mEnd += len;
+            dispatch(listener);
+        }
+        return len;
+    }
+
+    /**
+     * Append {@code length} bytes of {@code data} and dispatch all frames completed by them.
+     */
+    public void feed(byte[] data, int offset, int length, Listener listener) throws IOException {
+        ensureWritable(length);
+        System.arraycopy(data, offset, mBuffer, mEnd, length);
+        mEnd += length;
+        dispatch(listener);
+    }
+
+    /**
+     * Number of bytes buffered that belong to a frame not yet complete.
+     */
+    public int pending() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * Current size of the reassembly buffer.
+     */
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Drop any partial frame, e.g. after the connection was reset.
+     */
+    public void reset() {
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    private void dispatch(Listener listener) throws IOException {
+        while (mEnd - mStart >= FrameCodec.HEADER_SIZE) {
+            int length = FrameCodec.readLength(mBuffer, mStart);
+            if (length < 0 || length > FrameCodec.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            int frameSize = FrameCodec.HEADER_SIZE + length;
+            if (mEnd - mStart < frameSize) {
+                // 帧还没收全：保证缓冲区能放下整帧，下次 read() 直接读到它后面
+                ensureFrameCapacity(frameSize);
+                break;
+            }
+            int type = FrameCodec.readType(mBuffer, mStart);
+            int payloadOffset = mStart + FrameCodec.HEADER_SIZE;
+            mStart += frameSize;
+            listener.onFrame(type, mPayload.set(mBuffer, payloadOffset, length));
+        }
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+        }
+    }
+
+    /**
+     * Make sure there are at least {@code size} free bytes after {@link #mEnd}.
+     */
+    private void ensureWritable(int size) {
+        if (mBuffer.length - mEnd >= size) {
+            return;
+        }
+        compact();
+        if (mBuffer.length - mEnd < size) {
+            grow(mEnd + size);
+        }
+    }
+
+    /**
+     * Make sure a frame of {@code frameSize} bytes starting at {@link #mStart} fits in the buffer.
+     */
+    private void ensureFrameCapacity(int frameSize) {
+        if (mBuffer.length - mStart >= frameSize) {
+            return;
+        }
+        compact();
+        if (mBuffer.length < frameSize) {
+            grow(frameSize);
+        }
+    }
+
+    private void compact() {
+        if (mStart == 0) {
+            return;
+        }
+        int pending = mEnd - mStart;
+        System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+        mStart = 0;
+        mEnd = pending;
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = Math.max(mBuffer.length * 2, minCapacity);
+        byte[] newBuffer = new byte[newCapacity];
+        System.arraycopy(mBuffer, mStart, newBuffer, 0, mEnd - mStart);
+        mEnd -= mStart;
+        mStart = 0;
+        mBuffer = newBuffer;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.ronda.samplebluetoothchat;
+
+/**
+ * A small pool of {@link PooledFrame}s, used to hand received payloads from the reading thread
+ * to the UI thread without allocating a new buffer (and a new String) for every message.
+ * <p>
+ * The reader calls {@link #obtain(int, ByteSlice)}, the consumer calls
+ * {@link PooledFrame#recycle()} when done. Same idea as {@code Message.obtain()} /
+ * {@code Message.recycle()}: after warm-up the frames and their buffers just go round in circles.
+ */
+public class FramePool {
+
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private final PooledFrame[] mFrames;
+    private int                 mSize;
+
+    public FramePool() {
+        this(DEFAULT_MAX_POOLED);
+    }
+
+    /**
+     * @param maxPooled how many idle frames to keep; frames recycled beyond that are left to the GC
+     */
+    public FramePool(int maxPooled) {
+        mFrames = new PooledFrame[maxPooled];
+    }
+
+    /**
+     * Take a frame from the pool (or create one if the pool is empty) and copy {@code payload} into it.
+     */
+    public PooledFrame obtain(int type, ByteSlice payload) {
+        PooledFrame frame = take();
+        frame.fill(type, payload);
+        return frame;
+    }
+
+    /**
+     * Same as {@link #obtain(int, ByteSlice)} for a payload in a plain array.
+     */
+    public PooledFrame obtain(int type, byte[] payload, int offset, int length) {
+        PooledFrame frame = take();
+        frame.fill(type, payload, offset, length);
+        return frame;
+    }
+
+    private PooledFrame take() {
+        PooledFrame frame = null;
+        synchronized (this) {
+            if (mSize > 0) {
+                frame = mFrames[--mSize];
+                mFrames[mSize] = null;
+            }
+        }
+        if (frame == null) {
+            frame = new PooledFrame(this);
+        }
+        return frame;
+    }
+
+    /**
+     * Number of idle frames in the pool.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    synchronized void release(PooledFrame frame) {
+        if (mSize < mFrames.length) {
+            mFrames[mSize++] = frame;
+        }
+    }
+}
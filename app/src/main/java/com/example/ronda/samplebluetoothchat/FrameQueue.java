@@ -0,0 +1,114 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.List;
+
+/**
+ * Bounded FIFO of encoded frames for one channel of a {@link FrameWriter}, remembering when each
+ * frame was queued (so the writer can measure how long it waited) without allocating anything
+ * per frame: frames and times live in two parallel ring arrays.
+ * <p>
+ * Any number of producers, one consumer (the writer thread). Producers that wait for room
+ * ({@link #offer(byte[], long, long)}) are woken by {@link #poll()}.
+ */
+final class FrameQueue {
+
+    private final byte[][] mFrames;
+    private final long[]   mQueuedNanos;
+    private int            mHead;
+    private int            mCount;
+    private int            mWaiting; // producers in offer() waiting for room
+    private long           mPolledNanos;
+
+    FrameQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        mFrames = new byte[capacity][];
+        mQueuedNanos = new long[capacity];
+    }
+
+    synchronized boolean offer(byte[] frame, long nowNanos) {
+        if (mCount == mFrames.length) {
+            return false;
+        }
+        int tail = (mHead + mCount) % mFrames.length;
+        mFrames[tail] = frame;
+        mQueuedNanos[tail] = nowNanos;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Wait up to {@code timeoutMillis} for room.
+     */
+    synchronized boolean offer(byte[] frame, long nowNanos, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        mWaiting++;
+        try {
+            while (mCount == mFrames.length) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        } finally {
+            mWaiting--;
+        }
+        return offer(frame, nowNanos);
+    }
+
+    synchronized byte[] peek() {
+        return mCount > 0 ? mFrames[mHead] : null;
+    }
+
+    /**
+     * Remove the head. Its queue time is then available from {@link #getPolledNanos()}.
+     */
+    synchronized byte[] poll() {
+        if (mCount == 0) {
+            return null;
+        }
+        byte[] frame = mFrames[mHead];
+        mPolledNanos = mQueuedNanos[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        if (mWaiting > 0) {
+            notifyAll();
+        }
+        return frame;
+    }
+
+    /**
+     * When the frame last returned by {@link #poll()} was queued. Consumer thread only.
+     */
+    long getPolledNanos() {
+        return mPolledNanos;
+    }
+
+    synchronized int size() {
+        return mCount;
+    }
+
+    synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Move every frame into {@code out}, oldest first.
+     */
+    synchronized int drainTo(List<byte[]> out) {
+        int count = mCount;
+        while (mCount > 0) {
+            out.add(poll());
+        }
+        return count;
+    }
+
+    synchronized void clear() {
+        while (mCount > 0) {
+            poll();
+        }
+    }
+}
@@ -0,0 +1,703 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This thread owns the OutputStream of a connection. Callers only put encoded frames into a
+ * bounded queue, so sending never touches the socket on the caller's thread (usually the UI thread).
+ * <p>
+ * The writer takes everything that is already queued, plus whatever shows up within
+ * {@code lingerMillis}, copies it into one buffer of at most {@code maxBatchBytes} and hands it
+ * to the stream with a single write() call. A burst of small messages therefore costs one syscall
+ * and far fewer RFCOMM packets instead of one of each per message.
+ * <p>
+ * Frames are queued per logical channel ({@link #channelOf(byte[])}): control frames (HELLO,
+ * heartbeats, credits) go out before anything else, then the interactive channel (chat, file
+ * transfer handshakes) and the bulk channel (file chunks) share the link by weight, with deficit
+ * round robin over bytes. A file transfer filling the link therefore delays a chat message by at
+ * most about one chunk instead of by everything queued ahead of it. Order is kept within a channel.
+ * <p>
+ * {@link FrameCodec#TYPE_TEXT} frames are subject to flow control: once the peer set a limit with
+ * {@link #setCreditLimit(long)}, the writer holds them back as soon as that many have been sent,
+ * and the rest of the interactive channel waits too; the other channels keep going.
+ * <p>
+ * The interactive channel can also be held as a whole ({@link #hold(long)}), while a resumed
+ * {@link Session} waits to hear from the peer where to start replaying.
+ * <p>
+ * Instead of {@link #start()}ing its own thread, the writer can run as a task on a
+ * {@link ConnectionEngine} ({@link #start(ConnectionEngine)}): queuing a frame schedules the task,
+ * which writes what is ready and goes idle again, so it never waits for frames on a thread.
+ * 有了分通道调度，大文件传输时聊天消息不用排在所有文件块后面
+ */
+public class FrameWriter extends Thread {
+
+    public static final int DEFAULT_QUEUE_CAPACITY  = 256;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024;
+    // No linger by default: on a slow link, frames queued while the previous write() is in progress
+    // already coalesce, and waiting for more only adds latency to single messages
+    public static final int DEFAULT_LINGER_MILLIS   = 0;
+
+    // Room for control frames, they are tiny and rare
+    public static final int CONTROL_QUEUE_CAPACITY = 64;
+
+    // Logical channels, see channelOf()
+    public static final int CHANNEL_CONTROL     = 0; // strict priority
+    public static final int CHANNEL_INTERACTIVE = 1;
+    public static final int CHANNEL_BULK        = 2;
+    public static final int CHANNEL_COUNT       = 3;
+
+    // Bytes a channel may send per round for each unit of weight
+    public static final int QUANTUM_BYTES = 512;
+
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 8;
+    public static final int DEFAULT_BULK_WEIGHT        = 1;
+
+    // Credit limit before the peer sent one: flow control is off (a peer that never sends credits doesn't support them)
+    public static final long NO_CREDIT_LIMIT = -1;
+
+    /**
+     * What {@link #enqueue(byte[])} does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        DROP,  // discard the new frame and return false
+        BLOCK, // wait until the writer made room (or the writer was closed)
+        FAIL   // throw IllegalStateException
+    }
+
+    /**
+     * Called on the writer thread (on a {@link ConnectionEngine}: on whichever loop thread runs the
+     * writer task, never two at once).
+     */
+    public interface Callback {
+        /**
+         * A batch went out in one write. The list is reused, don't keep it.
+         */
+        void onFramesWritten(List<byte[]> frames);
+
+        /**
+         * The stream failed. The writer stops after this call.
+         */
+        void onWriteFailed(IOException e);
+    }
+
+    /**
+     * Rewrites frames on their way into the batch buffer, e.g. to compress them. Called on the
+     * writer thread only. The callback still sees the original frames.
+     */
+    public interface FrameTransformer {
+        /**
+         * Write {@code frame}, in whatever form goes on the wire, into {@code dst} at {@code offset}.
+         * At most {@code frame.length} bytes may be written.
+         *
+         * @return the number of bytes written
+         */
+        int transform(byte[] frame, byte[] dst, int offset);
+    }
+
+    private final OutputStream          mOutputStream;
+    private final Callback              mCallback;
+    private final FrameQueue[]          mQueues = new FrameQueue[CHANNEL_COUNT];
+    private final OverflowPolicy        mPolicy;
+    private final int                   mMaxBatchBytes;
+    private final long                  mLingerNanos;
+    private volatile ConnectionEngine.Task mTask; // null: runs on its own thread
+
+    // Deficit round robin over the data channels, writer thread only
+    private final int[] mQuantum = new int[CHANNEL_COUNT];
+    private final int[] mDeficit = new int[CHANNEL_COUNT];
+    private int         mCurrent = CHANNEL_INTERACTIVE; // channel whose turn it is
+    private boolean     mTurnStarted;                   // mCurrent already got its quantum for this turn
+
+    private final List<byte[]> mBatch = new ArrayList<>();
+    private long[]             mBatchQueuedNanos = new long[16]; // per frame in mBatch, for the channel latency
+    private FrameQueue         mPolled;                          // the queue the frame returned by the last next() came from
+    private byte[]             mBatchBuffer;
+    private boolean            mBatchTried; // write() was called for mBatch, so its frames may have gone out
+    private volatile long      mDataSent;   // flow controlled frames taken into a batch so far, only written by the writer thread
+    private volatile long      mCreditLimit = NO_CREDIT_LIMIT;
+    private volatile boolean   mParked;     // the writer is waiting for a frame or for credit, enqueue() has to wake it
+
+    // See hold(): the interactive channel sends nothing while mHeld, until mHoldUntil (nanoTime) at the latest
+    private final Object     mHoldLock = new Object();
+    private volatile boolean mHeld;
+    private volatile long    mHoldUntil;
+
+    private volatile FrameTransformer mTransformer;
+    private volatile ChatMetrics      mMetrics; // null: not measured
+    private volatile boolean          mClosed;
+    private volatile long    mFramesWritten;
+    private volatile long    mWriteCalls;
+
+    public FrameWriter(OutputStream out, Callback callback) {
+        this(out, callback, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP, DEFAULT_MAX_BATCH_BYTES, DEFAULT_LINGER_MILLIS);
+    }
+
+    public FrameWriter(OutputStream out, Callback callback, int queueCapacity, OverflowPolicy policy,
+                       int maxBatchBytes, int lingerMillis) {
+        super("FrameWriter");
+        mOutputStream = out;
+        mCallback = callback;
+        mQueues[CHANNEL_CONTROL] = new FrameQueue(CONTROL_QUEUE_CAPACITY);
+        mQueues[CHANNEL_INTERACTIVE] = new FrameQueue(queueCapacity);
+        mQueues[CHANNEL_BULK] = new FrameQueue(queueCapacity);
+        mQuantum[CHANNEL_INTERACTIVE] = DEFAULT_INTERACTIVE_WEIGHT * QUANTUM_BYTES;
+        mQuantum[CHANNEL_BULK] = DEFAULT_BULK_WEIGHT * QUANTUM_BYTES;
+        mPolicy = policy;
+        mMaxBatchBytes = maxBatchBytes;
+        mLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        mBatchBuffer = new byte[maxBatchBytes];
+    }
+
+    /**
+     * The channel a frame is sent on, by its type.
+     */
+    public static int channelOf(byte[] frame) {
+        switch (FrameCodec.readType(frame, 0)) {
+            case FrameCodec.TYPE_HELLO:
+            case FrameCodec.TYPE_PING:
+            case FrameCodec.TYPE_PONG:
+            case FrameCodec.TYPE_CREDIT:
+            case FrameCodec.TYPE_RESUME:
+            case FrameCodec.TYPE_ACK:
+                return CHANNEL_CONTROL;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                return CHANNEL_BULK;
+            default:
+                return CHANNEL_INTERACTIVE;
+        }
+    }
+
+    /**
+     * Share of the link for {@code channel} ({@link #CHANNEL_INTERACTIVE} or {@link #CHANNEL_BULK})
+     * while both have frames to send: each gets {@code weight} * {@link #QUANTUM_BYTES} per round.
+     * Call before {@link #start()}.
+     */
+    public void setWeight(int channel, int weight) {
+        if (channel == CHANNEL_CONTROL || channel < 0 || channel >= CHANNEL_COUNT || weight < 1) {
+            throw new IllegalArgumentException("Bad weight " + weight + " for channel " + channel);
+        }
+        mQuantum[channel] = weight * QUANTUM_BYTES;
+    }
+
+    /**
+     * Queue an encoded frame (see {@link FrameCodec#encode(int, byte[])}) on its channel. Never touches the socket.
+     *
+     * @return true if the frame was queued, false if it was dropped or the writer is closed
+     * @throws IllegalStateException if the queue is full and the policy is {@link OverflowPolicy#FAIL}
+     */
+    public boolean enqueue(byte[] frame) {
+        if (mClosed) {
+            return false;
+        }
+        FrameQueue queue = mQueues[channelOf(frame)];
+        if (queue.offer(frame, System.nanoTime())) {
+            wakeUp();
+            return true;
+        }
+        switch (mPolicy) {
+            case BLOCK:
+                try {
+                    // 不等太久，否则写线程挂掉以后调用方会永远阻塞
+                    while (!mClosed) {
+                        if (queue.offer(frame, System.nanoTime(), 100)) {
+                            wakeUp();
+                            return true;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            case FAIL:
+                throw new IllegalStateException("Outbound queue full");
+            case DROP:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Queue a frame on its channel if there is room right now. Never blocks, whatever the
+     * {@link OverflowPolicy}: for threads that must not wait (heartbeats, credits).
+     */
+    public boolean offer(byte[] frame) {
+        if (mClosed || !mQueues[channelOf(frame)].offer(frame, System.nanoTime())) {
+            return false;
+        }
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * The peer allows {@code limit} flow controlled frames in total on this connection. Limits
+     * only ever grow; a smaller one (a late or repeated credit frame) is ignored.
+     */
+    public void setCreditLimit(long limit) {
+        if (limit > mCreditLimit) {
+            mCreditLimit = limit; // 只有读线程调用
+            wakeUp();
+        }
+    }
+
+    /**
+     * The current credit limit, or {@link #NO_CREDIT_LIMIT} while the peer has not sent one.
+     */
+    public long getCreditLimit() {
+        return mCreditLimit;
+    }
+
+    /**
+     * Flow controlled frames sent (taken into a batch) so far.
+     */
+    public long getDataFramesSent() {
+        return mDataSent;
+    }
+
+    /**
+     * True if frames are waiting for credit from the peer.
+     */
+    public boolean isBlockedOnCredit() {
+        byte[] head = mQueues[CHANNEL_INTERACTIVE].peek();
+        return head != null && !hasCreditFor(head);
+    }
+
+    private boolean hasCreditFor(byte[] frame) {
+        long limit = mCreditLimit;
+        return limit == NO_CREDIT_LIMIT || mDataSent < limit || !isFlowControlled(frame);
+    }
+
+    static boolean isFlowControlled(byte[] frame) {
+        return FrameCodec.readType(frame, 0) == FrameCodec.TYPE_TEXT;
+    }
+
+    /**
+     * Send nothing on the interactive channel until {@link #releaseHold(int)} or for
+     * {@code timeoutMillis}, whichever comes first; frames can still be queued and the other
+     * channels keep going. Call before {@link #start()}.
+     */
+    public void hold(long timeoutMillis) {
+        synchronized (mHoldLock) {
+            mHoldUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            mHeld = true;
+        }
+    }
+
+    /**
+     * End the hold, after dropping the first {@code skip} frames of the interactive channel.
+     *
+     * @return false if there was no hold (it already timed out): then nothing is dropped
+     */
+    public boolean releaseHold(int skip) {
+        synchronized (mHoldLock) {
+            if (!mHeld) {
+                return false;
+            }
+            // The writer does not touch the interactive queue while it is held, so the head is still the head
+            FrameQueue queue = mQueues[CHANNEL_INTERACTIVE];
+            for (int i = 0; i < skip && queue.poll() != null; i++) {
+                // dropped
+            }
+            mHeld = false;
+        }
+        wakeUp();
+        return true;
+    }
+
+    // Writer thread: whether the interactive channel is held; a hold that timed out ends here
+    private boolean isHeld() {
+        if (!mHeld) {
+            return false;
+        }
+        synchronized (mHoldLock) {
+            if (mHeld && System.nanoTime() - mHoldUntil >= 0) {
+                mHeld = false;
+            }
+            return mHeld;
+        }
+    }
+
+    private boolean isSendable(int channel, byte[] head) {
+        return head != null && hasCreditFor(head) && (channel != CHANNEL_INTERACTIVE || !isHeld());
+    }
+
+    private void wakeUp() {
+        ConnectionEngine.Task task = mTask;
+        if (task != null) {
+            // On an engine the linger is the delay before the task runs: frames queued meanwhile go in the same batch
+            task.scheduleIn(TimeUnit.NANOSECONDS.toMillis(mLingerNanos));
+        } else if (mParked) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Apply {@code transformer} to every frame written from the next batch on; null writes frames as they are.
+     */
+    public void setTransformer(FrameTransformer transformer) {
+        mTransformer = transformer;
+    }
+
+    /**
+     * Record how long every socket write takes in {@code metrics}; null stops measuring.
+     */
+    public void setMetrics(ChatMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Number of frames waiting to be written, all channels.
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (FrameQueue queue : mQueues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Number of frames waiting on {@code channel}.
+     */
+    public int queueDepth(int channel) {
+        return mQueues[channel].size();
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    /**
+     * Number of OutputStream.write() calls so far. Compare with {@link #getFramesWritten()}
+     * to see how well frames are coalesced.
+     */
+    public long getWriteCalls() {
+        return mWriteCalls;
+    }
+
+    /**
+     * Stop the writer. Frames still queued stay available through {@link #drainUnsent(List)}.
+     */
+    public void close() {
+        mClosed = true;
+        ConnectionEngine.Task task = mTask;
+        if (task != null) {
+            task.cancel();
+        } else {
+            interrupt();
+        }
+    }
+
+    /**
+     * After {@link #close()}: wait up to {@code timeoutMillis} for the writer to stop, its thread
+     * to end or the batch its task is writing to be done.
+     *
+     * @return true if the writer stopped (or never started)
+     */
+    public boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+        ConnectionEngine.Task task = mTask;
+        if (task != null) {
+            return task.awaitStopped(timeoutMillis);
+        }
+        if (isAlive()) {
+            join(timeoutMillis);
+        }
+        return !isAlive();
+    }
+
+    /**
+     * Run the writer as a task on {@code engine}'s writer threads instead of on its own thread. Call
+     * instead of {@link #start()}.
+     */
+    public void start(ConnectionEngine engine) {
+        ConnectionEngine.Task task = new ConnectionEngine.Task(engine, true) {
+            @Override
+            protected long step() {
+                return writeReady();
+            }
+        };
+        mTask = task;
+        task.schedule(); // frames queued before the start
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mClosed) {
+                collectBatch(true);
+                writeBatch();
+            }
+        } catch (InterruptedException e) {
+            // close() was called
+        } catch (IOException e) {
+            onWriteFailed(e);
+        }
+    }
+
+    // Engine task: write one batch if there is one, see start(ConnectionEngine)
+    private long writeReady() {
+        if (mClosed) {
+            return ConnectionEngine.Task.IDLE;
+        }
+        try {
+            if (!collectBatch(false)) {
+                if (mHeld && !mQueues[CHANNEL_INTERACTIVE].isEmpty()) {
+                    // 保持到期后自己解除，那时再来看一次
+                    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(mHoldUntil - System.nanoTime()) + 1);
+                }
+                return ConnectionEngine.Task.IDLE; // enqueue() schedules the task again
+            }
+            writeBatch();
+        } catch (InterruptedException e) {
+            return ConnectionEngine.Task.IDLE; // never waits, so never interrupted
+        } catch (IOException e) {
+            onWriteFailed(e);
+            return ConnectionEngine.Task.IDLE;
+        }
+        return 0; // maybe more: next batch after the other links had their turn
+    }
+
+    private void onWriteFailed(IOException e) {
+        if (!mClosed) {
+            mClosed = true;
+            mCallback.onWriteFailed(e);
+        }
+    }
+
+    /**
+     * Move the frames that never reached the stream into {@code out}, so they can be sent on
+     * another connection: per channel, oldest first. Frames of a write() that failed are not
+     * included: they may have arrived. Control frames are not included, they only make sense on
+     * the connection they were made for. Only call this once the writer has stopped (see
+     * {@link #awaitStopped(long)}).
+     *
+     * @return the number of frames added
+     */
+    public int drainUnsent(List<byte[]> out) {
+        int count = 0;
+        if (!mBatchTried) {
+            for (int channel = CHANNEL_INTERACTIVE; channel < CHANNEL_COUNT; channel++) {
+                for (int i = 0; i < mBatch.size(); i++) {
+                    byte[] frame = mBatch.get(i);
+                    if (channelOf(frame) == channel) {
+                        out.add(frame);
+                        count++;
+                    }
+                }
+                count += mQueues[channel].drainTo(out);
+            }
+        } else {
+            for (int channel = CHANNEL_INTERACTIVE; channel < CHANNEL_COUNT; channel++) {
+                count += mQueues[channel].drainTo(out);
+            }
+        }
+        mBatch.clear();
+        mQueues[CHANNEL_CONTROL].clear();
+        return count;
+    }
+
+    /**
+     * Move the frames of a write() that failed into {@code out}: they may or may not have arrived.
+     * Call before {@link #drainUnsent(List)}, under the same conditions.
+     *
+     * @return the number of frames added
+     */
+    public int drainFailedBatch(List<byte[]> out) {
+        if (!mBatchTried) {
+            return 0;
+        }
+        out.addAll(mBatch);
+        int count = mBatch.size();
+        mBatch.clear();
+        return count;
+    }
+
+    /**
+     * Take the first frame (blocking for it if {@code wait}), then keep collecting until the batch
+     * is full, the queues are empty (or out of credit) and, if {@code wait}, the linger time is over.
+     *
+     * @return false if there was nothing to send (only without {@code wait})
+     */
+    private boolean collectBatch(boolean wait) throws InterruptedException {
+        byte[] frame = next(wait ? Long.MAX_VALUE : 0, Integer.MAX_VALUE);
+        if (frame == null) {
+            return false;
+        }
+        addToBatch(frame);
+        int size = frame.length;
+
+        long deadline = System.nanoTime() + mLingerNanos;
+        while (size < mMaxBatchBytes) {
+            frame = next(wait && mLingerNanos > 0 ? deadline : 0, mMaxBatchBytes - size);
+            if (frame == null) {
+                break;
+            }
+            addToBatch(frame);
+            size += frame.length;
+        }
+        return true;
+    }
+
+    private void addToBatch(byte[] frame) {
+        int index = mBatch.size();
+        if (index == mBatchQueuedNanos.length) {
+            long[] grown = new long[index * 2];
+            System.arraycopy(mBatchQueuedNanos, 0, grown, 0, index);
+            mBatchQueuedNanos = grown;
+        }
+        mBatchQueuedNanos[index] = mPolled.getPolledNanos();
+        mBatch.add(frame);
+    }
+
+    /**
+     * Take the next frame to write: control frames first, then whichever data channel the
+     * scheduler picks. Frames stay queued until they fit into {@code room} bytes (except for the
+     * first of a batch, which gets all the room there is).
+     *
+     * @param deadline {@link System#nanoTime()} to wait until for a frame, 0 not to wait, {@link Long#MAX_VALUE} forever
+     * @return the frame, or null if there is none by the deadline
+     */
+    private byte[] next(long deadline, int room) throws InterruptedException {
+        while (true) {
+            FrameQueue control = mQueues[CHANNEL_CONTROL];
+            byte[] frame = control.peek();
+            if (frame != null) {
+                if (frame.length > room) {
+                    return null; // 下一批再发
+                }
+                mPolled = control;
+                return control.poll();
+            }
+            if (hasSendableData()) {
+                return nextData(room);
+            }
+            if (deadline == 0) {
+                return null; // nanoTime() may be negative, don't compute a wait from 0
+            }
+            long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (mHeld) {
+                remaining = Math.min(remaining, Math.max(1, mHoldUntil - System.nanoTime())); // 到时间自己解除
+            }
+            mParked = true;
+            // Check again after announcing the park, or a frame queued in between would not wake us
+            if (control.isEmpty() && !hasSendableData()) {
+                if (remaining == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            mParked = false;
+            if (Thread.interrupted() || mClosed) {
+                throw new InterruptedException(); // close()
+            }
+        }
+    }
+
+    private boolean hasSendableData() {
+        for (int channel = CHANNEL_INTERACTIVE; channel < CHANNEL_COUNT; channel++) {
+            if (isSendable(channel, mQueues[channel].peek())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deficit round robin: the channel whose turn it is gets its quantum added once per turn and
+     * sends while its deficit covers the next frame; an idle (or credit blocked, or held) channel loses its
+     * deficit. Only called when at least one channel has a sendable frame.
+     *
+     * @return the frame, or null if the chosen frame does not fit into {@code room}
+     */
+    private byte[] nextData(int room) {
+        while (true) {
+            FrameQueue queue = mQueues[mCurrent];
+            byte[] head = queue.peek();
+            if (!isSendable(mCurrent, head)) {
+                mDeficit[mCurrent] = 0;
+                nextTurn();
+                continue;
+            }
+            if (head.length > room) {
+                // The batch is full. Stop before touching the deficits: a frame of another channel
+                // queued meanwhile must not find this one already paid for in the next batch
+                return null;
+            }
+            if (!mTurnStarted) {
+                mDeficit[mCurrent] += mQuantum[mCurrent];
+                mTurnStarted = true;
+            }
+            if (head.length > mDeficit[mCurrent]) {
+                nextTurn(); // 额度不够，攒到下一轮
+                continue;
+            }
+            queue.poll(); // 只有这个线程取，peek() 到的就是 poll() 出来的
+            mPolled = queue;
+            mDeficit[mCurrent] -= head.length;
+            if (isFlowControlled(head)) {
+                mDataSent++;
+            }
+            return head;
+        }
+    }
+
+    private void nextTurn() {
+        mCurrent = mCurrent + 1 < CHANNEL_COUNT ? mCurrent + 1 : CHANNEL_INTERACTIVE;
+        mTurnStarted = false;
+    }
+
+    private void writeBatch() throws IOException {
+        int size = 0;
+        for (int i = 0; i < mBatch.size(); i++) {
+            size += mBatch.get(i).length;
+        }
+        if (size > mBatchBuffer.length) {
+            // a single frame bigger than maxBatchBytes, it goes out on its own
+            mBatchBuffer = new byte[size];
+        }
+        FrameTransformer transformer = mTransformer;
+        int pos = 0;
+        for (int i = 0; i < mBatch.size(); i++) {
+            byte[] frame = mBatch.get(i);
+            if (transformer != null) {
+                pos += transformer.transform(frame, mBatchBuffer, pos);
+            } else {
+                System.arraycopy(frame, 0, mBatchBuffer, pos, frame.length);
+                pos += frame.length;
+            }
+        }
+
+        ChatMetrics metrics = mMetrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        mBatchTried = true;
+        mOutputStream.write(mBatchBuffer, 0, pos);
+        mOutputStream.flush();
+        if (metrics != null) {
+            metrics.onWrite(System.nanoTime() - start);
+        }
+        mWriteCalls++;
+        mFramesWritten += mBatch.size();
+        if (metrics != null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < mBatch.size(); i++) {
+                metrics.onChannelLatency(channelOf(mBatch.get(i)), now - mBatchQueuedNanos[i]);
+            }
+        }
+
+        if (mBatchBuffer.length > mMaxBatchBytes) {
+            mBatchBuffer = new byte[mMaxBatchBytes];
+        }
+
+        mCallback.onFramesWritten(mBatch);
+        mBatch.clear();
+        mBatchTried = false;
+    }
+}
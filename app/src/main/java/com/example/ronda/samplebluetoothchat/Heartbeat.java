@@ -0,0 +1,167 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pings the peer of a {@link ConnectedThread} every {@code intervalMillis} and declares the link
+ * dead after {@code maxMissed} beats without hearing anything back.
+ * <p>
+ * Without this a peer that walked out of range is only noticed when read() finally fails, which
+ * can take tens of seconds. A {@link FrameCodec#TYPE_PING} carries the sender's
+ * {@link System#nanoTime()}, the peer echoes it in a {@link FrameCodec#TYPE_PONG}, and the
+ * difference is an RTT sample for the {@link RttEstimator}. Any frame from the peer counts as a
+ * sign of life, so a busy link never times out just because a pong is stuck behind data.
+ * <p>
+ * Missed beats only count once the peer answered a first ping: an older peer that does not know
+ * pings simply ignores them, and must not be disconnected for that.
+ * <p>
+ * On a {@link ConnectionEngine} the thread is not started: the connection calls
+ * {@link #poll(long)} on every sweep instead, and the beat happens there.
+ * 和 FrameWriter 一样每个连接一个线程，大部分时间在 sleep()；用 ConnectionEngine 时不开线程
+ */
+public class Heartbeat extends Thread {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 2000;
+    public static final int  DEFAULT_MAX_MISSED      = 3;
+
+    // Payload of a ping / pong: the nanoTime of the ping sender
+    static final int PAYLOAD_LENGTH = 8;
+
+    private final ConnectedThread mConnection;
+    private final long            mIntervalMillis;
+    private final int             mMaxMissed;
+    private final RttEstimator    mRtt = new RttEstimator();
+
+    private final AtomicInteger mMissed = new AtomicInteger(); // pings sent since we last heard from the peer
+    private volatile boolean    mArmed;                        // the peer answered a ping
+    private volatile boolean    mClosed;
+    private long                mNextBeatNanos; // poll() only
+    private boolean             mPolled;        // poll() only: the first poll set mNextBeatNanos
+
+    /**
+     * @param intervalMillis time between two pings
+     * @param maxMissed      beats without any frame from the peer before the link is declared lost
+     */
+    public Heartbeat(ConnectedThread connection, long intervalMillis, int maxMissed) {
+        super("Heartbeat");
+        if (intervalMillis <= 0 || maxMissed < 1) {
+            throw new IllegalArgumentException("Bad heartbeat: " + intervalMillis + " ms, " + maxMissed + " beats");
+        }
+        mConnection = connection;
+        mIntervalMillis = intervalMillis;
+        mMaxMissed = maxMissed;
+        setDaemon(true);
+    }
+
+    public RttEstimator getRtt() {
+        return mRtt;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public int getMaxMissed() {
+        return mMaxMissed;
+    }
+
+    /**
+     * Beats in a row the peer has not answered (so far).
+     */
+    public int getMissed() {
+        return mMissed.get();
+    }
+
+    public void close() {
+        mClosed = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mClosed) {
+                Thread.sleep(mIntervalMillis);
+                if (mClosed || !beat()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() was called
+        }
+    }
+
+    /**
+     * Instead of running the thread: beat if an interval went by since the last beat. Called by
+     * the connection on every {@link ConnectionEngine} sweep, never by two threads at once.
+     */
+    void poll(long nowNanos) {
+        if (mClosed) {
+            return;
+        }
+        if (!mPolled) {
+            mPolled = true;
+            mNextBeatNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(mIntervalMillis);
+            return;
+        }
+        if (nowNanos - mNextBeatNanos < 0) {
+            return;
+        }
+        mNextBeatNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(mIntervalMillis);
+        if (!beat()) {
+            mClosed = true;
+        }
+    }
+
+    // One beat: give up on the peer, or ping it. Returns false once the link was declared lost
+    private boolean beat() {
+        int missed = mMissed.getAndIncrement();
+        if (mArmed && missed >= mMaxMissed) {
+            mConnection.onHeartbeatTimeout(missed);
+            return false;
+        }
+        mConnection.sendControlFrame(ping(System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * A frame arrived from the peer. Called by the reading thread for every frame.
+     */
+    void onHeard() {
+        if (mMissed.get() != 0) {
+            mMissed.set(0);
+        }
+    }
+
+    /**
+     * The peer answered a ping.
+     *
+     * @return the round-trip time in nanoseconds, or -1 if the pong is malformed
+     */
+    long onPong(ByteSlice payload) {
+        if (payload.length() != PAYLOAD_LENGTH) {
+            return -1;
+        }
+        long sent = FrameCodec.readLong(payload);
+        long rtt = System.nanoTime() - sent;
+        mRtt.onSample(rtt);
+        mArmed = true;
+        onHeard();
+        return rtt;
+    }
+
+    static byte[] ping(long nanos) {
+        return FrameCodec.encodeLong(FrameCodec.TYPE_PING, nanos);
+    }
+
+    /**
+     * The answer to a ping: the same payload, echoed back.
+     */
+    static byte[] pong(ByteSlice ping) {
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + ping.length()];
+        FrameCodec.writeHeader(frame, 0, FrameCodec.TYPE_PONG, ping.length());
+        ping.copyTo(frame, FrameCodec.HEADER_SIZE);
+        return frame;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the spirit of HdrHistogram: log-linear buckets with a fixed relative
+ * precision, so one small fixed array covers microseconds to hours.
+ * <p>
+ * Values are recorded in nanoseconds and kept with microsecond resolution. Below 32 us every
+ * microsecond has its own bucket; above that every power of two is split into 16 buckets, which
+ * keeps the error under about 6%. {@link #record(long)} is a few atomic increments: no lock, no
+ * allocation, safe from any number of threads. Reading goes through {@link #snapshot()}.
+ */
+public final class LatencyHistogram {
+
+    private static final int  SUB_BUCKET_BITS  = 4;
+    private static final int  SUB_BUCKETS      = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final int  LINEAR_BUCKETS   = 2 * SUB_BUCKETS;      // 0..31 us, one bucket each
+    private static final int  MAX_EXPONENT     = 35;                   // about 19 hours in us, bigger values are clamped
+    private static final int  BUCKET_COUNT     = LINEAR_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final long MAX_TRACKABLE_US = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      mCount  = new AtomicLong();
+    private final AtomicLong      mSumUs  = new AtomicLong();
+    private final AtomicLong      mMaxUs  = new AtomicLong();
+
+    /**
+     * Record one value. Negative values count as 0.
+     */
+    public void record(long nanos) {
+        long us = Math.min(Math.max(nanos / 1000, 0), MAX_TRACKABLE_US);
+        mCounts.incrementAndGet(bucketOf(us));
+        mCount.incrementAndGet();
+        mSumUs.addAndGet(us);
+        long max = mMaxUs.get();
+        while (us > max && !mMaxUs.compareAndSet(max, us)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    static int bucketOf(long us) {
+        if (us < LINEAR_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us); // >= 5
+        int sub = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest value (in us) that falls into {@code bucket}.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * A consistent enough copy for reporting. Values recorded while it is taken may or may not be in it.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mSumUs.get(), mMaxUs.get());
+    }
+
+    /**
+     * Frozen histogram, all values in microseconds.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long   mCount;
+        private final long   mSumUs;
+        private final long   mMaxUs;
+
+        Snapshot(long[] counts, long sumUs, long maxUs) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCounts = counts;
+            mCount = count;
+            mSumUs = sumUs;
+            mMaxUs = maxUs;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxMicros() {
+            return mMaxUs;
+        }
+
+        public long getMeanMicros() {
+            return mCount > 0 ? mSumUs / mCount : 0;
+        }
+
+        /**
+         * The value below which {@code percentile} percent of the recorded values fall (within the bucket precision).
+         */
+        public long getPercentileMicros(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), mMaxUs);
+                }
+            }
+            return mMaxUs;
+        }
+
+        /**
+         * {@code n=.. mean=.. p50=.. p90=.. p99=.. max=..}, in {@code unitMicros} units (1 for us, 1000 for ms).
+         */
+        public String format(long unitMicros) {
+            return "n=" + mCount
+                    + " mean=" + getMeanMicros() / unitMicros
+                    + " p50=" + getPercentileMicros(50) / unitMicros
+                    + " p90=" + getPercentileMicros(90) / unitMicros
+                    + " p99=" + getPercentileMicros(99) / unitMicros
+                    + " max=" + mMaxUs / unitMicros;
+        }
+    }
+}
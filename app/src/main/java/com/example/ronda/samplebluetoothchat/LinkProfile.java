@@ -0,0 +1,105 @@
+package com.example.ronda.samplebluetoothchat;
+
+/**
+ * How a {@link SimulatedRfcomm} link behaves: how fast it is, how late and how unevenly data
+ * arrives, in what pieces, how long a connect takes, and how often links fail.
+ * <p>
+ * The defaults are a fair phone-to-phone RFCOMM link in a quiet room: about 100 KB/s, 20 ms one
+ * way, packets of up to the usual RFCOMM MTU, and nothing ever fails.
+ */
+public class LinkProfile {
+
+    public static final int    DEFAULT_BYTES_PER_SECOND  = 100 * 1024;
+    public static final long   DEFAULT_LATENCY_MILLIS    = 20;
+    public static final long   DEFAULT_JITTER_MILLIS     = 10;
+    public static final int    DEFAULT_MAX_PACKET        = 990; // RFCOMM MTU of most Android devices
+    public static final int    DEFAULT_WINDOW            = 64 * 1024; // socket send + receive buffer
+    public static final long   DEFAULT_CONNECT_MILLIS    = 300;
+    public static final double DEFAULT_CONNECT_FAILURE   = 0;
+    public static final long   DEFAULT_MEAN_UPTIME_MILLIS = 0; // 0: links never break by themselves
+
+    private final int    mBytesPerSecond;
+    private final long   mLatencyMillis;
+    private final long   mJitterMillis;
+    private final int    mMaxPacket;
+    private final int    mWindow;
+    private final long   mConnectMillis;
+    private final double mConnectFailure;
+    private final long   mMeanUptimeMillis;
+
+    public LinkProfile() {
+        this(DEFAULT_BYTES_PER_SECOND, DEFAULT_LATENCY_MILLIS, DEFAULT_JITTER_MILLIS, DEFAULT_MAX_PACKET, DEFAULT_WINDOW,
+                DEFAULT_CONNECT_MILLIS, DEFAULT_CONNECT_FAILURE, DEFAULT_MEAN_UPTIME_MILLIS);
+    }
+
+    /**
+     * @param bytesPerSecond   bandwidth of each direction of a link
+     * @param latencyMillis    time from the end of sending a packet to its arrival
+     * @param jitterMillis     up to this much is added to the latency at random (packets stay in order)
+     * @param maxPacket        writes are cut into packets of 1 to this many bytes, chosen at random
+     * @param window           bytes written but not read yet before a write blocks
+     * @param connectMillis    how long a {@link Transport#connect()} takes
+     * @param connectFailure   fraction of connects that fail although the peer is listening, 0 to 1
+     * @param meanUptimeMillis average lifetime of a link before it breaks (exponentially
+     *                         distributed, like failures that don't remember), 0 for never
+     */
+    public LinkProfile(int bytesPerSecond, long latencyMillis, long jitterMillis, int maxPacket, int window,
+                       long connectMillis, double connectFailure, long meanUptimeMillis) {
+        if (bytesPerSecond < 1 || maxPacket < 1 || window < 1) {
+            throw new IllegalArgumentException("Bad bandwidth, packet size or window: " + bytesPerSecond + ", " + maxPacket + ", " + window);
+        }
+        if (latencyMillis < 0 || jitterMillis < 0 || connectMillis < 0 || meanUptimeMillis < 0) {
+            throw new IllegalArgumentException("Bad times");
+        }
+        if (connectFailure < 0 || connectFailure > 1) {
+            throw new IllegalArgumentException("Bad connect failure rate: " + connectFailure);
+        }
+        mBytesPerSecond = bytesPerSecond;
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+        mMaxPacket = maxPacket;
+        mWindow = window;
+        mConnectMillis = connectMillis;
+        mConnectFailure = connectFailure;
+        mMeanUptimeMillis = meanUptimeMillis;
+    }
+
+    public int getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    public int getMaxPacket() {
+        return mMaxPacket;
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    public long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public double getConnectFailure() {
+        return mConnectFailure;
+    }
+
+    public long getMeanUptimeMillis() {
+        return mMeanUptimeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mBytesPerSecond / 1024 + " KB/s, " + mLatencyMillis + "+" + mJitterMillis + " ms, packets <= " + mMaxPacket
+                + " B, window " + mWindow / 1024 + " KB, connect " + mConnectMillis + " ms (" + Math.round(mConnectFailure * 100)
+                + "% fail), " + (mMeanUptimeMillis > 0 ? "links last " + mMeanUptimeMillis / 1000 + " s on average" : "links never break");
+    }
+}
@@ -2,10 +2,8 @@ package com.example.ronda.samplebluetoothchat;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Handler;
-import android.os.Message;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -14,7 +12,6 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -23,8 +20,13 @@ import android.widget.Toast;
 
 import com.socks.library.KLog;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
 /**
- *  1. MainActivity 和 BluetoothChatService 的通信是通过 Handler 完成的 （在 MainActivity 中创建 handler， 然后通过构造器传给 BluetoothChatService）
+ *  1. MainActivity 和 BluetoothChatService 的通信是通过 {@link BluetoothChatService.Listener} 完成的（通过构造器传给 BluetoothChatService），
+ *  -- 有事件时 BluetoothChatService 只通知一次，MainActivity 过一帧的时间在主线程调用 dispatchEvents() 一起处理
  *  2. MainActivity 和 DeviceListActivity 的通信是通过 startActivityForResult() 完成的
  */
 public class MainActivity extends AppCompatActivity {
@@ -34,16 +36,26 @@ public class MainActivity extends AppCompatActivity {
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT               = 3;
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Events are dispatched at most once per display frame (60 fps), so a burst of messages updates the ListView once
+    private static final long DISPATCH_INTERVAL_MILLIS = 16;
+
     // Layout Views
     private ListView mConversationListView;
     private EditText mOutEditText;
     private Button   mSendButton;
 
     private String mConnectedDeviceName = null;
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    private ChatHistory        mConversationHistory;  // 只在内存里保留最近的消息，更早的写到缓存文件里
+    private ChatHistoryAdapter mConversationAdapter;
     private BluetoothAdapter mBluetoothAdapter = null;
 
     private BluetoothChatService mChatService = null;
+    private MessageLogStore      mMessageLog;  // 每个设备的完整聊天记录（追加写），重新打开很快
+    private FileTransferManager  mFileTransfers; // 收到的文件放在 files/received 下
+    private ConnectionEngine     mEngine;        // 所有连接共用的几个线程，跟 Activity 同生命周期
+    private boolean              mConversationChanged; // dispatchEvents() 里加了消息，处理完再刷新 ListView
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,8 +68,9 @@ public class MainActivity extends AppCompatActivity {
         mOutEditText = (EditText) findViewById(R.id.edit_text_out);
         mSendButton = (Button) findViewById(R.id.btn_send);
 
-        mConversationArrayAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
-        mConversationListView.setAdapter(mConversationArrayAdapter);
+        mConversationHistory = new ChatHistory(new File(getCacheDir(), "conversation.spill"));
+        mConversationAdapter = new ChatHistoryAdapter(this, mConversationHistory);
+        mConversationListView.setAdapter(mConversationAdapter);
 
         // 监听软键盘的 Enter 键
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -79,7 +92,13 @@ public class MainActivity extends AppCompatActivity {
 
         openBluetooth();
 
-        mChatService = new BluetoothChatService(mHandler); // 创建 BluetoothChatService 对象，然后在 onResume 启动
+        mChatService = new BluetoothChatService(mChatListener, new RfcommTransportProvider(mBluetoothAdapter)); // 创建 BluetoothChatService 对象，然后在 onResume 启动
+        mMessageLog = new MessageLogStore(new File(getFilesDir(), "messages"));
+        mChatService.setMessageLog(mMessageLog);
+        mFileTransfers = new FileTransferManager(new File(getFilesDir(), "received"), mFileTransferListener);
+        mChatService.setFileTransfers(mFileTransfers);
+        mEngine = new ConnectionEngine();
+        mChatService.setConnectionEngine(mEngine);
     }
 
 
@@ -100,10 +119,22 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mDispatchEvents);
         if (mChatService != null) {
             KLog.e("onDestroy");
             mChatService.stop();
+            KLog.d("metrics:\n" + mChatService.getMetrics());
+        }
+        if (mMessageLog != null) {
+            mMessageLog.close();
         }
+        if (mFileTransfers != null) {
+            mFileTransfers.close();
+        }
+        if (mEngine != null) {
+            mEngine.shutdown();
+        }
+        mConversationHistory.close();
     }
 
     @Override
@@ -165,8 +196,17 @@ public class MainActivity extends AppCompatActivity {
         // Check that there's actually something to send
         if (message.length() > 0) {
             // Get the message bytes and tell the BluetoothChatService to write
-            byte[] send = message.getBytes();
-            mChatService.write(send);
+            byte[] send = message.getBytes(UTF_8); // 明确用 UTF-8，接收方 PooledFrame 也按 UTF-8 解码
+            boolean queued;
+            try {
+                queued = mChatService.write(send);
+            } catch (IllegalStateException e) {
+                queued = false; // OverflowPolicy.FAIL: a full queue throws instead of returning false
+            }
+            if (!queued) {
+                Toast.makeText(this, "Too many messages waiting to be sent", Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             //clear the edit text field
             mOutEditText.setText("");
@@ -182,47 +222,120 @@ public class MainActivity extends AppCompatActivity {
         actionBar.setSubtitle(subTitle);
     }
 
-    private final Handler mHandler = new Handler() {
+    private final Handler mHandler = new Handler();
+
+    // Runs on the main thread: hands everything BluetoothChatService collected to mChatListener
+    private final Runnable mDispatchEvents = new Runnable() {
         @Override
-        public void handleMessage(Message msg) {
-            AppCompatActivity activity = MainActivity.this;
-            switch (msg.what) {
-                case Constants.MESSAGE_STATE_CHANGE:
-                    switch (msg.arg1) {
-                        case BluetoothChatService.STATE_CONNECTED:
-                            mConnectedDeviceName = msg.obj.toString();// 此时 obj 的值是 remoteDeviceName, 不为 null
-                            setStatus("connect to " + mConnectedDeviceName);
-                            mConversationArrayAdapter.clear();
-                            Toast.makeText(activity, "connected to " + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
-                            break;
-                        case BluetoothChatService.STATE_CONNECTING:
-                            setStatus("connecting...");
-                            break;
-                        case BluetoothChatService.STATE_LISTEN:
-                        case BluetoothChatService.STATE_NONE:
-                            setStatus("not connected");
-                            break;
+        public void run() {
+            mChatService.dispatchEvents();
+            if (mConversationChanged) {
+                mConversationChanged = false;
+                mConversationAdapter.notifyDataSetChanged();
+            }
+        }
+    };
+
+    /**
+     * Everything but onEventsPending() is called on the main thread, from {@link #mDispatchEvents}.
+     */
+    private final BluetoothChatService.Listener mChatListener = new BluetoothChatService.Listener() {
+        @Override
+        public void onEventsPending() {
+            mHandler.postDelayed(mDispatchEvents, DISPATCH_INTERVAL_MILLIS);
+        }
+
+        @Override
+        public void onStateChanged(int state, int connectedCount, String deviceName) {
+            switch (state) {
+                case BluetoothChatService.STATE_CONNECTED:
+                    mConnectedDeviceName = deviceName; // 刚连上的设备的 remoteDeviceName, 不为 null
+                    if (connectedCount <= 1) {
+                        // 第一个设备连上，开始新的会话
+                        setStatus("connect to " + mConnectedDeviceName);
+                        mConversationHistory.clear();
+                        mConversationChanged = true;
+                    } else {
+                        setStatus("connected to " + connectedCount + " devices");
                     }
+                    Toast.makeText(MainActivity.this, "connected to " + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                     break;
-
-                case Constants.MESSAGE_WRITE:
-                    String writeMessage = (String) msg.obj;
-                    mConversationArrayAdapter.add("Me:   " + writeMessage);
+                case BluetoothChatService.STATE_CONNECTING:
+                    setStatus("connecting...");
                     break;
-
-                case Constants.MESSAGE_READ:
-//                    byte[] readBuf = (byte[]) msg.obj;
-//                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    String readMessage = (String) msg.obj;
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":   " + readMessage);
+                case BluetoothChatService.STATE_LISTEN:
+                case BluetoothChatService.STATE_NONE:
+                    setStatus("not connected");
                     break;
+            }
+        }
+
+        @Override
+        public void onFrameReceived(PooledFrame frame) {
+            addToConversation(frame);
+        }
 
-                case Constants.MESSAGE_TOAST: // 接收连接时失败 和 已连接后又中断 的情况
-                    Toast.makeText(activity, msg.getData().getString(Constants.TOAST), Toast.LENGTH_SHORT).show();
+        @Override
+        public void onFrameSent(PooledFrame frame) {
+            addToConversation(frame);
+        }
+
+        @Override
+        public void onReconnected(String address, long millis) {
+            Toast.makeText(MainActivity.this, "Reconnected after " + millis + " ms", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onError(int error, String address, String message) {
+            if (error == BluetoothChatService.ERROR_CONNECTION_LOST) {
+                KLog.d("trace:\n" + mChatService.getTracer().dump()); // 断线前发生了什么
             }
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_SHORT).show(); // 连接时失败 和 已连接后又中断 的情况
+        }
+    };
+
+    /**
+     * Called on background threads; only the end of a transfer is shown, as a toast.
+     */
+    private final FileTransferManager.Listener mFileTransferListener = new FileTransferManager.Listener() {
+        @Override
+        public void onProgress(long id, String address, String name, long done, long total, boolean incoming) {
+        }
+
+        @Override
+        public void onComplete(long id, String address, File file, boolean incoming) {
+            showToast((incoming ? "Received " : "Sent ") + file.getName());
+        }
+
+        @Override
+        public void onFailed(long id, String address, String name, IOException e, boolean incoming) {
+            showToast("Transfer of " + name + " failed: " + e.getMessage());
+        }
+
+        private void showToast(final String text) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(MainActivity.this, text, Toast.LENGTH_SHORT).show();
+                }
+            });
         }
     };
 
+    /**
+     * Add a text message to the conversation; the ListView is updated once, after the whole dispatch.
+     * The history decides what stays in memory; the adapter formats the lines when they are shown.
+     */
+    private void addToConversation(PooledFrame frame) {
+        if (frame.getType() == FrameCodec.TYPE_TEXT) {
+            // 发出去的消息每个设备各有一条，连了多个设备时标出是发给谁的
+            String peer = frame.getRemoteAddress() != null ? mChatService.getRemoteName(frame.getRemoteAddress()) : mConnectedDeviceName;
+            boolean showPeer = !frame.isOutgoing() || mChatService.getConnections().connectedCount() > 1;
+            mConversationHistory.add(new ChatHistory.Entry(frame.isOutgoing(), showPeer ? peer : null, frame.getText()));
+            mConversationChanged = true;
+        }
+        frame.recycle(); // 用完后一定要 recycle()，缓冲区会被读线程复用
+    }
 
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -258,11 +371,8 @@ public class MainActivity extends AppCompatActivity {
         // Get the device MAC address
         String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
 
-        // Get the BluetoothDevice object
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-
         // Attempt to connect to the device
-        mChatService.connect(device);
+        mChatService.connect(address);
     }
 
     @Override
@@ -0,0 +1,164 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded in-memory byte pipe: one ring buffer with a blocking {@link InputStream} on one end
+ * and a blocking {@link OutputStream} on the other.
+ * <p>
+ * Unlike java.io.PipedInputStream it wakes the reader as soon as data is written and does not
+ * care which threads are reading or writing, so the reader and writer threads of a connection
+ * can come and go freely.
+ * <p>
+ * Closing the write end lets the reader drain what is left and then see the end of the stream;
+ * closing the read end makes both sides fail with an IOException, like a reset socket.
+ */
+public class MemoryPipe {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final byte[] mBuffer;
+    private int          mReadPos;
+    private int          mCount;
+    private boolean      mWriteClosed;
+    private boolean      mReadClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return MemoryPipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MemoryPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return MemoryPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeRead();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            MemoryPipe.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MemoryPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWrite();
+        }
+    };
+
+    public MemoryPipe() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MemoryPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * Writer is done: the reader gets the rest of the data, then -1.
+     */
+    public synchronized void closeWrite() {
+        mWriteClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Reader is gone: pending and further reads and writes fail.
+     */
+    public synchronized void closeRead() {
+        mReadClosed = true;
+        mCount = 0;
+        notifyAll();
+    }
+
+    synchronized int available() throws IOException {
+        if (mReadClosed) {
+            throw new IOException("Pipe closed");
+        }
+        return mCount;
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        try {
+            while (mCount == 0) {
+                if (mReadClosed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (mWriteClosed) {
+                    return -1;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (mReadClosed) {
+            throw new IOException("Pipe closed");
+        }
+
+        int n = Math.min(len, mCount);
+        int first = Math.min(n, mBuffer.length - mReadPos);
+        System.arraycopy(mBuffer, mReadPos, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, n - first);
+        mReadPos = (mReadPos + n) % mBuffer.length;
+        mCount -= n;
+        notifyAll();
+        return n;
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                while (mCount == mBuffer.length && !mReadClosed && !mWriteClosed) {
+                    wait();
+                }
+                if (mReadClosed || mWriteClosed) {
+                    throw new IOException("Pipe closed");
+                }
+
+                int n = Math.min(len, mBuffer.length - mCount);
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int first = Math.min(n, mBuffer.length - writePos);
+                System.arraycopy(b, off, mBuffer, writePos, first);
+                System.arraycopy(b, off + first, mBuffer, 0, n - first);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link Transport} made of two {@link MemoryPipe}s, for running the chat data path on a plain JVM
+ * (unit tests, benchmarks) without any Bluetooth hardware.
+ */
+public class MemoryTransport implements Transport {
+
+    private final MemoryPipe mIn;
+    private final MemoryPipe mOut;
+    private final String     mRemoteAddress;
+    private final String     mRemoteName;
+
+    MemoryTransport(MemoryPipe in, MemoryPipe out, String remoteAddress, String remoteName) {
+        mIn = in;
+        mOut = out;
+        mRemoteAddress = remoteAddress;
+        mRemoteName = remoteName;
+    }
+
+    /**
+     * Create two connected ends. Whatever is written to one of them can be read from the other.
+     *
+     * @return {@code [0]} is the end of device A (its remote is B), {@code [1]} the end of device B
+     */
+    public static MemoryTransport[] pair(String addressA, String addressB, int pipeCapacity) {
+        MemoryPipe aToB = new MemoryPipe(pipeCapacity);
+        MemoryPipe bToA = new MemoryPipe(pipeCapacity);
+        return new MemoryTransport[]{
+                new MemoryTransport(bToA, aToB, addressB, addressB),
+                new MemoryTransport(aToB, bToA, addressA, addressA)
+        };
+    }
+
+    public static MemoryTransport[] pair(String addressA, String addressB) {
+        return pair(addressA, addressB, MemoryPipe.DEFAULT_CAPACITY);
+    }
+
+    @Override
+    public void connect() {
+        // already connected when created
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    public String getRemoteName() {
+        return mRemoteName;
+    }
+
+    @Override
+    public void close() {
+        mIn.closeRead();
+        mOut.closeWrite();
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+
+/**
+ * Reads the messages written by {@link MessageEncoder} out of a byte range, without copying it.
+ * <p>
+ * {@link #reset(byte[], int, int)} points the decoder at the input (a {@link FrameCodec#TYPE_MESSAGE}
+ * payload may hold several messages), then for each message: {@link #next()}, look at
+ * {@link #getType()} / {@link #getVersion()}, and read the fields in the order they were written.
+ * Fields left unread (written by a newer version) are skipped by the next {@link #next()}.
+ * Strings are decoded into a {@link Utf8Decoder} the caller keeps, byte arrays come back as a
+ * {@link ByteSlice} view, so a decoder set up once reads any number of messages without
+ * allocating. Not thread safe.
+ */
+public final class MessageDecoder {
+
+    private byte[] mBuffer;
+    private int    mPosition;
+    private int    mLimit; // end of the input
+    private int    mEnd;   // end of the current message
+    private int    mType = -1;
+    private int    mVersion;
+
+    public MessageDecoder() {
+    }
+
+    /**
+     * Read the messages in {@code length} bytes of {@code src} from {@code offset}.
+     */
+    public void reset(byte[] src, int offset, int length) {
+        mBuffer = src;
+        mPosition = offset;
+        mEnd = offset;
+        mLimit = offset + length;
+        mType = -1;
+    }
+
+    /**
+     * Same as {@link #reset(byte[], int, int)} for the bytes of {@code payload}.
+     */
+    public void reset(ByteSlice payload) {
+        reset(payload.array(), payload.offset(), payload.length());
+    }
+
+    /**
+     * Move to the next message, skipping whatever is left of the current one.
+     *
+     * @return false if there are no more messages
+     * @throws IOException if the header is cut off or the length runs past the input
+     */
+    public boolean next() throws IOException {
+        mPosition = mEnd;
+        if (mPosition >= mLimit) {
+            mType = -1;
+            return false;
+        }
+        mEnd = mLimit; // the header must fit into the input
+        mType = readSize();
+        mVersion = readSize();
+        int length = readSize();
+        if (length > mLimit - mPosition) {
+            throw new IOException("Message of " + length + " bytes, only " + (mLimit - mPosition) + " left");
+        }
+        mEnd = mPosition + length;
+        return true;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * True if the current message has fields left: check before reading a field that an older
+     * version of the writer does not send.
+     */
+    public boolean hasMoreFields() {
+        return mPosition < mEnd;
+    }
+
+    public long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public long readSigned() throws IOException {
+        long raw = readVarint();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public int readInt() throws IOException {
+        long value = readSigned();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IOException("Int out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    public long readLong() throws IOException {
+        return readSigned();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public float readFloat() throws IOException {
+        need(4);
+        int bits = 0;
+        for (int i = 0; i < 4; i++) {
+            bits = (bits << 8) | (mBuffer[mPosition++] & 0xFF);
+        }
+        return Float.intBitsToFloat(bits);
+    }
+
+    public double readDouble() throws IOException {
+        need(8);
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (mBuffer[mPosition++] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Point {@code out} at the next byte array field; valid as long as the input is.
+     */
+    public ByteSlice readBytes(ByteSlice out) throws IOException {
+        int length = readSize();
+        need(length);
+        out.set(mBuffer, mPosition, length);
+        mPosition += length;
+        return out;
+    }
+
+    /**
+     * Decode the next string field into {@code out}, replacing what it held.
+     */
+    public Utf8Decoder readString(Utf8Decoder out) throws IOException {
+        int length = readSize();
+        need(length);
+        out.reset();
+        out.decode(mBuffer, mPosition, length);
+        out.flush();
+        mPosition += length;
+        return out;
+    }
+
+    /**
+     * The next string field as a new String.
+     */
+    public String readString() throws IOException {
+        return readString(new Utf8Decoder(16)).toString();
+    }
+
+    // A length or header field: a varint that has to fit into an int
+    private int readSize() throws IOException {
+        long value = readVarint();
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Size out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    private byte readByte() throws IOException {
+        need(1);
+        return mBuffer[mPosition++];
+    }
+
+    // Before next() the current message is empty, so reading fails here too
+    private void need(int bytes) throws IOException {
+        if (bytes > mEnd - mPosition) {
+            throw new IOException("Field runs past the end of the message");
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.ronda.samplebluetoothchat;
+
+/**
+ * Writes typed binary messages into a buffer it keeps across messages, the sending half of
+ * {@link MessageDecoder}.
+ * <p>
+ * A message is a header of three varints followed by its fields:
+ * <pre>
+ * +--------------+-----------------+-----------------+---------------------+
+ * | type (varint)| version (varint)| length (varint) | fields (length)     |
+ * +--------------+-----------------+-----------------+---------------------+
+ * </pre>
+ * Fields have no tags: a message type is a fixed list of fields read back in the order they were
+ * written. Integers are varints (signed ones zigzag encoded, so small negative numbers stay small),
+ * floats and doubles are 4 and 8 bytes big-endian, strings and byte arrays are a varint length
+ * followed by the bytes (UTF-8 for strings). Nothing is boxed and, once the buffer has grown to the
+ * biggest message, nothing is allocated.
+ * <p>
+ * Versioning: a new version of a message type only ever adds fields at the end. An older reader
+ * stops after the fields it knows and the rest is skipped thanks to the length; a newer reader
+ * checks {@link MessageDecoder#hasMoreFields()} before reading a field an older writer may not
+ * have sent. For anything else (removing or changing a field) bump the version and let readers
+ * look at {@link MessageDecoder#getVersion()}, or use a new type.
+ * <p>
+ * Use: {@link #begin(int, int)}, the {@code write*} calls, {@link #end()}, then take the bytes
+ * with {@link #getBuffer()} / {@link #getOffset()} / {@link #getLength()} or
+ * {@link #toFrame()}. Not thread safe.
+ * 遥测数据以前是拼字符串发的，又占带宽又费 CPU，用这个发二进制
+ */
+public final class MessageEncoder {
+
+    // type, version and length, at most 5 bytes each; the header is written in front of the fields by end()
+    private static final int MAX_HEADER_SIZE = 15;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[] mBuffer;
+    private int    mPosition;
+    private int    mType;
+    private int    mVersion;
+    private int    mStart = MAX_HEADER_SIZE; // first byte of the finished message
+    private int    mLength;                   // of the finished message, -1 while one is being written
+
+    public MessageEncoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public MessageEncoder(int capacity) {
+        mBuffer = new byte[Math.max(capacity, MAX_HEADER_SIZE + 16)];
+    }
+
+    /**
+     * Start a message, dropping the previous one.
+     */
+    public void begin(int type, int version) {
+        if (type < 0 || version < 0) {
+            throw new IllegalArgumentException("Bad type " + type + " or version " + version);
+        }
+        mType = type;
+        mVersion = version;
+        mPosition = MAX_HEADER_SIZE;
+        mLength = -1;
+    }
+
+    /**
+     * Finish the message: write its header in front of the fields.
+     *
+     * @return the length of the whole message, header included
+     */
+    public int end() {
+        if (mLength >= 0) {
+            throw new IllegalStateException("No message started");
+        }
+        int fields = mPosition - MAX_HEADER_SIZE;
+        int header = varintSize(mType) + varintSize(mVersion) + varintSize(fields);
+        mStart = MAX_HEADER_SIZE - header;
+        int pos = putVarint(mBuffer, mStart, mType);
+        pos = putVarint(mBuffer, pos, mVersion);
+        putVarint(mBuffer, pos, fields);
+        mLength = header + fields;
+        return mLength;
+    }
+
+    /**
+     * An unsigned varint: 7 bits per byte, low bits first. Negative values take 10 bytes, use
+     * {@link #writeSigned(long)} for them.
+     */
+    public void writeVarint(long value) {
+        ensureRoom(10);
+        mPosition = putVarint(mBuffer, mPosition, value);
+    }
+
+    /**
+     * A signed integer, zigzag encoded: -1 takes one byte, like 1.
+     */
+    public void writeSigned(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public void writeInt(int value) {
+        writeSigned(value);
+    }
+
+    public void writeLong(long value) {
+        writeSigned(value);
+    }
+
+    public void writeBoolean(boolean value) {
+        ensureRoom(1);
+        mBuffer[mPosition++] = (byte) (value ? 1 : 0);
+    }
+
+    public void writeFloat(float value) {
+        ensureRoom(4);
+        int bits = Float.floatToIntBits(value);
+        for (int i = 0; i < 4; i++) {
+            mBuffer[mPosition++] = (byte) (bits >>> (24 - 8 * i));
+        }
+    }
+
+    public void writeDouble(double value) {
+        ensureRoom(8);
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            mBuffer[mPosition++] = (byte) (bits >>> (56 - 8 * i));
+        }
+    }
+
+    public void writeBytes(byte[] src, int offset, int length) {
+        writeVarint(length);
+        ensureRoom(length);
+        System.arraycopy(src, offset, mBuffer, mPosition, length);
+        mPosition += length;
+    }
+
+    /**
+     * A string as UTF-8, encoded straight into the buffer (no intermediate byte[]). An unpaired
+     * surrogate is written as '?', like {@code String.getBytes()} does.
+     */
+    public void writeString(CharSequence value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        writeVarint(bytes);
+        ensureRoom(bytes);
+        byte[] buffer = mBuffer;
+        int pos = mPosition;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (isSurrogate(c)) {
+                buffer[pos++] = '?';
+            } else {
+                buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        mPosition = pos;
+    }
+
+    /**
+     * The buffer holding the finished message at {@link #getOffset()}; valid until the next {@link #begin(int, int)}.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getOffset() {
+        return mStart;
+    }
+
+    public int getLength() {
+        if (mLength < 0) {
+            throw new IllegalStateException("Message not finished, call end()");
+        }
+        return mLength;
+    }
+
+    /**
+     * The finished message in a {@link FrameCodec#TYPE_MESSAGE} frame, ready for
+     * {@link ConnectedThread#writeFrame(byte[])}.
+     */
+    public byte[] toFrame() {
+        return FrameCodec.encode(FrameCodec.TYPE_MESSAGE, mBuffer, mStart, getLength());
+    }
+
+    private void ensureRoom(int bytes) {
+        if (mPosition + bytes > mBuffer.length) {
+            byte[] grown = new byte[Math.max(mPosition + bytes, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, grown, 0, mPosition);
+            mBuffer = grown;
+        }
+    }
+
+    private static int putVarint(byte[] dst, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    // Character.isSurrogate() is API 19
+    private static boolean isSurrogate(char c) {
+        return c >= 0xD800 && c <= 0xDFFF;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,550 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the frames exchanged with one remote device.
+ * <p>
+ * Every record gets a sequence number (0, 1, 2, ... for the lifetime of the log). Records are
+ * stored in segment files named after the sequence number of their first record
+ * ({@code 00000000000000000000.log}); a segment is closed once it reaches
+ * {@link #DEFAULT_SEGMENT_BYTES}. Each segment has a sparse index ({@code .idx}) holding the file
+ * position of every {@link #INDEX_INTERVAL}th record, so a read seeks close to its start and a
+ * reopen only has to scan the tail of the last segment.
+ * <p>
+ * {@link #append} only copies the record into a memory buffer. {@link MessageLogStore}'s flusher
+ * thread moves the buffer to the file with one FileChannel write per group of records (group
+ * commit), so appending from the receive loop costs a memcpy, not a disk write.
+ * <p>
+ * Record layout: payload length (int), CRC32 of the rest (int), timestamp in ms (long),
+ * flags (byte, bit 0 = outgoing), frame type (byte), payload.
+ */
+public class MessageLog {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    // One index entry every this many records
+    public static final int INDEX_INTERVAL = 64;
+
+    // Appenders write the pending records themselves once this much is waiting
+    static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    static final int RECORD_HEADER_SIZE = 18;
+
+    private static final int FLAG_OUTGOING = 1;
+
+    private static final String LOG_SUFFIX   = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Receives records from {@link #read}. The payload is only valid during the call.
+     */
+    public interface RecordVisitor {
+        /**
+         * @return false to stop reading
+         */
+        boolean onRecord(long sequence, long timestamp, boolean outgoing, int type, ByteSlice payload);
+    }
+
+    /**
+     * One segment file and its sparse index.
+     */
+    private static final class Segment {
+        final long baseSequence;
+        final File logFile;
+        final File indexFile;
+        int[]      indexRelative = new int[16]; // record number within the segment
+        int[]      indexPosition = new int[16]; // file position of that record
+        int        indexCount;
+        long       size;                        // bytes of valid records
+        long       recordCount;
+
+        Segment(File dir, long baseSequence) {
+            this.baseSequence = baseSequence;
+            String name = String.format(Locale.US, "%020d", baseSequence);
+            logFile = new File(dir, name + LOG_SUFFIX);
+            indexFile = new File(dir, name + INDEX_SUFFIX);
+        }
+
+        void addIndexEntry(int relative, int position) {
+            if (indexCount == indexRelative.length) {
+                indexRelative = Arrays.copyOf(indexRelative, indexCount * 2);
+                indexPosition = Arrays.copyOf(indexPosition, indexCount * 2);
+            }
+            indexRelative[indexCount] = relative;
+            indexPosition[indexCount] = position;
+            indexCount++;
+        }
+
+        /**
+         * Index entry at or before {@code relative}, or -1.
+         */
+        int floorIndexEntry(int relative) {
+            int lo = 0;
+            int hi = indexCount - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexRelative[mid] <= relative) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+
+    private final File          mDir;
+    private final long          mSegmentBytes;
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    // Append side, guarded by "this"
+    private byte[]   mPending = new byte[16 * 1024];
+    private int      mPendingLength;
+    private byte[]   mFlushing = new byte[16 * 1024];
+    private long     mNextSequence;
+    private final CRC32 mCrc = new CRC32();
+
+    // Flush side, guarded by mFlushLock
+    private final Object mFlushLock = new Object();
+    private FileChannel  mLogChannel;
+    private FileChannel  mIndexChannel;
+    private final ByteBuffer mIndexEntry = ByteBuffer.allocate(8);
+    private ByteBuffer   mReadBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteSlice mReadSlice = new ByteSlice();
+
+    /**
+     * Open (or create) the log stored in {@code dir} and recover its tail.
+     */
+    public MessageLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public MessageLog(File dir, long segmentBytes) throws IOException {
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        openSegments();
+    }
+
+    /**
+     * Sequence number the next appended record will get; also the number of records in the log.
+     */
+    public synchronized long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * Queue a record. Cheap enough to be called from the receive loop: it only copies into memory,
+     * unless {@link #MAX_PENDING_BYTES} are already waiting, in which case the caller writes them
+     * out itself instead of letting the buffer grow without bound.
+     *
+     * @return the sequence number of the record
+     */
+    public long append(boolean outgoing, int type, ByteSlice payload) throws IOException {
+        flushIfFull();
+        return append(outgoing, type, payload, null, 0, payload.length());
+    }
+
+    public long append(boolean outgoing, int type, byte[] payload, int offset, int length) throws IOException {
+        flushIfFull();
+        return append(outgoing, type, null, payload, offset, length);
+    }
+
+    private void flushIfFull() throws IOException {
+        if (pendingBytes() >= MAX_PENDING_BYTES) {
+            flush(false); // 刷盘线程跟不上（或者根本没有），自己写
+        }
+    }
+
+    private synchronized long append(boolean outgoing, int type, ByteSlice slice, byte[] array, int offset, int length) {
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (mPendingLength + recordSize > mPending.length) {
+            mPending = Arrays.copyOf(mPending, Math.max(mPending.length * 2, mPendingLength + recordSize));
+        }
+
+        int pos = mPendingLength;
+        byte[] buf = mPending;
+        int payloadPos = pos + RECORD_HEADER_SIZE;
+        if (slice != null) {
+            slice.copyTo(buf, payloadPos);
+        } else {
+            System.arraycopy(array, offset, buf, payloadPos, length);
+        }
+        putInt(buf, pos, length);
+        putLong(buf, pos + 8, System.currentTimeMillis());
+        buf[pos + 16] = (byte) (outgoing ? FLAG_OUTGOING : 0);
+        buf[pos + 17] = (byte) type;
+        mCrc.reset();
+        mCrc.update(buf, pos + 8, recordSize - 8);
+        putInt(buf, pos + 4, (int) mCrc.getValue());
+
+        mPendingLength += recordSize;
+        return mNextSequence++;
+    }
+
+    /**
+     * Bytes appended but not written to the file yet.
+     */
+    public synchronized int pendingBytes() {
+        return mPendingLength;
+    }
+
+    /**
+     * Write everything appended so far to the segment files (one group commit).
+     *
+     * @param sync also force the data to the storage device
+     */
+    public void flush(boolean sync) throws IOException {
+        synchronized (mFlushLock) {
+            byte[] batch;
+            int length;
+            synchronized (this) {
+                if (mPendingLength == 0) {
+                    return;
+                }
+                batch = mPending;
+                length = mPendingLength;
+                mPending = mFlushing;
+                mPendingLength = 0;
+                mFlushing = batch;
+            }
+
+            writeRecords(batch, length);
+            if (sync) {
+                mLogChannel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Visit up to {@code maxCount} records starting at {@code fromSequence}, oldest first.
+     * Flushes pending records first, so everything appended before the call is visible.
+     *
+     * @return the number of records visited
+     */
+    public int read(long fromSequence, int maxCount, RecordVisitor visitor) throws IOException {
+        flush(false);
+        synchronized (mFlushLock) {
+            int visited = 0;
+            int segmentIndex = findSegment(fromSequence);
+            long sequence = Math.max(fromSequence, 0);
+            while (segmentIndex >= 0 && segmentIndex < mSegments.size() && visited < maxCount) {
+                Segment segment = mSegments.get(segmentIndex);
+                int n = readSegment(segment, sequence, maxCount - visited, visitor);
+                if (n < 0) {
+                    return visited - n - 1; // visitor asked to stop
+                }
+                visited += n;
+                sequence = segment.baseSequence + segment.recordCount;
+                segmentIndex++;
+            }
+            return visited;
+        }
+    }
+
+    /**
+     * Flush and close the files. Appending afterwards is not allowed.
+     */
+    public void close() throws IOException {
+        flush(true);
+        synchronized (mFlushLock) {
+            closeChannels();
+        }
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = mDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(LOG_SUFFIX);
+            }
+        });
+        List<Long> bases = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(bases, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return a < b ? -1 : (a > b ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = new Segment(mDir, bases.get(i));
+            loadIndex(segment);
+            if (i + 1 < bases.size()) {
+                // sealed segment: its records end where the next one starts
+                segment.recordCount = bases.get(i + 1) - segment.baseSequence;
+                segment.size = segment.logFile.length();
+            } else {
+                recoverTail(segment);
+            }
+            mSegments.add(segment);
+        }
+
+        if (mSegments.isEmpty()) {
+            mSegments.add(new Segment(mDir, 0));
+        }
+        Segment last = mSegments.get(mSegments.size() - 1);
+        mNextSequence = last.baseSequence + last.recordCount;
+        openChannels(last);
+    }
+
+    private void loadIndex(Segment segment) throws IOException {
+        if (!segment.indexFile.exists()) {
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(segment.indexFile, "r");
+        try {
+            int entries = (int) (file.length() / 8);
+            byte[] bytes = new byte[entries * 8];
+            file.readFully(bytes);
+            long logLength = segment.logFile.length();
+            for (int i = 0; i < entries; i++) {
+                int relative = getInt(bytes, i * 8);
+                int position = getInt(bytes, i * 8 + 4);
+                if (position >= logLength) {
+                    break; // index written but the records behind it never made it
+                }
+                segment.addIndexEntry(relative, position);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Scan the last segment from its last index entry, drop a torn record at the end, and rebuild
+     * any index entries that were lost.
+     */
+    private void recoverTail(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.logFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            int start = segment.indexCount == 0 ? 0 : segment.indexCount - 1;
+            long position = segment.indexCount == 0 ? 0 : segment.indexPosition[start];
+            long relative = segment.indexCount == 0 ? 0 : segment.indexRelative[start];
+            long length = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+
+            while (position + RECORD_HEADER_SIZE <= length) {
+                header.clear();
+                readFully(channel, header, position);
+                int payloadLength = header.getInt(0);
+                if (payloadLength < 0 || position + RECORD_HEADER_SIZE + payloadLength > length) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE - 8 + payloadLength);
+                readFully(channel, record, position + 8);
+                crc.reset();
+                crc.update(record.array(), 0, record.capacity());
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+                if (relative % INDEX_INTERVAL == 0 && (segment.indexCount == 0
+                        || segment.indexRelative[segment.indexCount - 1] < relative)) {
+                    segment.addIndexEntry((int) relative, (int) position);
+                }
+                position += RECORD_HEADER_SIZE + payloadLength;
+                relative++;
+            }
+            if (position < length) {
+                channel.truncate(position);
+            }
+            segment.size = position;
+            segment.recordCount = relative;
+        } finally {
+            file.close();
+        }
+        rewriteIndex(segment);
+    }
+
+    private void rewriteIndex(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.indexFile, "rw");
+        try {
+            byte[] bytes = new byte[segment.indexCount * 8];
+            for (int i = 0; i < segment.indexCount; i++) {
+                putInt(bytes, i * 8, segment.indexRelative[i]);
+                putInt(bytes, i * 8 + 4, segment.indexPosition[i]);
+            }
+            file.setLength(0);
+            file.write(bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void openChannels(Segment segment) throws IOException {
+        mLogChannel = new RandomAccessFile(segment.logFile, "rw").getChannel();
+        mLogChannel.position(segment.size);
+        mIndexChannel = new RandomAccessFile(segment.indexFile, "rw").getChannel();
+        mIndexChannel.position(mIndexChannel.size());
+    }
+
+    private void closeChannels() throws IOException {
+        if (mLogChannel != null) {
+            mLogChannel.close();
+            mLogChannel = null;
+        }
+        if (mIndexChannel != null) {
+            mIndexChannel.close();
+            mIndexChannel = null;
+        }
+    }
+
+    /**
+     * Write a batch of records to the active segment, rolling to a new segment where needed.
+     * Consecutive records of the same segment go out in one write.
+     */
+    private void writeRecords(byte[] batch, int length) throws IOException {
+        Segment segment = mSegments.get(mSegments.size() - 1);
+        int rangeStart = 0;
+        int pos = 0;
+        while (pos < length) {
+            int recordSize = RECORD_HEADER_SIZE + getInt(batch, pos);
+            long segmentSize = segment.size + (pos - rangeStart);
+            if (segmentSize > 0 && segmentSize + recordSize > mSegmentBytes) {
+                writeRange(segment, batch, rangeStart, pos);
+                rangeStart = pos;
+                segment = rollSegment(segment);
+            }
+            long relative = segment.recordCount;
+            if (relative % INDEX_INTERVAL == 0) {
+                long position = segment.size + (pos - rangeStart);
+                segment.addIndexEntry((int) relative, (int) position);
+                mIndexEntry.clear();
+                mIndexEntry.putInt((int) relative).putInt((int) position).flip();
+                while (mIndexEntry.hasRemaining()) {
+                    mIndexChannel.write(mIndexEntry);
+                }
+            }
+            segment.recordCount++;
+            pos += recordSize;
+        }
+        writeRange(segment, batch, rangeStart, length);
+    }
+
+    private void writeRange(Segment segment, byte[] batch, int from, int to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(batch, from, to - from);
+        while (buffer.hasRemaining()) {
+            mLogChannel.write(buffer);
+        }
+        segment.size += to - from;
+    }
+
+    private Segment rollSegment(Segment current) throws IOException {
+        mLogChannel.force(false);
+        closeChannels();
+        Segment next = new Segment(mDir, current.baseSequence + current.recordCount);
+        mSegments.add(next);
+        openChannels(next);
+        return next;
+    }
+
+    /**
+     * Index of the segment holding {@code sequence}, or -1 if it is past the end.
+     */
+    private int findSegment(long sequence) {
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            Segment segment = mSegments.get(i);
+            if (segment.baseSequence <= sequence) {
+                return sequence < segment.baseSequence + segment.recordCount ? i : -1;
+            }
+        }
+        return mSegments.isEmpty() ? -1 : 0;
+    }
+
+    /**
+     * @return records visited, or {@code -(visited + 1)} if the visitor asked to stop
+     */
+    private int readSegment(Segment segment, long fromSequence, int maxCount, RecordVisitor visitor) throws IOException {
+        int target = (int) (fromSequence - segment.baseSequence);
+        int entry = segment.floorIndexEntry(target);
+        long position = entry < 0 ? 0 : segment.indexPosition[entry];
+        int relative = entry < 0 ? 0 : segment.indexRelative[entry];
+
+        RandomAccessFile file = new RandomAccessFile(segment.logFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            int visited = 0;
+            while (relative < segment.recordCount && visited < maxCount) {
+                ByteBuffer header = mReadBuffer;
+                header.clear().limit(RECORD_HEADER_SIZE);
+                readFully(channel, header, position);
+                int payloadLength = header.getInt(0);
+                if (relative >= target) {
+                    if (mReadBuffer.capacity() < RECORD_HEADER_SIZE + payloadLength) {
+                        mReadBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payloadLength);
+                    }
+                    ByteBuffer record = mReadBuffer;
+                    record.clear().limit(RECORD_HEADER_SIZE + payloadLength);
+                    readFully(channel, record, position);
+                    long timestamp = record.getLong(8);
+                    boolean outgoing = (record.get(16) & FLAG_OUTGOING) != 0;
+                    int type = record.get(17) & 0xFF;
+                    mReadSlice.set(record.array(), RECORD_HEADER_SIZE, payloadLength);
+                    visited++;
+                    if (!visitor.onRecord(segment.baseSequence + relative, timestamp, outgoing, type, mReadSlice)) {
+                        return -(visited + 1);
+                    }
+                }
+                position += RECORD_HEADER_SIZE + payloadLength;
+                relative++;
+            }
+            return visited;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+
+    private static void putInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] b, int pos, long value) {
+        putInt(b, pos, (int) (value >>> 32));
+        putInt(b, pos + 4, (int) value);
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One {@link MessageLog} per remote device address, under a common root directory, plus the
+ * flusher thread that group-commits all of them.
+ * <p>
+ * The flusher wakes up every {@code commitIntervalMillis} (or earlier, when a log has a lot
+ * pending), writes whatever was appended since the last round and, if {@code sync} is set,
+ * forces it to disk. A crash loses at most one interval of messages; the receive loop never waits
+ * for the disk.
+ */
+public class MessageLogStore {
+
+    public static final int DEFAULT_COMMIT_INTERVAL_MILLIS = 50;
+
+    // Wake the flusher early once a log has this much pending
+    private static final int EARLY_COMMIT_BYTES = 64 * 1024;
+
+    private final File                    mRoot;
+    private final long                    mSegmentBytes;
+    private final Map<String, MessageLog> mLogs = new HashMap<>();
+    private final Flusher                 mFlusher;
+
+    private volatile boolean mClosed;
+    private volatile long    mCommits;
+
+    public MessageLogStore(File root) {
+        this(root, MessageLog.DEFAULT_SEGMENT_BYTES, DEFAULT_COMMIT_INTERVAL_MILLIS, true);
+    }
+
+    /**
+     * @param sync force every group commit to the storage device (fsync)
+     */
+    public MessageLogStore(File root, long segmentBytes, int commitIntervalMillis, boolean sync) {
+        mRoot = root;
+        mSegmentBytes = segmentBytes;
+        mFlusher = new Flusher(commitIntervalMillis, sync);
+        mFlusher.start();
+    }
+
+    /**
+     * The log for {@code address}, opened (and recovered) on first use. That reads the last segment
+     * back from disk: call it once from a thread that may block (e.g. when the connection is made),
+     * so {@link #append} on the read and write paths only copies into memory.
+     */
+    public synchronized MessageLog get(String address) throws IOException {
+        if (mClosed) {
+            throw new IOException("Store closed");
+        }
+        MessageLog log = mLogs.get(address);
+        if (log == null) {
+            log = new MessageLog(new File(mRoot, directoryName(address)), mSegmentBytes);
+            mLogs.put(address, log);
+        }
+        return log;
+    }
+
+    /**
+     * Append a frame to the log of {@code address}. Errors are printed, not thrown: losing the
+     * history must not take the connection down.
+     *
+     * @return the sequence number, or -1 if the log could not be opened
+     */
+    public long append(String address, boolean outgoing, int type, ByteSlice payload) {
+        try {
+            MessageLog log = get(address);
+            long sequence = log.append(outgoing, type, payload);
+            wakeIfBehind(log);
+            return sequence;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    public long append(String address, boolean outgoing, int type, byte[] payload, int offset, int length) {
+        try {
+            MessageLog log = get(address);
+            long sequence = log.append(outgoing, type, payload, offset, length);
+            wakeIfBehind(log);
+            return sequence;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private void wakeIfBehind(MessageLog log) {
+        if (log.pendingBytes() >= EARLY_COMMIT_BYTES) {
+            synchronized (mFlusher) {
+                mFlusher.notify();
+            }
+        }
+    }
+
+    /**
+     * Number of group commits that wrote something.
+     */
+    public long getCommitCount() {
+        return mCommits;
+    }
+
+    /**
+     * Commit everything now on the calling thread.
+     */
+    public void flush(boolean sync) throws IOException {
+        for (MessageLog log : snapshot()) {
+            log.flush(sync);
+        }
+    }
+
+    /**
+     * Stop the flusher, commit what is left and close all logs.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        mFlusher.interrupt();
+        try {
+            mFlusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (MessageLog log : snapshot()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private List<MessageLog> snapshot() {
+        synchronized (this) {
+            return new ArrayList<>(mLogs.values());
+        }
+    }
+
+    /**
+     * "AA:BB:CC:DD:EE:FF" -> "AA-BB-CC-DD-EE-FF"
+     */
+    static String directoryName(String address) {
+        StringBuilder sb = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) ? c : '-');
+        }
+        return sb.toString();
+    }
+
+    private class Flusher extends Thread {
+        private final long    mIntervalMillis;
+        private final boolean mSync;
+
+        Flusher(long intervalMillis, boolean sync) {
+            super("MessageLogFlusher");
+            setDaemon(true);
+            mIntervalMillis = intervalMillis;
+            mSync = sync;
+        }
+
+        @Override
+        public void run() {
+            while (!mClosed) {
+                try {
+                    synchronized (this) {
+                        wait(mIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    break; // close() commits the rest
+                }
+                for (MessageLog log : snapshot()) {
+                    if (log.pendingBytes() == 0) {
+                        continue;
+                    }
+                    try {
+                        log.flush(mSync);
+                        mCommits++;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
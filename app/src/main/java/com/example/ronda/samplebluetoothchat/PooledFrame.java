@@ -0,0 +1,146 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.nio.charset.Charset;
+
+/**
+ * A received frame copied out of the reassembly buffer, owned by a {@link FramePool}.
+ * <p>
+ * The payload buffer is kept across uses and only grows when a bigger frame comes in. The text is
+ * decoded on the first {@link #getText()}, on the consumer's thread, not on the reading thread.
+ * Call {@link #recycle()} once the frame is no longer needed and don't touch it afterwards.
+ * <p>
+ * A frame is its own {@link EventQueue} node, so handing it to the consumer allocates nothing.
+ */
+public final class PooledFrame extends EventQueue.Node {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final FramePool mPool;
+    private final ByteSlice mPayload = new ByteSlice();
+
+    private int     mType;
+    private boolean mOutgoing;
+    private String  mRemoteAddress;
+    private byte[]  mData = new byte[INITIAL_CAPACITY];
+    private int     mLength;
+    private String  mText; // decoded lazily
+    private Utf8Decoder mDecoder; // created on the first decode, then reused with the frame
+    private boolean     mDecoded;
+    private long    mCreatedNanos; // System.nanoTime() when filled, for the delivery latency
+
+    PooledFrame(FramePool pool) {
+        mPool = pool;
+    }
+
+    void fill(int type, ByteSlice payload) {
+        int length = payload.length();
+        ensureCapacity(length);
+        payload.copyTo(mData, 0);
+        init(type, length);
+    }
+
+    void fill(int type, byte[] payload, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(payload, offset, mData, 0, length);
+        init(type, length);
+    }
+
+    private void ensureCapacity(int length) {
+        if (mData.length < length) {
+            mData = new byte[Math.max(length, mData.length * 2)];
+        }
+    }
+
+    private void init(int type, int length) {
+        mType = type;
+        mOutgoing = false;
+        mRemoteAddress = null;
+        mLength = length;
+        mText = null;
+        mDecoded = false;
+        mPayload.set(mData, 0, length);
+        mCreatedNanos = System.nanoTime();
+    }
+
+    /**
+     * {@link System#nanoTime()} when the frame was obtained from the pool.
+     */
+    long getCreatedNanos() {
+        return mCreatedNanos;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * True for frames we sent, false for frames we received.
+     */
+    public boolean isOutgoing() {
+        return mOutgoing;
+    }
+
+    public void setOutgoing(boolean outgoing) {
+        mOutgoing = outgoing;
+    }
+
+    /**
+     * Address of the peer the frame came from or went to, if the producer set it.
+     */
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    public void setRemoteAddress(String address) {
+        mRemoteAddress = address;
+    }
+
+    /**
+     * Read-only view of the payload, valid until {@link #recycle()}.
+     */
+    public ByteSlice getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * The payload decoded as UTF-8, in a char buffer that goes round with the frame: no String is
+     * made. Valid until {@link #recycle()}.
+     */
+    public CharSequence getChars() {
+        if (!mDecoded) {
+            if (mDecoder == null) {
+                mDecoder = new Utf8Decoder(mData.length);
+            }
+            mDecoder.reset();
+            mDecoder.decode(mData, 0, mLength);
+            mDecoder.flush();
+            mDecoded = true;
+        }
+        return mDecoder;
+    }
+
+    /**
+     * The payload decoded as UTF-8 (what {@code MainActivity} sends).
+     */
+    public String getText() {
+        if (mText == null) {
+            mText = getChars().toString();
+        }
+        return mText;
+    }
+
+    public String getText(Charset charset) {
+        return mPayload.toString(charset);
+    }
+
+    /**
+     * Give the frame back to its pool.
+     */
+    public void recycle() {
+        mText = null;
+        mDecoded = false;
+        mLength = 0;
+        mPayload.set(mData, 0, 0);
+        mPool.release(this);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.Random;
+
+/**
+ * How {@link BluetoothChatService} retries a peer it connected to itself: after a failed connect
+ * or a lost link it waits {@link #getDelayMillis(int)} and tries again, up to
+ * {@link #getMaxAttempts()} times.
+ * <p>
+ * The delay doubles (by default) from attempt to attempt, up to a ceiling, and is spread by a random
+ * jitter so that several devices losing the same link don't all come back at the same moment.
+ * 不重连：{@link BluetoothChatService#setReconnectPolicy(ReconnectPolicy)} 传 null
+ */
+public class ReconnectPolicy {
+
+    public static final long   DEFAULT_INITIAL_DELAY_MILLIS = 500;
+    public static final long   DEFAULT_MAX_DELAY_MILLIS     = 30 * 1000;
+    public static final double DEFAULT_MULTIPLIER           = 2.0;
+    public static final double DEFAULT_JITTER               = 0.2;
+    public static final int    DEFAULT_MAX_ATTEMPTS         = 10;
+
+    private final long   mInitialDelayMillis;
+    private final long   mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int    mMaxAttempts;
+    private final Random mRandom;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MULTIPLIER, DEFAULT_JITTER, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param initialDelayMillis delay before the first retry
+     * @param maxDelayMillis     ceiling for the delay, before jitter
+     * @param multiplier         factor between two consecutive delays, at least 1
+     * @param jitter             the delay is spread by up to this fraction either way, 0 to 1
+     * @param maxAttempts        retries before giving up, 0 to only try once
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier, double jitter, int maxAttempts) {
+        this(initialDelayMillis, maxDelayMillis, multiplier, jitter, maxAttempts, new Random());
+    }
+
+    ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier, double jitter, int maxAttempts, Random random) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Bad delays: " + initialDelayMillis + ", " + maxDelayMillis);
+        }
+        if (multiplier < 1 || jitter < 0 || jitter > 1 || maxAttempts < 0) {
+            throw new IllegalArgumentException("Bad multiplier, jitter or attempts");
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    /**
+     * Retries after the first attempt failed.
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * How long to wait before retry number {@code attempt} (1 for the first retry).
+     */
+    public long getDelayMillis(int attempt) {
+        double delay = mInitialDelayMillis * Math.pow(mMultiplier, Math.max(attempt - 1, 0));
+        delay = Math.min(delay, mMaxDelayMillis);
+        double spread = (mRandom.nextDouble() * 2 - 1) * mJitter; // [-jitter, +jitter)
+        return Math.round(delay * (1 + spread));
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.ronda.samplebluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link Transport} on top of an RFCOMM {@link BluetoothSocket}.
+ */
+public class RfcommTransport implements Transport {
+
+    private final BluetoothAdapter mBtAdapter; // null for accepted sockets, only needed to cancel discovery
+    private final BluetoothSocket  mSocket;
+    private final BluetoothDevice  mDevice;
+
+    RfcommTransport(BluetoothAdapter adapter, BluetoothSocket socket, BluetoothDevice device) {
+        mBtAdapter = adapter;
+        mSocket = socket;
+        mDevice = device;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (mBtAdapter != null) {
+            // Always cancel discovery because it will slow down a connection
+            mBtAdapter.cancelDiscovery();
+        }
+        mSocket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public String getRemoteName() {
+        return mDevice.getName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close(); // 会同时关闭 Stream，阻塞中的 connect()/read() 会抛出 IOException
+    }
+}
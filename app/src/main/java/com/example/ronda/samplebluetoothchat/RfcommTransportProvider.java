@@ -0,0 +1,50 @@
+package com.example.ronda.samplebluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Creates {@link RfcommTransport}s through the default {@link BluetoothAdapter}.
+ */
+public class RfcommTransportProvider implements TransportProvider {
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+
+    // Unique UUID for this application
+    private static final UUID MY_UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter mBtAdapter;
+
+    public RfcommTransportProvider(BluetoothAdapter adapter) {
+        mBtAdapter = adapter;
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        final BluetoothServerSocket serverSocket = mBtAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+        return new TransportServer() {
+            @Override
+            public Transport accept() throws IOException {
+                BluetoothSocket socket = serverSocket.accept();
+                return new RfcommTransport(null, socket, socket.getRemoteDevice());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close(); // 会中断 accept()，但是不会关闭已经接收到的 BluetoothSocket
+            }
+        };
+    }
+
+    @Override
+    public Transport open(String address) throws IOException {
+        BluetoothDevice device = mBtAdapter.getRemoteDevice(address);
+        return new RfcommTransport(mBtAdapter, device.createRfcommSocketToServiceRecord(MY_UUID_SECURE), device);
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.ronda.samplebluetoothchat;
+
+/**
+ * Round-trip time of one link, estimated the way TCP does it (RFC 6298): a smoothed RTT and its
+ * mean deviation, updated with gains of 1/8 and 1/4 at every sample.
+ * <p>
+ * Samples come from the {@link FrameCodec#TYPE_PONG} answers to {@link Heartbeat} pings. All
+ * values are in microseconds; every method may be called from any thread.
+ */
+public class RttEstimator {
+
+    private long mSamples;
+    private long mSmoothedUs;
+    private long mVarianceUs; // mean deviation, RTTVAR in RFC 6298
+    private long mLastUs;
+    private long mMinUs = Long.MAX_VALUE;
+    private long mMaxUs;
+
+    public synchronized void onSample(long rttNanos) {
+        long us = Math.max(rttNanos / 1000, 0);
+        if (mSamples == 0) {
+            mSmoothedUs = us;
+            mVarianceUs = us / 2;
+        } else {
+            // RTTVAR 先用旧的 SRTT 更新
+            mVarianceUs = (3 * mVarianceUs + Math.abs(mSmoothedUs - us)) / 4;
+            mSmoothedUs = (7 * mSmoothedUs + us) / 8;
+        }
+        mSamples++;
+        mLastUs = us;
+        mMinUs = Math.min(mMinUs, us);
+        mMaxUs = Math.max(mMaxUs, us);
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * Smoothed RTT (SRTT), or -1 before the first sample.
+     */
+    public synchronized long getSmoothedMicros() {
+        return mSamples > 0 ? mSmoothedUs : -1;
+    }
+
+    /**
+     * Mean deviation of the RTT (RTTVAR), or -1 before the first sample.
+     */
+    public synchronized long getVarianceMicros() {
+        return mSamples > 0 ? mVarianceUs : -1;
+    }
+
+    /**
+     * The most recent sample, or -1 before the first one.
+     */
+    public synchronized long getLastMicros() {
+        return mSamples > 0 ? mLastUs : -1;
+    }
+
+    public synchronized long getMinMicros() {
+        return mSamples > 0 ? mMinUs : -1;
+    }
+
+    public synchronized long getMaxMicros() {
+        return mSamples > 0 ? mMaxUs : -1;
+    }
+
+    /**
+     * How long an answer may reasonably take: SRTT + 4 * RTTVAR, or -1 before the first sample.
+     */
+    public synchronized long getTimeoutMicros() {
+        return mSamples > 0 ? mSmoothedUs + 4 * mVarianceUs : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mSamples == 0) {
+            return "rtt n=0";
+        }
+        return "rtt n=" + mSamples + " srtt=" + mSmoothedUs + " rttvar=" + mVarianceUs
+                + " last=" + mLastUs + " min=" + mMinUs + " max=" + mMaxUs;
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What two peers know about each other's {@link FrameCodec#TYPE_TEXT} frames, kept per device
+ * address across connections, so a reconnect only resends what the peer actually missed.
+ * <p>
+ * TEXT frames are numbered 1, 2, 3... in the order they go on the wire. The link is ordered and
+ * both sides count, so the numbers never have to be sent: a sequence number is the count of TEXT
+ * frames written (or received) so far. The sending side keeps the frames it wrote in a bounded
+ * retransmit buffer until the peer acknowledges them ({@link FrameCodec#TYPE_ACK}, cumulative, every
+ * {@link #ACK_INTERVAL} frames and on every ping). The first frame of a connection is
+ * {@link FrameCodec#TYPE_RESUME}: how many TEXT frames this side received, and up to which number
+ * its retransmit buffer was dropped. From the two RESUME frames both sides work out the same
+ * starting point, the sender replays the buffered frames after it and the receiver continues
+ * counting from there.
+ * <p>
+ * Driven by {@link ConnectedThread#setSession(Session)}; all methods are thread safe.
+ * 断线重连后只补发对方没收到的那一段，而不是整个会话
+ */
+public class Session {
+
+    // As many frames as the outbound queue of a fresh connection takes, so a whole replay fits in
+    public static final int DEFAULT_CAPACITY = FrameWriter.DEFAULT_QUEUE_CAPACITY;
+
+    // The receiver acknowledges every this many TEXT frames
+    public static final int ACK_INTERVAL = 16;
+
+    // Retransmit buffer: the frames numbered mSent - mSize + 1 .. mSent, oldest at mHead
+    private final byte[][] mRing;
+    private int            mHead;
+    private int            mSize;
+    private long           mSent;     // TEXT frames numbered so far (the number of the last one)
+    private long           mEchoed;   // highest number that was written once already: anything up to here is a replay
+
+    private long mReceived; // TEXT frames received from the peer, in order
+    private long mAckSent;  // mReceived when the last ACK was made
+
+    private ConnectedThread mConnection; // the connection allowed to change the sending side, null between connections
+
+    // 统计
+    private long mResumes;
+    private long mReplayed;      // buffered frames queued again after a resume
+    private long mSkipped;       // buffered frames not resent because the peer already had them
+    private long mUnrecoverable; // frames the peer missed that were no longer buffered (on either side)
+
+    public Session() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity TEXT frames kept for resending; older unacknowledged ones are dropped.
+     *                 Should not be more than the outbound queue takes, or a replay does not fit
+     */
+    public Session(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        mRing = new byte[capacity][];
+    }
+
+    /**
+     * {@code connection} takes over. Returns the buffered frames, oldest first, to be queued on it
+     * ahead of anything else; they are numbered again as they are written. The
+     * {@link FrameCodec#TYPE_RESUME} frame to send first is built from {@link #getReceived()} and
+     * {@link #getDropped()} right after this call.
+     */
+    synchronized List<byte[]> attach(ConnectedThread connection) {
+        mConnection = connection;
+        List<byte[]> replay = new ArrayList<>(mSize);
+        while (mSize > 0) {
+            replay.add(removeOldest());
+        }
+        mSent -= replay.size();
+        return replay;
+    }
+
+    /**
+     * {@code connection} is not resumable after all (an older peer): stop tracking its frames.
+     */
+    synchronized void detach(ConnectedThread connection) {
+        if (mConnection == connection) {
+            mConnection = null;
+            mEchoed = Math.min(mEchoed, mSent); // frames numbered from now on are new ones
+        }
+    }
+
+    /**
+     * The peer's RESUME arrived on {@code connection}.
+     *
+     * @return how many of the frames returned by {@link #attach(ConnectedThread)} the peer already
+     * has and must not get again, or -1 if {@code connection} is no longer the current one
+     */
+    synchronized int resume(ConnectedThread connection, long peerReceived, long peerDropped, int replayQueued) {
+        if (mConnection != connection) {
+            return -1;
+        }
+        mResumes++;
+        // Sending side. mSent is where the buffer started; the peer may have more (ACKs lost with
+        // the link) or less (frames dropped from the buffer before it acknowledged them)
+        long start = Math.max(peerReceived, mSent);
+        if (peerReceived < mSent) {
+            mUnrecoverable += mSent - peerReceived;
+        }
+        int skip = (int) Math.min(start - mSent, replayQueued);
+        mSkipped += skip;
+        mReplayed += replayQueued - skip;
+        mSent = start;
+        // Receiving side: the peer can no longer send what it dropped, count on from there
+        if (peerDropped > mReceived) {
+            mUnrecoverable += peerDropped - mReceived;
+            mReceived = peerDropped;
+            mAckSent = peerDropped;
+        }
+        return skip;
+    }
+
+    /**
+     * A batch was written on {@code connection}: number its TEXT frames and buffer them. Every
+     * frame written for the first time is added to {@code fresh}, replays are left out.
+     */
+    synchronized void onWritten(ConnectedThread connection, List<byte[]> frames, List<byte[]> fresh) {
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i);
+            if (mConnection != connection || FrameCodec.readType(frame, 0) != FrameCodec.TYPE_TEXT) {
+                fresh.add(frame);
+                continue;
+            }
+            long sequence = ++mSent;
+            retain(frame);
+            if (sequence > mEchoed) {
+                mEchoed = sequence;
+                fresh.add(frame);
+            }
+        }
+    }
+
+    /**
+     * {@code connection} was lost. Its TEXT frames that may not have arrived ({@code failed}, from
+     * a write() that failed) or never went out ({@code unsent}) are numbered and buffered, as if
+     * they had been written, and removed from {@code unsent}.
+     *
+     * @return false if {@code connection} is no longer the current one (nothing is changed then)
+     */
+    synchronized boolean retainUnsent(ConnectedThread connection, List<byte[]> failed, List<byte[]> unsent) {
+        if (mConnection != connection) {
+            return false;
+        }
+        mConnection = null;
+        for (byte[] frame : failed) {
+            if (FrameCodec.readType(frame, 0) == FrameCodec.TYPE_TEXT) {
+                mSent++;
+                retain(frame);
+            }
+        }
+        for (int i = 0; i < unsent.size(); ) {
+            byte[] frame = unsent.get(i);
+            if (FrameCodec.readType(frame, 0) == FrameCodec.TYPE_TEXT) {
+                mSent++;
+                retain(frame);
+                unsent.remove(i);
+            } else {
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The peer received {@code received} TEXT frames: they no longer need to be buffered.
+     */
+    synchronized void onAck(long received) {
+        while (mSize > 0 && mSent - mSize < received) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * One more TEXT frame received in order.
+     *
+     * @return the count to acknowledge now, or -1 if no ACK is due yet
+     */
+    synchronized long onReceived() {
+        mReceived++;
+        if (mReceived - mAckSent >= ACK_INTERVAL) {
+            mAckSent = mReceived;
+            return mReceived;
+        }
+        return -1;
+    }
+
+    private void retain(byte[] frame) {
+        if (mSize == mRing.length) {
+            removeOldest(); // 缓冲区满了，最老的没确认的帧只能放弃
+        }
+        mRing[(mHead + mSize) % mRing.length] = frame;
+        mSize++;
+    }
+
+    private byte[] removeOldest() {
+        byte[] frame = mRing[mHead];
+        mRing[mHead] = null;
+        mHead = (mHead + 1) % mRing.length;
+        mSize--;
+        return frame;
+    }
+
+    /**
+     * TEXT frames received from the peer so far, the position an ACK or RESUME reports.
+     */
+    public synchronized long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * The number of the last TEXT frame no longer buffered for resending (acknowledged or dropped).
+     */
+    public synchronized long getDropped() {
+        return mSent - mSize;
+    }
+
+    public synchronized long getSent() {
+        return mSent;
+    }
+
+    /**
+     * Frames buffered until the peer acknowledges them.
+     */
+    public synchronized int getUnacknowledged() {
+        return mSize;
+    }
+
+    public synchronized long getResumes() {
+        return mResumes;
+    }
+
+    public synchronized long getReplayed() {
+        return mReplayed;
+    }
+
+    public synchronized long getSkipped() {
+        return mSkipped;
+    }
+
+    public synchronized long getUnrecoverable() {
+        return mUnrecoverable;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sent=" + mSent + " unacked=" + mSize + " received=" + mReceived + " resumes=" + mResumes
+                + " replayed=" + mReplayed + " skipped=" + mSkipped + " unrecoverable=" + mUnrecoverable;
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated RFCOMM connection between two ends, with the timing of a {@link LinkProfile}.
+ * <p>
+ * A write is cut into packets of random size. Each direction sends one packet after the other at
+ * the profile's bandwidth, and a packet can be read once it was sent plus the latency plus some
+ * jitter (never before the packet in front of it). A read returns what has arrived, so one
+ * write on one end usually takes several reads on the other, like on a real socket. Writes only
+ * block while a window's worth of bytes is not read yet.
+ * <p>
+ * A link may break by itself at a random time: from then on reads, writes and available() on both
+ * ends fail. Nothing runs in the background for that, the time is checked whenever an end is used
+ * (a blocked read or write wakes up for it). One lock for both directions: there are only the two
+ * ends' threads to contend for it.
+ */
+final class SimulatedLink {
+
+    /**
+     * Called once when the link is gone: broken, or closed on both ends.
+     */
+    interface Listener {
+        void onLinkGone(SimulatedLink link, boolean broken);
+    }
+
+    private static final class Packet {
+        final byte[] mmData;
+        final long   mmDueNanos; // can be read from then on
+        int          mmPos;
+
+        Packet(byte[] data, long dueNanos) {
+            mmData = data;
+            mmDueNanos = dueNanos;
+        }
+    }
+
+    private final LinkProfile mProfile;
+    private final Random      mRandom;
+    private final Listener    mListener;
+    private final Direction   mAToB = new Direction();
+    private final Direction   mBToA = new Direction();
+    private final End         mEndA;
+    private final End         mEndB;
+    private long              mBreakAtNanos; // Long.MAX_VALUE: never
+    private boolean           mBroken;
+    private boolean           mGone;         // Listener told
+    private long              mDelivered;    // bytes read, both directions
+
+    /**
+     * @param addressA address of end A, the remote address of end B
+     * @param addressB address of end B, the remote address of end A
+     */
+    SimulatedLink(LinkProfile profile, long seed, String addressA, String addressB, Listener listener) {
+        mProfile = profile;
+        mRandom = new Random(seed);
+        mListener = listener;
+        mEndA = new End(mBToA, mAToB, addressB);
+        mEndB = new End(mAToB, mBToA, addressA);
+        long uptime = profile.getMeanUptimeMillis();
+        if (uptime > 0) {
+            // Exponential: a link that has lasted so far is as likely to break now as a new one
+            double millis = -Math.log(1 - mRandom.nextDouble()) * uptime;
+            mBreakAtNanos = System.nanoTime() + (long) (millis * 1000000);
+        } else {
+            mBreakAtNanos = Long.MAX_VALUE;
+        }
+    }
+
+    End getEndA() {
+        return mEndA;
+    }
+
+    End getEndB() {
+        return mEndB;
+    }
+
+    /**
+     * Break the link now, as if the peer went out of range.
+     */
+    synchronized void breakNow() {
+        mBreakAtNanos = System.nanoTime();
+        checkBroken(mBreakAtNanos);
+    }
+
+    synchronized boolean isBroken() {
+        return mBroken;
+    }
+
+    synchronized long getDeliveredBytes() {
+        return mDelivered;
+    }
+
+    // Under the lock. True if the link is (now) broken
+    private boolean checkBroken(long now) {
+        if (!mBroken && now - mBreakAtNanos >= 0) {
+            mBroken = true;
+            mAToB.mPackets.clear();
+            mBToA.mPackets.clear();
+            mAToB.mUnread = 0;
+            mBToA.mUnread = 0;
+            notifyAll();
+            gone(true);
+        }
+        return mBroken;
+    }
+
+    private void gone(boolean broken) {
+        if (!mGone) {
+            mGone = true;
+            mListener.onLinkGone(this, broken);
+        }
+    }
+
+    // Under the lock: how long a blocked read or write may wait before the link breaks
+    private long untilBreak(long now) {
+        return mBreakAtNanos == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, mBreakAtNanos - now);
+    }
+
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            if (nanos == Long.MAX_VALUE) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * The packets on their way in one direction.
+     */
+    private final class Direction {
+        final ArrayDeque<Packet> mPackets = new ArrayDeque<>();
+        int                      mUnread;        // bytes written and not read yet
+        long                     mLinkFreeNanos; // when the packet being sent is out
+        long                     mLastDueNanos;
+        boolean                  mWriterClosed;  // the reader gets the rest, then fails like a closed BluetoothSocket
+        boolean                  mReaderClosed;  // nothing more to read, writes fail
+
+        void write(byte[] b, int off, int len) throws IOException {
+            synchronized (SimulatedLink.this) {
+                while (len > 0) {
+                    long now = System.nanoTime();
+                    if (checkBroken(now)) {
+                        throw new IOException("Software caused connection abort");
+                    }
+                    if (mWriterClosed) {
+                        throw new IOException("socket closed");
+                    }
+                    if (mReaderClosed) {
+                        throw new IOException("Broken pipe");
+                    }
+                    int room = mProfile.getWindow() - mUnread;
+                    if (room <= 0) {
+                        await(untilBreak(now));
+                        continue;
+                    }
+                    int n = Math.min(Math.min(len, room), 1 + mRandom.nextInt(mProfile.getMaxPacket()));
+                    byte[] data = new byte[n];
+                    System.arraycopy(b, off, data, 0, n);
+
+                    // 链路一次只发一个包：排在前一个包后面，发完再加上延迟和抖动
+                    long start = Math.max(now, mLinkFreeNanos);
+                    mLinkFreeNanos = start + n * 1000000000L / mProfile.getBytesPerSecond();
+                    long jitter = mProfile.getJitterMillis() > 0
+                            ? (long) (mRandom.nextDouble() * mProfile.getJitterMillis() * 1000000) : 0;
+                    long due = Math.max(mLastDueNanos, mLinkFreeNanos + mProfile.getLatencyMillis() * 1000000 + jitter);
+                    mLastDueNanos = due;
+                    mPackets.addLast(new Packet(data, due));
+                    mUnread += n;
+                    off += n;
+                    len -= n;
+                    SimulatedLink.this.notifyAll();
+                }
+            }
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (SimulatedLink.this) {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (checkBroken(now)) {
+                        throw new IOException("Software caused connection abort");
+                    }
+                    if (mReaderClosed) {
+                        throw new IOException("socket closed");
+                    }
+                    Packet head = mPackets.peekFirst();
+                    if (head == null) {
+                        if (mWriterClosed) {
+                            throw new IOException("bt socket closed, read return: -1");
+                        }
+                        await(untilBreak(now));
+                    } else if (head.mmDueNanos - now > 0) {
+                        await(Math.min(head.mmDueNanos - now, untilBreak(now)));
+                    } else {
+                        int n = take(b, off, len, now);
+                        mUnread -= n;
+                        mDelivered += n;
+                        SimulatedLink.this.notifyAll();
+                        return n;
+                    }
+                }
+            }
+        }
+
+        // Copy from the packets that have arrived
+        private int take(byte[] b, int off, int len, long now) {
+            int n = 0;
+            Packet packet;
+            while (n < len && (packet = mPackets.peekFirst()) != null && packet.mmDueNanos - now <= 0) {
+                int count = Math.min(len - n, packet.mmData.length - packet.mmPos);
+                System.arraycopy(packet.mmData, packet.mmPos, b, off + n, count);
+                packet.mmPos += count;
+                n += count;
+                if (packet.mmPos == packet.mmData.length) {
+                    mPackets.pollFirst();
+                }
+            }
+            return n;
+        }
+
+        int available() throws IOException {
+            synchronized (SimulatedLink.this) {
+                long now = System.nanoTime();
+                if (checkBroken(now)) {
+                    throw new IOException("Software caused connection abort");
+                }
+                if (mReaderClosed) {
+                    throw new IOException("socket closed");
+                }
+                int n = 0;
+                for (Packet packet : mPackets) {
+                    if (packet.mmDueNanos - now > 0) {
+                        break;
+                    }
+                    n += packet.mmData.length - packet.mmPos;
+                }
+                return n;
+            }
+        }
+    }
+
+    /**
+     * One end of the link: a {@link Transport} that is connected from the start.
+     */
+    final class End implements Transport {
+        private final Direction mIn;
+        private final Direction mOut;
+        private final String    mRemoteAddress;
+        private boolean         mClosed;
+
+        private final InputStream mInputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return mIn.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return mIn.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                return mIn.available();
+            }
+
+            @Override
+            public void close() {
+                End.this.close();
+            }
+        };
+
+        private final OutputStream mOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                mOut.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                mOut.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                End.this.close();
+            }
+        };
+
+        End(Direction in, Direction out, String remoteAddress) {
+            mIn = in;
+            mOut = out;
+            mRemoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void connect() {
+            // already connected when created
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mInputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        /**
+         * Like BluetoothSocket#close(): blocked reads and writes of this end fail, the other end
+         * reads what was already sent and then fails too.
+         */
+        @Override
+        public void close() {
+            synchronized (SimulatedLink.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mIn.mReaderClosed = true;
+                mIn.mPackets.clear();
+                mIn.mUnread = 0;
+                mOut.mWriterClosed = true;
+                SimulatedLink.this.notifyAll();
+                if (mEndA.mClosed && mEndB.mClosed) {
+                    gone(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated Bluetooth radio for any number of virtual devices on a plain JVM, to run many
+ * {@link BluetoothChatService}s against each other without phones: load and soak tests, and
+ * reproducing what happens on slow, uneven or unreliable links.
+ * <p>
+ * Each device gets a {@link TransportProvider} from {@link #provider(String)}, which stands in
+ * for {@link RfcommTransportProvider}: listen() gives the BluetoothServerSocket, open() the
+ * BluetoothSocket. connect() takes the profile's connect time and fails like an RFCOMM connect
+ * when the other device is not listening (or at random, see {@link LinkProfile#getConnectFailure()});
+ * the connections behave as described in {@link SimulatedLink}.
+ * <p>
+ * Random choices come from one seed, so a run with the same seed and the same profile makes the
+ * same choices (the threads still decide the order of things).
+ * 不用真机也能跑几百个设备：带宽、延迟、抖动、分包、随机断线都可以配置
+ */
+public class SimulatedRfcomm {
+
+    private final LinkProfile             mProfile;
+    private final Random                  mRandom;
+    private final Map<String, Server>     mServers = new HashMap<>();
+    private final Set<SimulatedLink>      mLinks   = new HashSet<>();
+    private long                          mLinksOpened;
+    private long                          mLinksBroken;
+    private long                          mConnectFailures;
+    private long                          mDeliveredBytes; // of the links that are gone
+
+    private final SimulatedLink.Listener mLinkListener = new SimulatedLink.Listener() {
+        @Override
+        public void onLinkGone(SimulatedLink link, boolean broken) {
+            long delivered = link.getDeliveredBytes(); // 在 link 的锁里被调用，先取出来再拿 this 的锁
+            synchronized (SimulatedRfcomm.this) {
+                if (mLinks.remove(link)) {
+                    mDeliveredBytes += delivered;
+                    if (broken) {
+                        mLinksBroken++;
+                    }
+                }
+            }
+        }
+    };
+
+    public SimulatedRfcomm(LinkProfile profile, long seed) {
+        mProfile = profile;
+        mRandom = new Random(seed);
+    }
+
+    public LinkProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * The transports of the device at {@code address}.
+     */
+    public TransportProvider provider(final String address) {
+        return new TransportProvider() {
+            @Override
+            public TransportServer listen() {
+                Server server = new Server(address);
+                synchronized (SimulatedRfcomm.this) {
+                    Server previous = mServers.put(address, server);
+                    if (previous != null) {
+                        previous.close(); // 同一个设备重新 listen()，旧的不再收连接
+                    }
+                }
+                return server;
+            }
+
+            @Override
+            public Transport open(String remoteAddress) {
+                return new Socket(address, remoteAddress);
+            }
+        };
+    }
+
+    /**
+     * Break every open link now, as if all devices went out of range at once.
+     *
+     * @return the number of links broken
+     */
+    public int breakLinks() {
+        List<SimulatedLink> links;
+        synchronized (this) {
+            links = new ArrayList<>(mLinks);
+        }
+        for (SimulatedLink link : links) {
+            link.breakNow();
+        }
+        return links.size();
+    }
+
+    public synchronized int getOpenLinks() {
+        return mLinks.size();
+    }
+
+    public synchronized long getLinksOpened() {
+        return mLinksOpened;
+    }
+
+    /**
+     * Links that broke by themselves or through {@link #breakLinks()}, not the ones that were closed.
+     */
+    public synchronized long getLinksBroken() {
+        return mLinksBroken;
+    }
+
+    public synchronized long getConnectFailures() {
+        return mConnectFailures;
+    }
+
+    /**
+     * Bytes read from all links so far.
+     */
+    public long getDeliveredBytes() {
+        List<SimulatedLink> links;
+        long delivered;
+        synchronized (this) {
+            links = new ArrayList<>(mLinks);
+            delivered = mDeliveredBytes;
+        }
+        for (SimulatedLink link : links) {
+            delivered += link.getDeliveredBytes();
+        }
+        return delivered;
+    }
+
+    // Called at the end of connect(): the link, or null if it failed
+    private SimulatedLink.End establish(String from, String to) {
+        SimulatedLink link;
+        Server server;
+        synchronized (this) {
+            server = mServers.get(to);
+            if (server == null || mRandom.nextDouble() < mProfile.getConnectFailure()) {
+                mConnectFailures++;
+                return null;
+            }
+            link = new SimulatedLink(mProfile, mRandom.nextLong(), from, to, mLinkListener);
+            mLinks.add(link);
+            mLinksOpened++;
+        }
+        if (!server.offer(link.getEndB())) {
+            link.getEndA().close(); // 对方刚好关了 server socket
+            link.getEndB().close();
+            synchronized (this) {
+                mConnectFailures++;
+            }
+            return null;
+        }
+        return link.getEndA();
+    }
+
+    /**
+     * The BluetoothServerSocket of one device.
+     */
+    private final class Server implements TransportServer {
+        private final String                       mmAddress;
+        private final ArrayDeque<SimulatedLink.End> mmPending = new ArrayDeque<>();
+        private boolean                            mmClosed;
+
+        Server(String address) {
+            mmAddress = address;
+        }
+
+        synchronized boolean offer(SimulatedLink.End end) {
+            if (mmClosed) {
+                return false;
+            }
+            mmPending.addLast(end);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized Transport accept() throws IOException {
+            try {
+                while (mmPending.isEmpty()) {
+                    if (mmClosed) {
+                        throw new IOException("socket closed");
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return mmPending.pollFirst();
+        }
+
+        @Override
+        public void close() {
+            List<SimulatedLink.End> pending;
+            synchronized (this) {
+                mmClosed = true;
+                pending = new ArrayList<>(mmPending);
+                mmPending.clear();
+                notifyAll();
+            }
+            for (SimulatedLink.End end : pending) {
+                end.close(); // 没被 accept() 的连接，对方会读到断开
+            }
+            synchronized (SimulatedRfcomm.this) {
+                if (mServers.get(mmAddress) == this) {
+                    mServers.remove(mmAddress);
+                }
+            }
+        }
+    }
+
+    /**
+     * The BluetoothSocket from open(): not connected until {@link #connect()}.
+     */
+    private final class Socket implements Transport {
+        private final String       mmAddress;
+        private final String       mmRemoteAddress;
+        private SimulatedLink.End  mmEnd;
+        private boolean            mmClosed;
+
+        Socket(String address, String remoteAddress) {
+            mmAddress = address;
+            mmRemoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            synchronized (this) {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(mProfile.getConnectMillis());
+                long deadline = System.nanoTime() + remaining;
+                try {
+                    while (!mmClosed && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining); // close() 会打断连接
+                        remaining = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mmClosed) {
+                    throw new IOException("socket closed");
+                }
+                if (mmEnd != null) {
+                    throw new IOException("already connected");
+                }
+            }
+            SimulatedLink.End end = establish(mmAddress, mmRemoteAddress);
+            if (end == null) {
+                throw new IOException("read failed, socket might closed or timeout, read ret: -1");
+            }
+            synchronized (this) {
+                if (mmClosed) {
+                    end.close(); // close() 的时候刚好连上
+                    throw new IOException("socket closed");
+                }
+                mmEnd = end;
+            }
+        }
+
+        private synchronized SimulatedLink.End end() throws IOException {
+            if (mmEnd == null) {
+                throw new IOException("socket not connected");
+            }
+            return mmEnd;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return end().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return end().getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mmRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            SimulatedLink.End end;
+            synchronized (this) {
+                mmClosed = true;
+                end = mmEnd;
+                notifyAll();
+            }
+            if (end != null) {
+                end.close();
+            }
+        }
+    }
+}
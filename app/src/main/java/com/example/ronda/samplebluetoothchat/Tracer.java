@@ -0,0 +1,160 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Typed trace events in a preallocated ring buffer, instead of building log strings on the data path.
+ * <p>
+ * An event is an id from the {@code EVENT_*} constants plus two {@code long} arguments. Recording
+ * one is a level check, an atomic increment and a few stores into a fixed {@link AtomicLongArray}:
+ * no string, no boxing, no allocation, safe from any thread. Below the current level,
+ * {@link #trace(int, int, long, long)} returns after the level check. The last
+ * {@code capacity} events are kept; {@link #dump()} turns them into text when somebody wants to
+ * read them (on demand, or when a connection is lost).
+ * <p>
+ * 数据通道上（ConnectedThread 的读循环、写线程）不要再用 KLog 拼字符串，用这个
+ */
+public final class Tracer {
+
+    // Levels, a tracer records the events at or below its level
+    public static final int LEVEL_OFF     = 0;
+    public static final int LEVEL_ERROR   = 1;
+    public static final int LEVEL_INFO    = 2; // connection lifecycle
+    public static final int LEVEL_DEBUG   = 3; // every frame
+    public static final int LEVEL_VERBOSE = 4; // every read() / write()
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    // Events: name, then what the two arguments mean
+    public static final int EVENT_CONNECTED       = 1;  // -
+    public static final int EVENT_READ            = 2;  // bytes read, -
+    public static final int EVENT_FRAME_IN        = 3;  // type, payload length
+    public static final int EVENT_FRAMES_OUT      = 4;  // frames, bytes (one socket write)
+    public static final int EVENT_QUEUE_FULL      = 5;  // queue depth, -
+    public static final int EVENT_HELLO           = 6;  // compression active (0/1), dictionary (0/1)
+    public static final int EVENT_PROTOCOL_ERROR  = 7;  // type, payload length
+    public static final int EVENT_WRITE_FAILED    = 8;  // -
+    public static final int EVENT_CONNECTION_LOST = 9;  // -
+    public static final int EVENT_CANCELLED       = 10; // -
+    public static final int EVENT_STATE           = 11; // from, to
+    public static final int EVENT_CONNECT_ATTEMPT = 12; // attempt, 1 if connected
+    public static final int EVENT_ACCEPTED        = 13; // -
+    public static final int EVENT_RTT             = 14; // sample (us), smoothed RTT (us)
+    public static final int EVENT_HEARTBEAT_LOST  = 15; // beats missed, -
+    public static final int EVENT_CREDIT          = 16; // credit limit from the peer, text frames sent so far
+    public static final int EVENT_RESUME          = 17; // buffered frames the peer already had, buffered frames sent again
+    public static final int EVENT_RECONNECTED     = 18; // ms since the link was lost, attempts
+
+    private static final String[] EVENT_NAMES = {
+            "?", "connected", "read", "frame_in", "frames_out", "queue_full", "hello", "protocol_error",
+            "write_failed", "connection_lost", "cancelled", "state", "connect_attempt", "accepted", "rtt",
+            "heartbeat_lost", "credit", "resume", "reconnected"
+    };
+
+    private static final String[] LEVEL_NAMES = {"OFF", "E", "I", "D", "V"};
+
+    // Layout of one record in mSlots
+    private static final int SLOT_SEQUENCE = 0; // written last; -1 while the record is being written
+    private static final int SLOT_TIME     = 1;
+    private static final int SLOT_META     = 2; // level (8 bits) | event (24 bits) | thread id (32 bits)
+    private static final int SLOT_ARG0     = 3;
+    private static final int SLOT_ARG1     = 4;
+    private static final int RECORD_LONGS  = 5;
+
+    private final AtomicLongArray mSlots;
+    private final AtomicLong      mNext = new AtomicLong();
+    private final int             mMask;
+    private final long            mStartNanos = System.nanoTime();
+
+    private volatile int mLevel;
+
+    public Tracer() {
+        this(DEFAULT_CAPACITY, LEVEL_INFO);
+    }
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public Tracer(int capacity, int level) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mSlots = new AtomicLongArray(size * RECORD_LONGS);
+        mMask = size - 1;
+        mLevel = level;
+    }
+
+    public void setLevel(int level) {
+        mLevel = level;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= mLevel;
+    }
+
+    /**
+     * Record an event if {@code level} is enabled.
+     */
+    public void trace(int level, int event, long arg0, long arg1) {
+        if (level > mLevel) {
+            return;
+        }
+        long sequence = mNext.getAndIncrement();
+        int base = (int) (sequence & mMask) * RECORD_LONGS;
+        mSlots.lazySet(base + SLOT_SEQUENCE, -1);
+        mSlots.lazySet(base + SLOT_TIME, System.nanoTime());
+        mSlots.lazySet(base + SLOT_META, ((long) level << 56) | ((long) event << 32) | (Thread.currentThread().getId() & 0xFFFFFFFFL));
+        mSlots.lazySet(base + SLOT_ARG0, arg0);
+        mSlots.lazySet(base + SLOT_ARG1, arg1);
+        mSlots.set(base + SLOT_SEQUENCE, sequence); // publish
+    }
+
+    /**
+     * Number of events recorded so far (including the ones overwritten since).
+     */
+    public long getEventCount() {
+        return mNext.get();
+    }
+
+    /**
+     * The events still in the buffer, oldest first, one per line:
+     * {@code milliseconds since creation, thread id, level, event, arguments}.
+     * Events being written while dumping are skipped.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        long end = mNext.get();
+        long start = Math.max(0, end - (mMask + 1));
+        for (long sequence = start; sequence < end; sequence++) {
+            int base = (int) (sequence & mMask) * RECORD_LONGS;
+            if (mSlots.get(base + SLOT_SEQUENCE) != sequence) {
+                continue;
+            }
+            long time = mSlots.get(base + SLOT_TIME);
+            long meta = mSlots.get(base + SLOT_META);
+            long arg0 = mSlots.get(base + SLOT_ARG0);
+            long arg1 = mSlots.get(base + SLOT_ARG1);
+            if (mSlots.get(base + SLOT_SEQUENCE) != sequence) {
+                continue; // 读的过程中被覆盖了
+            }
+            int level = (int) (meta >>> 56);
+            int event = (int) (meta >>> 32) & 0xFFFFFF;
+            sb.append(String.format(Locale.US, "%10.3f", (time - mStartNanos) / 1e6))
+                    .append(" T").append(meta & 0xFFFFFFFFL)
+                    .append(' ').append(level < LEVEL_NAMES.length ? LEVEL_NAMES[level] : "?")
+                    .append(' ').append(eventName(event))
+                    .append(' ').append(arg0)
+                    .append(' ').append(arg1)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    public static String eventName(int event) {
+        return event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "event" + event;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One stream connection to a remote device. {@link BluetoothChatService} and
+ * {@link ConnectedThread} only talk to this interface, so the same read/write/framing code runs
+ * on an RFCOMM socket ({@link RfcommTransport}), in memory ({@link MemoryTransport}) or over a
+ * simulated radio link ({@link SimulatedRfcomm}).
+ * <p>
+ * Same contract as BluetoothSocket: {@link #connect()} blocks, and {@link #close()} may be called
+ * from any thread to abort a blocking connect() or read().
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Establish the connection. Blocks until connected or failed. No-op for accepted transports.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Address of the remote device, e.g. its MAC address.
+     */
+    String getRemoteAddress();
+
+    /**
+     * Human readable name of the remote device, may be null.
+     */
+    String getRemoteName();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,19 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+
+/**
+ * Creates the transports used by {@link BluetoothChatService}.
+ */
+public interface TransportProvider {
+
+    /**
+     * Start listening for incoming connections.
+     */
+    TransportServer listen() throws IOException;
+
+    /**
+     * Create an unconnected transport to {@code address}; call {@link Transport#connect()} on it.
+     */
+    Transport open(String address) throws IOException;
+}
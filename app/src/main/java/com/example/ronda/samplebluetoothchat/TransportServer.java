@@ -0,0 +1,18 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listening side of a {@link Transport}, the counterpart of BluetoothServerSocket.
+ */
+public interface TransportServer extends Closeable {
+
+    /**
+     * Block until a remote device connects. {@link #close()} from another thread aborts it with an IOException.
+     */
+    Transport accept() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,197 @@
+package com.example.ronda.samplebluetoothchat;
+
+/**
+ * Incremental UTF-8 decoder that appends to a char buffer it keeps across uses.
+ * <p>
+ * Bytes can be fed in pieces of any size: a multi-byte sequence cut off at the end of one
+ * {@link #decode(byte[], int, int)} is completed by the next call, so a CJK character or an emoji
+ * split between two reads comes out whole. Call {@link #flush()} at the end of the input: a
+ * sequence still incomplete then becomes {@link #REPLACEMENT}, as does any malformed one (stray
+ * continuation bytes, overlong forms, surrogates, code points above U+10FFFF).
+ * <p>
+ * The decoder is the {@link CharSequence} of what was decoded since the last {@link #clear()}, so
+ * text can be read with {@link #charAt(int)} or copied with {@link #appendTo(StringBuilder)}
+ * without making a String; the char buffer only grows. Not thread safe.
+ * <p>
+ * 明确按 UTF-8 解码，不依赖平台默认字符集；中文、emoji 被拆在两次 read() 之间也不会变成乱码
+ */
+public final class Utf8Decoder implements CharSequence {
+
+    public static final char REPLACEMENT = '\uFFFD';
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private char[] mChars;
+    private int    mLength;
+
+    // A sequence cut off by the end of the last decode(): the bits so far, how many continuation
+    // bytes are still missing, and the smallest code point its length may encode
+    private int mPartial;
+    private int mNeeded;
+    private int mMin;
+
+    public Utf8Decoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public Utf8Decoder(int capacity) {
+        mChars = new char[Math.max(capacity, 2)];
+    }
+
+    /**
+     * Decode {@code length} bytes of {@code src} and append the characters. An incomplete
+     * sequence at the end is kept for the next call.
+     *
+     * @return the number of chars appended
+     */
+    public int decode(byte[] src, int offset, int length) {
+        // Every byte makes at most one char (a 4 byte sequence makes 2), plus one for a replaced partial sequence
+        ensureCapacity(mLength + length + 1);
+        char[] chars = mChars;
+        int start = mLength;
+        int out = start;
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int b = src[i];
+            if (mNeeded == 0) {
+                if (b >= 0) {
+                    // ASCII, the common case: copy the whole run
+                    chars[out++] = (char) b;
+                    i++;
+                    while (i < end && src[i] >= 0) {
+                        chars[out++] = (char) src[i++];
+                    }
+                    continue;
+                }
+                i++;
+                if ((b & 0xE0) == 0xC0) {
+                    mPartial = b & 0x1F;
+                    mNeeded = 1;
+                    mMin = 0x80;
+                } else if ((b & 0xF0) == 0xE0) {
+                    mPartial = b & 0x0F;
+                    mNeeded = 2;
+                    mMin = 0x800;
+                } else if ((b & 0xF8) == 0xF0) {
+                    mPartial = b & 0x07;
+                    mNeeded = 3;
+                    mMin = 0x10000;
+                } else {
+                    chars[out++] = REPLACEMENT; // 多余的后续字节，或者不合法的首字节
+                }
+            } else if ((b & 0xC0) == 0x80) {
+                i++;
+                mPartial = (mPartial << 6) | (b & 0x3F);
+                if (--mNeeded == 0) {
+                    out = emit(chars, out);
+                }
+            } else {
+                // The sequence stops early: replace it, then read this byte again as the start of a new one
+                chars[out++] = REPLACEMENT;
+                mNeeded = 0;
+            }
+        }
+        mLength = out;
+        return out - start;
+    }
+
+    /**
+     * Same as {@link #decode(byte[], int, int)} for the bytes of {@code payload}.
+     */
+    public int decode(ByteSlice payload) {
+        return decode(payload.array(), payload.offset(), payload.length());
+    }
+
+    /**
+     * End of the input: an incomplete sequence left over becomes {@link #REPLACEMENT}.
+     */
+    public void flush() {
+        if (mNeeded != 0) {
+            ensureCapacity(mLength + 1);
+            mChars[mLength++] = REPLACEMENT;
+            mNeeded = 0;
+        }
+    }
+
+    /**
+     * True while an incomplete sequence waits for the rest of its bytes.
+     */
+    public boolean hasPartial() {
+        return mNeeded != 0;
+    }
+
+    /**
+     * Forget the decoded chars (the buffer is kept); a partial sequence is kept too, call
+     * {@link #reset()} to drop it as well.
+     */
+    public void clear() {
+        mLength = 0;
+    }
+
+    /**
+     * Forget everything, for a new input.
+     */
+    public void reset() {
+        mLength = 0;
+        mNeeded = 0;
+    }
+
+    private int emit(char[] chars, int out) {
+        int cp = mPartial;
+        if (cp < mMin || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)) {
+            chars[out++] = REPLACEMENT;
+        } else if (cp < 0x10000) {
+            chars[out++] = (char) cp;
+        } else {
+            // Character.highSurrogate() is API 19, spelled out here
+            chars[out++] = (char) ((cp >>> 10) + (0xD800 - (0x10000 >>> 10)));
+            chars[out++] = (char) ((cp & 0x3FF) + 0xDC00);
+        }
+        return out;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mChars.length < capacity) {
+            char[] grown = new char[Math.max(capacity, mChars.length * 2)];
+            System.arraycopy(mChars, 0, grown, 0, mLength);
+            mChars = grown;
+        }
+    }
+
+    /**
+     * Copy the decoded chars to {@code sb}.
+     */
+    public void appendTo(StringBuilder sb) {
+        sb.append(mChars, 0, mLength);
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mChars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException("range " + start + ".." + end + ", length " + mLength);
+        }
+        return new String(mChars, start, end - start);
+    }
+
+    /**
+     * The decoded chars as a new String.
+     */
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The whole service on a plain JVM: no Handler, no Looper, events dispatched on the test thread.
+ */
+public class BluetoothChatServiceTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<ConnectedThread> mPeers = new ArrayList<>();
+
+    // Peers connected to with open() are a ConnectedThread on the other end of a MemoryTransport
+    private final TransportProvider mProvider = new TransportProvider() {
+        @Override
+        public TransportServer listen() {
+            return new TransportServer() {
+                private final CountDownLatch mClosed = new CountDownLatch(1);
+
+                @Override
+                public Transport accept() throws IOException {
+                    try {
+                        mClosed.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    throw new IOException("closed");
+                }
+
+                @Override
+                public void close() {
+                    mClosed.countDown();
+                }
+            };
+        }
+
+        @Override
+        public Transport open(String address) {
+            MemoryTransport[] pair = MemoryTransport.pair("me", address);
+            ConnectedThread peer = new ConnectedThread(pair[1], new ConnectedThread.Callback() {
+                @Override
+                public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+                }
+
+                @Override
+                public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+                }
+
+                @Override
+                public void onConnectionLost(ConnectedThread connection, IOException e) {
+                }
+            });
+            peer.start();
+            synchronized (mPeers) {
+                mPeers.add(peer);
+            }
+            return pair[0];
+        }
+    };
+
+    private class RecordingListener implements BluetoothChatService.Listener {
+        final Semaphore    pending = new Semaphore(0);
+        final List<String> events  = new ArrayList<>();
+        volatile Thread    dispatchThread;
+        volatile String    error;
+        private int        checked; // events before this one were already awaited
+
+        @Override
+        public void onEventsPending() {
+            pending.release();
+        }
+
+        private void record(String event) {
+            if (Thread.currentThread() != dispatchThread) {
+                error = event + " on " + Thread.currentThread().getName();
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void onStateChanged(int state, int connectedCount, String deviceName) {
+            record("state " + state + (deviceName != null ? " " + deviceName + " " + connectedCount : ""));
+        }
+
+        @Override
+        public void onFrameReceived(PooledFrame frame) {
+            record("received " + frame.getText() + " from " + frame.getRemoteAddress());
+            frame.recycle();
+        }
+
+        @Override
+        public void onFrameSent(PooledFrame frame) {
+            record("sent " + frame.getText() + " to " + frame.getRemoteAddress());
+            frame.recycle();
+        }
+
+        @Override
+        public void onReconnected(String address, long millis) {
+            record("reconnected " + address);
+        }
+
+        @Override
+        public void onError(int error, String address, String message) {
+            record("error " + error + " " + address);
+        }
+
+        /**
+         * Dispatch on this thread whenever woken, until {@code event} arrived after the last one awaited.
+         */
+        void await(String event) throws InterruptedException {
+            dispatchThread = Thread.currentThread();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (true) {
+                for (; checked < events.size(); checked++) {
+                    if (events.get(checked).equals(event)) {
+                        checked++;
+                        assertNull(error);
+                        return;
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !pending.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                    fail("no " + event + ", got " + events);
+                }
+                service.dispatchEvents();
+            }
+        }
+    }
+
+    private final RecordingListener mListener = new RecordingListener();
+    private final BluetoothChatService service = new BluetoothChatService(mListener, mProvider);
+
+    @After
+    public void tearDown() {
+        service.stop();
+        synchronized (mPeers) {
+            for (ConnectedThread peer : mPeers) {
+                peer.cancel();
+            }
+        }
+    }
+
+    @Test
+    public void eventsReachTheListenerOnTheThreadThatDispatches() throws Exception {
+        service.setReconnectPolicy(null);
+        service.setResumeEnabled(false); // the peer has no Session: don't hold the first message for its RESUME
+        service.start();
+        mListener.await("state " + BluetoothChatService.STATE_LISTEN);
+
+        service.connect("peer");
+        mListener.await("state " + BluetoothChatService.STATE_CONNECTED + " peer 1");
+
+        assertTrue(service.write("hello".getBytes(UTF_8)));
+        mListener.await("sent hello to peer");
+
+        ConnectedThread peer;
+        synchronized (mPeers) {
+            peer = mPeers.get(0);
+        }
+        assertTrue(peer.write("hi".getBytes(UTF_8)));
+        mListener.await("received hi from peer");
+
+        peer.cancel();
+        mListener.await("error " + BluetoothChatService.ERROR_CONNECTION_LOST + " peer");
+        mListener.await("state " + BluetoothChatService.STATE_LISTEN); // still listening for others
+
+        assertEquals(0, service.getMetrics().deliveryQueueDepth);
+    }
+
+    @Test
+    public void tooManyPeersIsReportedAsAnError() throws Exception {
+        for (int i = 0; i < ConnectionRegistry.DEFAULT_MAX_PEERS; i++) {
+            service.connect("peer" + i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnections().connectedCount() < ConnectionRegistry.DEFAULT_MAX_PEERS) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        service.connect("one too many");
+        mListener.await("error " + BluetoothChatService.ERROR_TOO_MANY_PEERS + " one too many");
+    }
+
+    @Test
+    public void aFullQueueOnOnePeerDoesNotFailTheWriteForTheOthers() throws Exception {
+        service.setReconnectPolicy(null);
+        service.setResumeEnabled(false); // no RESUME hold: the reading peer's queue drains right away
+        service.setOutboundQueue(4, FrameWriter.OverflowPolicy.DROP);
+        service.start();
+        service.connect("peer");
+        mListener.await("state " + BluetoothChatService.STATE_CONNECTED + " peer 1");
+        MemoryTransport[] slow = MemoryTransport.pair("me", "slow", 64); // nobody reads the other end
+        try {
+            service.connected(slow[0]);
+            mListener.await("state " + BluetoothChatService.STATE_CONNECTED + " slow 2");
+
+            // The slow peer's pipe and queue fill up; every message still counts as sent
+            for (int i = 0; i < 20; i++) {
+                assertTrue(service.write(("message " + i).getBytes(UTF_8)));
+                mListener.await("sent message " + i + " to peer");
+            }
+            assertTrue(mListener.events.contains("error " + BluetoothChatService.ERROR_MESSAGE_DROPPED + " slow"));
+            assertFalse(mListener.events.contains("sent message 19 to slow"));
+        } finally {
+            slow[1].close();
+        }
+    }
+
+    @Test
+    public void messageLogIsOpenedWhenThePeerConnects() throws Exception {
+        File root = File.createTempFile("messages", "");
+        root.delete();
+        MessageLogStore store = new MessageLogStore(root);
+        service.setMessageLog(store);
+        service.setReconnectPolicy(null);
+        try {
+            service.start();
+            service.connect("peer");
+            mListener.await("state " + BluetoothChatService.STATE_CONNECTED + " peer 1");
+            // No message went either way yet: the first one must not have to open (and recover) the log
+            assertTrue(new File(root, MessageLogStore.directoryName("peer")).isDirectory());
+        } finally {
+            service.stop();
+            store.close();
+            deleteTree(root);
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void sessionsOfDevicesGoneLongAgoAreForgotten() throws Exception {
+        service.setReconnectPolicy(null);
+        service.start();
+        service.connect("kept");
+        awaitConnectedCount(1);
+
+        // More devices than there are Sessions come and go, "kept" stays connected all along
+        for (int i = 0; i <= BluetoothChatService.MAX_SESSIONS; i++) {
+            MemoryTransport[] pair = MemoryTransport.pair("me", "device" + i);
+            service.connected(pair[0]);
+            awaitConnectedCount(2);
+            pair[1].close();
+            awaitConnectedCount(1);
+        }
+
+        assertNotNull(service.getSession("kept")); // the first one, but still connected
+        assertNull(service.getSession("device0"));
+        assertNull(service.getSession("device1"));
+        assertNotNull(service.getSession("device2"));
+        assertNotNull(service.getSession("device" + BluetoothChatService.MAX_SESSIONS));
+    }
+
+    private void awaitConnectedCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnections().connectedCount() != count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
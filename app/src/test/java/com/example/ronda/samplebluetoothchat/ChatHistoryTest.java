@@ -0,0 +1,103 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ChatHistoryTest {
+
+    private File mSpillFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mSpillFile = File.createTempFile("history", ".spill");
+    }
+
+    @After
+    public void tearDown() {
+        mSpillFile.delete();
+    }
+
+    @Test
+    public void oldMessagesSpillAndPageBackIn() {
+        ChatHistory history = new ChatHistory(mSpillFile, 100, Long.MAX_VALUE, 2);
+        for (int i = 0; i < 10000; i++) {
+            history.add(new ChatHistory.Entry(i % 2 == 0, "peer", "message " + i));
+        }
+
+        assertEquals(10000, history.size());
+        assertEquals(9900, history.spilledCount());
+        for (int i = 0; i < 10000; i += 37) {
+            ChatHistory.Entry entry = history.get(i);
+            assertEquals("message " + i, entry.text);
+            assertEquals(i % 2 == 0, entry.outgoing);
+            assertEquals("peer", entry.sender);
+        }
+        history.close();
+        assertFalse(mSpillFile.exists());
+    }
+
+    @Test
+    public void memoryStaysWithinLimit() {
+        long maxBytes = 16 * 1024;
+        ChatHistory history = new ChatHistory(mSpillFile, 1000, maxBytes, 1);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("x");
+        }
+        for (int i = 0; i < 5000; i++) {
+            history.add(new ChatHistory.Entry(false, null, text.toString()));
+        }
+
+        long footprint = history.getMemoryFootprint();
+        // recent window + one cached page + index; nothing that grows with the 5000 messages
+        assertTrue("footprint " + footprint, footprint < maxBytes + 8 * 1024);
+
+        // scrolling all the way up keeps the footprint bounded as well
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals(200, history.get(i).text.length());
+        }
+        assertTrue(history.getMemoryFootprint() < 2 * maxBytes + 8 * 1024);
+        assertNull(history.get(0).sender);
+        history.close();
+    }
+
+    @Test
+    public void partPageReadBackGrowsWithNewMessages() {
+        ChatHistory history = new ChatHistory(mSpillFile, 10, Long.MAX_VALUE, 2);
+        for (int i = 0; i < 20; i++) {
+            history.add(new ChatHistory.Entry(true, null, "message " + i));
+        }
+        assertEquals(10, history.spilledCount()); // the first page is part full
+        assertEquals("message 9", history.get(9).text);
+
+        // Scrolled up to the last spilled page while more messages come in
+        for (int i = 20; i < 30; i++) {
+            history.add(new ChatHistory.Entry(true, null, "message " + i));
+        }
+        assertEquals(20, history.spilledCount());
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals("message " + i, history.get(i).text);
+        }
+        history.close();
+    }
+
+    @Test
+    public void clearStartsOver() {
+        ChatHistory history = new ChatHistory(mSpillFile, 10, Long.MAX_VALUE, 2);
+        for (int i = 0; i < 100; i++) {
+            history.add(new ChatHistory.Entry(true, null, "old " + i));
+        }
+
+        history.clear();
+        history.add(new ChatHistory.Entry(true, null, "new"));
+
+        assertEquals(1, history.size());
+        assertEquals("new", history.get(0).text);
+        history.close();
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConnectRaceTest {
+
+    /**
+     * "dead*" fails after 200 ms, "hang*" blocks until closed (like the 12 s RFCOMM timeout),
+     * "good*" connects after 50 ms.
+     */
+    private static class FakeTransport implements Transport {
+        private final String         mAddress;
+        private final CountDownLatch mClosed = new CountDownLatch(1);
+
+        FakeTransport(String address) {
+            mAddress = address;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            long wait = mAddress.startsWith("dead") ? 200 : mAddress.startsWith("good") ? 50 : 60000;
+            try {
+                if (mClosed.await(wait, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("socket closed");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (!mAddress.startsWith("good")) {
+                throw new IOException("read failed, socket might closed or timeout");
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mAddress;
+        }
+
+        @Override
+        public void close() {
+            mClosed.countDown();
+        }
+    }
+
+    private static final TransportProvider PROVIDER = new TransportProvider() {
+        @Override
+        public TransportServer listen() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Transport open(String address) {
+            return new FakeTransport(address);
+        }
+    };
+
+    private static class Result implements ConnectRace.Listener {
+        final CountDownLatch             done      = new CountDownLatch(1);
+        final AtomicReference<Transport> winner    = new AtomicReference<>();
+        final AtomicInteger              callbacks = new AtomicInteger();
+
+        @Override
+        public void onConnected(ConnectRace race, Transport transport) {
+            winner.set(transport);
+            callbacks.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(ConnectRace race) {
+            callbacks.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void firstGoodCandidateWinsAndTheRestAreClosed() throws Exception {
+        Result result = new Result();
+        ConnectRace race = new ConnectRace(PROVIDER, Arrays.asList("hang1", "dead1", "good1", "hang2"), 4, result);
+        long start = System.nanoTime();
+        race.start();
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertEquals("good1", result.winner.get().getRemoteAddress());
+        Thread.sleep(300); // let the losers finish closing
+
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2000); // not the hanging connect()
+        assertEquals(1, result.callbacks.get());
+
+        List<ConnectRace.Attempt> attempts = race.getAttempts();
+        assertEquals(4, attempts.size());
+        assertEquals(ConnectRace.Attempt.CANCELLED, attempts.get(0).getOutcome());
+        assertEquals(ConnectRace.Attempt.CONNECTED, attempts.get(2).getOutcome());
+        assertEquals(ConnectRace.Attempt.CANCELLED, attempts.get(3).getOutcome());
+        assertTrue(attempts.get(2).getDurationMillis() >= 40);
+        // dead1 was closed before its own failure at 200 ms
+        assertEquals(ConnectRace.Attempt.CANCELLED, attempts.get(1).getOutcome());
+    }
+
+    @Test
+    public void failedCandidateMakesRoomForTheNextOne() throws Exception {
+        Result result = new Result();
+        ConnectRace race = new ConnectRace(PROVIDER, Arrays.asList("dead1", "dead2", "good1"), 1, result);
+        race.start();
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        assertEquals("good1", result.winner.get().getRemoteAddress());
+
+        List<ConnectRace.Attempt> attempts = race.getAttempts();
+        assertEquals(3, attempts.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(ConnectRace.Attempt.FAILED, attempts.get(i).getOutcome());
+            assertEquals("read failed, socket might closed or timeout", attempts.get(i).getError().getMessage());
+            assertTrue(attempts.get(i).getDurationMillis() >= 190);
+        }
+    }
+
+    @Test
+    public void allFailedIsReportedOnce() throws Exception {
+        Result result = new Result();
+        ConnectRace race = new ConnectRace(PROVIDER, Arrays.asList("dead1", "dead2", "dead3"), 2, result);
+        race.start();
+
+        assertTrue(result.done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertNull(result.winner.get());
+        assertEquals(1, result.callbacks.get());
+        for (ConnectRace.Attempt attempt : race.getAttempts()) {
+            assertEquals(ConnectRace.Attempt.FAILED, attempt.getOutcome());
+        }
+    }
+
+    @Test
+    public void cancelClosesEverythingQuietly() throws Exception {
+        Result result = new Result();
+        ConnectRace race = new ConnectRace(PROVIDER, Arrays.asList("hang1", "hang2"), 2, result);
+        race.start();
+        Thread.sleep(50);
+        race.cancel();
+        Thread.sleep(100);
+
+        assertEquals(0, result.callbacks.get());
+        for (ConnectRace.Attempt attempt : race.getAttempts()) {
+            assertEquals(ConnectRace.Attempt.CANCELLED, attempt.getOutcome());
+            assertTrue(attempt.getDurationMillis() < 1000);
+        }
+    }
+}
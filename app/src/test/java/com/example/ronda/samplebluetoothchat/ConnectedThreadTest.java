@@ -0,0 +1,415 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs two {@link ConnectedThread}s against each other over a {@link MemoryTransport}.
+ */
+public class ConnectedThreadTest {
+
+    private static class RecordingCallback implements ConnectedThread.Callback {
+        final List<String>   received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch receivedAll;
+        final CountDownLatch lost     = new CountDownLatch(1);
+
+        RecordingCallback(int expected) {
+            receivedAll = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            received.add(payload.toString());
+            receivedAll.countDown();
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            lost.countDown();
+        }
+    }
+
+    @Test
+    public void messagesArriveInOrder() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B", 1024);
+        RecordingCallback a = new RecordingCallback(0);
+        RecordingCallback b = new RecordingCallback(1000);
+        ConnectedThread sender = new ConnectedThread(pair[0], a);
+        ConnectedThread receiver = new ConnectedThread(pair[1], b);
+        sender.start();
+        receiver.start();
+
+        for (int i = 0; i < 1000; i++) {
+            while (!sender.write(("message " + i).getBytes())) {
+                Thread.yield(); // DROP policy, the small pipe fills up quickly
+            }
+        }
+
+        assertTrue(b.receivedAll.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("message " + i, b.received.get(i));
+        }
+        assertEquals("B", sender.getRemoteAddress());
+
+        sender.cancel();
+        receiver.cancel();
+    }
+
+    @Test
+    public void compressionIsNegotiated() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        RecordingCallback a = new RecordingCallback(1);
+        RecordingCallback b = new RecordingCallback(1);
+        ConnectedThread first = new ConnectedThread(pair[0], a);
+        ConnectedThread second = new ConnectedThread(pair[1], b);
+        first.setCompressor(new FrameCompressor());
+        second.setCompressor(new FrameCompressor());
+        first.start();
+        second.start();
+
+        // the reply goes out after B has seen A's HELLO and A's message, so B compresses it
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("the same words again and again ");
+        }
+        first.write(text.toString().getBytes());
+        assertTrue(b.receivedAll.await(5, TimeUnit.SECONDS));
+        second.write(text.toString().getBytes());
+        assertTrue(a.receivedAll.await(5, TimeUnit.SECONDS));
+
+        assertEquals(text.toString(), a.received.get(0));
+        assertEquals(text.toString(), b.received.get(0));
+        assertEquals(1, second.getCompressor().getFramesCompressed());
+
+        first.cancel();
+        second.cancel();
+    }
+
+    @Test
+    public void peerWithoutCompressionGetsPlainFrames() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        RecordingCallback a = new RecordingCallback(0);
+        RecordingCallback b = new RecordingCallback(2);
+        ConnectedThread first = new ConnectedThread(pair[0], a);
+        ConnectedThread second = new ConnectedThread(pair[1], b); // an older peer: no compressor, ignores HELLO
+        first.setCompressor(new FrameCompressor());
+        first.start();
+        second.start();
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("compressible ");
+        }
+        first.write(text.toString().getBytes());
+        first.write(text.toString().getBytes());
+
+        assertTrue(b.receivedAll.await(5, TimeUnit.SECONDS));
+        assertEquals(text.toString(), b.received.get(1));
+        assertFalse(first.getCompressor().isActive());
+        assertEquals(0, first.getCompressor().getFramesCompressed());
+
+        first.cancel();
+        second.cancel();
+    }
+
+    @Test
+    public void peerCloseIsReportedAsLost() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        RecordingCallback a = new RecordingCallback(0);
+        RecordingCallback b = new RecordingCallback(0);
+        ConnectedThread first = new ConnectedThread(pair[0], a);
+        ConnectedThread second = new ConnectedThread(pair[1], b);
+        first.start();
+        second.start();
+
+        first.cancel();
+
+        assertTrue(b.lost.await(5, TimeUnit.SECONDS));
+        first.join(5000);
+        assertEquals(1, a.lost.getCount()); // cancel() is not a lost connection
+    }
+
+    @Test
+    public void unsentFramesSurviveALostLink() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B", 64);
+        RecordingCallback a = new RecordingCallback(0);
+        ConnectedThread sender = new ConnectedThread(pair[0], a);
+        sender.start();
+
+        assertTrue(sender.write(new byte[1024])); // bigger than the pipe: the writer gets stuck in write()
+        Thread.sleep(50);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sender.write(("message " + i).getBytes()));
+        }
+        pair[1].close(); // B goes away without reading
+
+        assertTrue(a.lost.await(5, TimeUnit.SECONDS));
+        List<byte[]> unsent = sender.takeUnsentFrames();
+        assertEquals(100, unsent.size()); // the 1024 byte frame may have arrived, it is not sent again
+
+        // The frames that never went out are the tail of what was written, in order
+        int first = 100 - unsent.size();
+        for (int i = 0; i < unsent.size(); i++) {
+            byte[] frame = unsent.get(i);
+            assertEquals("message " + (first + i), new String(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE));
+        }
+    }
+
+    @Test
+    public void cancelRacingALostLinkIsReportedAtMostOnce() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+            final AtomicInteger lostCount = new AtomicInteger();
+            RecordingCallback callback = new RecordingCallback(0) {
+                @Override
+                public void onConnectionLost(ConnectedThread connection, IOException e) {
+                    lostCount.incrementAndGet();
+                }
+            };
+            final ConnectedThread connection = new ConnectedThread(pair[0], callback);
+            connection.start();
+
+            Thread canceller = new Thread() {
+                @Override
+                public void run() {
+                    connection.cancel();
+                }
+            };
+            canceller.start();
+            pair[1].close(); // the peer goes away at the same time
+            canceller.join(5000);
+            connection.join(5000);
+
+            assertFalse(connection.isAlive());
+            assertTrue("lost reported " + lostCount.get() + " times", lostCount.get() <= 1);
+        }
+    }
+
+    @Test
+    public void heartbeatsMeasureTheRoundTrip() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        ConnectedThread first = new ConnectedThread(pair[0], new RecordingCallback(0));
+        ConnectedThread second = new ConnectedThread(pair[1], new RecordingCallback(0)); // answers pings without a heartbeat of its own
+        first.setHeartbeat(10, 3);
+        first.start();
+        second.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.getRtt().getSampleCount() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(first.getRtt().getSampleCount() >= 5);
+        assertTrue(first.getRtt().getSmoothedMicros() >= 0);
+        assertNull(second.getRtt());
+
+        first.cancel();
+        second.cancel();
+    }
+
+    @Test
+    public void silentPeerIsDeclaredLost() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException>());
+        final CountDownLatch lostOnce = new CountDownLatch(1);
+        ConnectedThread connection = new ConnectedThread(pair[0], new RecordingCallback(0) {
+            @Override
+            public void onConnectionLost(ConnectedThread connection, IOException e) {
+                errors.add(e);
+                lostOnce.countDown();
+            }
+        });
+        connection.setHeartbeat(20, 3);
+        connection.start();
+
+        // The peer answers the first ping, then goes out of range: it neither reads nor closes
+        final OutputStream peerOut = pair[1].getOutputStream();
+        new FrameDecoder().readFrom(pair[1].getInputStream(), new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int type, ByteSlice payload) {
+                try {
+                    peerOut.write(Heartbeat.pong(payload));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        assertTrue(lostOnce.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertTrue(errors.get(0).getMessage(), errors.get(0).getMessage().contains("heartbeats"));
+    }
+
+    @Test
+    public void peerThatNeverAnswersPingsIsNotDisconnected() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        RecordingCallback callback = new RecordingCallback(0);
+        ConnectedThread connection = new ConnectedThread(pair[0], callback);
+        connection.setHeartbeat(10, 2);
+        connection.start();
+
+        // An older peer: reads (and skips) everything, answers nothing
+        final InputStream peerIn = pair[1].getInputStream();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[256];
+                try {
+                    while (peerIn.read(buffer) >= 0) {
+                        // skip
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        reader.start();
+
+        assertFalse(callback.lost.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, connection.getRtt().getSampleCount());
+        connection.cancel();
+        reader.join(5000);
+    }
+
+    @Test
+    public void slowReceiverOnlyGetsAWindowAhead() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        RecordingCallback a = new RecordingCallback(0);
+        RecordingCallback b = new RecordingCallback(100);
+        ConnectedThread sender = new ConnectedThread(pair[0], a, 1000, FrameWriter.OverflowPolicy.DROP);
+        ConnectedThread receiver = new ConnectedThread(pair[1], b);
+        receiver.setFlowControl(8);
+        sender.start();
+        receiver.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getCreditLimit() != 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(8, sender.getCreditLimit());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sender.write(("message " + i).getBytes()));
+        }
+        Thread.sleep(100);
+        assertEquals(8, b.received.size()); // the receiver consumed nothing yet
+        assertEquals(8, receiver.getUnconsumedFrames());
+        assertTrue(sender.isBlockedOnCredit());
+
+        // Consume whatever arrived, a few at a time, until everything is through
+        int consumed = 0;
+        deadline = System.currentTimeMillis() + 5000;
+        while (consumed < 100 && System.currentTimeMillis() < deadline) {
+            int arrived = b.received.size();
+            assertTrue(arrived - consumed <= 8);
+            if (arrived > consumed) {
+                receiver.onConsumed(arrived - consumed);
+                consumed = arrived;
+            } else {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(100, consumed);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, b.received.get(i));
+        }
+
+        sender.cancel();
+        receiver.cancel();
+    }
+
+    @Test
+    public void lostLinkResumesWithoutLossOrDuplicates() throws Exception {
+        Session senderSession = new Session(1000);
+        Session receiverSession = new Session();
+        final MemoryTransport[] first = MemoryTransport.pair("A", "B", 256);
+        RecordingCallback a = new RecordingCallback(0);
+        RecordingCallback b = new RecordingCallback(200) {
+            @Override
+            public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+                super.onFrameReceived(connection, type, payload);
+                if (received.size() == 50) {
+                    first[1].close(); // the link breaks with frames in flight and queued
+                }
+            }
+        };
+
+        ConnectedThread sender = new ConnectedThread(first[0], a, 1000, FrameWriter.OverflowPolicy.DROP);
+        ConnectedThread receiver = new ConnectedThread(first[1], b);
+        sender.setSession(senderSession);
+        receiver.setSession(receiverSession);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(sender.write(("message " + i).getBytes()));
+        }
+        sender.start();
+        receiver.start();
+
+        assertTrue(a.lost.await(5, TimeUnit.SECONDS));
+        assertTrue(b.lost.await(5, TimeUnit.SECONDS));
+        assertTrue(sender.takeUnsentFrames().isEmpty()); // the text frames stay with the session
+        receiver.takeUnsentFrames();
+        long delivered = b.received.size();
+        assertTrue(delivered < 200);
+
+        // Reconnect with the same sessions
+        MemoryTransport[] second = MemoryTransport.pair("A", "B", 256);
+        ConnectedThread sender2 = new ConnectedThread(second[0], a, 1000, FrameWriter.OverflowPolicy.DROP);
+        ConnectedThread receiver2 = new ConnectedThread(second[1], b);
+        sender2.setSession(senderSession);
+        receiver2.setSession(receiverSession);
+        sender2.start();
+        receiver2.start();
+
+        assertTrue(b.receivedAll.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(200, b.received.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("message " + i, b.received.get(i));
+        }
+        // Only what the receiver did not have was sent again
+        assertEquals(200 - delivered, senderSession.getReplayed());
+        assertEquals(0, senderSession.getUnrecoverable());
+        assertEquals(200, receiverSession.getReceived());
+
+        sender2.cancel();
+        receiver2.cancel();
+    }
+
+    @Test
+    public void peerWithoutSessionGetsFramesRightAway() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        RecordingCallback a = new RecordingCallback(0);
+        RecordingCallback b = new RecordingCallback(10);
+        Session session = new Session();
+        ConnectedThread first = new ConnectedThread(pair[0], a);
+        ConnectedThread second = new ConnectedThread(pair[1], b); // an older peer: says HELLO, knows nothing of RESUME
+        first.setSession(session);
+        second.setCompressor(new FrameCompressor());
+        first.start();
+        second.start();
+
+        for (int i = 0; i < 10; i++) {
+            first.write(("message " + i).getBytes());
+        }
+        assertTrue(b.receivedAll.await(ConnectedThread.RESUME_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS));
+        assertEquals(0, session.getSent()); // nothing numbered for this peer
+
+        first.cancel();
+        second.cancel();
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionEngineTest {
+
+    private final ConnectionEngine mEngine = new ConnectionEngine(2, 1, 2);
+
+    @After
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    private static class CountingCallback implements ConnectedThread.Callback {
+        final CountDownLatch done;
+        final CountDownLatch lost = new CountDownLatch(1);
+        volatile String      error;
+        volatile String      lostOn;
+        private int          next;
+
+        CountingCallback(int messages) {
+            done = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            if (payload.get(0) != (byte) next++) {
+                error = "out of order at " + (next - 1);
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            lostOn = Thread.currentThread().getName();
+            lost.countDown();
+        }
+    }
+
+    private static int liveConnectionThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.equals("ConnectedThread") || name.equals("FrameWriter") || name.equals("Heartbeat")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void manyLinksShareAFixedSetOfThreads() throws Exception {
+        int links = 32;
+        int messages = 200;
+        int threadsBefore = liveConnectionThreads();
+        List<ConnectedThread> connections = new ArrayList<>();
+        CountingCallback[] receivers = new CountingCallback[links];
+        for (int i = 0; i < links; i++) {
+            MemoryTransport[] pair = MemoryTransport.pair("a" + i, "b" + i);
+            receivers[i] = new CountingCallback(messages);
+            ConnectedThread sender = new ConnectedThread(pair[0], new CountingCallback(0), messages, FrameWriter.OverflowPolicy.BLOCK);
+            ConnectedThread receiver = new ConnectedThread(pair[1], receivers[i]);
+            sender.setHeartbeat(50, 3);
+            receiver.setHeartbeat(50, 3);
+            sender.start(mEngine);
+            receiver.start(mEngine);
+            connections.add(sender);
+            connections.add(receiver);
+        }
+        assertEquals(2 * links, mEngine.getLinkCount());
+
+        for (int m = 0; m < messages; m++) {
+            for (int i = 0; i < links; i++) {
+                assertTrue(connections.get(2 * i).write(new byte[]{(byte) m, 1, 2, 3}));
+            }
+        }
+        for (CountingCallback receiver : receivers) {
+            assertTrue(receiver.done.await(10, TimeUnit.SECONDS));
+            assertNull(receiver.error);
+        }
+
+        // Nothing started a thread of its own, and the engine has the threads it started with
+        assertEquals(threadsBefore, liveConnectionThreads());
+        assertEquals(3, mEngine.getThreadCount());
+        assertNotNull(connections.get(0).getRtt());
+
+        for (ConnectedThread connection : connections) {
+            connection.cancel();
+        }
+        assertEquals(0, mEngine.getLinkCount());
+    }
+
+    @Test
+    public void taskNeverRunsTwiceAtOnceAndMissesNoWakeUp() throws Exception {
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger handled = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final ConnectionEngine.Task task = new ConnectionEngine.Task(mEngine) {
+            @Override
+            protected long step() {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                handled.addAndGet(pending.getAndSet(0));
+                running.decrementAndGet();
+                return IDLE;
+            }
+        };
+
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        pending.incrementAndGet();
+                        task.schedule();
+                    }
+                }
+            };
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.get() < 40000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(40000, handled.get());
+        assertEquals(0, overlaps.get());
+
+        task.cancel();
+        assertTrue(task.awaitStopped(1000));
+    }
+
+    @Test
+    public void taskRunsAgainWhenItAsksTo() throws Exception {
+        final CountDownLatch steps = new CountDownLatch(3);
+        ConnectionEngine.Task task = new ConnectionEngine.Task(mEngine) {
+            @Override
+            protected long step() {
+                steps.countDown();
+                return steps.getCount() > 0 ? 5 : IDLE;
+            }
+        };
+        task.schedule();
+        assertTrue(steps.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void peerCloseIsNoticedByTheHeartbeat() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("a", "b");
+        CountingCallback a = new CountingCallback(0);
+        ConnectedThread left = new ConnectedThread(pair[0], a);
+        ConnectedThread right = new ConnectedThread(pair[1], new CountingCallback(0));
+        left.setHeartbeat(20, 3);
+        left.start(mEngine);
+        right.start(mEngine);
+
+        right.cancel(); // the next ping of the left side fails
+        assertTrue(a.lost.await(2, TimeUnit.SECONDS));
+        assertEquals(0, mEngine.getLinkCount());
+    }
+
+    @Test
+    public void silentPeerIsDeclaredLostOnTheEngine() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("a", "b");
+        CountingCallback a = new CountingCallback(0);
+        ConnectedThread left = new ConnectedThread(pair[0], a);
+        left.setHeartbeat(20, 2);
+        left.start(mEngine);
+
+        // The peer answers the first ping, then neither reads nor closes
+        final OutputStream peerOut = pair[1].getOutputStream();
+        new FrameDecoder().readFrom(pair[1].getInputStream(), new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int type, ByteSlice payload) {
+                try {
+                    peerOut.write(Heartbeat.pong(payload));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertTrue(a.lost.await(2, TimeUnit.SECONDS));
+        assertEquals(0, mEngine.getLinkCount());
+    }
+
+    @Test
+    public void noSweepsWithoutLinks() throws Exception {
+        Thread.sleep(10 * mEngine.getPollMillis());
+        assertEquals(0, mEngine.getSweeps());
+
+        ConnectionEngine.Link link = new ConnectionEngine.Link() {
+            @Override
+            public void poll(long nowNanos) {
+            }
+        };
+        mEngine.register(link);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mEngine.getSweeps() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        mEngine.unregister(link);
+        Thread.sleep(2 * mEngine.getPollMillis()); // a sweep that was already running ends
+        long sweeps = mEngine.getSweeps();
+        Thread.sleep(10 * mEngine.getPollMillis());
+        assertEquals(sweeps, mEngine.getSweeps());
+    }
+
+    @Test
+    public void cleanPeerCloseIsNoticedWithoutAHeartbeat() throws Exception {
+        MemoryTransport[] pair = MemoryTransport.pair("a", "b");
+        CountingCallback a = new CountingCallback(1);
+        ConnectedThread left = new ConnectedThread(pair[0], a); // no heartbeat: at the end of the stream available() stays 0
+        ConnectedThread right = new ConnectedThread(pair[1], new CountingCallback(0));
+        left.start(mEngine);
+        right.start(mEngine);
+
+        assertTrue(right.write(new byte[]{0}));
+        assertTrue(a.done.await(2, TimeUnit.SECONDS));
+        right.cancel();
+        assertTrue(a.lost.await(2, TimeUnit.SECONDS));
+        assertTrue(a.lostOn, a.lostOn.startsWith("ConnectionEngine-blocking-")); // not on a loop thread
+    }
+
+    @Test
+    public void blockingTasksDontHoldUpWritesOrEachOther() throws Exception {
+        // Like accept() and connect()s that hang: more of them than the engine has writer threads
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            mEngine.executeBlocking(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // shutdown()
+                    }
+                }
+            });
+        }
+        final CountDownLatch ran = new CountDownLatch(1);
+        mEngine.executeBlocking(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+
+        MemoryTransport[] pair = MemoryTransport.pair("a", "b");
+        CountingCallback b = new CountingCallback(10);
+        ConnectedThread left = new ConnectedThread(pair[0], new CountingCallback(0));
+        ConnectedThread right = new ConnectedThread(pair[1], b);
+        left.setHeartbeat(50, 3);
+        right.setHeartbeat(50, 3);
+        left.start(mEngine);
+        right.start(mEngine);
+        for (int m = 0; m < 10; m++) {
+            assertTrue(left.write(new byte[]{(byte) m}));
+        }
+        assertTrue(b.done.await(2, TimeUnit.SECONDS));
+        assertNull(b.error);
+        release.countDown();
+        left.cancel();
+        right.cancel();
+    }
+}
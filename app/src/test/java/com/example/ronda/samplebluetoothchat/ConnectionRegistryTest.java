@@ -0,0 +1,104 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRegistryTest {
+
+    private static final ConnectedThread.Callback NO_CALLBACK = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    };
+
+    private static ConnectedThread connectionTo(String address) {
+        return new ConnectedThread(MemoryTransport.pair("hub", address)[0], NO_CALLBACK);
+    }
+
+    @Test
+    public void stateIsTrackedPerPeer() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        registry.setConnecting("A");
+        registry.setConnecting("B");
+        registry.put(connectionTo("A"));
+
+        assertEquals(ConnectionRegistry.STATE_CONNECTED, registry.getState("A"));
+        assertEquals(ConnectionRegistry.STATE_CONNECTING, registry.getState("B"));
+        assertEquals(ConnectionRegistry.STATE_NONE, registry.getState("C"));
+        assertEquals(1, registry.connectedCount());
+        assertEquals(1, registry.connectingCount());
+
+        registry.connectFailed("B");
+        assertEquals(ConnectionRegistry.STATE_NONE, registry.getState("B"));
+        assertEquals(1, registry.getPeers().size());
+    }
+
+    @Test
+    public void slotsAreLimited() {
+        ConnectionRegistry registry = new ConnectionRegistry(2);
+        registry.put(connectionTo("A"));
+        registry.put(connectionTo("B"));
+
+        assertFalse(registry.hasRoomFor("C"));
+        assertTrue(registry.hasRoomFor("A")); // a reconnect replaces the old connection
+    }
+
+    @Test
+    public void connectsInFlightHoldTheirSlots() {
+        ConnectionRegistry registry = new ConnectionRegistry(3);
+        registry.put(connectionTo("A"));
+        registry.setConnecting("B");
+        registry.setConnecting("C");
+
+        assertFalse(registry.hasRoomFor("D")); // only one is connected, but B and C will be
+        assertFalse(registry.reserve());
+        assertTrue(registry.hasRoomFor("B"));
+        assertTrue(registry.hasRoomFor("C"));
+
+        registry.connectFailed("C");
+        assertTrue(registry.reserve()); // e.g. connectAny()
+        assertFalse(registry.hasRoomFor("D"));
+        assertEquals(2, registry.connectingCount());
+        registry.release();
+        assertTrue(registry.hasRoomFor("D"));
+    }
+
+    @Test
+    public void newConnectionReplacesOldOne() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        ConnectedThread first = connectionTo("A");
+        ConnectedThread second = connectionTo("A");
+        registry.put(first);
+
+        assertSame(first, registry.put(second));
+        assertSame(second, registry.get("A"));
+        assertFalse(registry.remove(first)); // the old connection's loss must not remove the new one
+        assertTrue(registry.remove(second));
+        assertEquals(0, registry.connections().length);
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        ConnectionRegistry registry = new ConnectionRegistry();
+        registry.put(connectionTo("A"));
+        ConnectedThread[] snapshot = registry.connections();
+        registry.put(connectionTo("B"));
+
+        assertEquals(1, snapshot.length);
+        assertEquals(2, registry.connections().length);
+        assertEquals(2, registry.clear().length);
+        assertEquals(0, registry.connectedCount());
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.example.ronda.samplebluetoothchat.ConnectionStateMachine.*;
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+
+    @Test
+    public void onlyLegalTransitionsAreAllowed() {
+        final AtomicInteger notified = new AtomicInteger();
+        ConnectionStateMachine state = new ConnectionStateMachine(STATE_NONE, new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                notified.incrementAndGet();
+            }
+        });
+
+        try {
+            state.moveTo(STATE_CONNECTED);
+            fail("NONE -> CONNECTED");
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse(state.tryMoveTo(STATE_CONNECTED));
+        assertEquals(STATE_NONE, state.get());
+
+        assertEquals(STATE_NONE, state.moveTo(STATE_LISTEN));
+        assertEquals(STATE_LISTEN, state.moveTo(STATE_LISTEN)); // no transition, no listener call
+        assertFalse(state.compareAndSet(STATE_CONNECTING, STATE_CONNECTED));
+        assertTrue(state.compareAndSet(STATE_LISTEN, STATE_CONNECTED));
+        assertEquals(2, notified.get());
+    }
+
+    /**
+     * Connect, connected, lost and cancel events from many threads at once. Every transition must be
+     * legal and reported exactly once: replaying the reported transitions has to end in the final state.
+     */
+    @Test
+    public void parallelEventsAreReportedExactlyOnce() throws Exception {
+        final AtomicInteger notified = new AtomicInteger();
+        final AtomicLong delta = new AtomicLong();
+        final AtomicInteger illegal = new AtomicInteger();
+        final ConnectionStateMachine state = new ConnectionStateMachine(STATE_LISTEN, new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int from, int to) {
+                if (!ConnectionStateMachine.isLegal(from, to)) {
+                    illegal.incrementAndGet();
+                }
+                notified.incrementAndGet();
+                delta.addAndGet(to - from);
+            }
+        });
+
+        final int threads = 8;
+        final int events = 100000;
+        final AtomicInteger transitions = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < events; i++) {
+                        int current = state.get();
+                        int target;
+                        switch (random.nextInt(4)) {
+                            case 0: // connect()
+                                target = STATE_CONNECTING;
+                                break;
+                            case 1: // connected()
+                                target = STATE_CONNECTED;
+                                break;
+                            case 2: // connection lost, back to listening
+                                target = STATE_LISTEN;
+                                break;
+                            default: // stop() or start()
+                                target = random.nextBoolean() ? STATE_NONE : STATE_LISTEN;
+                                break;
+                        }
+                        if (current == target || !ConnectionStateMachine.isLegal(current, target)) {
+                            continue;
+                        }
+                        if (state.compareAndSet(current, target)) {
+                            transitions.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(0, illegal.get());
+        assertTrue(transitions.get() > 0);
+        assertEquals(transitions.get(), notified.get());
+        assertEquals(state.get(), STATE_LISTEN + delta.get());
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("devicecache", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mFile = new File(mDir, "devices.cache");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void repeatedSightingsAreMerged() throws Exception {
+        DeviceCache cache = new DeviceCache(mFile);
+        assertTrue(cache.onSeen("00:11:22:33:44:55", "base 1", -70, 1000));
+        assertFalse(cache.onSeen("00:11:22:33:44:55", null, -60, 2000));
+
+        assertEquals(1, cache.size());
+        DeviceCache.Entry entry = cache.get("00:11:22:33:44:55");
+        assertEquals("base 1", entry.getName()); // a sighting without a name keeps the known one
+        assertEquals(-60, entry.getRssi());
+        assertEquals(2000, entry.getLastSeenMillis());
+    }
+
+    @Test
+    public void survivesARestart() throws Exception {
+        File file = mFile;
+        DeviceCache cache = new DeviceCache(file);
+        cache.onSeen("00:11:22:33:44:55", "base 1", -70, 1000);
+        cache.onSeen("66:77:88:99:AA:BB", null, DeviceCache.NO_RSSI, 2000);
+        cache.onConnect("00:11:22:33:44:55", 3000);
+        cache.save(3000);
+
+        DeviceCache reopened = new DeviceCache(file);
+        assertEquals(2, reopened.load(4000));
+        List<DeviceCache.Entry> entries = reopened.getEntries();
+        assertEquals("00:11:22:33:44:55", entries.get(0).address); // connected to, so first
+        assertEquals("base 1", entries.get(0).getName());
+        assertEquals(1, entries.get(0).getConnectCount());
+        assertNull(entries.get(1).getName());
+        assertEquals(DeviceCache.NO_RSSI, entries.get(1).getRssi());
+    }
+
+    @Test
+    public void expiredDevicesAreEvicted() throws Exception {
+        File file = mFile;
+        DeviceCache cache = new DeviceCache(file, 24 * HOUR);
+        cache.onSeen("old", "old", -80, 0);
+        cache.onSeen("recent", "recent", -80, 20 * HOUR);
+        cache.save(20 * HOUR);
+
+        DeviceCache reopened = new DeviceCache(file, 24 * HOUR);
+        assertEquals(1, reopened.load(30 * HOUR));
+        assertNotNull(reopened.get("recent"));
+        assertNull(reopened.get("old"));
+    }
+
+    @Test
+    public void hitRateCountsEachDeviceOnce() throws Exception {
+        DeviceCache cache = new DeviceCache(mFile);
+        cache.onConnect("a", 0);
+        cache.onSeen("a", "a", -50, 1);
+        cache.onSeen("a", "a", -50, 2);
+        cache.onSeen("a", "a", -50, 3);
+        cache.onSeen("b", "b", -50, 4);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5f, cache.getHitRate(), 0.001f);
+    }
+
+    @Test(expected = IOException.class)
+    public void garbageFileIsRejected() throws Exception {
+        File file = mFile;
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        out.close();
+        new DeviceCache(file).load(0);
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventQueueTest {
+
+    private static class Item extends EventQueue.Node {
+        final int producer;
+        final int sequence;
+
+        Item(int producer, int sequence) {
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+    }
+
+    @Test
+    public void onlyTheFirstOfferAfterAnEmptyPollWakesTheConsumer() {
+        EventQueue queue = new EventQueue();
+        assertTrue(queue.offer(new Item(0, 0)));
+        assertFalse(queue.offer(new Item(0, 1)));
+        assertEquals(2, queue.size());
+
+        assertEquals(0, ((Item) queue.poll()).sequence);
+        assertFalse(queue.offer(new Item(0, 2))); // not empty yet: the consumer is still draining
+        assertEquals(1, ((Item) queue.poll()).sequence);
+        assertEquals(2, ((Item) queue.poll()).sequence);
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+
+        assertTrue(queue.offer(new Item(0, 3)));
+    }
+
+    @Test
+    public void nodeCanBeQueuedAgainOnceTaken() {
+        EventQueue queue = new EventQueue();
+        Item item = new Item(0, 0);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(item);
+            assertSame(item, queue.poll());
+            assertNull(queue.poll());
+        }
+        Item other = new Item(0, 1);
+        queue.offer(item);
+        queue.offer(other);
+        assertSame(item, queue.poll());
+        queue.offer(item); // recycled while other is still queued
+        assertSame(other, queue.poll());
+        assertSame(item, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void manyProducersLoseNothingAndKeepTheirOrder() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final EventQueue queue = new EventQueue();
+        final Semaphore wakeUps = new Semaphore(0);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        if (queue.offer(new Item(producer, i))) {
+                            wakeUps.release();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        // The consumer only looks when woken, like a Handler message or an unpark
+        int[] next = new int[producers];
+        int received = 0;
+        int drains = 0;
+        while (received < producers * perProducer) {
+            assertTrue("lost wake-up after " + received, wakeUps.tryAcquire(5, TimeUnit.SECONDS));
+            drains++;
+            EventQueue.Node node;
+            while ((node = queue.poll()) != null) {
+                Item item = (Item) node;
+                assertEquals(next[item.producer]++, item.sequence);
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        assertTrue(drains < received); // events rode along with earlier wake-ups
+    }
+
+    /**
+     * Many short rounds in which all producers offer at the same moment the consumer empties the
+     * queue: the racy case of the hand-off. Every event must come with a wake-up of its own or
+     * ride along with an earlier one; one left behind in the queue would time out here.
+     */
+    @Test
+    public void noEventIsLeftBehindWithoutAWakeUp() throws Exception {
+        final int producers = 4;
+        final int rounds = 5000;
+        final EventQueue queue = new EventQueue();
+        final Semaphore wakeUps = new Semaphore(0);
+        final CyclicBarrier start = new CyclicBarrier(producers + 1);
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < rounds; i++) {
+                            start.await();
+                            if (queue.offer(new Item(producer, i))) {
+                                wakeUps.release();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        int received = 0;
+        for (int round = 0; round < rounds; round++) {
+            start.await();
+            while (received < producers * (round + 1)) {
+                if (!wakeUps.tryAcquire(2, TimeUnit.SECONDS)) {
+                    fail("round " + round + ": " + queue.size() + " events queued and nobody woke the consumer");
+                }
+                while (queue.poll() != null) {
+                    received++;
+                }
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * rounds, received);
+        assertNull(queue.poll());
+    }
+}
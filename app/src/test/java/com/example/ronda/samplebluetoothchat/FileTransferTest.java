@@ -0,0 +1,237 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends files between two {@link FileTransferManager}s over {@link MemoryTransport}s.
+ */
+public class FileTransferTest {
+
+    private File mDir;
+    private File mSource;
+    private File mIncoming;
+
+    /**
+     * Routes frames to a manager and waits for the end of a transfer.
+     */
+    private static class Side implements ConnectedThread.Callback, FileTransferManager.Listener {
+        final FileTransferManager manager;
+        final CountDownLatch      complete = new CountDownLatch(1);
+        volatile File             file;
+        volatile IOException      failure;
+        volatile long             progress;
+
+        Side(File incomingDir) {
+            manager = new FileTransferManager(incomingDir, this);
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            manager.onFrame(connection, type, payload);
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            manager.onDisconnected(connection);
+        }
+
+        @Override
+        public void onProgress(long id, String address, String name, long done, long total, boolean incoming) {
+            progress = done;
+        }
+
+        @Override
+        public void onComplete(long id, String address, File file, boolean incoming) {
+            this.file = file;
+            complete.countDown();
+        }
+
+        @Override
+        public void onFailed(long id, String address, String name, IOException e, boolean incoming) {
+            failure = e;
+            complete.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("transfer", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mIncoming = new File(mDir, "in");
+        mSource = new File(mDir, "firmware.bin");
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(5).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(mSource);
+        out.write(data);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static ConnectedThread[] connect(Side sender, Side receiver) {
+        MemoryTransport[] pair = MemoryTransport.pair("sender", "receiver");
+        ConnectedThread[] connections = {
+                new ConnectedThread(pair[0], sender),   // sender's end, remote "receiver"
+                new ConnectedThread(pair[1], receiver)  // receiver's end, remote "sender"
+        };
+        connections[0].start();
+        connections[1].start();
+        return connections;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) in.length()];
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+
+    @Test
+    public void largeFileArrivesIntact() throws Exception {
+        Side sender = new Side(null);
+        Side receiver = new Side(mIncoming);
+        ConnectedThread[] connections = connect(sender, receiver);
+
+        sender.manager.sendFile("receiver", mSource, connections[0]);
+
+        assertTrue(receiver.complete.await(20, TimeUnit.SECONDS));
+        assertTrue(sender.complete.await(20, TimeUnit.SECONDS));
+        assertNull(sender.failure);
+        assertNull(receiver.failure);
+        assertTrue(Arrays.equals(read(mSource), read(receiver.file)));
+        assertEquals("firmware.bin", receiver.file.getName());
+        assertEquals(0, sender.manager.getSenders().size());
+
+        connections[0].cancel();
+        connections[1].cancel();
+    }
+
+    @Test
+    public void transferResumesAfterDisconnect() throws Exception {
+        Side sender = new Side(null);
+        Side receiver = new Side(mIncoming);
+        ConnectedThread[] first = connect(sender, receiver);
+        long id = sender.manager.sendFile("receiver", mSource, first[0]);
+        FileSender fileSender = sender.manager.getSenders().get(0);
+
+        while (receiver.progress < 1024 * 1024) {
+            Thread.sleep(1);
+        }
+        // the link drops in the middle
+        first[0].cancel();
+        first[1].cancel();
+        sender.manager.onDisconnected(first[0]);
+        receiver.manager.onDisconnected(first[1]);
+        long before = receiver.progress;
+        assertEquals(1, receiver.complete.getCount());
+
+        ConnectedThread[] second = connect(sender, receiver);
+        sender.manager.onConnected(second[0]);
+
+        assertTrue(receiver.complete.await(20, TimeUnit.SECONDS));
+        assertTrue(sender.complete.await(20, TimeUnit.SECONDS));
+        assertNull(sender.failure);
+        assertTrue(Arrays.equals(read(mSource), read(receiver.file)));
+        assertEquals(id, fileSender.getTransferId());
+        // only what was in flight at the disconnect is sent twice, not the part before it
+        long window = (long) FileSender.DEFAULT_WINDOW * FileSender.DEFAULT_CHUNK_SIZE;
+        assertTrue(fileSender.getBytesSent() <= mSource.length() + window);
+        assertTrue(before > 0);
+
+        second[0].cancel();
+        second[1].cancel();
+    }
+
+    @Test
+    public void corruptChunkIsRequestedAgain() throws Exception {
+        mIncoming.mkdirs();
+        File target = new File(mIncoming, "small.bin");
+        FileReceiver receiver = new FileReceiver(42, target, new File(mIncoming, "42.part"), 8);
+
+        byte[] good = chunk(42, 0, new byte[]{1, 2, 3, 4});
+        byte[] bad = good.clone();
+        bad[bad.length - 1] ^= 1;
+
+        assertTrue(isResend(receiver.onChunk(payloadOf(bad))));
+        assertEquals(0, receiver.getOffset());
+        assertNull(receiver.onChunk(payloadOf(bad))); // only one resend request per gap
+        assertFalse(isResend(receiver.onChunk(payloadOf(good))));
+        assertEquals(4, receiver.getOffset());
+
+        // a chunk after a gap is not written either
+        assertTrue(isResend(receiver.onChunk(payloadOf(chunk(42, 6, new byte[]{7, 8})))));
+        assertFalse(isResend(receiver.onChunk(payloadOf(chunk(42, 4, new byte[]{5, 6, 7, 8})))));
+        assertTrue(receiver.isComplete());
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, read(target)));
+    }
+
+    @Test
+    public void partFileIsTheResumeOffset() throws Exception {
+        mIncoming.mkdirs();
+        File target = new File(mIncoming, "resume.bin");
+        File part = new File(mIncoming, "7.part");
+        FileReceiver receiver = new FileReceiver(7, target, part, 8);
+        receiver.onChunk(payloadOf(chunk(7, 0, new byte[]{1, 2, 3})));
+        receiver.close();
+
+        // e.g. after the app was restarted
+        FileReceiver reopened = new FileReceiver(7, target, part, 8);
+        assertEquals(3, reopened.getOffset());
+        byte[] accept = reopened.acceptFrame();
+        assertEquals(FrameCodec.TYPE_FILE_ACCEPT, FrameCodec.readType(accept, 0));
+        assertEquals(3, ByteBuffer.wrap(accept, FrameCodec.HEADER_SIZE + 8, 8).getLong());
+        reopened.close();
+    }
+
+    private static byte[] chunk(long id, long offset, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        ByteBuffer payload = ByteBuffer.allocate(FileSender.CHUNK_HEADER_SIZE + data.length);
+        payload.putLong(id).putLong(offset).putInt((int) crc.getValue()).put(data);
+        return payload.array();
+    }
+
+    private static ByteSlice payloadOf(byte[] payload) {
+        return new ByteSlice().set(payload, 0, payload.length);
+    }
+
+    private static boolean isResend(byte[] ack) {
+        assertEquals(FrameCodec.TYPE_FILE_ACK, FrameCodec.readType(ack, 0));
+        return ack[ack.length - 1] != 0;
+    }
+}
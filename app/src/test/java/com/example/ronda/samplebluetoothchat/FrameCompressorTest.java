@@ -0,0 +1,129 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String TELEMETRY =
+            "{\"device\":\"HC-05\",\"seq\":1024,\"temperature\":23.5,\"humidity\":41,\"status\":\"ok\",\"battery\":87}";
+
+    /**
+     * Two compressors that exchanged HELLOs, like both ends of a connection.
+     */
+    private static FrameCompressor[] negotiated(byte[] dictionaryA, byte[] dictionaryB) {
+        FrameCompressor a = new FrameCompressor(dictionaryA, 6);
+        FrameCompressor b = new FrameCompressor(dictionaryB, 6);
+        a.onHello(payloadOf(b.helloFrame()));
+        b.onHello(payloadOf(a.helloFrame()));
+        return new FrameCompressor[]{a, b};
+    }
+
+    private static ByteSlice payloadOf(byte[] frame) {
+        return new ByteSlice().set(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+    }
+
+    /**
+     * Run a frame through the sender's transform and the receiver's inflate.
+     */
+    private static String roundTrip(FrameCompressor sender, FrameCompressor receiver, String text, boolean expectCompressed) throws IOException {
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, text.getBytes(UTF_8));
+        byte[] wire = new byte[frame.length];
+        int length = sender.transform(frame, wire, 0);
+        assertTrue(length <= frame.length);
+
+        int type = FrameCodec.readType(wire, 0);
+        assertEquals(expectCompressed, (type & FrameCodec.FLAG_COMPRESSED) != 0);
+        assertEquals(FrameCodec.TYPE_TEXT, type & FrameCodec.TYPE_MASK);
+        assertEquals(length - FrameCodec.HEADER_SIZE, FrameCodec.readLength(wire, 0));
+
+        ByteSlice payload = new ByteSlice().set(wire, FrameCodec.HEADER_SIZE, length - FrameCodec.HEADER_SIZE);
+        if (expectCompressed) {
+            payload = receiver.inflate(payload);
+        }
+        return payload.toString(UTF_8);
+    }
+
+    @Test
+    public void noCompressionBeforeHello() throws Exception {
+        FrameCompressor a = new FrameCompressor();
+        assertFalse(a.isActive());
+        assertEquals(TELEMETRY, roundTrip(a, null, TELEMETRY, false));
+    }
+
+    @Test
+    public void repetitiveTextShrinks() throws Exception {
+        FrameCompressor[] pair = negotiated(null, null);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append(TELEMETRY);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(text.toString(), roundTrip(pair[0], pair[1], text.toString(), true));
+        }
+        assertEquals(100, pair[0].getFramesCompressed());
+        assertTrue(pair[0].getCompressionRatio() < 0.2);
+    }
+
+    @Test
+    public void randomDataGoesOutAsIs() throws Exception {
+        FrameCompressor[] pair = negotiated(null, null);
+        byte[] random = new byte[1000];
+        new Random(3).nextBytes(random);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, random);
+        byte[] wire = new byte[frame.length];
+
+        assertEquals(frame.length, pair[0].transform(frame, wire, 0));
+        assertArrayEquals(frame, wire);
+        assertEquals(1, pair[0].getFramesStored());
+    }
+
+    @Test
+    public void shortPayloadIsNotTried() throws Exception {
+        FrameCompressor[] pair = negotiated(null, null);
+        assertEquals("hi", roundTrip(pair[0], pair[1], "hi", false));
+        assertEquals(0, pair[0].getFramesStored() + pair[0].getFramesCompressed());
+    }
+
+    @Test
+    public void sharedDictionaryHelpsSmallFrames() throws Exception {
+        byte[] dictionary = TELEMETRY.getBytes(UTF_8);
+        FrameCompressor[] plain = negotiated(null, null);
+        FrameCompressor[] withDictionary = negotiated(dictionary, dictionary);
+        assertTrue(withDictionary[0].isUsingDictionary());
+
+        String message = TELEMETRY.replace("1024", "1025");
+        assertEquals(message, roundTrip(withDictionary[0], withDictionary[1], message, true));
+
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, message.getBytes(UTF_8));
+        byte[] wire = new byte[frame.length];
+        int plainLength = plain[0].transform(frame, wire, 0);
+        int dictionaryLength = withDictionary[0].transform(frame, wire, 0);
+        assertTrue(dictionaryLength * 2 < plainLength);
+    }
+
+    @Test
+    public void differentDictionariesFallBackToPlainDeflate() throws Exception {
+        FrameCompressor[] pair = negotiated(TELEMETRY.getBytes(UTF_8), "something else".getBytes(UTF_8));
+        assertTrue(pair[0].isActive());
+        assertFalse(pair[0].isUsingDictionary());
+
+        String text = TELEMETRY + TELEMETRY + TELEMETRY;
+        assertEquals(text, roundTrip(pair[0], pair[1], text, true));
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptPayloadIsRejected() throws Exception {
+        FrameCompressor receiver = new FrameCompressor();
+        byte[] garbage = "definitely not zlib data".getBytes(UTF_8);
+        receiver.inflate(new ByteSlice().set(garbage, 0, garbage.length));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds split and merged byte streams into {@link FrameDecoder}.
+ */
+public class FrameDecoderTest {
+
+    private final List<byte[]>  mPayloads = new ArrayList<>();
+    private final List<Integer> mTypes    = new ArrayList<>();
+
+    private final FrameDecoder.Listener mListener = new FrameDecoder.Listener() {
+        @Override
+        public void onFrame(int type, ByteSlice payload) {
+            mTypes.add(type);
+            byte[] copy = new byte[payload.length()];
+            payload.copyTo(copy, 0);
+            mPayloads.add(copy);
+        }
+    };
+
+    @Test
+    public void singleFrame() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, "hello".getBytes("UTF-8"));
+
+        decoder.feed(frame, 0, frame.length, mListener);
+
+        assertEquals(1, mPayloads.size());
+        assertEquals(FrameCodec.TYPE_TEXT, (int) mTypes.get(0));
+        assertEquals("hello", new String(mPayloads.get(0), "UTF-8"));
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test
+    public void frameSplitByteByByte() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(8);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, "split across reads".getBytes("UTF-8"));
+
+        for (int i = 0; i < frame.length; i++) {
+            decoder.feed(frame, i, 1, mListener);
+            assertEquals(i == frame.length - 1 ? 1 : 0, mPayloads.size());
+        }
+        assertEquals("split across reads", new String(mPayloads.get(0), "UTF-8"));
+    }
+
+    @Test
+    public void mergedFrames() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            stream.write(FrameCodec.encode(FrameCodec.TYPE_TEXT, ("message " + i).getBytes("UTF-8")));
+        }
+        byte[] merged = stream.toByteArray();
+
+        decoder.feed(merged, 0, merged.length, mListener);
+
+        assertEquals(10, mPayloads.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message " + i, new String(mPayloads.get(i), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void emptyPayload() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, new byte[0]);
+
+        decoder.feed(frame, 0, frame.length, mListener);
+
+        assertEquals(1, mPayloads.size());
+        assertEquals(0, mPayloads.get(0).length);
+    }
+
+    @Test
+    public void payloadLargerThanBufferGrowsIt() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(16);
+        byte[] payload = new byte[64 * 1024];
+        new Random(1).nextBytes(payload);
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_TEXT, payload);
+
+        // every read() only fills the free space of the buffer, so this takes several rounds
+        InputStream in = new ByteArrayInputStream(frame);
+        while (decoder.readFrom(in, mListener) > 0) {
+            assertTrue(mPayloads.size() <= 1);
+        }
+
+        assertEquals(1, mPayloads.size());
+        assertArrayEquals(payload, mPayloads.get(0));
+        assertTrue(decoder.capacity() >= frame.length);
+    }
+
+    @Test
+    public void randomSplitsOfManyFrames() throws Exception {
+        Random random = new Random(42);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<byte[]> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] payload = new byte[random.nextInt(3000)];
+            random.nextBytes(payload);
+            expected.add(payload);
+            stream.write(FrameCodec.encode(FrameCodec.TYPE_TEXT, payload));
+        }
+        byte[] all = stream.toByteArray();
+
+        FrameDecoder decoder = new FrameDecoder(64);
+        int pos = 0;
+        while (pos < all.length) {
+            int chunk = Math.min(all.length - pos, 1 + random.nextInt(4096));
+            decoder.feed(all, pos, chunk, mListener);
+            pos += chunk;
+        }
+
+        assertEquals(expected.size(), mPayloads.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), mPayloads.get(i));
+        }
+        assertEquals(0, decoder.pending());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptLengthIsRejected() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] header = new byte[FrameCodec.HEADER_SIZE];
+        FrameCodec.writeHeader(header, 0, FrameCodec.TYPE_TEXT, FrameCodec.MAX_PAYLOAD_LENGTH + 1);
+
+        decoder.feed(header, 0, header.length, mListener);
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Coalescing and overflow behaviour of {@link FrameWriter}.
+ */
+public class FrameWriterTest {
+
+    /**
+     * Blocks every write until released, so frames pile up in the queue behind it.
+     */
+    private static class GatedOutputStream extends OutputStream {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final CountDownLatch        gate    = new CountDownLatch(1);
+        final AtomicInteger         writes  = new AtomicInteger();
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (written) {
+                written.write(b, off, len);
+            }
+            writes.incrementAndGet();
+        }
+    }
+
+    private static class CountingCallback implements FrameWriter.Callback {
+        final AtomicInteger  frames = new AtomicInteger();
+        final CountDownLatch done;
+
+        CountingCallback(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onFramesWritten(List<byte[]> written) {
+            for (int i = 0; i < written.size(); i++) {
+                frames.incrementAndGet();
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+        }
+    }
+
+    private static byte[] frame(int i) {
+        return FrameCodec.encode(FrameCodec.TYPE_TEXT, ("message " + i).getBytes());
+    }
+
+    @Test
+    public void burstIsCoalescedIntoFewWrites() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        CountingCallback callback = new CountingCallback(100);
+        FrameWriter writer = new FrameWriter(out, callback, 256, FrameWriter.OverflowPolicy.DROP, 8 * 1024, 0);
+        writer.start();
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.enqueue(frame(i)));
+        }
+        out.gate.countDown();
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        assertEquals(100, writer.getFramesWritten());
+        assertTrue("writes: " + writer.getWriteCalls(), writer.getWriteCalls() <= 3);
+
+        // the stream still carries every frame, in order
+        final AtomicInteger next = new AtomicInteger();
+        byte[] bytes = out.written.toByteArray();
+        new FrameDecoder().feed(bytes, 0, bytes.length, new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int type, ByteSlice payload) {
+                assertEquals("message " + next.getAndIncrement(), payload.toString());
+            }
+        });
+        assertEquals(100, next.get());
+    }
+
+    @Test
+    public void batchesRespectMaxSize() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        CountingCallback callback = new CountingCallback(50);
+        byte[] big = FrameCodec.encode(FrameCodec.TYPE_TEXT, new byte[1000]);
+        FrameWriter writer = new FrameWriter(out, callback, 256, FrameWriter.OverflowPolicy.DROP, 4096, 0);
+        writer.start();
+
+        for (int i = 0; i < 50; i++) {
+            writer.enqueue(big);
+        }
+        out.gate.countDown();
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        // at most 4 frames of 1005 bytes fit into 4096
+        assertTrue(writer.getWriteCalls() >= 13);
+        assertEquals(50 * big.length, out.written.size());
+    }
+
+    @Test
+    public void dropPolicyRejectsWhenFull() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        FrameWriter writer = new FrameWriter(out, new CountingCallback(0), 4, FrameWriter.OverflowPolicy.DROP, 4096, 0);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(writer.enqueue(frame(i)));
+        }
+        assertFalse(writer.enqueue(frame(4)));
+        assertEquals(4, writer.queueDepth());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failPolicyThrowsWhenFull() throws Exception {
+        FrameWriter writer = new FrameWriter(new GatedOutputStream(), new CountingCallback(0), 1, FrameWriter.OverflowPolicy.FAIL, 4096, 0);
+
+        writer.enqueue(frame(0));
+        writer.enqueue(frame(1));
+    }
+
+    @Test
+    public void blockPolicyWaitsForRoom() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        CountingCallback callback = new CountingCallback(20);
+        final FrameWriter writer = new FrameWriter(out, callback, 2, FrameWriter.OverflowPolicy.BLOCK, 4096, 0);
+        writer.start();
+        out.gate.countDown();
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(writer.enqueue(frame(i)));
+        }
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        writer.close();
+        assertFalse(writer.enqueue(frame(99)));
+    }
+
+    @Test
+    public void creditLimitHoldsTextFramesButNotControlFrames() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        out.gate.countDown();
+        CountingCallback callback = new CountingCallback(4);
+        FrameWriter writer = new FrameWriter(out, callback, 256, FrameWriter.OverflowPolicy.DROP, 4096, 0);
+        writer.setCreditLimit(3);
+        writer.start();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(writer.enqueue(frame(i)));
+        }
+        assertTrue(writer.offer(Heartbeat.ping(42)));
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS)); // 3 messages and the ping
+        Thread.sleep(50);
+        assertEquals(4, callback.frames.get());
+        assertEquals(3, writer.getDataFramesSent());
+        assertEquals(7, writer.queueDepth());
+        assertTrue(writer.isBlockedOnCredit());
+
+        writer.setCreditLimit(2); // stale, ignored
+        writer.setCreditLimit(10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (callback.frames.get() < 11 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(11, callback.frames.get());
+        assertFalse(writer.isBlockedOnCredit());
+        writer.close();
+
+        // messages still in order, the ping went ahead of the held back ones
+        final List<String> texts = new ArrayList<>();
+        byte[] bytes = out.written.toByteArray();
+        new FrameDecoder().feed(bytes, 0, bytes.length, new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int type, ByteSlice payload) {
+                texts.add(type == FrameCodec.TYPE_PING ? "ping" : payload.toString());
+            }
+        });
+        assertEquals(11, texts.size());
+        assertTrue(texts.indexOf("ping") <= 3);
+        int next = 0;
+        for (String text : texts) {
+            if (!text.equals("ping")) {
+                assertEquals("message " + next++, text);
+            }
+        }
+    }
+
+    @Test
+    public void busyChannelsShareTheLinkByWeight() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        CountingCallback callback = new CountingCallback(200);
+        FrameWriter writer = new FrameWriter(out, callback, 256, FrameWriter.OverflowPolicy.DROP, 4096, 0);
+        ChatMetrics metrics = new ChatMetrics();
+        writer.setMetrics(metrics);
+        writer.setWeight(FrameWriter.CHANNEL_INTERACTIVE, 8);
+        writer.setWeight(FrameWriter.CHANNEL_BULK, 1);
+
+        // The bulk stream was queued first; FIFO would send all of it before the first message
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.enqueue(FrameCodec.encode(FrameCodec.TYPE_FILE_CHUNK, new byte[1000])));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.enqueue(FrameCodec.encode(FrameCodec.TYPE_TEXT, new byte[1000])));
+        }
+        assertEquals(100, writer.queueDepth(FrameWriter.CHANNEL_BULK));
+        assertEquals(100, writer.queueDepth(FrameWriter.CHANNEL_INTERACTIVE));
+        writer.start();
+        out.gate.countDown();
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        writer.close();
+
+        final List<Integer> types = new ArrayList<>();
+        byte[] bytes = out.written.toByteArray();
+        new FrameDecoder().feed(bytes, 0, bytes.length, new FrameDecoder.Listener() {
+            @Override
+            public void onFrame(int type, ByteSlice payload) {
+                types.add(type);
+            }
+        });
+        assertEquals(200, types.size());
+
+        // While both were busy: about 8 messages per chunk, and the bulk channel is not starved
+        int text = 0;
+        for (int i = 0; i < 45; i++) {
+            if (types.get(i) == FrameCodec.TYPE_TEXT) {
+                text++;
+            }
+        }
+        assertTrue("text frames among the first 45: " + text, text >= 36 && text <= 42);
+
+        ChatMetrics.Snapshot snapshot = metrics.snapshot(0, 0);
+        assertEquals(100, snapshot.channelLatency[FrameWriter.CHANNEL_INTERACTIVE].getCount());
+        assertEquals(100, snapshot.channelLatency[FrameWriter.CHANNEL_BULK].getCount());
+    }
+
+    @Test
+    public void framesGoOnTheirChannel() {
+        assertEquals(FrameWriter.CHANNEL_CONTROL, FrameWriter.channelOf(Heartbeat.ping(1)));
+        assertEquals(FrameWriter.CHANNEL_CONTROL, FrameWriter.channelOf(FrameCodec.encode(FrameCodec.TYPE_HELLO, new byte[1])));
+        assertEquals(FrameWriter.CHANNEL_INTERACTIVE, FrameWriter.channelOf(frame(1)));
+        assertEquals(FrameWriter.CHANNEL_INTERACTIVE, FrameWriter.channelOf(FrameCodec.encode(FrameCodec.TYPE_FILE_ACK, new byte[1])));
+        assertEquals(FrameWriter.CHANNEL_BULK, FrameWriter.channelOf(FrameCodec.encode(FrameCodec.TYPE_FILE_CHUNK, new byte[1])));
+    }
+}
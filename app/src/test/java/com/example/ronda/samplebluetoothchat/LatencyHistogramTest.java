@@ -0,0 +1,80 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithinTheirPrecision() {
+        for (long us = 0; us < 1000000; us += 7) {
+            int bucket = LatencyHistogram.bucketOf(us);
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertTrue(us + " > " + highest, us <= highest);
+            assertTrue(us + " <-> " + highest, highest - us <= Math.max(1, us / 16));
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.highestValueOf(bucket - 1) < us);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesOfAUniformRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMaxMicros());
+        assertEquals(500500, snapshot.getMeanMicros());
+        assertEquals(500000, snapshot.getPercentileMicros(50), 500000 / 16);
+        assertEquals(990000, snapshot.getPercentileMicros(99), 990000 / 16);
+        assertEquals(1000000, snapshot.getPercentileMicros(100));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i * 1000L);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(99999, snapshot.getMaxMicros());
+    }
+
+    @Test
+    public void metricsDumpHasEveryGroup() {
+        ChatMetrics metrics = new ChatMetrics();
+        metrics.onFrameIn(100);
+        metrics.onFrameOut(50);
+        metrics.onWrite(2000000);
+        metrics.onConnectAttempt(1500000000L, true);
+        metrics.onStateChanged(ConnectionStateMachine.STATE_NONE, ConnectionStateMachine.STATE_LISTEN);
+
+        ChatMetrics.Snapshot snapshot = metrics.snapshot(3, 0);
+        assertEquals(100, snapshot.bytesIn);
+        assertEquals(1, snapshot.framesOut);
+        assertEquals(1, snapshot.connectsOk);
+        String dump = snapshot.toString();
+        assertTrue(dump, dump.contains("in frames=1 bytes=100"));
+        assertTrue(dump, dump.contains("queue outbound=3"));
+        assertTrue(dump, dump.contains("connect_ms ok=1 failed=0 n=1"));
+        assertTrue(dump, dump.contains("state_ms none="));
+    }
+}
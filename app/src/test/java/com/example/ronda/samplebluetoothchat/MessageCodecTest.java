@@ -0,0 +1,178 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link MessageEncoder} and {@link MessageDecoder} together.
+ */
+public class MessageCodecTest {
+
+    private static final int TYPE_STATUS = 1;
+
+    // Version 1 of a status message: battery, rssi, rtt, name. Version 2 adds charging at the end
+    private static void writeStatus(MessageEncoder encoder, int version, String name) {
+        encoder.begin(TYPE_STATUS, version);
+        encoder.writeInt(87);
+        encoder.writeInt(-61);
+        encoder.writeLong(12345678901L);
+        encoder.writeString(name);
+        if (version >= 2) {
+            encoder.writeBoolean(true);
+        }
+        encoder.end();
+    }
+
+    private static MessageDecoder decoderFor(MessageEncoder encoder) {
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.reset(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+        return decoder;
+    }
+
+    @Test
+    public void fieldsComeBackInOrder() throws IOException {
+        MessageEncoder encoder = new MessageEncoder();
+        encoder.begin(7, 3);
+        encoder.writeVarint(0);
+        encoder.writeVarint(127);
+        encoder.writeVarint(128);
+        encoder.writeVarint(Long.MAX_VALUE);
+        encoder.writeSigned(-1);
+        encoder.writeSigned(Long.MIN_VALUE);
+        encoder.writeInt(Integer.MIN_VALUE);
+        encoder.writeBoolean(false);
+        encoder.writeFloat(1.5f);
+        encoder.writeDouble(-0.1);
+        encoder.writeString("蓝牙 ok 😀");
+        encoder.writeBytes(new byte[]{1, 2, 3}, 1, 2);
+        encoder.end();
+
+        MessageDecoder decoder = decoderFor(encoder);
+        assertTrue(decoder.next());
+        assertEquals(7, decoder.getType());
+        assertEquals(3, decoder.getVersion());
+        assertEquals(0, decoder.readVarint());
+        assertEquals(127, decoder.readVarint());
+        assertEquals(128, decoder.readVarint());
+        assertEquals(Long.MAX_VALUE, decoder.readVarint());
+        assertEquals(-1, decoder.readSigned());
+        assertEquals(Long.MIN_VALUE, decoder.readSigned());
+        assertEquals(Integer.MIN_VALUE, decoder.readInt());
+        assertFalse(decoder.readBoolean());
+        assertEquals(1.5f, decoder.readFloat(), 0);
+        assertEquals(-0.1, decoder.readDouble(), 0);
+        assertEquals("蓝牙 ok 😀", decoder.readString());
+        ByteSlice bytes = decoder.readBytes(new ByteSlice());
+        assertEquals(2, bytes.length());
+        assertEquals(3, bytes.get(1));
+        assertFalse(decoder.hasMoreFields());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void smallNumbersTakeOneByte() {
+        MessageEncoder encoder = new MessageEncoder();
+        encoder.begin(1, 0);
+        encoder.writeInt(-64);
+        encoder.writeInt(63);
+        assertEquals(3 + 2, encoder.end());
+    }
+
+    @Test
+    public void olderReaderSkipsNewFields() throws IOException {
+        MessageEncoder encoder = new MessageEncoder();
+        writeStatus(encoder, 2, "phone");
+        byte[] two = new byte[2 * encoder.getLength()];
+        System.arraycopy(encoder.getBuffer(), encoder.getOffset(), two, 0, encoder.getLength());
+        System.arraycopy(encoder.getBuffer(), encoder.getOffset(), two, encoder.getLength(), encoder.getLength());
+
+        // A version 1 reader: reads its four fields and moves on
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.reset(two, 0, two.length);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(decoder.next());
+            assertEquals(2, decoder.getVersion());
+            assertEquals(87, decoder.readInt());
+            assertEquals(-61, decoder.readInt());
+            assertEquals(12345678901L, decoder.readLong());
+            assertEquals("phone", decoder.readString());
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void newerReaderDefaultsMissingFields() throws IOException {
+        MessageEncoder encoder = new MessageEncoder();
+        writeStatus(encoder, 1, "old phone");
+        MessageDecoder decoder = decoderFor(encoder);
+        assertTrue(decoder.next());
+        decoder.readInt();
+        decoder.readInt();
+        decoder.readLong();
+        assertEquals("old phone", decoder.readString(new Utf8Decoder()).toString());
+        assertFalse(decoder.hasMoreFields()); // no charging field: a version 2 reader uses its default
+        try {
+            decoder.readBoolean();
+            fail();
+        } catch (IOException expected) {
+            // past the end of the message
+        }
+    }
+
+    @Test
+    public void truncatedInputIsRejected() {
+        MessageEncoder encoder = new MessageEncoder();
+        writeStatus(encoder, 1, "phone");
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.reset(encoder.getBuffer(), encoder.getOffset(), encoder.getLength() - 1);
+        try {
+            decoder.next();
+            fail();
+        } catch (IOException expected) {
+            // the length runs past the input
+        }
+    }
+
+    @Test
+    public void buffersAreReused() throws IOException {
+        MessageEncoder encoder = new MessageEncoder();
+        writeStatus(encoder, 2, "warm-up");
+        byte[] buffer = encoder.getBuffer();
+        MessageDecoder decoder = new MessageDecoder();
+        Utf8Decoder name = new Utf8Decoder();
+        for (int i = 0; i < 1000; i++) {
+            writeStatus(encoder, 2, "phone " + (i % 10));
+            decoder.reset(encoder.getBuffer(), encoder.getOffset(), encoder.getLength());
+            assertTrue(decoder.next());
+            decoder.readInt();
+            decoder.readInt();
+            decoder.readLong();
+            assertEquals("phone " + (i % 10), decoder.readString(name).toString());
+        }
+        assertSame(buffer, encoder.getBuffer());
+    }
+
+    @Test
+    public void binaryIsSmallerThanText() {
+        MessageEncoder encoder = new MessageEncoder();
+        writeStatus(encoder, 2, "phone");
+        byte[] text = "battery=87;rssi=-61;rtt=12345678901;name=phone;charging=true".getBytes(Charset.forName("UTF-8"));
+        assertTrue(encoder.getLength() * 2 < text.length);
+    }
+
+    @Test
+    public void messageTravelsInAFrame() throws IOException {
+        MessageEncoder encoder = new MessageEncoder();
+        writeStatus(encoder, 2, "phone");
+        byte[] frame = encoder.toFrame();
+        assertEquals(FrameCodec.TYPE_MESSAGE, FrameCodec.readType(frame, 0));
+        MessageDecoder decoder = new MessageDecoder();
+        decoder.reset(frame, FrameCodec.HEADER_SIZE, FrameCodec.readLength(frame, 0));
+        assertTrue(decoder.next());
+        assertEquals(TYPE_STATUS, decoder.getType());
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File mDir;
+
+    private final List<Long>   mSequences = new ArrayList<>();
+    private final List<String> mTexts     = new ArrayList<>();
+
+    private final MessageLog.RecordVisitor mVisitor = new MessageLog.RecordVisitor() {
+        @Override
+        public boolean onRecord(long sequence, long timestamp, boolean outgoing, int type, ByteSlice payload) {
+            mSequences.add(sequence);
+            mTexts.add((outgoing ? "> " : "< ") + payload.toString(UTF_8));
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("messagelog", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    @Test
+    public void appendAndReadRange() throws Exception {
+        MessageLog log = new MessageLog(mDir);
+        for (int i = 0; i < 1000; i++) {
+            byte[] payload = bytes("message " + i);
+            assertEquals(i, log.append(i % 2 == 0, FrameCodec.TYPE_TEXT, payload, 0, payload.length));
+        }
+
+        assertEquals(10, log.read(500, 10, mVisitor));
+        assertEquals(500L, (long) mSequences.get(0));
+        assertEquals("> message 500", mTexts.get(0));
+        assertEquals("< message 509", mTexts.get(9));
+        log.close();
+    }
+
+    @Test
+    public void readSpansSegmentsAndStopsAtEnd() throws Exception {
+        MessageLog log = new MessageLog(mDir, 4 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            byte[] payload = bytes("segment test " + i);
+            log.append(false, FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+        }
+
+        assertEquals(2000, log.read(0, Integer.MAX_VALUE, mVisitor));
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i, (long) mSequences.get(i));
+            assertEquals("< segment test " + i, mTexts.get(i));
+        }
+        assertTrue(mDir.list().length > 2);
+        mSequences.clear();
+        assertEquals(0, log.read(2000, 10, mVisitor));
+        log.close();
+    }
+
+    @Test
+    public void reopenContinuesSequence() throws Exception {
+        MessageLog log = new MessageLog(mDir, 8 * 1024);
+        for (int i = 0; i < 777; i++) {
+            byte[] payload = bytes("first " + i);
+            log.append(true, FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+        }
+        log.close();
+
+        log = new MessageLog(mDir, 8 * 1024);
+        assertEquals(777, log.getNextSequence());
+        byte[] payload = bytes("second");
+        assertEquals(777, log.append(false, FrameCodec.TYPE_TEXT, payload, 0, payload.length));
+
+        assertEquals(3, log.read(775, 10, mVisitor));
+        assertEquals("> first 775", mTexts.get(0));
+        assertEquals("< second", mTexts.get(2));
+        log.close();
+    }
+
+    @Test
+    public void tornTailIsDroppedOnReopen() throws Exception {
+        MessageLog log = new MessageLog(mDir);
+        for (int i = 0; i < 100; i++) {
+            byte[] payload = bytes("torn " + i);
+            log.append(false, FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+        }
+        log.close();
+
+        // cut the last record in half, as if the app died in the middle of a write
+        File segment = new File(mDir, "00000000000000000000.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        log = new MessageLog(mDir);
+        assertEquals(99, log.getNextSequence());
+        assertEquals(99, log.read(0, 1000, mVisitor));
+        assertEquals("< torn 98", mTexts.get(98));
+        log.close();
+    }
+
+    @Test
+    public void visitorCanStop() throws Exception {
+        MessageLog log = new MessageLog(mDir);
+        for (int i = 0; i < 10; i++) {
+            byte[] payload = bytes("stop " + i);
+            log.append(false, FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+        }
+
+        int visited = log.read(0, 10, new MessageLog.RecordVisitor() {
+            @Override
+            public boolean onRecord(long sequence, long timestamp, boolean outgoing, int type, ByteSlice payload) {
+                return sequence < 3;
+            }
+        });
+        assertEquals(4, visited);
+        log.close();
+    }
+
+    @Test
+    public void storeCommitsInTheBackground() throws Exception {
+        MessageLogStore store = new MessageLogStore(mDir, MessageLog.DEFAULT_SEGMENT_BYTES, 5, false);
+        byte[] payload = bytes("background");
+        store.append("AA:BB:CC:DD:EE:FF", true, FrameCodec.TYPE_TEXT, payload, 0, payload.length);
+
+        MessageLog log = store.get("AA:BB:CC:DD:EE:FF");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.pendingBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, log.pendingBytes());
+        assertTrue(store.getCommitCount() > 0);
+        store.close();
+
+        File deviceDir = new File(mDir, "AA-BB-CC-DD-EE-FF");
+        log = new MessageLog(deviceDir);
+        assertEquals(1, log.read(0, 10, mVisitor));
+        assertEquals("> background", mTexts.get(0));
+        log.close();
+        for (File file : deviceDir.listFiles()) {
+            file.delete();
+        }
+        deviceDir.delete();
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * A hub with up to {@link ConnectionRegistry#DEFAULT_MAX_PEERS} peers over {@link MemoryTransport}s:
+ * every peer streams messages to the hub while the hub sends addressed replies back. Checks that
+ * nothing is lost or reordered per peer, and that throughput and latency hold up as peers are added.
+ */
+public class MultiPeerLoadTest {
+
+    private static final int MESSAGES_PER_PEER = 5000;
+    private static final int PAYLOAD_SIZE      = 64;
+
+    /**
+     * Hub side: checks the per-peer order of incoming messages and answers each one to its sender only.
+     */
+    private static class Hub implements ConnectedThread.Callback {
+        final ConnectionRegistry registry = new ConnectionRegistry();
+        final AtomicLong         received = new AtomicLong();
+        volatile String          error;
+        private final int[]      nextExpected = new int[ConnectionRegistry.DEFAULT_MAX_PEERS];
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            int peer = payload.get(0);
+            int seq = readInt(payload, 1);
+            if (seq != nextExpected[peer]++) {
+                error = "peer " + peer + ": expected " + (nextExpected[peer] - 1) + " got " + seq;
+            }
+            received.incrementAndGet();
+
+            byte[] reply = new byte[PAYLOAD_SIZE];
+            payload.copyTo(0, reply, 0, PAYLOAD_SIZE);
+            ConnectedThread target = registry.get(connection.getRemoteAddress());
+            if (target == null || !target.write(reply)) {
+                error = "reply to " + connection.getRemoteAddress() + " not queued";
+            }
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            registry.remove(connection);
+        }
+    }
+
+    /**
+     * Peer side: measures the round trip of every message (timestamp carried in the payload).
+     */
+    private static class Peer implements ConnectedThread.Callback {
+        final int            index;
+        final long[]         roundTrips = new long[MESSAGES_PER_PEER];
+        final CountDownLatch done       = new CountDownLatch(MESSAGES_PER_PEER);
+        volatile String      error;
+        private int          nextExpected;
+
+        Peer(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            int seq = readInt(payload, 1);
+            if (payload.get(0) != index || seq != nextExpected) {
+                error = "peer " + index + " got reply " + payload.get(0) + "/" + seq;
+            }
+            roundTrips[nextExpected++] = System.nanoTime() - readLong(payload, 5);
+            done.countDown();
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    }
+
+    private static class Result {
+        double messagesPerSecond;
+        long   p99Micros;
+    }
+
+    @Test
+    public void throughputAndLatencyHoldUpWithSevenPeers() throws Exception {
+        run(1); // warm-up
+        Result one = run(1);
+        Result seven = run(ConnectionRegistry.DEFAULT_MAX_PEERS);
+
+        // 7 peers share the hub's threads and the CPU; the aggregate must not collapse
+        assertTrue("aggregate throughput dropped to " + seven.messagesPerSecond, seven.messagesPerSecond > one.messagesPerSecond * 0.5);
+
+        // A message may wait behind one of every other peer's, not behind whole backlogs
+        long p99Bound = Math.max(2L * ConnectionRegistry.DEFAULT_MAX_PEERS * one.p99Micros, 50000);
+        assertTrue("p99 went from " + one.p99Micros + " us to " + seven.p99Micros + " us", seven.p99Micros <= p99Bound);
+    }
+
+    private static Result run(int peers) throws Exception {
+        Hub hub = new Hub();
+        Peer[] callbacks = new Peer[peers];
+        ConnectedThread[] peerThreads = new ConnectedThread[peers];
+        for (int i = 0; i < peers; i++) {
+            MemoryTransport[] pair = MemoryTransport.pair("hub", "peer-" + i);
+            callbacks[i] = new Peer(i);
+            ConnectedThread hubSide = new ConnectedThread(pair[0], hub, MESSAGES_PER_PEER, FrameWriter.OverflowPolicy.BLOCK);
+            peerThreads[i] = new ConnectedThread(pair[1], callbacks[i], 256, FrameWriter.OverflowPolicy.BLOCK);
+            assertNull(hub.registry.put(hubSide));
+            hubSide.start();
+            peerThreads[i].start();
+        }
+        assertEquals(peers, hub.registry.connectedCount());
+
+        long start = System.nanoTime();
+        Thread[] senders = new Thread[peers];
+        for (int i = 0; i < peers; i++) {
+            final int index = i;
+            final ConnectedThread connection = peerThreads[i];
+            senders[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int seq = 0; seq < MESSAGES_PER_PEER; seq++) {
+                        byte[] payload = new byte[PAYLOAD_SIZE];
+                        payload[0] = (byte) index;
+                        writeInt(payload, 1, seq);
+                        writeLong(payload, 5, System.nanoTime());
+                        connection.write(payload);
+                    }
+                }
+            };
+            senders[i].start();
+        }
+
+        long[] all = new long[peers * MESSAGES_PER_PEER];
+        for (int i = 0; i < peers; i++) {
+            assertTrue("peer " + i + " timed out", callbacks[i].done.await(30, TimeUnit.SECONDS));
+            assertNull(callbacks[i].error);
+            System.arraycopy(callbacks[i].roundTrips, 0, all, i * MESSAGES_PER_PEER, MESSAGES_PER_PEER);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertNull(hub.error);
+        assertEquals((long) peers * MESSAGES_PER_PEER, hub.received.get());
+
+        for (ConnectedThread connection : hub.registry.clear()) {
+            connection.cancel();
+        }
+        for (ConnectedThread connection : peerThreads) {
+            connection.cancel();
+        }
+
+        Arrays.sort(all);
+        Result result = new Result();
+        result.messagesPerSecond = all.length * 1e9 / elapsed;
+        result.p99Micros = all[all.length * 99 / 100] / 1000;
+        return result;
+    }
+
+    private static void writeInt(byte[] b, int pos, int value) {
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] b, int pos, long value) {
+        writeInt(b, pos, (int) (value >>> 32));
+        writeInt(b, pos + 4, (int) value);
+    }
+
+    private static int readInt(ByteSlice s, int pos) {
+        return ((s.get(pos) & 0xFF) << 24) | ((s.get(pos + 1) & 0xFF) << 16) | ((s.get(pos + 2) & 0xFF) << 8) | (s.get(pos + 3) & 0xFF);
+    }
+
+    private static long readLong(ByteSlice s, int pos) {
+        return ((long) readInt(s, pos) << 32) | (readInt(s, pos + 4) & 0xFFFFFFFFL);
+    }
+}
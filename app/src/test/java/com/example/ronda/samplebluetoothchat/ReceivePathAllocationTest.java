@@ -0,0 +1,118 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the receive path (read -> reassemble -> pooled frame -> consumer) allocates nothing
+ * per message once it is warmed up.
+ */
+public class ReceivePathAllocationTest {
+
+    private static final int MESSAGES_PER_ROUND = 1000;
+
+    /**
+     * Replays the same byte stream over and over in reads of varying size, without allocating.
+     */
+    private static class ReplayInputStream extends InputStream {
+        private final byte[] mData;
+        private final int[]  mChunks;
+        private int          mPos;
+        private int          mChunk;
+
+        ReplayInputStream(byte[] data, int[] chunks) {
+            mData = data;
+            mChunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPos == mData.length) {
+                mPos = 0;
+            }
+            int n = Math.min(Math.min(len, mChunks[mChunk++ % mChunks.length]), mData.length - mPos);
+            System.arraycopy(mData, mPos, b, off, n);
+            mPos += n;
+            return n;
+        }
+    }
+
+    /**
+     * Stands in for the Handler + UI: takes a pooled frame, looks at it and recycles it.
+     */
+    private static class PoolingListener implements FrameDecoder.Listener {
+        final FramePool pool = new FramePool();
+        long            frames;
+        long            bytes;
+
+        @Override
+        public void onFrame(int type, ByteSlice payload) {
+            PooledFrame frame = pool.obtain(type, payload);
+            frames++;
+            bytes += frame.getPayload().length() + frame.getPayload().get(0);
+            frame.recycle();
+        }
+    }
+
+    @Test
+    public void steadyStateReceiveDoesNotAllocate() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // allocation counters not available on this JVM
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(7);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+            byte[] payload = new byte[1 + random.nextInt(900)];
+            random.nextBytes(payload);
+            stream.write(FrameCodec.encode(FrameCodec.TYPE_TEXT, payload));
+        }
+        byte[] data = stream.toByteArray();
+        int[] chunks = new int[97];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = 1 + random.nextInt(2048);
+        }
+
+        ReplayInputStream in = new ReplayInputStream(data, chunks);
+        FrameDecoder decoder = new FrameDecoder();
+        PoolingListener listener = new PoolingListener();
+
+        // warm up: grows the buffers to their final size and lets the JIT settle
+        receive(decoder, in, listener, 20 * MESSAGES_PER_ROUND);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        receive(decoder, in, listener, 100 * MESSAGES_PER_ROUND);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        // allow a little noise from the measurement itself, but nothing that scales with 100k messages
+        assertTrue("allocated " + allocated + " bytes for 100000 messages", allocated < 16 * 1024);
+        assertTrue(listener.bytes != 0);
+    }
+
+    private static void receive(FrameDecoder decoder, InputStream in, PoolingListener listener, long messages) throws IOException {
+        long target = listener.frames + messages;
+        while (listener.frames < target) {
+            decoder.readFrom(in, listener);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void delayGrowsUpToTheCeiling() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 2.0, 0, 10);
+        assertEquals(100, policy.getDelayMillis(1));
+        assertEquals(200, policy.getDelayMillis(2));
+        assertEquals(400, policy.getDelayMillis(3));
+        assertEquals(800, policy.getDelayMillis(4));
+        assertEquals(1000, policy.getDelayMillis(5));
+        assertEquals(1000, policy.getDelayMillis(30));
+    }
+
+    @Test
+    public void jitterStaysWithinBounds() {
+        ReconnectPolicy policy = new ReconnectPolicy(1000, 1000, 2.0, 0.2, 10, new Random(42));
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 10000; i++) {
+            long delay = policy.getDelayMillis(1);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min >= 800);
+        assertTrue(max <= 1200);
+        assertTrue("no spread: " + min + ".." + max, max - min > 300);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShrinkingDelays() {
+        new ReconnectPolicy(1000, 1000, 0.5, 0, 10);
+    }
+}
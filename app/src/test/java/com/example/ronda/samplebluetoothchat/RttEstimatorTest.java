@@ -0,0 +1,51 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+
+    @Test
+    public void emptyEstimatorHasNoValues() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(0, rtt.getSampleCount());
+        assertEquals(-1, rtt.getSmoothedMicros());
+        assertEquals(-1, rtt.getVarianceMicros());
+        assertEquals(-1, rtt.getTimeoutMicros());
+    }
+
+    @Test
+    public void firstSampleInitializesLikeRfc6298() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(40000000); // 40 ms
+        assertEquals(40000, rtt.getSmoothedMicros());
+        assertEquals(20000, rtt.getVarianceMicros());
+        assertEquals(40000 + 4 * 20000, rtt.getTimeoutMicros());
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(40000000);
+        rtt.onSample(80000000);
+        // RTTVAR = 3/4 * 20000 + 1/4 * |40000 - 80000|, SRTT = 7/8 * 40000 + 1/8 * 80000
+        assertEquals(25000, rtt.getVarianceMicros());
+        assertEquals(45000, rtt.getSmoothedMicros());
+        assertEquals(80000, rtt.getLastMicros());
+        assertEquals(40000, rtt.getMinMicros());
+        assertEquals(80000, rtt.getMaxMicros());
+        assertEquals(2, rtt.getSampleCount());
+    }
+
+    @Test
+    public void steadySamplesConverge() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100000000);
+        for (int i = 0; i < 100; i++) {
+            rtt.onSample(10000000);
+        }
+        assertEquals(10000, rtt.getSmoothedMicros(), 10);
+        assertTrue(rtt.getVarianceMicros() < 100);
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionTest {
+
+    private static ConnectedThread connection() {
+        return new ConnectedThread(MemoryTransport.pair("A", "B")[0], null); // never started
+    }
+
+    private static List<byte[]> texts(int from, int to) {
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            frames.add(FrameCodec.encode(FrameCodec.TYPE_TEXT, ("message " + i).getBytes()));
+        }
+        return frames;
+    }
+
+    private static String text(byte[] frame) {
+        return new String(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+    }
+
+    @Test
+    public void writtenTextFramesAreNumberedUntilAcknowledged() {
+        Session session = new Session();
+        ConnectedThread connection = connection();
+        session.attach(connection);
+
+        List<byte[]> batch = texts(1, 5);
+        batch.add(Heartbeat.ping(0)); // not numbered
+        List<byte[]> fresh = new ArrayList<>();
+        session.onWritten(connection, batch, fresh);
+
+        assertEquals(6, fresh.size());
+        assertEquals(5, session.getSent());
+        assertEquals(5, session.getUnacknowledged());
+        session.onAck(3);
+        assertEquals(2, session.getUnacknowledged());
+        assertEquals(3, session.getDropped());
+    }
+
+    @Test
+    public void resumeReplaysOnlyWhatThePeerMissed() {
+        Session session = new Session();
+        ConnectedThread first = connection();
+        session.attach(first);
+        session.onWritten(first, texts(1, 10), new ArrayList<byte[]>());
+        session.onAck(4);
+
+        // The link breaks; the peer actually got up to 7, but the ACK for it was lost
+        ConnectedThread second = connection();
+        List<byte[]> replay = session.attach(second);
+        assertEquals(6, replay.size());
+        assertEquals("message 5", text(replay.get(0)));
+        assertEquals(4, session.getDropped());
+
+        assertEquals(3, session.resume(second, 7, 0, replay.size()));
+        assertEquals(7, session.getSent());
+
+        // 8..10 go out again but were shown already; 11 is new
+        List<byte[]> fresh = new ArrayList<>();
+        session.onWritten(second, replay.subList(3, 6), fresh);
+        assertTrue(fresh.isEmpty());
+        session.onWritten(second, texts(11, 11), fresh);
+        assertEquals(1, fresh.size());
+        assertEquals(11, session.getSent());
+        assertEquals(3, session.getReplayed());
+        assertEquals(3, session.getSkipped());
+        assertEquals(0, session.getUnrecoverable());
+    }
+
+    @Test
+    public void framesDroppedFromAFullBufferAreUnrecoverable() {
+        Session session = new Session(4);
+        ConnectedThread first = connection();
+        session.attach(first);
+        session.onWritten(first, texts(1, 10), new ArrayList<byte[]>());
+        assertEquals(4, session.getUnacknowledged());
+
+        ConnectedThread second = connection();
+        List<byte[]> replay = session.attach(second);
+        assertEquals("message 7", text(replay.get(0)));
+        assertEquals(0, session.resume(second, 2, 0, replay.size())); // the peer has 1..2, 3..6 are gone
+        assertEquals(4, session.getUnrecoverable());
+        assertEquals(6, session.getSent());
+    }
+
+    @Test
+    public void receiverContinuesAfterWhatThePeerDropped() {
+        Session session = new Session();
+        ConnectedThread connection = connection();
+        session.attach(connection);
+        for (int i = 0; i < 5; i++) {
+            session.onReceived();
+        }
+        session.resume(connection, 0, 20, 0);
+        assertEquals(20, session.getReceived());
+        assertEquals(15, session.getUnrecoverable());
+    }
+
+    @Test
+    public void receiverAcknowledgesEveryInterval() {
+        Session session = new Session();
+        int acks = 0;
+        for (int i = 1; i <= 3 * Session.ACK_INTERVAL; i++) {
+            long ack = session.onReceived();
+            if (ack >= 0) {
+                assertEquals(i, ack);
+                acks++;
+            }
+        }
+        assertEquals(3, acks);
+    }
+
+    @Test
+    public void unsentFramesWaitForTheNextConnection() {
+        Session session = new Session();
+        ConnectedThread first = connection();
+        session.attach(first);
+        session.onWritten(first, texts(1, 2), new ArrayList<byte[]>());
+
+        List<byte[]> unsent = texts(4, 5);
+        unsent.add(FrameCodec.encode(FrameCodec.TYPE_FILE_OFFER, new byte[4]));
+        assertTrue(session.retainUnsent(first, texts(3, 3), unsent));
+        assertEquals(1, unsent.size()); // only the file frame is left to the caller
+        assertEquals(5, session.getSent());
+        assertFalse(session.retainUnsent(first, texts(6, 6), new ArrayList<byte[]>())); // no longer current
+
+        ConnectedThread second = connection();
+        List<byte[]> replay = session.attach(second);
+        assertEquals(5, replay.size());
+        assertEquals("message 3", text(replay.get(2)));
+
+        // 3..5 were never shown as sent, so they count as fresh when they finally go out
+        session.resume(second, 2, 0, replay.size());
+        List<byte[]> fresh = new ArrayList<>();
+        session.onWritten(second, replay.subList(2, 5), fresh);
+        assertEquals(3, fresh.size());
+    }
+}
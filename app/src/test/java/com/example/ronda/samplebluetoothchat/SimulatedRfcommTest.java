@@ -0,0 +1,361 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimulatedRfcommTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Transport>       mTransports = new ArrayList<>();
+    private final List<TransportServer> mServers    = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (Transport transport : mTransports) {
+            transport.close();
+        }
+        for (TransportServer server : mServers) {
+            server.close();
+        }
+    }
+
+    // [0] the end of "a", [1] the end of "b"
+    private Transport[] connect(SimulatedRfcomm radio) throws IOException {
+        TransportServer server = radio.provider("b").listen();
+        mServers.add(server);
+        Transport client = radio.provider("a").open("b");
+        client.connect();
+        Transport accepted = server.accept();
+        mTransports.add(client);
+        mTransports.add(accepted);
+        return new Transport[]{client, accepted};
+    }
+
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        int reads = 0;
+        for (int off = 0; off < b.length; ) {
+            int n = in.read(b, off, b.length - off);
+            assertTrue(n > 0);
+            off += n;
+            reads++;
+        }
+        return reads;
+    }
+
+    @Test
+    public void dataArrivesInPiecesAfterTheLatencyAtTheBandwidth() throws IOException {
+        // 20 KB/s, 50 ms, packets of at most 100 bytes
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(20 * 1024, 50, 0, 100, 64 * 1024, 0, 0, 0), 1);
+        Transport[] ends = connect(radio);
+        assertEquals("b", ends[0].getRemoteAddress());
+        assertEquals("a", ends[1].getRemoteAddress());
+
+        byte[] sent = new byte[10 * 1024];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = (byte) i;
+        }
+        long start = System.nanoTime();
+        ends[0].getOutputStream().write(sent);
+        assertEquals(0, ends[1].getInputStream().available()); // still on its way
+
+        byte[] received = new byte[sent.length];
+        int reads = readFully(ends[1].getInputStream(), received);
+        long millis = (System.nanoTime() - start) / 1000000;
+        assertArrayEquals(sent, received);
+        assertTrue("took " + millis + " ms", millis >= 500 + 50); // 10 KB at 20 KB/s, plus the latency
+        assertTrue(reads > 1);
+        assertEquals(sent.length, radio.getDeliveredBytes());
+    }
+
+    @Test
+    public void connectFailsWhenNobodyListens() throws IOException {
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(100 * 1024, 0, 0, 990, 64 * 1024, 10, 0, 0), 1);
+        Transport client = radio.provider("a").open("b");
+        try {
+            client.connect();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, radio.getConnectFailures());
+
+        TransportServer server = radio.provider("b").listen();
+        server.close();
+        try {
+            radio.provider("a").open("b").connect();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(2, radio.getConnectFailures());
+    }
+
+    @Test
+    public void closeAbortsConnect() throws Exception {
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(), 1);
+        mServers.add(radio.provider("b").listen());
+        final Transport client = radio.provider("a").open("b");
+        final Semaphore failed = new Semaphore(0);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    client.connect();
+                } catch (IOException e) {
+                    failed.release();
+                }
+            }
+        }.start();
+        client.close();
+        assertTrue(failed.tryAcquire(LinkProfile.DEFAULT_CONNECT_MILLIS / 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void brokenLinkFailsBothEnds() throws IOException {
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(100 * 1024, 0, 0, 990, 64 * 1024, 0, 0, 0), 1);
+        Transport[] ends = connect(radio);
+        ends[0].getOutputStream().write("lost".getBytes(UTF_8));
+        assertEquals(1, radio.breakLinks());
+
+        for (Transport end : ends) {
+            try {
+                end.getInputStream().read(new byte[16]);
+                fail();
+            } catch (IOException expected) {
+            }
+            try {
+                end.getOutputStream().write(1);
+                fail();
+            } catch (IOException expected) {
+            }
+        }
+        assertEquals(1, radio.getLinksBroken());
+        assertEquals(0, radio.getOpenLinks());
+    }
+
+    @Test
+    public void linksBreakByThemselves() throws IOException {
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(100 * 1024, 0, 0, 990, 64 * 1024, 0, 0, 20), 1);
+        Transport[] ends = connect(radio);
+        try {
+            ends[1].getInputStream().read(new byte[16]); // nothing is ever sent: only the break ends this
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, radio.getLinksBroken());
+    }
+
+    @Test
+    public void peerCloseIsSeenAfterTheLastBytes() throws IOException {
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(100 * 1024, 5, 0, 990, 64 * 1024, 0, 0, 0), 1);
+        Transport[] ends = connect(radio);
+        ends[0].getOutputStream().write("bye".getBytes(UTF_8));
+        ends[0].close();
+
+        byte[] received = new byte[3];
+        readFully(ends[1].getInputStream(), received);
+        assertEquals("bye", new String(received, UTF_8));
+        try {
+            ends[1].getInputStream().read(received);
+            fail();
+        } catch (IOException expected) {
+        }
+        ends[1].close();
+        assertEquals(0, radio.getOpenLinks());
+        assertEquals(0, radio.getLinksBroken());
+    }
+
+    /**
+     * Two whole services: the client reconnects after the link broke and the messages queued
+     * meanwhile still arrive, in order.
+     */
+    @Test
+    public void servicesReconnectAfterTheLinkBreaks() throws Exception {
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(100 * 1024, 10, 5, 990, 64 * 1024, 20, 0, 0), 1);
+        final Semaphore events = new Semaphore(0);
+        final List<String> received = new ArrayList<>();
+        BluetoothChatService.Listener listener = new BluetoothChatService.Listener() {
+            @Override
+            public void onEventsPending() {
+                events.release();
+            }
+
+            @Override
+            public void onStateChanged(int state, int connectedCount, String deviceName) {
+            }
+
+            @Override
+            public void onFrameReceived(PooledFrame frame) {
+                received.add(frame.getText());
+                frame.recycle();
+            }
+
+            @Override
+            public void onFrameSent(PooledFrame frame) {
+                frame.recycle();
+            }
+
+            @Override
+            public void onReconnected(String address, long millis) {
+            }
+
+            @Override
+            public void onError(int error, String address, String message) {
+            }
+        };
+        BluetoothChatService server = new BluetoothChatService(listener, radio.provider("server"));
+        BluetoothChatService client = new BluetoothChatService(new BluetoothChatService.Listener() {
+            @Override
+            public void onEventsPending() {
+            }
+
+            @Override
+            public void onStateChanged(int state, int connectedCount, String deviceName) {
+            }
+
+            @Override
+            public void onFrameReceived(PooledFrame frame) {
+                frame.recycle();
+            }
+
+            @Override
+            public void onFrameSent(PooledFrame frame) {
+                frame.recycle();
+            }
+
+            @Override
+            public void onReconnected(String address, long millis) {
+            }
+
+            @Override
+            public void onError(int error, String address, String message) {
+            }
+        }, radio.provider("client"));
+        client.setReconnectPolicy(new ReconnectPolicy(20, 100, 2, 0, 10));
+        try {
+            server.start();
+            client.start();
+            client.connect("server");
+            awaitConnectedCount(client, 1);
+            assertTrue(client.write("one".getBytes(UTF_8)));
+            awaitReceived(server, events, received, 1);
+
+            radio.breakLinks();
+            awaitConnectedCount(client, 0);
+            while (!client.write("two".getBytes(UTF_8))) { // kept until the link is back, once the loss was handled
+                Thread.sleep(1);
+            }
+            awaitReceived(server, events, received, 2);
+
+            assertEquals("one", received.get(0));
+            assertEquals("two", received.get(1));
+            assertEquals(1, client.getRecoveryCount());
+            assertEquals(2, radio.getLinksOpened());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    /**
+     * The link breaks while messages are still queued on the client. The client's Session keeps
+     * them and replays what the server's RESUME says it missed: each one arrives exactly once.
+     */
+    @Test
+    public void messagesQueuedWhenTheLinkBreaksArriveOnce() throws Exception {
+        // 2 KB/s and a small window: the writer blocks and most messages wait in the queue
+        SimulatedRfcomm radio = new SimulatedRfcomm(new LinkProfile(2 * 1024, 10, 0, 64, 128, 20, 0, 0), 1);
+        Receiver serverEvents = new Receiver();
+        BluetoothChatService server = new BluetoothChatService(serverEvents, radio.provider("server"));
+        BluetoothChatService client = new BluetoothChatService(new Receiver(), radio.provider("client"));
+        client.setReconnectPolicy(new ReconnectPolicy(20, 100, 2, 0, 10));
+        int messages = 30;
+        try {
+            server.start();
+            client.start();
+            client.connect("server");
+            awaitConnectedCount(client, 1);
+            assertTrue(client.write("first".getBytes(UTF_8)));
+            awaitReceived(server, serverEvents.events, serverEvents.received, 1); // both sides resume from here on
+
+            for (int i = 0; i < messages; i++) {
+                assertTrue(client.write(("message " + i).getBytes(UTF_8)));
+            }
+            radio.breakLinks();
+            awaitReceived(server, serverEvents.events, serverEvents.received, 1 + messages);
+
+            Thread.sleep(200); // a second copy would come right behind
+            server.dispatchEvents();
+            List<String> expected = new ArrayList<>();
+            expected.add("first");
+            for (int i = 0; i < messages; i++) {
+                expected.add("message " + i);
+            }
+            assertEquals(expected, serverEvents.received);
+            assertEquals(1, client.getRecoveryCount());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    private static class Receiver implements BluetoothChatService.Listener {
+        final Semaphore    events   = new Semaphore(0);
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        public void onEventsPending() {
+            events.release();
+        }
+
+        @Override
+        public void onStateChanged(int state, int connectedCount, String deviceName) {
+        }
+
+        @Override
+        public void onFrameReceived(PooledFrame frame) {
+            received.add(frame.getText());
+            frame.recycle();
+        }
+
+        @Override
+        public void onFrameSent(PooledFrame frame) {
+            frame.recycle();
+        }
+
+        @Override
+        public void onReconnected(String address, long millis) {
+        }
+
+        @Override
+        public void onError(int error, String address, String message) {
+        }
+    }
+
+    private static void awaitConnectedCount(BluetoothChatService service, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnections().connectedCount() != count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitReceived(BluetoothChatService service, Semaphore events, List<String> received, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            assertTrue("got " + received, remaining > 0 && events.tryAcquire(remaining, TimeUnit.MILLISECONDS));
+            service.dispatchEvents();
+        }
+    }
+}
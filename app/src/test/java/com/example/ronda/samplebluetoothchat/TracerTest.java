@@ -0,0 +1,72 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    @Test
+    public void disabledLevelsRecordNothing() {
+        Tracer tracer = new Tracer(16, Tracer.LEVEL_INFO);
+        tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_FRAME_IN, 1, 100);
+        tracer.trace(Tracer.LEVEL_VERBOSE, Tracer.EVENT_READ, 100, 0);
+        assertEquals(0, tracer.getEventCount());
+        assertEquals("", tracer.dump());
+
+        tracer.trace(Tracer.LEVEL_INFO, Tracer.EVENT_CONNECTED, 0, 0);
+        assertEquals(1, tracer.getEventCount());
+        assertTrue(tracer.dump().contains(" I connected 0 0"));
+    }
+
+    @Test
+    public void keepsTheLastEventsInOrder() {
+        Tracer tracer = new Tracer(8, Tracer.LEVEL_VERBOSE);
+        for (int i = 0; i < 20; i++) {
+            tracer.trace(Tracer.LEVEL_DEBUG, Tracer.EVENT_FRAME_IN, 1, i);
+        }
+        String[] lines = tracer.dump().split("\n");
+        assertEquals(8, lines.length);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(lines[i], lines[i].endsWith(" D frame_in 1 " + (12 + i)));
+        }
+    }
+
+    @Test
+    public void connectionEventsAreTraced() throws Exception {
+        Tracer tracer = new Tracer(256, Tracer.LEVEL_DEBUG);
+        MemoryTransport[] pair = MemoryTransport.pair("A", "B");
+        ConnectedThread first = new ConnectedThread(pair[0], new ConnectedThreadTestCallback());
+        ConnectedThread second = new ConnectedThread(pair[1], new ConnectedThreadTestCallback());
+        second.setTracer(tracer);
+        first.start();
+        second.start();
+
+        first.write("hello".getBytes());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!tracer.dump().contains("frame_in 1 5") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        first.cancel();
+        second.join(5000);
+
+        String dump = tracer.dump();
+        assertTrue(dump, dump.contains(" I connected"));
+        assertTrue(dump, dump.contains(" D frame_in 1 5"));
+        assertTrue(dump, dump.contains(" E connection_lost"));
+    }
+
+    private static class ConnectedThreadTestCallback implements ConnectedThread.Callback {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, java.util.List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, java.io.IOException e) {
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class Utf8DecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // ASCII, 2 byte (é), 3 byte (CJK) and 4 byte (emoji, a surrogate pair) sequences
+    private static final String TEXT = "hello 你好，世界 café 😀 ok 👍蓝牙聊天";
+
+    @Test
+    public void decodesLikeString() {
+        byte[] bytes = TEXT.getBytes(UTF_8);
+        Utf8Decoder decoder = new Utf8Decoder();
+        decoder.decode(bytes, 0, bytes.length);
+        decoder.flush();
+        assertEquals(TEXT, decoder.toString());
+        assertFalse(decoder.hasPartial());
+    }
+
+    @Test
+    public void sequencesSplitBetweenReadsComeOutWhole() {
+        byte[] bytes = TEXT.getBytes(UTF_8);
+        for (int split = 0; split <= bytes.length; split++) {
+            Utf8Decoder decoder = new Utf8Decoder(4);
+            decoder.decode(bytes, 0, split);
+            decoder.decode(bytes, split, bytes.length - split);
+            decoder.flush();
+            assertEquals("split at " + split, TEXT, decoder.toString());
+        }
+
+        // One byte per read
+        Utf8Decoder decoder = new Utf8Decoder();
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.decode(bytes, i, 1);
+        }
+        assertEquals(TEXT, decoder.toString());
+    }
+
+    @Test
+    public void malformedInputBecomesReplacement() {
+        assertDecodes("a�b", 'a', 0x80, 'b');                   // stray continuation byte
+        assertDecodes("�b", 0xE4, 0xBD, 'b');                   // sequence cut short
+        assertDecodes("�", 0xC0, 0x80);                         // overlong NUL
+        assertDecodes("�", 0xED, 0xA0, 0x80);                   // surrogate
+        assertDecodes("�", 0xF4, 0x90, 0x80, 0x80);             // above U+10FFFF
+        assertDecodes("�x", 0xFF, 'x');                         // not a lead byte
+        assertDecodes("ok�", 'o', 'k', 0xF0, 0x9F);             // truncated at the end, then flush()
+    }
+
+    private static void assertDecodes(String expected, int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        Utf8Decoder decoder = new Utf8Decoder();
+        decoder.decode(bytes, 0, bytes.length);
+        decoder.flush();
+        assertEquals(expected, decoder.toString());
+    }
+
+    @Test
+    public void partialSequenceSurvivesClear() {
+        byte[] bytes = "你".getBytes(UTF_8);
+        Utf8Decoder decoder = new Utf8Decoder();
+        decoder.decode(bytes, 0, 1);
+        assertTrue(decoder.hasPartial());
+        assertEquals(0, decoder.length());
+        decoder.clear(); // the UI took what was there
+        assertEquals(1, decoder.decode(bytes, 1, 2));
+        assertEquals('你', decoder.charAt(0));
+
+        decoder.decode(bytes, 0, 2);
+        decoder.reset();
+        assertFalse(decoder.hasPartial());
+    }
+
+    @Test
+    public void pooledFrameDecodesUtf8() {
+        FramePool pool = new FramePool(1);
+        byte[] bytes = TEXT.getBytes(UTF_8);
+        PooledFrame frame = pool.obtain(FrameCodec.TYPE_TEXT, bytes, 0, bytes.length);
+        assertEquals(TEXT, frame.getText());
+        frame.recycle();
+
+        PooledFrame again = pool.obtain(FrameCodec.TYPE_TEXT, "abc".getBytes(UTF_8), 0, 3);
+        assertSame(frame, again);
+        assertEquals("abc", again.getChars().toString()); // same decoder, nothing left over
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of a chat message over a link limited to RFCOMM speed, with the link idle or saturated
+ * by a bulk stream of file chunks on the same connection. The weighted scheduling in
+ * {@link FrameWriter} should keep the two close: a chat message waits for at most about one
+ * chunk, not for the whole bulk queue.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelBenchmark {
+
+    @Param({"idle", "bulk"})
+    public String load;
+
+    @Param({"4096", "16384"})
+    public int chunkSize;
+
+    // Typical sustained RFCOMM throughput
+    @Param({"100000"})
+    public int linkBytesPerSecond;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private ConnectedThread  mSender;
+    private ConnectedThread  mReceiver;
+    private Thread           mBulk;
+    private volatile boolean mStopped;
+    private byte[]           mMessage;
+    private long             mSent;
+
+    private final ConnectedThread.Callback mCountingCallback = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            if (type == FrameCodec.TYPE_TEXT) {
+                mReceived.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mMessage = "How far along is the upload?".getBytes();
+        MemoryTransport[] pair = MemoryTransport.pair("sender", "receiver");
+        mSender = new ConnectedThread(new ThrottledTransport(pair[0], linkBytesPerSecond), mCountingCallback,
+                FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.OverflowPolicy.BLOCK);
+        mReceiver = new ConnectedThread(pair[1], mCountingCallback);
+        mSender.start();
+        mReceiver.start();
+
+        if (load.equals("bulk")) {
+            final byte[] chunk = FrameCodec.encode(FrameCodec.TYPE_FILE_CHUNK, new byte[chunkSize]);
+            mBulk = new Thread("bulk") {
+                @Override
+                public void run() {
+                    while (!mStopped && mSender.writeFrame(chunk)) {
+                        // BLOCK policy: waits while the bulk channel is full, so this keeps it full without spinning
+                    }
+                }
+            };
+            mBulk.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        mSender.cancel();
+        mReceiver.cancel();
+        if (mBulk != null) {
+            mBulk.join();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void chatLatency() {
+        mSender.write(mMessage);
+        mSent++;
+        while (mReceived.get() < mSent) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * What negotiated compression ({@link FrameCompressor}) buys on a slow link.
+ * <ul>
+ * <li>{@code linkThroughput}: messages per second between two {@link ConnectedThread}s over a link
+ * limited to {@code linkBytesPerSecond}; the {@code bytes} counter is payload bytes per second,
+ * so compare it across {@code compression} values for the effective throughput gain</li>
+ * <li>{@code deflate}: CPU time to compress one frame on the writer thread</li>
+ * </ul>
+ * The data is either chat sentences or JSON-like telemetry, generated from a fixed seed.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BURST    = 64;
+    private static final int MESSAGES = 256;
+
+    private static final String[] WORDS = {
+            "hello", "are", "you", "there", "the", "device", "is", "connected", "ok", "thanks",
+            "battery", "low", "I", "will", "send", "the", "file", "later", "see", "you", "tomorrow"
+    };
+
+    // Shared dictionaries: the words and keys that show up in nearly every message
+    private static final String CHAT_DICTIONARY      = "hello are you there the device is connected ok thanks battery low I will send the file later see you tomorrow";
+    private static final String TELEMETRY_DICTIONARY =
+            "{\"device\":\"sensor-\",\"seq\":,\"timestamp\":,\"temperature\":,\"humidity\":,"
+                    + "\"accel\":[,,],\"battery\":,\"status\":\"ok\"}";
+
+    @Param({"chat", "telemetry"})
+    public String dataset;
+
+    @Param({"off", "deflate", "dictionary"})
+    public String compression;
+
+    // Typical sustained RFCOMM throughput
+    @Param({"100000"})
+    public int linkBytesPerSecond;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private byte[][]         mMessages;
+    private byte[][]         mFrames;
+    private ConnectedThread  mSender;
+    private ConnectedThread  mReceiver;
+    private FrameCompressor  mCompressor;
+    private byte[]           mWire;
+    private long             mSent;
+    private int              mNext;
+
+    /**
+     * Extra counter reported next to the primary score.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ByteCounter {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private final ConnectedThread.Callback mCountingCallback = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            mReceived.incrementAndGet();
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        mMessages = new byte[MESSAGES][];
+        mFrames = new byte[MESSAGES][];
+        for (int i = 0; i < MESSAGES; i++) {
+            String text = "chat".equals(dataset) ? chatMessage(random) : telemetryMessage(random, i);
+            mMessages[i] = text.getBytes(UTF_8);
+            mFrames[i] = FrameCodec.encode(FrameCodec.TYPE_TEXT, mMessages[i]);
+        }
+
+        MemoryTransport[] pair = MemoryTransport.pair("sender", "receiver");
+        mSender = new ConnectedThread(new ThrottledTransport(pair[0], linkBytesPerSecond), mCountingCallback,
+                FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.OverflowPolicy.BLOCK);
+        mReceiver = new ConnectedThread(new ThrottledTransport(pair[1], linkBytesPerSecond), mCountingCallback);
+        mSender.setCompressor(newCompressor());
+        mReceiver.setCompressor(newCompressor());
+        mSender.start();
+        mReceiver.start();
+
+        // the same compressor settings, driven directly, for the CPU cost per frame
+        mCompressor = newCompressor();
+        if (mCompressor != null) {
+            FrameCompressor peer = newCompressor();
+            byte[] hello = peer.helloFrame();
+            mCompressor.onHello(new ByteSlice().set(hello, FrameCodec.HEADER_SIZE, hello.length - FrameCodec.HEADER_SIZE));
+        }
+        mWire = new byte[FrameCodec.MAX_PAYLOAD_LENGTH];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSender.cancel();
+        mReceiver.cancel();
+    }
+
+    private FrameCompressor newCompressor() {
+        if ("off".equals(compression)) {
+            return null;
+        }
+        byte[] dictionary = null;
+        if ("dictionary".equals(compression)) {
+            dictionary = ("chat".equals(dataset) ? CHAT_DICTIONARY : TELEMETRY_DICTIONARY).getBytes(UTF_8);
+        }
+        return new FrameCompressor(dictionary, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static String chatMessage(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int words = 3 + random.nextInt(20);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String telemetryMessage(Random random, int seq) {
+        return "{\"device\":\"sensor-" + (1 + random.nextInt(4)) + "\",\"seq\":" + seq
+                + ",\"timestamp\":" + (1500000000000L + seq * 250L)
+                + ",\"temperature\":" + (200 + random.nextInt(60)) / 10.0
+                + ",\"humidity\":" + (30 + random.nextInt(40))
+                + ",\"accel\":[" + random.nextInt(100) / 100.0 + "," + random.nextInt(100) / 100.0 + ",9.81]"
+                + ",\"battery\":" + (50 + random.nextInt(50)) + ",\"status\":\"ok\"}";
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void linkThroughput(ByteCounter counter) {
+        for (int i = 0; i < BURST; i++) {
+            byte[] message = mMessages[mNext++ % MESSAGES];
+            mSender.write(message);
+            counter.bytes += message.length;
+        }
+        mSent += BURST;
+        while (mReceived.get() < mSent) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int deflate() {
+        byte[] frame = mFrames[mNext++ % MESSAGES];
+        if (mCompressor == null) {
+            System.arraycopy(frame, 0, mWire, 0, frame.length);
+            return frame.length;
+        }
+        return mCompressor.transform(frame, mWire, 0);
+    }
+}
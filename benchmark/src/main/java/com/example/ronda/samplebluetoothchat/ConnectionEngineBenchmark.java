@@ -0,0 +1,159 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code links} pairs of {@link ConnectedThread}s over {@link MemoryTransport}s, every link
+ * streaming messages one way, each connection either on threads of its own ({@code threads}: a
+ * reading, a writer and a heartbeat thread per side) or on one shared {@link ConnectionEngine}
+ * with its default settings ({@code engine}).
+ * <p>
+ * Scores are messages per second, all links together. At the end of each trial the setup prints
+ * the live threads and the context switches per message (from /proc, Linux only): with
+ * {@code threads} both grow with the number of links, with {@code engine} they should not.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionEngineBenchmark {
+
+    private static final int BURST = 1024;
+
+    // Bursts in flight before the benchmark waits for the receivers, so the links never run dry
+    private static final int IN_FLIGHT = 4 * BURST;
+
+    @Param({"threads", "engine"})
+    public String mode;
+
+    @Param({"1", "16", "64"})
+    public int links;
+
+    private final AtomicLong  mReceived = new AtomicLong();
+    private ConnectionEngine  mEngine;
+    private ConnectedThread[] mSenders;
+    private ConnectedThread[] mReceivers;
+    private final byte[]      mPayload = new byte[32];
+    private long              mSent;
+    private int               mNext;
+    private long              mSwitchesBefore;
+
+    private final ConnectedThread.Callback mCountingCallback = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            mReceived.incrementAndGet();
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (mode.equals("engine")) {
+            mEngine = new ConnectionEngine();
+        }
+        mSenders = new ConnectedThread[links];
+        mReceivers = new ConnectedThread[links];
+        for (int i = 0; i < links; i++) {
+            MemoryTransport[] pair = MemoryTransport.pair("sender-" + i, "receiver-" + i);
+            // BLOCK: back pressure instead of dropped messages
+            mSenders[i] = new ConnectedThread(pair[0], mCountingCallback, FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.OverflowPolicy.BLOCK);
+            mReceivers[i] = new ConnectedThread(pair[1], mCountingCallback);
+            mSenders[i].setHeartbeat(Heartbeat.DEFAULT_INTERVAL_MILLIS, Heartbeat.DEFAULT_MAX_MISSED);
+            mReceivers[i].setHeartbeat(Heartbeat.DEFAULT_INTERVAL_MILLIS, Heartbeat.DEFAULT_MAX_MISSED);
+            if (mEngine != null) {
+                mSenders[i].start(mEngine);
+                mReceivers[i].start(mEngine);
+            } else {
+                mSenders[i].start();
+                mReceivers[i].start();
+            }
+        }
+        mSwitchesBefore = contextSwitches();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long switches = contextSwitches() - mSwitchesBefore;
+        System.out.println();
+        System.out.println(mode + ", " + links + " links: " + Thread.activeCount() + " threads, "
+                + (switches >= 0 ? String.format("%.3f", (double) switches / mReceived.get()) : "?")
+                + " context switches per message");
+        for (int i = 0; i < links; i++) {
+            mSenders[i].cancel();
+            mReceivers[i].cancel();
+        }
+        if (mEngine != null) {
+            mEngine.shutdown();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void stream() {
+        for (int i = 0; i < BURST; i++) {
+            mSenders[mNext].write(mPayload);
+            mNext = mNext + 1 < links ? mNext + 1 : 0;
+        }
+        mSent += BURST;
+        while (mReceived.get() < mSent - IN_FLIGHT) {
+            Thread.yield();
+        }
+    }
+
+    // Voluntary and involuntary context switches of all threads of this process, -1 without /proc
+    private static long contextSwitches() {
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return -1;
+        }
+        long total = 0;
+        for (File task : tasks) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(new File(task, "status")));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.contains("ctxt_switches:")) {
+                            total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // the thread ended meanwhile
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends messages from one {@link ConnectedThread} to another over a {@link MemoryTransport}:
+ * framing, writer queue and coalescing, reassembly and dispatch are the production code, only
+ * the socket is replaced.
+ * <ul>
+ * <li>{@code burst}: messages per second (primary score) and bytes per second (the {@code bytes} counter)</li>
+ * <li>{@code oneWayLatency}: per-message latency from write() to delivery on the receiving side, with percentiles</li>
+ * </ul>
+ * {@code creditWindow} 0 runs without flow control; otherwise the receiver reports every message
+ * consumed as soon as it arrives (a receiver that keeps up), which should cost next to nothing.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPathBenchmark {
+
+    private static final int BURST = 256;
+
+    @Param({"32", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"0", "256"})
+    public int creditWindow;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private ConnectedThread  mSender;
+    private ConnectedThread  mReceiver;
+    private byte[]           mPayload;
+    private long             mSent;
+
+    /**
+     * Extra counter reported next to the primary score.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ByteCounter {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private final ConnectedThread.Callback mCountingCallback = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+            mReceived.incrementAndGet();
+            connection.onConsumed(1);
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPayload = new byte[payloadSize];
+        MemoryTransport[] pair = MemoryTransport.pair("sender", "receiver");
+        // BLOCK: the benchmark should measure back pressure, not count dropped messages
+        mSender = new ConnectedThread(pair[0], mCountingCallback, FrameWriter.DEFAULT_QUEUE_CAPACITY, FrameWriter.OverflowPolicy.BLOCK);
+        mReceiver = new ConnectedThread(pair[1], mCountingCallback);
+        if (creditWindow > 0) {
+            mReceiver.setFlowControl(creditWindow);
+        }
+        mSender.start();
+        mReceiver.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSender.cancel();
+        mReceiver.cancel();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void burst(ByteCounter counter) {
+        for (int i = 0; i < BURST; i++) {
+            mSender.write(mPayload);
+        }
+        mSent += BURST;
+        awaitReceived(mSent);
+        counter.bytes += (long) BURST * payloadSize;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void oneWayLatency() {
+        mSender.write(mPayload);
+        mSent++;
+        awaitReceived(mSent);
+    }
+
+    private void awaitReceived(long count) {
+        while (mReceived.get() < count) {
+            Thread.yield();
+        }
+    }
+}
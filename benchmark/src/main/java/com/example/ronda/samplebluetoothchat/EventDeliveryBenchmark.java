@@ -0,0 +1,322 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Events from connection threads to one consumer thread, the way {@link BluetoothChatService}
+ * delivered them before ({@code handler}) and now ({@code queue}):
+ * <ul>
+ * <li>{@code frame}: a received message. Before: {@link MessageBatcher#add(Object)}, and for the
+ * first one after a drain a MESSAGE_BATCH Message to the Handler. Now: {@link EventQueue#offer}
+ * the {@link PooledFrame} itself, and unpark the consumer for the first one.</li>
+ * <li>{@code error}: e.g. "Device connection was lost". Before: a Message with a Bundle holding the
+ * text (MESSAGE_TOAST). Now: a small event node.</li>
+ * </ul>
+ * android.os.Handler does not run on a plain JVM, so {@link Looper} below stands in for it with what
+ * it costs on a device: Message.obtain() from a pool behind a global lock, a MessageQueue that
+ * takes a lock for every message and walks the list to keep it sorted by time, and a wake-up of the
+ * blocked looper thread (wait/notify here, an eventfd write there). Nothing is delayed: the
+ * consumer runs as soon as it is woken, in both modes.
+ * <p>
+ * Scores are events per second from one or from four producing threads.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDeliveryBenchmark {
+
+    private static final int BURST = 256;
+
+    // Events the producers may be ahead of the consumer, so neither queue grows without end
+    private static final int IN_FLIGHT = 16 * BURST;
+
+    private static final int MESSAGE_BATCH = 6;
+    private static final int MESSAGE_TOAST = 5;
+
+    @Param({"handler", "queue"})
+    public String path;
+
+    @Param({"frame", "error"})
+    public String event;
+
+    private final FramePool  mFramePool = new FramePool();
+    private final byte[]     mPayload   = "a chat message of some forty bytes......".getBytes();
+    private final AtomicLong mSent      = new AtomicLong();
+    private final AtomicLong mReceived  = new AtomicLong();
+    private volatile boolean mRunning;
+    private Thread           mConsumer;
+
+    // handler
+    private Looper                      mLooper;
+    private MessageBatcher<PooledFrame> mBatcher;
+
+    // queue
+    private EventQueue mEvents;
+
+    private static final class ErrorEvent extends EventQueue.Node {
+        final int    mmError;
+        final String mmAddress;
+        final String mmMessage;
+
+        ErrorEvent(int error, String address, String message) {
+            mmError = error;
+            mmAddress = address;
+            mmMessage = message;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mRunning = true;
+        if (path.equals("handler")) {
+            mLooper = new Looper();
+            mBatcher = new MessageBatcher<>();
+            mConsumer = new Thread("main") {
+                @Override
+                public void run() {
+                    List<PooledFrame> batch = new ArrayList<>();
+                    Message msg;
+                    while ((msg = mLooper.next()) != null) {
+                        handleMessage(msg, batch);
+                        msg.recycle();
+                    }
+                }
+            };
+        } else {
+            mEvents = new EventQueue();
+            mConsumer = new Thread("main") {
+                @Override
+                public void run() {
+                    while (mRunning) {
+                        int count = 0;
+                        EventQueue.Node node;
+                        while ((node = mEvents.poll()) != null) {
+                            count += dispatch(node);
+                        }
+                        mReceived.addAndGet(count);
+                        LockSupport.park(); // until onEventsPending()
+                    }
+                }
+            };
+        }
+        mConsumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mRunning = false;
+        if (mLooper != null) {
+            mLooper.quit();
+        }
+        LockSupport.unpark(mConsumer);
+        mConsumer.join();
+    }
+
+    // The old MainActivity Handler
+    private void handleMessage(Message msg, List<PooledFrame> batch) {
+        switch (msg.what) {
+            case MESSAGE_BATCH:
+                int count = mBatcher.drainTo(batch);
+                for (int i = 0; i < count; i++) {
+                    batch.get(i).recycle();
+                }
+                batch.clear();
+                mReceived.addAndGet(count);
+                break;
+            case MESSAGE_TOAST:
+                if (msg.data.get("toast") != null) {
+                    mReceived.incrementAndGet();
+                }
+                break;
+        }
+    }
+
+    // BluetoothChatService#dispatchEvents() with a listener that only looks at the event
+    private static int dispatch(EventQueue.Node node) {
+        if (node instanceof PooledFrame) {
+            ((PooledFrame) node).recycle();
+            return 1;
+        }
+        return ((ErrorEvent) node).mmMessage != null ? 1 : 0;
+    }
+
+    private void produce() {
+        boolean frames = event.equals("frame");
+        for (int i = 0; i < BURST; i++) {
+            if (mLooper != null) {
+                if (frames) {
+                    PooledFrame frame = mFramePool.obtain(FrameCodec.TYPE_TEXT, mPayload, 0, mPayload.length);
+                    if (mBatcher.add(frame)) {
+                        mLooper.send(Message.obtain(MESSAGE_BATCH));
+                    }
+                } else {
+                    Message msg = Message.obtain(MESSAGE_TOAST);
+                    Map<String, Object> bundle = new HashMap<>();
+                    bundle.put("toast", "Device connection was lost");
+                    msg.data = bundle;
+                    mLooper.send(msg);
+                }
+            } else {
+                EventQueue.Node node;
+                if (frames) {
+                    node = mFramePool.obtain(FrameCodec.TYPE_TEXT, mPayload, 0, mPayload.length);
+                } else {
+                    node = new ErrorEvent(BluetoothChatService.ERROR_CONNECTION_LOST, "00:11:22:33:44:55", "Device connection was lost");
+                }
+                if (mEvents.offer(node)) {
+                    LockSupport.unpark(mConsumer);
+                }
+            }
+        }
+        long sent = mSent.addAndGet(BURST);
+        while (mReceived.get() < sent - IN_FLIGHT) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    @Threads(1)
+    public void oneProducer() {
+        produce();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    @Threads(4)
+    public void fourProducers() {
+        produce();
+    }
+
+    /**
+     * android.os.Message as far as the cost goes: pooled behind one global lock (at most 50 kept).
+     */
+    static final class Message {
+        private static final Object sPoolSync = new Object();
+        private static Message      sPool;
+        private static int          sPoolSize;
+
+        int                 what;
+        long                when;
+        Map<String, Object> data;
+        Message             next;
+
+        static Message obtain(int what) {
+            Message m = null;
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    m = sPool;
+                    sPool = m.next;
+                    m.next = null;
+                    sPoolSize--;
+                }
+            }
+            if (m == null) {
+                m = new Message();
+            }
+            m.what = what;
+            return m;
+        }
+
+        void recycle() {
+            what = 0;
+            when = 0;
+            data = null;
+            synchronized (sPoolSync) {
+                if (sPoolSize < 50) {
+                    next = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handler + MessageQueue + Looper: one lock for the queue, messages kept sorted by time, the
+     * looper thread blocks when there is nothing to do and is woken by the next message.
+     */
+    static final class Looper {
+        private Message mMessages;
+        private boolean mBlocked;
+        private boolean mQuitting;
+
+        // Handler#sendMessage() -> MessageQueue#enqueueMessage()
+        void send(Message msg) {
+            synchronized (this) {
+                msg.when = System.nanoTime() / 1000000; // SystemClock.uptimeMillis()
+                Message p = mMessages;
+                if (p == null || msg.when < p.when) {
+                    msg.next = p;
+                    mMessages = msg;
+                } else {
+                    Message prev;
+                    for (; ; ) {
+                        prev = p;
+                        p = p.next;
+                        if (p == null || msg.when < p.when) {
+                            break;
+                        }
+                    }
+                    msg.next = p;
+                    prev.next = msg;
+                }
+                if (mBlocked) {
+                    notify(); // nativeWake()
+                }
+            }
+        }
+
+        // Looper#loop() -> MessageQueue#next()
+        synchronized Message next() {
+            while (mMessages == null) {
+                if (mQuitting) {
+                    return null;
+                }
+                mBlocked = true;
+                try {
+                    wait(); // nativePollOnce()
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                mBlocked = false;
+            }
+            Message msg = mMessages;
+            mMessages = msg.next;
+            msg.next = null;
+            return msg;
+        }
+
+        synchronized void quit() {
+            mQuitting = true;
+            notify();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects items produced on background threads so the UI thread can take them in batches.
+ * <p>
+ * {@link #add(Object)} returns true only for the first item after a drain: that is the moment the
+ * producer has to schedule one delivery (e.g. a delayed Handler message). Everything added until
+ * the consumer calls {@link #drainTo(List)} rides along with that delivery, so the UI thread sees
+ * at most one pending delivery no matter how fast items come in.
+ * <p>
+ * The app delivers events through {@link EventQueue} now; this is the old way, kept as the
+ * baseline of {@link EventDeliveryBenchmark}.
+ */
+public class MessageBatcher<T> {
+
+    private final ArrayList<T> mPending = new ArrayList<>();
+    private boolean            mScheduled;
+
+    /**
+     * Add an item.
+     *
+     * @return true if the caller has to schedule a delivery
+     */
+    public synchronized boolean add(T item) {
+        mPending.add(item);
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    /**
+     * Move all pending items into {@code out} (in the order they were added).
+     *
+     * @return the number of items moved
+     */
+    public synchronized int drainTo(List<T> out) {
+        int count = mPending.size();
+        for (int i = 0; i < count; i++) {
+            out.add(mPending.get(i));
+        }
+        mPending.clear();
+        mScheduled = false;
+        return count;
+    }
+}
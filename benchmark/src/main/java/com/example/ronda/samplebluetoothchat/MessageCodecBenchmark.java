@@ -0,0 +1,171 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a telemetry record (timestamp, rssi, battery, rtt, queue depth,
+ * throughput, link up, device name), the way the app sends it today and with the binary codec.
+ * <ul>
+ * <li>{@code text}: "key=value;..." built with a StringBuilder and {@code String.getBytes()},
+ * read back with {@code new String()}, {@code split()} and {@code parseXxx()}</li>
+ * <li>{@code binary}: {@link MessageEncoder} / {@link MessageDecoder} over reused buffers</li>
+ * </ul>
+ * Scores are records per second. The average encoded size is printed by the setup (it is the
+ * same on every machine): about 95 bytes per record as text, 33 as binary.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int RECORDS = 256;
+
+    private static final int TYPE_TELEMETRY = 1;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private final long[]   mTimestamps = new long[RECORDS];
+    private final int[]    mRssi       = new int[RECORDS];
+    private final int[]    mBattery    = new int[RECORDS];
+    private final long[]   mRttMicros  = new long[RECORDS];
+    private final int[]    mQueued     = new int[RECORDS];
+    private final double[] mThroughput = new double[RECORDS];
+    private final String[] mNames      = new String[RECORDS];
+
+    private final MessageEncoder mEncoder = new MessageEncoder();
+    private final MessageDecoder mDecoder = new MessageDecoder();
+    private final Utf8Decoder    mName    = new Utf8Decoder(32);
+    private final StringBuilder  mText    = new StringBuilder(128);
+
+    private byte[][] mEncoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long now = 1700000000000L;
+        for (int i = 0; i < RECORDS; i++) {
+            mTimestamps[i] = now + i * 250L;
+            mRssi[i] = -40 - i % 50;
+            mBattery[i] = 100 - i % 100;
+            mRttMicros[i] = 8000 + i * 37 % 20000;
+            mQueued[i] = i % 64;
+            mThroughput[i] = 1200.5 + i * 3.25;
+            mNames[i] = "Pixel-" + (i % 8);
+        }
+        mEncoded = new byte[RECORDS][];
+        long bytes = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            mEncoded[i] = copy(encode(i));
+            bytes += mEncoded[i].length;
+        }
+        System.out.println(format + ": " + (double) bytes / RECORDS + " bytes per record");
+    }
+
+    private byte[] copy(int length) {
+        byte[] bytes = new byte[length];
+        if (format.equals("binary")) {
+            System.arraycopy(mEncoder.getBuffer(), mEncoder.getOffset(), bytes, 0, length);
+            return bytes;
+        }
+        return mText.toString().getBytes(UTF_8);
+    }
+
+    // Returns the encoded size; the bytes are in mEncoder, or in mText for text (the getBytes() is part of the cost)
+    private int encode(int i) {
+        if (format.equals("binary")) {
+            MessageEncoder encoder = mEncoder;
+            encoder.begin(TYPE_TELEMETRY, 1);
+            encoder.writeLong(mTimestamps[i]);
+            encoder.writeInt(mRssi[i]);
+            encoder.writeInt(mBattery[i]);
+            encoder.writeLong(mRttMicros[i]);
+            encoder.writeInt(mQueued[i]);
+            encoder.writeDouble(mThroughput[i]);
+            encoder.writeBoolean(true);
+            encoder.writeString(mNames[i]);
+            return encoder.end();
+        }
+        StringBuilder sb = mText;
+        sb.setLength(0);
+        sb.append("ts=").append(mTimestamps[i])
+                .append(";rssi=").append(mRssi[i])
+                .append(";battery=").append(mBattery[i])
+                .append(";rtt=").append(mRttMicros[i])
+                .append(";queued=").append(mQueued[i])
+                .append(";throughput=").append(mThroughput[i])
+                .append(";up=").append(true)
+                .append(";name=").append(mNames[i]);
+        return sb.toString().getBytes(UTF_8).length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RECORDS)
+    public int encode() {
+        int bytes = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            bytes += encode(i);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RECORDS)
+    public long decode() throws IOException {
+        long sum = 0;
+        boolean binary = format.equals("binary");
+        for (int i = 0; i < RECORDS; i++) {
+            byte[] bytes = mEncoded[i];
+            if (binary) {
+                MessageDecoder decoder = mDecoder;
+                decoder.reset(bytes, 0, bytes.length);
+                decoder.next();
+                sum += decoder.readLong();
+                sum += decoder.readInt();
+                sum += decoder.readInt();
+                sum += decoder.readLong();
+                sum += decoder.readInt();
+                sum += (long) decoder.readDouble();
+                sum += decoder.readBoolean() ? 1 : 0;
+                sum += decoder.readString(mName).length();
+            } else {
+                String[] fields = new String(bytes, UTF_8).split(";");
+                sum += Long.parseLong(value(fields[0]));
+                sum += Integer.parseInt(value(fields[1]));
+                sum += Integer.parseInt(value(fields[2]));
+                sum += Long.parseLong(value(fields[3]));
+                sum += Integer.parseInt(value(fields[4]));
+                sum += (long) Double.parseDouble(value(fields[5]));
+                sum += Boolean.parseBoolean(value(fields[6])) ? 1 : 0;
+                sum += value(fields[7]).length();
+            }
+        }
+        return sum;
+    }
+
+    private static String value(String field) {
+        return field.substring(field.indexOf('=') + 1);
+    }
+}
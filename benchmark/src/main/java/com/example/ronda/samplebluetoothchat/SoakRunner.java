@@ -0,0 +1,423 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load and soak test: hundreds of {@link BluetoothChatService}s chatting over a
+ * {@link SimulatedRfcomm} for as long as you like, with a report on throughput, latency,
+ * memory and reconnects at the end.
+ * <p>
+ * The devices are hubs and peers: every hub takes {@link ConnectionRegistry#DEFAULT_MAX_PEERS}
+ * peers, each peer connects to its hub (and reconnects after a lost link, with a
+ * {@link ReconnectPolicy}). Every peer sends {@code --rate} messages per second to its hub and the
+ * hub as many to each of its peers. A message carries a sequence number per sender and receiver
+ * and the time it was queued, so the receiver measures the latency from write() to its listener
+ * (links, queues, resend after a reconnect and event dispatch included) and notices lost,
+ * repeated or reordered messages. Messages a service refused (peer not connected, queue full)
+ * are counted, not numbered: only what was accepted for sending has to arrive.
+ * <p>
+ * All services share one {@link ConnectionEngine}, and their events are dispatched on its threads.
+ * Every {@code --report} seconds one line of interval figures is printed; memory is measured
+ * after a full GC, and its growth over the run is a least-squares fit (the first interval, while
+ * everything connects, is left out). The services print a stack trace for every lost link, those
+ * go to {@code --log}.
+ * <p>
+ * Options ({@code --name=value}): peers, minutes, rate, size, report (seconds), seed, kbps,
+ * latency, jitter, packet, window, connect (ms), connect-fail (0..1), uptime (mean seconds a link
+ * lasts, 0 for never), log.
+ * <pre>
+ * ./gradlew :benchmark:soak -Psoak='--peers=300 --minutes=240 --uptime=300'
+ * </pre>
+ */
+public class SoakRunner {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long TICK_MILLIS          = 100;
+    private static final long RETRY_GIVE_UP_MILLIS = 5000; // after ERROR_CONNECT_FAILED, connect() again this much later
+
+    private final int    mPeers;
+    private final long   mMinutes;
+    private final double mRate;
+    private final int    mSize;
+    private final long   mReportSeconds;
+    private final long   mSeed;
+    private final String mLog;
+
+    private final LinkProfile              mProfile;
+    private final SimulatedRfcomm          mRadio;
+    private final ConnectionEngine         mEngine;
+    private final ScheduledExecutorService mTimer   = Executors.newSingleThreadScheduledExecutor();
+    private final List<Device>             mHubs    = new ArrayList<>();
+    private final List<Device>             mClients = new ArrayList<>();
+    private final byte[]                   mPadding;
+
+    private final LatencyHistogram    mLatency         = new LatencyHistogram();
+    private volatile LatencyHistogram mInterval        = new LatencyHistogram();
+    private final LatencyHistogram    mRecovery        = new LatencyHistogram(); // peer lost its hub until it was back
+    private final AtomicLong          mSent            = new AtomicLong();
+    private final AtomicLong          mRefused         = new AtomicLong();
+    private final AtomicLong          mReceived        = new AtomicLong();
+    private final AtomicLong          mReceivedBytes   = new AtomicLong();
+    private final AtomicLong          mLost            = new AtomicLong();
+    private final AtomicLong          mLostByPeers     = new AtomicLong(); // of mLost, sent by peers to their hub
+    private final AtomicLong          mDuplicated      = new AtomicLong();
+    private final AtomicLong          mConnectionsLost = new AtomicLong();
+    private final AtomicLong          mGaveUp          = new AtomicLong();
+    private final AtomicLong          mTooMany         = new AtomicLong();
+
+    private final List<long[]> mHeap       = new ArrayList<>(); // {millis since start, bytes used after GC}
+    private int                mMinThreads = Integer.MAX_VALUE;
+    private int                mMaxThreads;
+
+    /**
+     * One simulated phone.
+     */
+    private final class Device implements BluetoothChatService.Listener {
+        final String               mmAddress;
+        final String               mmHub;        // for peers, the hub they connect to; null for hubs
+        final List<String>         mmPeers = new ArrayList<>(); // for hubs
+        final BluetoothChatService mmService;
+        final Map<String, Long>    mmNextSent     = new HashMap<>(); // sequence number of the next message, per receiver (timer thread)
+        final Map<String, Long>    mmNextReceived = new HashMap<>(); // expected sequence number, per sender (dispatch task)
+        double                     mmDue;        // messages owed per receiver (timer thread)
+        volatile boolean           mmConnected;
+
+        final ConnectionEngine.Task mmDispatch = new ConnectionEngine.Task(mEngine) {
+            @Override
+            protected long step() {
+                mmService.dispatchEvents();
+                return IDLE;
+            }
+        };
+
+        Device(String address, String hub) {
+            mmAddress = address;
+            mmHub = hub;
+            mmService = new BluetoothChatService(this, mRadio.provider(address));
+            mmService.setConnectionEngine(mEngine);
+            if (hub != null) {
+                mmService.setReconnectPolicy(new ReconnectPolicy(500, 10 * 1000, 2, 0.2, 8));
+            }
+        }
+
+        // Timer thread
+        void send(String to) {
+            Long next = mmNextSent.get(to);
+            long seq = next != null ? next : 0;
+            byte[] message = encode(seq);
+            if (mmService.write(to, message)) {
+                mmNextSent.put(to, seq + 1);
+                mSent.incrementAndGet();
+            } else {
+                mRefused.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onEventsPending() {
+            mmDispatch.schedule();
+        }
+
+        @Override
+        public void onStateChanged(int state, int connectedCount, String deviceName) {
+            if (mmHub != null) {
+                mmConnected = state == BluetoothChatService.STATE_CONNECTED;
+            }
+        }
+
+        @Override
+        public void onFrameReceived(PooledFrame frame) {
+            if (frame.getType() == FrameCodec.TYPE_TEXT) {
+                received(frame.getRemoteAddress(), frame.getPayload());
+            }
+            frame.recycle();
+        }
+
+        private void received(String from, ByteSlice payload) {
+            long now = System.nanoTime();
+            String text = payload.toString(UTF_8);
+            int semicolon = text.indexOf(';');
+            long seq = Long.parseLong(text.substring(0, semicolon));
+            long sentNanos = Long.parseLong(text.substring(semicolon + 1, text.indexOf(';', semicolon + 1)));
+            mLatency.record(now - sentNanos);
+            mInterval.record(now - sentNanos);
+            mReceived.incrementAndGet();
+            mReceivedBytes.addAndGet(payload.length());
+
+            Long next = mmNextReceived.get(from);
+            long expected = next != null ? next : 0;
+            if (seq < expected) {
+                mDuplicated.incrementAndGet();
+                return;
+            }
+            if (seq > expected) {
+                mLost.addAndGet(seq - expected);
+                if (mmHub == null) {
+                    mLostByPeers.addAndGet(seq - expected);
+                }
+            }
+            mmNextReceived.put(from, seq + 1);
+        }
+
+        @Override
+        public void onFrameSent(PooledFrame frame) {
+            frame.recycle();
+        }
+
+        @Override
+        public void onReconnected(String address, long millis) {
+            mRecovery.record(millis * 1000000);
+        }
+
+        @Override
+        public void onError(int error, String address, String message) {
+            switch (error) {
+                case BluetoothChatService.ERROR_CONNECTION_LOST:
+                    mConnectionsLost.incrementAndGet();
+                    break;
+                case BluetoothChatService.ERROR_TOO_MANY_PEERS:
+                    mTooMany.incrementAndGet();
+                    break;
+                case BluetoothChatService.ERROR_CONNECT_FAILED:
+                    if (mmHub != null) {
+                        // 重试次数用完了：过一会儿再从头连，像用户再点一次连接
+                        mGaveUp.incrementAndGet();
+                        mTimer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                mmService.connect(mmHub);
+                            }
+                        }, RETRY_GIVE_UP_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    break;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Options are --name=value, see SoakRunner");
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new SoakRunner(options).run();
+        System.exit(0);
+    }
+
+    private SoakRunner(Map<String, String> options) {
+        mPeers = (int) option(options, "peers", 200);
+        mMinutes = option(options, "minutes", 60);
+        mRate = Double.parseDouble(string(options, "rate", "1"));
+        mSize = (int) option(options, "size", 64);
+        mReportSeconds = option(options, "report", 60);
+        mSeed = option(options, "seed", 1);
+        mLog = string(options, "log", "soak-stderr.log");
+        mProfile = new LinkProfile((int) option(options, "kbps", 100) * 1024, option(options, "latency", 20),
+                option(options, "jitter", 10), (int) option(options, "packet", LinkProfile.DEFAULT_MAX_PACKET),
+                (int) option(options, "window", LinkProfile.DEFAULT_WINDOW), option(options, "connect", 300),
+                Double.parseDouble(string(options, "connect-fail", "0.05")), option(options, "uptime", 600) * 1000);
+        mRadio = new SimulatedRfcomm(mProfile, mSeed);
+
+        // A writer for each end of every link, so no stalled write waits for another (accept() and connect() get threads of their own)
+        mEngine = new ConnectionEngine(ConnectionEngine.DEFAULT_THREADS, 2 * mPeers, ConnectionEngine.DEFAULT_POLL_MILLIS);
+
+        mPadding = new byte[Math.max(0, mSize - 24)];
+        Arrays.fill(mPadding, (byte) 'x');
+    }
+
+    private static String string(Map<String, String> options, String name, String defaultValue) {
+        String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static long option(Map<String, String> options, String name, long defaultValue) {
+        return Long.parseLong(string(options, name, String.valueOf(defaultValue)));
+    }
+
+    // "seq;nanos;xxx..."
+    private byte[] encode(long seq) {
+        byte[] head = (seq + ";" + System.nanoTime() + ";").getBytes(UTF_8);
+        byte[] message = new byte[head.length + mPadding.length];
+        System.arraycopy(head, 0, message, 0, head.length);
+        System.arraycopy(mPadding, 0, message, head.length, mPadding.length);
+        return message;
+    }
+
+    private void run() throws Exception {
+        PrintStream out = System.out;
+        System.setErr(new PrintStream(new FileOutputStream(mLog), true));
+        out.println("Soak: " + mPeers + " peers, " + (mPeers + ConnectionRegistry.DEFAULT_MAX_PEERS - 1) / ConnectionRegistry.DEFAULT_MAX_PEERS
+                + " hubs, " + mMinutes + " min, " + mRate + " msg/s of " + mSize + " B each way, seed " + mSeed);
+        out.println("Links: " + mProfile);
+        out.println("Stack traces of the services: " + mLog);
+
+        for (int i = 0; i < mPeers; i++) {
+            if (i % ConnectionRegistry.DEFAULT_MAX_PEERS == 0) {
+                mHubs.add(new Device(String.format(Locale.US, "hub-%03d", mHubs.size()), null));
+            }
+            Device hub = mHubs.get(mHubs.size() - 1);
+            Device peer = new Device(String.format(Locale.US, "peer-%04d", i), hub.mmAddress);
+            hub.mmPeers.add(peer.mmAddress);
+            mClients.add(peer);
+        }
+        for (Device hub : mHubs) {
+            hub.mmService.start();
+        }
+        for (Device peer : mClients) {
+            peer.mmService.start();
+            peer.mmService.connect(peer.mmHub);
+        }
+
+        mTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+        long start = System.currentTimeMillis();
+        long end = start + mMinutes * 60 * 1000;
+        long[] previous = {0, 0, 0};
+        long lastReport = start;
+        out.println();
+        out.println("   time   peers up    msg/s     KB/s   latency ms p50/p99/max   heap MB  threads  links broken  lost");
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(mReportSeconds * 1000, end - System.currentTimeMillis()));
+            long now = System.currentTimeMillis();
+            LatencyHistogram.Snapshot interval = mInterval.snapshot();
+            mInterval = new LatencyHistogram();
+            long[] totals = {mReceived.get(), mReceivedBytes.get(), mLost.get()};
+            double seconds = (now - lastReport) / 1000.0;
+            long heap = sampleMemory(now - start);
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            mMinThreads = Math.min(mMinThreads, threads);
+            mMaxThreads = Math.max(mMaxThreads, threads);
+            int up = 0;
+            for (Device peer : mClients) {
+                if (peer.mmConnected) {
+                    up++;
+                }
+            }
+            out.println(String.format(Locale.US, "%6s  %5d/%-5d %8.0f %8.1f   %6d /%6d /%6d     %7.1f  %7d  %12d  %4d",
+                    clock(now - start), up, mPeers, (totals[0] - previous[0]) / seconds, (totals[1] - previous[1]) / seconds / 1024,
+                    interval.getPercentileMicros(50) / 1000, interval.getPercentileMicros(99) / 1000, interval.getMaxMicros() / 1000,
+                    heap / 1048576.0, threads, mRadio.getLinksBroken(), totals[2] - previous[2]));
+            previous = totals;
+            lastReport = now;
+        }
+
+        mTimer.shutdownNow();
+        report(out, System.currentTimeMillis() - start);
+        for (Device device : mClients) {
+            device.mmService.stop();
+        }
+        for (Device device : mHubs) {
+            device.mmService.stop();
+        }
+        mEngine.shutdown();
+    }
+
+    // Timer thread: send what is due
+    private void tick() {
+        double due = mRate * TICK_MILLIS / 1000;
+        for (Device peer : mClients) {
+            peer.mmDue += due;
+            while (peer.mmDue >= 1) {
+                peer.mmDue--;
+                peer.send(peer.mmHub);
+            }
+        }
+        for (Device hub : mHubs) {
+            hub.mmDue += due;
+            while (hub.mmDue >= 1) {
+                hub.mmDue--;
+                for (String peer : hub.mmPeers) {
+                    hub.send(peer);
+                }
+            }
+        }
+    }
+
+    private long sampleMemory(long millis) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        mHeap.add(new long[]{millis, used});
+        return used;
+    }
+
+    // Least-squares slope of the heap samples, in bytes per hour, without the first one (start-up)
+    private double heapGrowthPerHour() {
+        int n = mHeap.size() - 1;
+        if (n < 2) {
+            return 0;
+        }
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        for (int i = 1; i <= n; i++) {
+            double x = mHeap.get(i)[0] / 3600000.0;
+            double y = mHeap.get(i)[1];
+            sumX += x;
+            sumY += y;
+            sumXY += x * y;
+            sumXX += x * x;
+        }
+        double d = n * sumXX - sumX * sumX;
+        return d == 0 ? 0 : (n * sumXY - sumX * sumY) / d;
+    }
+
+    private void report(PrintStream out, long millis) {
+        double seconds = millis / 1000.0;
+        long received = mReceived.get();
+        ChatMetrics.Snapshot hub = mHubs.get(0).mmService.getMetrics();
+        long minHeap = Long.MAX_VALUE;
+        long maxHeap = 0;
+        for (int i = 1; i < mHeap.size(); i++) {
+            minHeap = Math.min(minHeap, mHeap.get(i)[1]);
+            maxHeap = Math.max(maxHeap, mHeap.get(i)[1]);
+        }
+        if (minHeap > maxHeap) {
+            minHeap = maxHeap; // one sample only
+        }
+
+        out.println();
+        out.println("=== Soak report, " + clock(millis) + " ===");
+        out.println(String.format(Locale.US, "Throughput   %d messages (%.0f/s), %.1f KB/s of messages, %.1f KB/s on the links",
+                received, received / seconds, mReceivedBytes.get() / seconds / 1024, mRadio.getDeliveredBytes() / seconds / 1024));
+        out.println(String.format(Locale.US, "Messages     %d queued, %d refused (peer not connected or queue full), %d not arrived yet",
+                mSent.get(), mRefused.get(), Math.max(0, mSent.get() - received - mLost.get())));
+        out.println(String.format(Locale.US, "Integrity    %d lost (%d sent by peers, %d by hubs), %d duplicated",
+                mLost.get(), mLostByPeers.get(), mLost.get() - mLostByPeers.get(), mDuplicated.get()));
+        out.println("Latency ms   " + mLatency.snapshot().format(1000) + "  (write() to listener)");
+        out.println(String.format(Locale.US, "Memory       heap after GC %.1f .. %.1f MB, growth %.2f MB/hour; threads %d .. %d",
+                minHeap / 1048576.0, maxHeap / 1048576.0, heapGrowthPerHour() / 1048576, mMinThreads == Integer.MAX_VALUE ? 0 : mMinThreads, mMaxThreads));
+        out.println(String.format(Locale.US, "Links        %d opened, %d broken, %d connect failures, %d open at the end",
+                mRadio.getLinksOpened(), mRadio.getLinksBroken(), mRadio.getConnectFailures(), mRadio.getOpenLinks()));
+        out.println(String.format(Locale.US, "Reconnects   %d connections lost, %d recovered, %d gave up (connect() again after %d s), %d refused as too many",
+                mConnectionsLost.get(), mRecovery.getCount(), mGaveUp.get(), RETRY_GIVE_UP_MILLIS / 1000, mTooMany.get()));
+        out.println("Recovery ms  " + mRecovery.snapshot().format(1000) + "  (link lost to reconnected)");
+        out.println("Hub 0        " + hub.toString().replace("\n", "\n             "));
+    }
+
+    private static String clock(long millis) {
+        long minutes = millis / 60000;
+        return minutes / 60 + ":" + String.format(Locale.US, "%02d", minutes % 60) + ":" + String.format(Locale.US, "%02d", millis / 1000 % 60);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.ronda.samplebluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wraps a {@link Transport} so that its output stream cannot go faster than a fixed number of
+ * bytes per second, like a real RFCOMM link. Data goes through in packets of up to
+ * {@link #PACKET_SIZE} bytes, so the start of a big write arrives before its end. Only used by
+ * the benchmarks.
+ */
+class ThrottledTransport implements Transport {
+
+    // About the RFCOMM MTU
+    static final int PACKET_SIZE = 1024;
+
+    private final Transport    mTransport;
+    private final OutputStream mOutputStream;
+
+    ThrottledTransport(Transport transport, final int bytesPerSecond) throws IOException {
+        mTransport = transport;
+        final OutputStream out = transport.getOutputStream();
+        mOutputStream = new OutputStream() {
+            private long mNextFree = System.nanoTime(); // when the link has sent everything so far
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int packet = Math.min(len, PACKET_SIZE);
+                    long now = System.nanoTime();
+                    mNextFree = Math.max(mNextFree, now) + packet * 1000000000L / bytesPerSecond;
+                    long wait = mNextFree - now;
+                    while (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        wait = mNextFree - System.nanoTime();
+                    }
+                    out.write(b, off, packet);
+                    off += packet;
+                    len -= packet;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mTransport.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mTransport.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mTransport.getRemoteAddress();
+    }
+
+    @Override
+    public String getRemoteName() {
+        return mTransport.getRemoteName();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mTransport.close();
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receive loop of {@link ConnectedThread} (reassembly in {@link FrameDecoder}, then
+ * {@link ConnectedThread#onFrame}) over an in-memory stream, with and without tracing.
+ * <ul>
+ * <li>{@code none}: no {@link Tracer} set</li>
+ * <li>{@code disabled}: a tracer at {@link Tracer#LEVEL_INFO}, so the per-frame events are filtered out</li>
+ * <li>{@code enabled}: a tracer at {@link Tracer#LEVEL_VERBOSE}, every read and every frame is recorded</li>
+ * </ul>
+ * {@code none} and {@code disabled} should score the same.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracingBenchmark {
+
+    private static final int FRAMES = 256;
+
+    @Param({"none", "disabled", "enabled"})
+    public String tracing;
+
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private ConnectedThread    mConnection;
+    private byte[]             mStream;
+
+    private static final ConnectedThread.Callback NO_OP = new ConnectedThread.Callback() {
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, ByteSlice payload) {
+        }
+
+        @Override
+        public void onFramesWritten(ConnectedThread connection, List<byte[]> frames) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            out.write(FrameCodec.encode(FrameCodec.TYPE_TEXT, ("message number " + i).getBytes()));
+        }
+        mStream = out.toByteArray();
+
+        // Never started: the benchmark thread plays the reading thread
+        mConnection = new ConnectedThread(MemoryTransport.pair("a", "b")[0], NO_OP);
+        if (tracing.equals("disabled")) {
+            mConnection.setTracer(new Tracer(Tracer.DEFAULT_CAPACITY, Tracer.LEVEL_INFO));
+        } else if (tracing.equals("enabled")) {
+            mConnection.setTracer(new Tracer(Tracer.DEFAULT_CAPACITY, Tracer.LEVEL_VERBOSE));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(FRAMES)
+    public void receiveLoop() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(mStream);
+        while (mDecoder.readFrom(in, mConnection) >= 0) {
+            // every complete frame went through onFrame()
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.ronda.samplebluetoothchat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding chat traffic (mixed Chinese, ASCII and emoji) as it comes off the socket, one read of
+ * {@code readSize} bytes at a time.
+ * <ul>
+ * <li>{@code string}: what the receive loop used to do, {@code new String(buffer, 0, len)} per
+ * read with the platform charset. Allocates a String (and its chars) per read, and garbles every
+ * character split between two reads</li>
+ * <li>{@code utf8}: one {@link Utf8Decoder} reused for every read, which carries split sequences
+ * over to the next one</li>
+ * </ul>
+ * Scores are messages per second.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8Benchmark {
+
+    private static final int MESSAGES = 256;
+
+    private static final String[] SAMPLES = {
+            "你好，明天几点见面？",
+            "ok, see you at 3pm 👍",
+            "文件已经发过去了，收到了吗",
+            "the build is green again",
+            "蓝牙连接断开了，正在重连… 😅",
+            "lol",
+    };
+
+    @Param({"string", "utf8"})
+    public String decoder;
+
+    @Param({"64", "990"}) // a small read, and about one RFCOMM packet
+    public int readSize;
+
+    private final Utf8Decoder mDecoder = new Utf8Decoder();
+    private byte[]            mStream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Charset utf8 = Charset.forName("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            out.write((SAMPLES[i % SAMPLES.length] + " #" + i).getBytes(utf8));
+        }
+        mStream = out.toByteArray();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(MESSAGES)
+    public int decode() {
+        int chars = 0;
+        boolean reuse = decoder.equals("utf8");
+        for (int offset = 0; offset < mStream.length; offset += readSize) {
+            int length = Math.min(readSize, mStream.length - offset);
+            if (reuse) {
+                mDecoder.clear(); // the consumer took the chars of the last read
+                chars += mDecoder.decode(mStream, offset, length);
+            } else {
+                chars += new String(mStream, offset, length).length();
+            }
+        }
+        return chars;
+    }
+}